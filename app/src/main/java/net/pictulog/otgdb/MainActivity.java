@@ -81,6 +81,20 @@ public class MainActivity extends AppCompatActivity {
         startActivity(new Intent(PREFERENCES_ACTIVITY));
     }
 
+    public void onImage(MenuItem menuItem) {
+        MainActivityFragment fragment = (MainActivityFragment) getSupportFragmentManager().findFragmentById(R.id.fragment);
+        if (fragment != null) {
+            fragment.imageDisk();
+        }
+    }
+
+    public void onTrace(MenuItem menuItem) {
+        MainActivityFragment fragment = (MainActivityFragment) getSupportFragmentManager().findFragmentById(R.id.fragment);
+        if (fragment != null) {
+            fragment.saveTrace();
+        }
+    }
+
     public void onAbout(MenuItem menuItem) {
         AlertDialog.Builder builder = new AlertDialog.Builder(this);
         builder.setTitle(R.string.action_about);
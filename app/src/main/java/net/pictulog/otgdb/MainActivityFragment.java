@@ -34,34 +34,47 @@ import android.widget.Button;
 import android.widget.ListView;
 import android.widget.Toast;
 
+import net.pictulog.otgdb.catalog.Catalog;
+import net.pictulog.otgdb.catalog.CatalogStore;
+import net.pictulog.otgdb.device.IoTrace;
+import net.pictulog.otgdb.device.OtgFileSystem;
 import net.pictulog.otgdb.task.BackupTask;
 import net.pictulog.otgdb.task.BackupTaskListener;
 import net.pictulog.otgdb.task.CountTask;
 import net.pictulog.otgdb.task.CountTaskListener;
+import net.pictulog.otgdb.task.ImageFormat;
+import net.pictulog.otgdb.task.ImageTask;
+import net.pictulog.otgdb.task.ImageTaskListener;
 import net.pictulog.otgdb.task.MountTask;
 import net.pictulog.otgdb.task.MountTaskListener;
 import net.pictulog.otgdb.task.NavigateTask;
 import net.pictulog.otgdb.task.NavigateTaskListener;
 
 import java.io.File;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Date;
 import java.util.List;
+import java.util.Locale;
 
 import de.waldheinz.fs.FileSystem;
-import de.waldheinz.fs.FsDirectory;
 
 /**
  * A placeholder fragment containing a simple view.
  */
-public class MainActivityFragment extends Fragment implements MountTaskListener, NavigateTaskListener, CountTaskListener, BackupTaskListener {
+public class MainActivityFragment extends Fragment implements MountTaskListener, NavigateTaskListener, CountTaskListener, BackupTaskListener, ImageTaskListener {
 
     private Button btnBackup;
     private ListView listView;
     private ArrayAdapter<String> adapter;
     private List<String> files;
     private ProgressDialog progressDialog;
-    private FsDirectory fromDir;
+    private FileSystem fileSystem;
+    private CatalogStore catalogStore;
+    private Catalog catalog;
+    private int fromDir = -1;
 
     public MainActivityFragment() {
     }
@@ -82,6 +95,7 @@ public class MainActivityFragment extends Fragment implements MountTaskListener,
         adapter = new ArrayAdapter<String>(getContext(), R.layout.file, files);
         listView = (ListView) view.findViewById(R.id.listView);
         listView.setAdapter(adapter);
+        catalogStore = new CatalogStore(new File(getContext().getFilesDir(), "catalogs"));
         new MountTask(this, getContext()).execute();
         return view;
     }
@@ -108,13 +122,12 @@ public class MainActivityFragment extends Fragment implements MountTaskListener,
         }
         Log.i("MainActivityFragment", "Copying all files from OTG Disk to " + to);
         try {
-            FsDirectory srcDir = fromDir;
             File destDir = new File(settings.getString(PreferencesActivity.PREFS_TO_FILE,
                     Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_PICTURES).getAbsolutePath()));
             List<String> extensions = Arrays.asList(settings.getString(PreferencesActivity.PREFS_EXTENSION, "").split(","));
             boolean delete = settings.getBoolean(PreferencesActivity.PREFS_DELETE, false);
             boolean overwrite = settings.getBoolean(PreferencesActivity.PREFS_OVERWRITE, false);
-            new BackupTask(this, srcDir, destDir, extensions, delete, overwrite).execute();
+            new BackupTask(this, fileSystem, catalog, catalogStore, fromDir, destDir, extensions, delete, overwrite).execute();
         } catch (Exception e) {
             progressDialog.dismiss();
             Log.e("MainActivityFragment", e.getMessage(), e);
@@ -122,13 +135,76 @@ public class MainActivityFragment extends Fragment implements MountTaskListener,
         }
     }
 
+    /**
+     * Dump the OTG device to an image file in the destination folder.
+     */
+    public void imageDisk() {
+        Context context = getContext();
+        SharedPreferences settings = PreferenceManager.getDefaultSharedPreferences(context);
+        if (fileSystem == null) {
+            Toast.makeText(context, R.string.pluginDisk, Toast.LENGTH_LONG).show();
+            return;
+        }
+        File to = new File(settings.getString(PreferencesActivity.PREFS_TO_FILE, ""));
+        if (!to.exists()) {
+            Log.e("MainActivityFragment", "Invalid to preference...");
+            Toast.makeText(context, R.string.invalidFromTo, Toast.LENGTH_LONG).show();
+            return;
+        }
+        Log.i("MainActivityFragment", "Imaging OTG Disk to " + to);
+        try {
+            boolean wholeDevice = settings.getBoolean(PreferencesActivity.PREFS_IMAGE_WHOLE_DEVICE, false);
+            ImageFormat format = ImageFormat.valueOf(settings.getString(PreferencesActivity.PREFS_IMAGE_FORMAT,
+                    ImageFormat.RAW.name()));
+            new ImageTask(this, fileSystem, to, wholeDevice, format).execute();
+        } catch (Exception e) {
+            Log.e("MainActivityFragment", e.getMessage(), e);
+            Toast.makeText(context, R.string.imagingFailed, Toast.LENGTH_LONG).show();
+        }
+    }
+
+    /**
+     * Save the commands kept by the {@link IoTrace} of the card next to the
+     * backups.
+     */
+    public void saveTrace() {
+        Context context = getContext();
+        if (!(fileSystem instanceof OtgFileSystem)) {
+            Toast.makeText(context, R.string.pluginDisk, Toast.LENGTH_LONG).show();
+            return;
+        }
+        IoTrace trace = ((OtgFileSystem) fileSystem).getBlockDevice().getTrace();
+        if (!trace.isEnabled()) {
+            Toast.makeText(context, R.string.traceDisabled, Toast.LENGTH_LONG).show();
+            return;
+        }
+        SharedPreferences settings = PreferenceManager.getDefaultSharedPreferences(context);
+        File to = new File(settings.getString(PreferencesActivity.PREFS_TO_FILE, ""));
+        if (!to.exists()) {
+            Log.e("MainActivityFragment", "Invalid to preference...");
+            Toast.makeText(context, R.string.invalidFromTo, Toast.LENGTH_LONG).show();
+            return;
+        }
+        File file = new File(to, "otgdb-trace-" + new SimpleDateFormat("yyyyMMdd-HHmmss", Locale.US).format(new Date())
+                + ".txt");
+        try {
+            int records = trace.dump(file);
+            Log.i("MainActivityFragment", records + " trace record(s) saved to " + file);
+            Toast.makeText(context, getString(R.string.traceSaved, file.getAbsolutePath()), Toast.LENGTH_LONG).show();
+        } catch (IOException e) {
+            Log.e("MainActivityFragment", e.getMessage(), e);
+            Toast.makeText(context, R.string.traceFailed, Toast.LENGTH_LONG).show();
+        }
+    }
+
     @Override
     public void onMountReady(FileSystem fs) {
         Log.i("MainActivityFragment", "Disk ready!");
+        this.fileSystem = fs;
         Context context = getContext();
         Toast.makeText(context, R.string.diskReady, Toast.LENGTH_SHORT).show();
         try {
-            new NavigateTask(this, fs.getRoot(),
+            new NavigateTask(this, fs, catalogStore,
                     PreferenceManager.getDefaultSharedPreferences(context).getString(PreferencesActivity.PREFS_FROM_FILE, getText(R.string.from_file).toString())).execute();
         } catch (Exception e) {
             Log.e("MainActivityFragment", e.getMessage(), e);
@@ -141,12 +217,19 @@ public class MainActivityFragment extends Fragment implements MountTaskListener,
         Toast.makeText(getContext(), messageId, Toast.LENGTH_LONG).show();
     }
 
-    public void onNavigateReady(FsDirectory fromDir) {
+    public void onNavigateReady(Catalog catalog, int fromDir) {
+        if (catalog == null || fromDir < 0) {
+            Log.e("MainActivityFragment", "Invalid from preference...");
+            Toast.makeText(getContext(), R.string.invalidFromTo, Toast.LENGTH_LONG).show();
+            btnBackup.setEnabled(false);
+            return;
+        }
+        this.catalog = catalog;
         this.fromDir = fromDir;
         btnBackup.setEnabled(true);
         try {
             List<String> extensions = Arrays.asList(PreferenceManager.getDefaultSharedPreferences(getContext()).getString(PreferencesActivity.PREFS_EXTENSION, "").split(","));
-            new CountTask(this, fromDir, extensions).execute();
+            new CountTask(this, catalog, fromDir, extensions).execute();
         } catch (Exception e) {
             Log.e("MainActivityFragment", e.getMessage(), e);
             Toast.makeText(getContext(), R.string.mountingFailed, Toast.LENGTH_LONG).show();
@@ -177,8 +260,8 @@ public class MainActivityFragment extends Fragment implements MountTaskListener,
         progressDialog.setCancelable(false);
         progressDialog.setMessage(getText(R.string.backingUp));
         progressDialog.setProgressStyle(ProgressDialog.STYLE_HORIZONTAL);
+        progressDialog.setProgressNumberFormat("%1d/%2d MB");
         progressDialog.setProgress(0);
-        progressDialog.setMax(files.size());
         progressDialog.show();
     }
 
@@ -188,7 +271,8 @@ public class MainActivityFragment extends Fragment implements MountTaskListener,
             Log.i("MainActivityFragment", "Backup complete");
             btnBackup.setEnabled(true);
             List<String> extensions = Arrays.asList(PreferenceManager.getDefaultSharedPreferences(getContext()).getString(PreferencesActivity.PREFS_EXTENSION, "").split(","));
-            new CountTask(this, fromDir, extensions).execute();
+            // The deleted files were marked in the catalog, no need to go back to the disk
+            new CountTask(this, catalog, fromDir, extensions).execute();
             if (progressDialog != null) {
                 progressDialog.dismiss();
             }
@@ -198,10 +282,14 @@ public class MainActivityFragment extends Fragment implements MountTaskListener,
     }
 
     @Override
-    public void onBackupProgressUpdate(Integer... values) {
+    public void onBackupProgressUpdate(long copied, long total, long bytesPerSecond, long eta) {
         try {
             if (progressDialog != null && progressDialog.isShowing()) {
-                progressDialog.setProgress(values != null ? values[values.length - 1] : 0);
+                progressDialog.setMax((int) (total / 1000000));
+                progressDialog.setProgress((int) (copied / 1000000));
+                if (eta >= 0) {
+                    progressDialog.setMessage(getString(R.string.backingUpProgress, bytesPerSecond / 1e6, eta / 60, eta % 60));
+                }
             }
         } catch (Exception e) {
             Log.e("MainActivityFragment", e.getMessage(), e);
@@ -222,6 +310,61 @@ public class MainActivityFragment extends Fragment implements MountTaskListener,
         }
     }
 
+    /*
+         * ImageTaskListener methods
+         *
+         *
+         */
+    @Override
+    public void onImageStart() {
+        btnBackup.setEnabled(false);
+        progressDialog = new ProgressDialog(getContext());
+        progressDialog.setCancelable(false);
+        progressDialog.setMessage(getText(R.string.imaging));
+        progressDialog.setProgressStyle(ProgressDialog.STYLE_HORIZONTAL);
+        progressDialog.setProgressNumberFormat("%1d/%2d MB");
+        progressDialog.setProgress(0);
+        progressDialog.show();
+    }
+
+    @Override
+    public void onImageProgressUpdate(long read, long total, long bytesPerSecond, long eta) {
+        try {
+            if (progressDialog != null && progressDialog.isShowing()) {
+                progressDialog.setMax((int) (total / 1000000));
+                progressDialog.setProgress((int) (read / 1000000));
+                if (eta >= 0) {
+                    progressDialog.setMessage(getString(R.string.imagingProgress, bytesPerSecond / 1e6, eta / 60, eta % 60));
+                }
+            }
+        } catch (Exception e) {
+            Log.e("MainActivityFragment", e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public void onImageReady(File image, String hash, long badSectors) {
+        Log.i("MainActivityFragment", "Image complete: " + image + ", " + ImageTask.HASH_ALGORITHM + " " + hash
+                + ", " + badSectors + " bad sector(s)");
+        btnBackup.setEnabled(catalog != null);
+        if (progressDialog != null) {
+            progressDialog.dismiss();
+        }
+        String message = badSectors == 0 ? getString(R.string.imagingReady, image.getAbsolutePath())
+                : getString(R.string.imagingReadyBadSectors, image.getAbsolutePath(), badSectors);
+        Toast.makeText(getContext(), message, Toast.LENGTH_LONG).show();
+    }
+
+    @Override
+    public void onImageFailed() {
+        Log.e("MainActivityFragment", "Failed to image the disk");
+        btnBackup.setEnabled(catalog != null);
+        if (progressDialog != null) {
+            progressDialog.dismiss();
+        }
+        Toast.makeText(getContext(), R.string.imagingFailed, Toast.LENGTH_LONG).show();
+    }
+
     private Context getContext() {
         return getActivity();
     }
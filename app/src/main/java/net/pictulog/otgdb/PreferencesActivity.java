@@ -34,6 +34,13 @@ public class PreferencesActivity extends PreferenceActivity {
     public static final String PREFS_OVERWRITE = "net.pictulog.otgdb.overwrite";
     public static final String PREFS_DELETE = "net.pictulog.otgdb.delete";
     public static final String PREFS_DEBUG = "net.pictulog.otgdb.debug";
+    public static final String PREFS_ASYNC_TRANSPORT = "net.pictulog.otgdb.async_transport";
+    public static final String PREFS_TRACE = "net.pictulog.otgdb.trace";
+    public static final String PREFS_VERBOSE = "net.pictulog.otgdb.verbose";
+    public static final String PREFS_IMAGE_WHOLE_DEVICE = "net.pictulog.otgdb.image_whole_device";
+    public static final String PREFS_IMAGE_FORMAT = "net.pictulog.otgdb.image_format";
+    // Followed by the VID:PID of the device
+    public static final String PREFS_TRANSFER_SIZE = "net.pictulog.otgdb.transfer_size.";
 
     public void onBuildHeaders(List<Header> target) {
         loadHeadersFromResource(R.xml.preferences_headers, target);
@@ -0,0 +1,423 @@
+/**
+ * This file is part of OTGDiskBackup.
+ * <p/>
+ * Copyright 2005-2009 Red Hat, Inc.  All rights reserved.
+ * <p/>
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * <p/>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.pictulog.otgdb.catalog;
+
+import android.util.Log;
+
+import org.apache.commons.io.IOUtils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * This class records which files of an OTG disk have been backed up, with
+ * the size and the FAT modification time they had at the time. A file whose
+ * size and time did not change, and whose copy is still complete, does not
+ * need to be copied again: this is decided from the {@link Catalog} alone,
+ * without opening the source file.
+ * <p/>
+ * The manifest is only saved at the end of a backup, so every change is first
+ * appended to a journal next to it. The journal also records checkpoints: how
+ * many bytes of a large file are safely on the disk, so that an interrupted
+ * copy can be resumed. When the manifest is loaded the journal left by an
+ * interrupted backup is replayed, up to its last complete record.
+ *
+ * @author rostskadat
+ */
+public class BackupManifest {
+
+    public static final long NO_CHECKSUM = -1;
+
+    private static final int MAGIC = 0x4f54474d;
+    private static final int VERSION = 1;
+
+    private static final String JOURNAL_EXTENSION = ".journal";
+    private static final byte RECORD_BACKED_UP = 1;
+    private static final byte RECORD_CHECKPOINT = 2;
+
+    private final File file;
+    private final File journalFile;
+    private final Map<String, Entry> entries = new HashMap<String, Entry>();
+    private final Map<String, Checkpoint> checkpoints = new HashMap<String, Checkpoint>();
+    private FileOutputStream journal;
+    private boolean modified;
+
+    private BackupManifest(File file) {
+        this.file = file;
+        this.journalFile = file != null ? new File(file.getPath() + JOURNAL_EXTENSION) : null;
+    }
+
+    /**
+     * @param file the file the manifest is saved in, {@code null} for a
+     *             manifest that is not saved
+     * @return the manifest, empty if the file does not exist or can't be read
+     */
+    public static BackupManifest load(File file) {
+        BackupManifest manifest = new BackupManifest(file);
+        if (file == null) {
+            return manifest;
+        }
+        if (file.exists()) {
+            manifest.read();
+        }
+        if (manifest.journalFile.exists()) {
+            manifest.replay();
+        }
+        return manifest;
+    }
+
+    private void read() {
+        DataInputStream input = null;
+        try {
+            input = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (input.readInt() != MAGIC || input.readInt() != VERSION) {
+                Log.w("BackupManifest", "Ignoring invalid manifest " + file);
+                return;
+            }
+            int count = input.readInt();
+            for (int i = 0; i < count; i++) {
+                String path = input.readUTF();
+                entries.put(path, new Entry(input.readUTF(), input.readLong(), input.readLong(), input.readLong()));
+            }
+            Log.i("BackupManifest", "Loaded " + count + " entries from " + file);
+        } catch (IOException e) {
+            Log.w("BackupManifest", "Failed to load " + file + ": " + e.getMessage(), e);
+            entries.clear();
+        } finally {
+            IOUtils.closeQuietly(input);
+        }
+    }
+
+    /**
+     * Apply the records of the journal. Each record carries its length and
+     * its CRC32, the replay stops at the first one that was not completely
+     * written. That record is then cut, so that the next ones are appended
+     * right after the last valid one.
+     */
+    private void replay() {
+        DataInputStream input = null;
+        int records = 0;
+        long valid = 0;
+        try {
+            input = new DataInputStream(new BufferedInputStream(new FileInputStream(journalFile)));
+            CRC32 crc = new CRC32();
+            while (true) {
+                int length;
+                try {
+                    length = input.readInt();
+                } catch (EOFException e) {
+                    break;
+                }
+                if (length <= 0 || length > 0x10000) {
+                    Log.w("BackupManifest", "Invalid record in " + journalFile + " after " + records + " record(s)");
+                    break;
+                }
+                byte[] record = new byte[length];
+                input.readFully(record);
+                crc.reset();
+                crc.update(record);
+                if (input.readInt() != (int) crc.getValue()) {
+                    Log.w("BackupManifest", "Corrupted record in " + journalFile + " after " + records + " record(s)");
+                    break;
+                }
+                apply(new DataInputStream(new ByteArrayInputStream(record)));
+                records++;
+                valid += 4 + length + 4;
+            }
+        } catch (EOFException e) {
+            Log.w("BackupManifest", "Truncated record in " + journalFile + " after " + records + " record(s)");
+        } catch (IOException e) {
+            Log.w("BackupManifest", "Failed to replay " + journalFile + ": " + e.getMessage(), e);
+        } finally {
+            IOUtils.closeQuietly(input);
+        }
+        if (journalFile.length() > valid) {
+            truncateJournal(valid);
+        }
+        Log.i("BackupManifest", "Replayed " + records + " record(s) from " + journalFile + ", "
+                + checkpoints.size() + " interrupted copy(ies)");
+    }
+
+    private void truncateJournal(long length) {
+        RandomAccessFile output = null;
+        try {
+            output = new RandomAccessFile(journalFile, "rw");
+            output.setLength(length);
+        } catch (IOException e) {
+            Log.w("BackupManifest", "Failed to truncate " + journalFile + ": " + e.getMessage(), e);
+        } finally {
+            IOUtils.closeQuietly(output);
+        }
+    }
+
+    private void apply(DataInputStream record) throws IOException {
+        byte type = record.readByte();
+        String path = record.readUTF();
+        String destPath = record.readUTF();
+        long length = record.readLong();
+        long lastModified = record.readLong();
+        long checksum = record.readLong();
+        if (type == RECORD_BACKED_UP) {
+            entries.put(path, new Entry(destPath, length, lastModified, checksum));
+            checkpoints.remove(path);
+            modified = true;
+        } else if (type == RECORD_CHECKPOINT) {
+            checkpoints.put(path, new Checkpoint(destPath, length, lastModified, record.readLong(), checksum));
+        }
+    }
+
+    /**
+     * @param path         the path of the file on the OTG disk
+     * @param destFile     where the file is copied
+     * @param length       the current length of the file
+     * @param lastModified the current FAT modification time of the file
+     * @return {@code true} if the file was copied with this length and time
+     * and its copy is still there and complete
+     */
+    public synchronized boolean isBackedUp(String path, File destFile, long length, long lastModified) {
+        Entry entry = entries.get(path);
+        return entry != null && entry.length == length && entry.lastModified == lastModified
+                && entry.destPath.equals(destFile.getAbsolutePath()) && destFile.length() == length;
+    }
+
+    /**
+     * Record that the file has been copied.
+     *
+     * @param checksum the CRC32 of the copy, or {@link #NO_CHECKSUM}
+     */
+    public synchronized void put(String path, File destFile, long length, long lastModified, long checksum) {
+        Entry entry = new Entry(destFile.getAbsolutePath(), length, lastModified, checksum);
+        entries.put(path, entry);
+        checkpoints.remove(path);
+        modified = true;
+        log(RECORD_BACKED_UP, path, entry.destPath, length, lastModified, checksum, 0, false);
+    }
+
+    /**
+     * Record that the first {@code offset} bytes of the copy are on the
+     * disk. The caller must have synced the copy first: the journal is synced
+     * as well, so that the checkpoint survives a power loss.
+     *
+     * @param partFile the file the copy is written to
+     * @param checksum the CRC32 of these {@code offset} bytes
+     */
+    public synchronized void checkpoint(String path, File partFile, long length, long lastModified, long offset, long checksum) {
+        Checkpoint checkpoint = new Checkpoint(partFile.getAbsolutePath(), length, lastModified, offset, checksum);
+        checkpoints.put(path, checkpoint);
+        log(RECORD_CHECKPOINT, path, checkpoint.partPath, length, lastModified, checksum, offset, true);
+    }
+
+    /**
+     * @param partFile     the file the copy is written to
+     * @param length       the current length of the file
+     * @param lastModified the current FAT modification time of the file
+     * @return the last checkpoint of an interrupted copy of this file, with
+     * this length and time, or {@code null}
+     */
+    public synchronized Checkpoint getCheckpoint(String path, File partFile, long length, long lastModified) {
+        Checkpoint checkpoint = checkpoints.get(path);
+        if (checkpoint == null || checkpoint.length != length || checkpoint.lastModified != lastModified
+                || !checkpoint.partPath.equals(partFile.getAbsolutePath())) {
+            return null;
+        }
+        return checkpoint;
+    }
+
+    /**
+     * Append a record to the journal. Losing the journal only means copying
+     * again, so the errors are logged and the journal is given up.
+     */
+    private void log(byte type, String path, String destPath, long length, long lastModified, long checksum,
+                     long offset, boolean sync) {
+        if (journalFile == null) {
+            return;
+        }
+        try {
+            if (journal == null) {
+                File directory = journalFile.getParentFile();
+                if (!directory.exists() && !directory.mkdirs()) {
+                    throw new IOException("Failed to create " + directory);
+                }
+                journal = new FileOutputStream(journalFile, true);
+            }
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+            DataOutputStream record = new DataOutputStream(buffer);
+            record.writeInt(0);
+            record.writeByte(type);
+            record.writeUTF(path);
+            record.writeUTF(destPath);
+            record.writeLong(length);
+            record.writeLong(lastModified);
+            record.writeLong(checksum);
+            if (type == RECORD_CHECKPOINT) {
+                record.writeLong(offset);
+            }
+            record.writeInt(0);
+            byte[] bytes = buffer.toByteArray();
+            int recordLength = bytes.length - 8;
+            CRC32 crc = new CRC32();
+            crc.update(bytes, 4, recordLength);
+            writeInt(bytes, 0, recordLength);
+            writeInt(bytes, bytes.length - 4, (int) crc.getValue());
+            // A single write, so that a killed process leaves at most one torn record
+            journal.write(bytes);
+            if (sync) {
+                journal.getFD().sync();
+            }
+        } catch (IOException e) {
+            Log.w("BackupManifest", "Failed to write to " + journalFile + ": " + e.getMessage(), e);
+            IOUtils.closeQuietly(journal);
+            journal = null;
+        }
+    }
+
+    private static void writeInt(byte[] bytes, int offset, int value) {
+        bytes[offset] = (byte) (value >>> 24);
+        bytes[offset + 1] = (byte) (value >>> 16);
+        bytes[offset + 2] = (byte) (value >>> 8);
+        bytes[offset + 3] = (byte) value;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * Write the manifest back to its file, if it changed. The journal then
+     * only keeps the checkpoints of the copies still to be resumed.
+     */
+    public synchronized void save() {
+        if (file == null) {
+            return;
+        }
+        if (!modified) {
+            compactJournal();
+            return;
+        }
+        DataOutputStream output = null;
+        File tmpFile = new File(file.getPath() + ".tmp");
+        try {
+            File directory = file.getParentFile();
+            if (!directory.exists() && !directory.mkdirs()) {
+                throw new IOException("Failed to create " + directory);
+            }
+            output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)));
+            output.writeInt(MAGIC);
+            output.writeInt(VERSION);
+            output.writeInt(entries.size());
+            for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+                output.writeUTF(entry.getKey());
+                output.writeUTF(entry.getValue().destPath);
+                output.writeLong(entry.getValue().length);
+                output.writeLong(entry.getValue().lastModified);
+                output.writeLong(entry.getValue().checksum);
+            }
+            output.close();
+            output = null;
+            if (!tmpFile.renameTo(file)) {
+                throw new IOException("Failed to rename " + tmpFile + " to " + file);
+            }
+            modified = false;
+            Log.i("BackupManifest", "Saved " + entries.size() + " entries to " + file);
+            compactJournal();
+        } catch (IOException e) {
+            Log.w("BackupManifest", "Failed to save " + file + ": " + e.getMessage(), e);
+            IOUtils.closeQuietly(output);
+            if (tmpFile.exists() && !tmpFile.delete()) {
+                Log.w("BackupManifest", "Failed to delete " + tmpFile);
+            }
+        }
+    }
+
+    private void compactJournal() {
+        IOUtils.closeQuietly(journal);
+        journal = null;
+        if (journalFile.exists() && !journalFile.delete()) {
+            Log.w("BackupManifest", "Failed to delete " + journalFile);
+            return;
+        }
+        for (Map.Entry<String, Checkpoint> entry : checkpoints.entrySet()) {
+            Checkpoint checkpoint = entry.getValue();
+            log(RECORD_CHECKPOINT, entry.getKey(), checkpoint.partPath, checkpoint.length, checkpoint.lastModified,
+                    checkpoint.checksum, checkpoint.offset, false);
+        }
+        IOUtils.closeQuietly(journal);
+        journal = null;
+    }
+
+    /**
+     * The state of an interrupted copy.
+     */
+    public static class Checkpoint {
+        private final String partPath;
+        private final long length;
+        private final long lastModified;
+        private final long offset;
+        private final long checksum;
+
+        private Checkpoint(String partPath, long length, long lastModified, long offset, long checksum) {
+            this.partPath = partPath;
+            this.length = length;
+            this.lastModified = lastModified;
+            this.offset = offset;
+            this.checksum = checksum;
+        }
+
+        /**
+         * @return the number of bytes of the file already copied
+         */
+        public long getOffset() {
+            return offset;
+        }
+
+        /**
+         * @return the CRC32 of the bytes already copied
+         */
+        public long getChecksum() {
+            return checksum;
+        }
+    }
+
+    private static class Entry {
+        private final String destPath;
+        private final long length;
+        private final long lastModified;
+        private final long checksum;
+
+        private Entry(String destPath, long length, long lastModified, long checksum) {
+            this.destPath = destPath;
+            this.length = length;
+            this.lastModified = lastModified;
+            this.checksum = checksum;
+        }
+    }
+}
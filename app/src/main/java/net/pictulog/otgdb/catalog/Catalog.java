@@ -0,0 +1,420 @@
+/**
+ * This file is part of OTGDiskBackup.
+ * <p/>
+ * Copyright 2005-2009 Red Hat, Inc.  All rights reserved.
+ * <p/>
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * <p/>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.pictulog.otgdb.catalog;
+
+import net.pictulog.otgdb.fat.FatEntries;
+import net.pictulog.otgdb.fat.FatVolumeEntry;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import de.waldheinz.fs.FsDirectory;
+import de.waldheinz.fs.FsDirectoryEntry;
+import de.waldheinz.fs.fat.FatLfnDirectoryEntry;
+
+/**
+ * This is the in-memory catalog of a directory of the OTG disk. It is filled
+ * by a single traversal of the tree below that directory and then used to
+ * navigate, count and backup the files without going back to the disk.
+ * <p/>
+ * The directories and the files are identified by their index, in the order
+ * they were visited. Since the traversal is depth first, the directories and
+ * the files below a given directory have contiguous indexes. The details are
+ * kept in primitive arrays, and the paths are rebuilt from the parent
+ * directories, so that the catalog stays small even with tens of thousands
+ * of files.
+ *
+ * @author rostskadat
+ */
+public class Catalog {
+
+    public static final int ROOT = 0;
+    public static final long UNKNOWN = -1;
+
+    public static final byte ATTRIBUTE_READ_ONLY = 0x01;
+    public static final byte ATTRIBUTE_HIDDEN = 0x02;
+    public static final byte ATTRIBUTE_SYSTEM = 0x04;
+    public static final byte ATTRIBUTE_ARCHIVE = 0x20;
+    // Not a FAT attribute: the file has been deleted since the traversal
+    private static final byte ATTRIBUTE_DELETED = (byte) 0x80;
+
+    private static final int INITIAL_DIRECTORIES = 64;
+    private static final int INITIAL_FILES = 1024;
+
+    private final String basePath;
+    private int directoryCount;
+    private String[] directoryNames;
+    private int[] directoryParents;
+    private int[] directoryEnds;
+    private int[] firstFiles;
+    private int[] endFiles;
+    private long[] directoryClusters;
+    private long[] directoryHashes;
+    private FsDirectory[] directories;
+
+    private int fileCount;
+    private int deletedCount;
+    private int[] fileDirectories;
+    private String[] fileNames;
+    private long[] fileLengths;
+    private long[] fileClusters;
+    private long[] fileModified;
+    private long[] fileCreated;
+    private byte[] fileAttributes;
+
+    /**
+     * @param basePath the absolute path of the root of the catalog on the
+     *                 disk, '/' for the root directory
+     * @param root     the fat32-lib handle of that directory
+     */
+    public Catalog(String basePath, FsDirectory root) {
+        this.basePath = normalize(basePath);
+        directoryNames = new String[INITIAL_DIRECTORIES];
+        directoryParents = new int[INITIAL_DIRECTORIES];
+        directoryEnds = new int[INITIAL_DIRECTORIES];
+        firstFiles = new int[INITIAL_DIRECTORIES];
+        endFiles = new int[INITIAL_DIRECTORIES];
+        directoryClusters = new long[INITIAL_DIRECTORIES];
+        directoryHashes = new long[INITIAL_DIRECTORIES];
+        directories = new FsDirectory[INITIAL_DIRECTORIES];
+        fileDirectories = new int[INITIAL_FILES];
+        fileNames = new String[INITIAL_FILES];
+        fileLengths = new long[INITIAL_FILES];
+        fileClusters = new long[INITIAL_FILES];
+        fileModified = new long[INITIAL_FILES];
+        fileCreated = new long[INITIAL_FILES];
+        fileAttributes = new byte[INITIAL_FILES];
+        startDirectory(-1, "", root);
+    }
+
+    /**
+     * Called when the traversal enters a directory. Everything added until
+     * the matching {@link #endDirectory(int)} belongs to that directory.
+     *
+     * @param parent    the index of the parent directory
+     * @param directory the fat32-lib handle of the directory, {@code null}
+     *                  to look it up when it is first needed
+     * @return the index of the new directory
+     */
+    public synchronized int startDirectory(int parent, String name, FsDirectory directory) {
+        if (directoryCount == directoryNames.length) {
+            int capacity = directoryCount * 2;
+            directoryNames = Arrays.copyOf(directoryNames, capacity);
+            directoryParents = Arrays.copyOf(directoryParents, capacity);
+            directoryEnds = Arrays.copyOf(directoryEnds, capacity);
+            firstFiles = Arrays.copyOf(firstFiles, capacity);
+            endFiles = Arrays.copyOf(endFiles, capacity);
+            directoryClusters = Arrays.copyOf(directoryClusters, capacity);
+            directoryHashes = Arrays.copyOf(directoryHashes, capacity);
+            directories = Arrays.copyOf(directories, capacity);
+        }
+        int index = directoryCount++;
+        directoryNames[index] = name;
+        directoryParents[index] = parent;
+        directoryEnds[index] = index + 1;
+        firstFiles[index] = fileCount;
+        endFiles[index] = fileCount;
+        directoryClusters[index] = UNKNOWN;
+        directoryHashes[index] = UNKNOWN;
+        directories[index] = directory;
+        return index;
+    }
+
+    /**
+     * Called when the traversal leaves a directory.
+     */
+    public synchronized void endDirectory(int directory) {
+        directoryEnds[directory] = directoryCount;
+        endFiles[directory] = fileCount;
+    }
+
+    /**
+     * Add a file of the given directory.
+     *
+     * @return the index of the new file
+     */
+    public synchronized int addFile(int directory, FsDirectoryEntry entry) throws IOException {
+        long length = FatEntries.getLength(entry);
+        return addFile(directory, entry.getName(), length >= 0 ? length : entry.getFile().getLength(),
+                FatEntries.getStartCluster(entry), entry.getLastModified(), entry.getCreated(), getAttributes(entry));
+    }
+
+    /**
+     * Add a file of the given directory from its details.
+     *
+     * @return the index of the new file
+     */
+    public synchronized int addFile(int directory, String name, long length, long cluster, long modified,
+                                    long created, byte attributes) {
+        if (fileCount == fileNames.length) {
+            int capacity = fileCount * 2;
+            fileDirectories = Arrays.copyOf(fileDirectories, capacity);
+            fileNames = Arrays.copyOf(fileNames, capacity);
+            fileLengths = Arrays.copyOf(fileLengths, capacity);
+            fileClusters = Arrays.copyOf(fileClusters, capacity);
+            fileModified = Arrays.copyOf(fileModified, capacity);
+            fileCreated = Arrays.copyOf(fileCreated, capacity);
+            fileAttributes = Arrays.copyOf(fileAttributes, capacity);
+        }
+        int index = fileCount++;
+        fileDirectories[index] = directory;
+        fileNames[index] = name;
+        fileLengths[index] = length;
+        fileClusters[index] = cluster;
+        fileModified[index] = modified;
+        fileCreated[index] = created;
+        fileAttributes[index] = (byte) (attributes & ~ATTRIBUTE_DELETED);
+        return index;
+    }
+
+    private static byte getAttributes(FsDirectoryEntry entry) {
+        byte attributes = 0;
+        if (entry instanceof FatVolumeEntry) {
+            int mask = ATTRIBUTE_READ_ONLY | ATTRIBUTE_HIDDEN | ATTRIBUTE_SYSTEM | ATTRIBUTE_ARCHIVE;
+            attributes = (byte) (((FatVolumeEntry) entry).getAttributes() & mask);
+        } else if (entry instanceof FatLfnDirectoryEntry) {
+            FatLfnDirectoryEntry fatEntry = (FatLfnDirectoryEntry) entry;
+            attributes |= fatEntry.isReadOnlyFlag() ? ATTRIBUTE_READ_ONLY : 0;
+            attributes |= fatEntry.isHiddenFlag() ? ATTRIBUTE_HIDDEN : 0;
+            attributes |= fatEntry.isSystemFlag() ? ATTRIBUTE_SYSTEM : 0;
+            attributes |= fatEntry.isArchiveFlag() ? ATTRIBUTE_ARCHIVE : 0;
+        }
+        return attributes;
+    }
+
+    /**
+     * @param path the absolute path of the directory, '/' separated
+     * @return the index of the directory, or -1 if there is none
+     */
+    public synchronized int findDirectory(String path) {
+        String normalized = normalize(path);
+        for (int directory = 0; directory < directoryCount; directory++) {
+            if (getDirectoryPath(directory).equals(normalized)) {
+                return directory;
+            }
+        }
+        return -1;
+    }
+
+    public synchronized int getDirectoryCount() {
+        return directoryCount;
+    }
+
+    public synchronized String getDirectoryName(int directory) {
+        return directoryNames[directory];
+    }
+
+    /**
+     * @return the index of the parent directory, -1 for the root
+     */
+    public synchronized int getParent(int directory) {
+        return directoryParents[directory];
+    }
+
+    /**
+     * @return the absolute path of the root of the catalog on the disk
+     */
+    public String getBasePath() {
+        return basePath;
+    }
+
+    /**
+     * @return the absolute path of the directory on the disk
+     */
+    public synchronized String getDirectoryPath(int directory) {
+        if (directory == ROOT) {
+            return basePath;
+        }
+        StringBuilder path = new StringBuilder();
+        appendPath(directory, path);
+        return path.toString();
+    }
+
+    private void appendPath(int directory, StringBuilder path) {
+        if (!"/".equals(basePath)) {
+            path.append(basePath);
+        }
+        appendPath(directory, ROOT, path);
+    }
+
+    /**
+     * @return the path starting with a '/' and without a trailing one
+     */
+    public static String normalize(String path) {
+        String normalized = path.startsWith("/") ? path : "/" + path;
+        return normalized.endsWith("/") && normalized.length() > 1 ? normalized.substring(0, normalized.length() - 1) : normalized;
+    }
+
+    private void appendPath(int directory, int from, StringBuilder path) {
+        if (directory != from && directory != ROOT) {
+            appendPath(directoryParents[directory], from, path);
+            path.append('/').append(directoryNames[directory]);
+        }
+    }
+
+    /**
+     * @return the fat32-lib handle of the directory, looked up from its
+     * parent if the directory was not visited since the disk was mounted
+     * @throws IOException if the directory is no longer on the disk
+     */
+    public synchronized FsDirectory getDirectory(int directory) throws IOException {
+        if (directories[directory] == null) {
+            FsDirectoryEntry entry = getDirectory(directoryParents[directory]).getEntry(directoryNames[directory]);
+            if (entry == null || !entry.isDirectory()) {
+                throw new IOException("Directory not found: " + getDirectoryPath(directory));
+            }
+            directories[directory] = entry.getDirectory();
+        }
+        return directories[directory];
+    }
+
+    /**
+     * @return the first cluster of the directory, or {@link #UNKNOWN}
+     */
+    public synchronized long getDirectoryCluster(int directory) {
+        return directoryClusters[directory];
+    }
+
+    /**
+     * @return the hash of the raw entries of the directory, or
+     * {@link #UNKNOWN} if it has not been computed since it last changed
+     */
+    public synchronized long getDirectoryHash(int directory) {
+        return directoryHashes[directory];
+    }
+
+    /**
+     * Record where the directory is on the disk and the hash of its raw
+     * entries, used to tell whether it changed since it was listed.
+     */
+    public synchronized void setDirectorySignature(int directory, long cluster, long hash) {
+        directoryClusters[directory] = cluster;
+        directoryHashes[directory] = hash;
+    }
+
+    /**
+     * @return the index following the last directory below this one
+     */
+    public synchronized int getEndDirectory(int directory) {
+        return directoryEnds[directory];
+    }
+
+    /**
+     * @return the index of the first file directly in this directory or
+     * below it
+     */
+    public synchronized int getFirstFile(int directory) {
+        return firstFiles[directory];
+    }
+
+    /**
+     * @return the index following the last file directly in this directory
+     * or below it
+     */
+    public synchronized int getEndFile(int directory) {
+        return endFiles[directory];
+    }
+
+    public synchronized int getFileCount() {
+        return fileCount;
+    }
+
+    /**
+     * @return the number of files that have not been deleted
+     */
+    public synchronized int getLiveFileCount() {
+        return fileCount - deletedCount;
+    }
+
+    public synchronized int getFileDirectory(int file) {
+        return fileDirectories[file];
+    }
+
+    public synchronized String getFileName(int file) {
+        return fileNames[file];
+    }
+
+    /**
+     * @return the absolute path of the file
+     */
+    public synchronized String getFilePath(int file) {
+        StringBuilder path = new StringBuilder();
+        appendPath(fileDirectories[file], path);
+        return path.append('/').append(fileNames[file]).toString();
+    }
+
+    /**
+     * @return the path of the file relative to the given directory, starting
+     * with a '/'
+     */
+    public synchronized String getFilePath(int file, int from) {
+        StringBuilder path = new StringBuilder();
+        appendPath(fileDirectories[file], from, path);
+        return path.append('/').append(fileNames[file]).toString();
+    }
+
+    public synchronized long getLength(int file) {
+        return fileLengths[file];
+    }
+
+    /**
+     * @return the first cluster of the file, 0 for an empty file or -1 if it
+     * is not known
+     */
+    public synchronized long getFirstCluster(int file) {
+        return fileClusters[file];
+    }
+
+    public synchronized long getLastModified(int file) {
+        return fileModified[file];
+    }
+
+    public synchronized long getCreated(int file) {
+        return fileCreated[file];
+    }
+
+    /**
+     * @return the FAT attributes of the file, see the ATTRIBUTE_* constants
+     */
+    public synchronized byte getAttributes(int file) {
+        return (byte) (fileAttributes[file] & ~ATTRIBUTE_DELETED);
+    }
+
+    public synchronized boolean isDeleted(int file) {
+        return (fileAttributes[file] & ATTRIBUTE_DELETED) != 0;
+    }
+
+    /**
+     * Record that the file has been removed from the disk. The entries of its
+     * directory changed, so its hash is no longer valid.
+     */
+    public synchronized void markDeleted(int file) {
+        if (!isDeleted(file)) {
+            fileAttributes[file] |= ATTRIBUTE_DELETED;
+            directoryHashes[fileDirectories[file]] = UNKNOWN;
+            deletedCount++;
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("Catalog[%s, %d directories, %d files, %d deleted]", basePath, directoryCount, fileCount,
+                deletedCount);
+    }
+}
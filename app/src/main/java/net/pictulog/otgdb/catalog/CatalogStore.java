@@ -0,0 +1,397 @@
+/**
+ * This file is part of OTGDiskBackup.
+ * <p/>
+ * Copyright 2005-2009 Red Hat, Inc.  All rights reserved.
+ * <p/>
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * <p/>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.pictulog.otgdb.catalog;
+
+import android.util.Log;
+
+import net.pictulog.otgdb.device.OtgFileSystem;
+import net.pictulog.otgdb.fat.ExtentResolver;
+import net.pictulog.otgdb.fat.FatBootSector;
+import net.pictulog.otgdb.fat.FatEntries;
+import net.pictulog.otgdb.fat.FileExtents;
+
+import org.apache.commons.io.IOUtils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+
+import de.waldheinz.fs.BlockDevice;
+import de.waldheinz.fs.FileSystem;
+import de.waldheinz.fs.FsDirectory;
+import de.waldheinz.fs.FsDirectoryEntry;
+
+/**
+ * This class keeps the {@link Catalog} of each OTG disk in a file named after
+ * the serial number and the label of its volume, so that a known disk does
+ * not have to be walked again when it is plugged back.
+ * <p/>
+ * Each directory of the catalog is saved with the hash of its raw entries.
+ * When the disk is mounted again, the catalog is used as is if the free
+ * cluster count of the FSInfo sector and the hashes of its root and DCIM
+ * directories did not change. Otherwise only the directories whose entries
+ * changed are listed again.
+ * <p/>
+ * The {@link BackupManifest} of each disk is kept next to its catalog.
+ *
+ * @author rostskadat
+ */
+public class CatalogStore {
+
+    private static final int MAGIC = 0x4f544743;
+    private static final int VERSION = 2;
+    private static final String DCIM = "/DCIM";
+    private static final int HASH_BUFFER_SIZE = 0x10000;
+    private static final String CATALOG_EXTENSION = ".catalog";
+    private static final String MANIFEST_EXTENSION = ".manifest";
+
+    private final File directory;
+
+    /**
+     * @param directory the directory where the catalogs are saved
+     */
+    public CatalogStore(File directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Load the catalog saved for this directory of this disk and bring it up
+     * to date.
+     *
+     * @param basePath    the absolute path of the directory
+     * @param root        the fat32-lib handle of the directory
+     * @param rootCluster the first cluster of the directory, ignored for the
+     *                    root directory of the disk
+     * @return the catalog, or {@code null} if this disk is not known or its
+     * catalog can't be used
+     */
+    public Catalog load(FileSystem fileSystem, String basePath, FsDirectory root, long rootCluster) {
+        if (!(fileSystem instanceof OtgFileSystem)) {
+            return null;
+        }
+        DataInputStream input = null;
+        try {
+            Volume volume = new Volume((OtgFileSystem) fileSystem);
+            File file = volume.getFile(CATALOG_EXTENSION);
+            if (!file.exists()) {
+                Log.i("CatalogStore", "No catalog for " + volume);
+                return null;
+            }
+            input = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (input.readInt() != MAGIC || input.readInt() != VERSION || input.readInt() != volume.bootSector.getVolumeId()
+                    || !input.readUTF().equals(volume.bootSector.getVolumeLabel())) {
+                Log.w("CatalogStore", "Ignoring invalid catalog " + file);
+                return null;
+            }
+            long freeClusters = input.readLong();
+            Catalog catalog = new Catalog(input.readUTF(), root);
+            if (!catalog.getBasePath().equals(Catalog.normalize(basePath))) {
+                Log.i("CatalogStore", "The catalog of " + volume + " is for " + catalog.getBasePath());
+                return null;
+            }
+            input.readUTF();
+            readDirectory(input, catalog, Catalog.ROOT);
+            catalog.endDirectory(Catalog.ROOT);
+            Log.i("CatalogStore", "Loaded " + catalog + " for " + volume);
+            long cluster = "/".equals(catalog.getBasePath()) ? volume.bootSector.getRootCluster() : rootCluster;
+            if (cluster == Catalog.UNKNOWN || cluster != getDirectoryCluster(volume, catalog, Catalog.ROOT)) {
+                Log.i("CatalogStore", catalog.getBasePath() + " was recreated");
+                return null;
+            }
+            if (freeClusters >= 0 && freeClusters == volume.getFreeClusterCount()
+                    && isUnchanged(volume, catalog, Catalog.ROOT)
+                    && isUnchanged(volume, catalog, catalog.findDirectory(DCIM))) {
+                return catalog;
+            }
+            Log.i("CatalogStore", "The disk changed, listing the modified directories");
+            return refresh(volume, catalog, root, cluster);
+        } catch (IOException e) {
+            Log.w("CatalogStore", "Failed to load the catalog: " + e.getMessage(), e);
+            return null;
+        } finally {
+            IOUtils.closeQuietly(input);
+        }
+    }
+
+    /**
+     * Save the catalog of this disk. The hashes of the directories that
+     * changed since they were listed are computed first, so the file system
+     * must have been flushed.
+     */
+    public void save(FileSystem fileSystem, Catalog catalog) {
+        if (!(fileSystem instanceof OtgFileSystem)) {
+            return;
+        }
+        DataOutputStream output = null;
+        File tmpFile = null;
+        try {
+            Volume volume = new Volume((OtgFileSystem) fileSystem);
+            File file = volume.getFile(CATALOG_EXTENSION);
+            if (!directory.exists() && !directory.mkdirs()) {
+                throw new IOException("Failed to create " + directory);
+            }
+            tmpFile = new File(directory, file.getName() + ".tmp");
+            output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)));
+            output.writeInt(MAGIC);
+            output.writeInt(VERSION);
+            output.writeInt(volume.bootSector.getVolumeId());
+            output.writeUTF(volume.bootSector.getVolumeLabel());
+            output.writeLong(volume.getFreeClusterCount());
+            output.writeUTF(catalog.getBasePath());
+            writeDirectory(output, volume, catalog, Catalog.ROOT);
+            output.close();
+            output = null;
+            if (!tmpFile.renameTo(file)) {
+                throw new IOException("Failed to rename " + tmpFile + " to " + file);
+            }
+            Log.i("CatalogStore", "Saved " + catalog + " for " + volume);
+        } catch (IOException e) {
+            Log.w("CatalogStore", "Failed to save the catalog: " + e.getMessage(), e);
+            IOUtils.closeQuietly(output);
+            if (tmpFile != null && tmpFile.exists() && !tmpFile.delete()) {
+                Log.w("CatalogStore", "Failed to delete " + tmpFile);
+            }
+        }
+    }
+
+    /**
+     * Load the manifest of the files of this disk that have been backed up.
+     *
+     * @return the manifest, which is not saved if the disk is not known
+     */
+    public BackupManifest loadManifest(FileSystem fileSystem) {
+        File file = null;
+        if (fileSystem instanceof OtgFileSystem) {
+            try {
+                file = new Volume((OtgFileSystem) fileSystem).getFile(MANIFEST_EXTENSION);
+            } catch (IOException e) {
+                Log.w("CatalogStore", "Failed to read the volume: " + e.getMessage(), e);
+            }
+        }
+        return BackupManifest.load(file);
+    }
+
+    private void writeDirectory(DataOutputStream output, Volume volume, Catalog catalog, int dir) throws IOException {
+        long cluster = getDirectoryCluster(volume, catalog, dir);
+        long hash = catalog.getDirectoryHash(dir);
+        if (hash == Catalog.UNKNOWN && cluster != Catalog.UNKNOWN) {
+            hash = volume.hashDirectory(cluster);
+            catalog.setDirectorySignature(dir, cluster, hash);
+        }
+        output.writeUTF(catalog.getDirectoryName(dir));
+        output.writeLong(cluster);
+        output.writeLong(hash);
+        int endFile = catalog.getEndFile(dir);
+        int files = 0;
+        for (int file = catalog.getFirstFile(dir); file < endFile; file++) {
+            if (catalog.getFileDirectory(file) == dir && !catalog.isDeleted(file)) {
+                files++;
+            }
+        }
+        output.writeInt(files);
+        for (int file = catalog.getFirstFile(dir); file < endFile; file++) {
+            if (catalog.getFileDirectory(file) == dir && !catalog.isDeleted(file)) {
+                output.writeUTF(catalog.getFileName(file));
+                output.writeLong(catalog.getLength(file));
+                output.writeLong(catalog.getFirstCluster(file));
+                output.writeLong(catalog.getLastModified(file));
+                output.writeLong(catalog.getCreated(file));
+                output.writeByte(catalog.getAttributes(file));
+            }
+        }
+        int endDirectory = catalog.getEndDirectory(dir);
+        int subDirectories = 0;
+        for (int sub = dir + 1; sub < endDirectory; sub = catalog.getEndDirectory(sub)) {
+            subDirectories++;
+        }
+        output.writeInt(subDirectories);
+        for (int sub = dir + 1; sub < endDirectory; sub = catalog.getEndDirectory(sub)) {
+            writeDirectory(output, volume, catalog, sub);
+        }
+    }
+
+    private void readDirectory(DataInputStream input, Catalog catalog, int dir) throws IOException {
+        long cluster = input.readLong();
+        long hash = input.readLong();
+        catalog.setDirectorySignature(dir, cluster, hash);
+        int files = input.readInt();
+        for (int i = 0; i < files; i++) {
+            catalog.addFile(dir, input.readUTF(), input.readLong(), input.readLong(), input.readLong(),
+                    input.readLong(), input.readByte());
+        }
+        int subDirectories = input.readInt();
+        for (int i = 0; i < subDirectories; i++) {
+            int sub = catalog.startDirectory(dir, input.readUTF(), null);
+            readDirectory(input, catalog, sub);
+            catalog.endDirectory(sub);
+        }
+    }
+
+    private boolean isUnchanged(Volume volume, Catalog catalog, int dir) throws IOException {
+        if (dir < 0) {
+            return true;
+        }
+        long cluster = getDirectoryCluster(volume, catalog, dir);
+        long hash = catalog.getDirectoryHash(dir);
+        return cluster != Catalog.UNKNOWN && hash != Catalog.UNKNOWN && hash == volume.hashDirectory(cluster);
+    }
+
+    /**
+     * Build a new catalog from the old one, listing again only the
+     * directories whose entries changed.
+     */
+    private Catalog refresh(Volume volume, Catalog old, FsDirectory root, long rootCluster) throws IOException {
+        Catalog catalog = new Catalog(old.getBasePath(), root);
+        catalog.setDirectorySignature(Catalog.ROOT, rootCluster, volume.hashDirectory(rootCluster));
+        refreshDirectory(volume, old, Catalog.ROOT, catalog, Catalog.ROOT);
+        catalog.endDirectory(Catalog.ROOT);
+        Log.i("CatalogStore", "Refreshed " + catalog);
+        return catalog;
+    }
+
+    private void refreshDirectory(Volume volume, Catalog old, int oldDir, Catalog catalog, int dir) throws IOException {
+        if (oldDir >= 0 && old.getDirectoryHash(oldDir) != Catalog.UNKNOWN
+                && old.getDirectoryHash(oldDir) == catalog.getDirectoryHash(dir)) {
+            // Same entries: the files and the sub directories are the same
+            int endFile = old.getEndFile(oldDir);
+            for (int file = old.getFirstFile(oldDir); file < endFile; file++) {
+                if (old.getFileDirectory(file) == oldDir && !old.isDeleted(file)) {
+                    catalog.addFile(dir, old.getFileName(file), old.getLength(file), old.getFirstCluster(file),
+                            old.getLastModified(file), old.getCreated(file), old.getAttributes(file));
+                }
+            }
+            int endDirectory = old.getEndDirectory(oldDir);
+            for (int oldSub = oldDir + 1; oldSub < endDirectory; oldSub = old.getEndDirectory(oldSub)) {
+                refreshSubDirectory(volume, old, oldSub, catalog, dir, old.getDirectoryName(oldSub),
+                        old.getDirectoryCluster(oldSub), null);
+            }
+            return;
+        }
+        Log.d("CatalogStore", "Listing " + catalog.getDirectoryPath(dir));
+        for (FsDirectoryEntry entry : catalog.getDirectory(dir)) {
+            if (entry.isFile()) {
+                catalog.addFile(dir, entry);
+            } else if (entry.isDirectory() && !".".equals(entry.getName()) && !"..".equals(entry.getName())) {
+                int oldSub = oldDir >= 0 ? findSubDirectory(old, oldDir, entry.getName()) : -1;
+                refreshSubDirectory(volume, old, oldSub, catalog, dir, entry.getName(),
+                        FatEntries.getStartCluster(entry), entry.getDirectory());
+            }
+        }
+    }
+
+    private void refreshSubDirectory(Volume volume, Catalog old, int oldSub, Catalog catalog, int dir, String name,
+                                     long cluster, FsDirectory handle) throws IOException {
+        int sub = catalog.startDirectory(dir, name, handle);
+        catalog.setDirectorySignature(sub, cluster, cluster != Catalog.UNKNOWN ? volume.hashDirectory(cluster) : Catalog.UNKNOWN);
+        refreshDirectory(volume, old, cluster != Catalog.UNKNOWN ? oldSub : -1, catalog, sub);
+        catalog.endDirectory(sub);
+    }
+
+    /**
+     * @return the first cluster of the directory, 0 for the root directory
+     * of a FAT12 or FAT16 disk
+     */
+    private static long getDirectoryCluster(Volume volume, Catalog catalog, int dir) {
+        if (dir == Catalog.ROOT && "/".equals(catalog.getBasePath())) {
+            return volume.bootSector.getRootCluster();
+        }
+        return catalog.getDirectoryCluster(dir);
+    }
+
+    private static int findSubDirectory(Catalog catalog, int dir, String name) {
+        int endDirectory = catalog.getEndDirectory(dir);
+        for (int sub = dir + 1; sub < endDirectory; sub = catalog.getEndDirectory(sub)) {
+            if (catalog.getDirectoryName(sub).equals(name)) {
+                return sub;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * The volume of the OTG disk, read directly from its block device.
+     */
+    private class Volume {
+
+        private final OtgFileSystem fileSystem;
+        private final BlockDevice device;
+        private final FatBootSector bootSector;
+        private ExtentResolver extentResolver;
+
+        private Volume(OtgFileSystem fileSystem) throws IOException {
+            this.fileSystem = fileSystem;
+            this.device = fileSystem.getBlockDevice();
+            this.bootSector = FatBootSector.read(device);
+        }
+
+        private File getFile(String extension) {
+            return new File(directory, String.format("%08x-%s%s", bootSector.getVolumeId(),
+                    bootSector.getVolumeLabel().replaceAll("[^A-Za-z0-9_-]", "_"), extension));
+        }
+
+        private long getFreeClusterCount() throws IOException {
+            return bootSector.readFreeClusterCount(device);
+        }
+
+        /**
+         * @param cluster the first cluster of the directory, 0 for the FAT12
+         *                or FAT16 root directory
+         * @return the CRC32 of the raw entries of the directory
+         */
+        private long hashDirectory(long cluster) throws IOException {
+            CRC32 crc = new CRC32();
+            ByteBuffer buffer = ByteBuffer.allocate(HASH_BUFFER_SIZE);
+            if (cluster == 0) {
+                long offset = bootSector.getRootDirOffset();
+                long end = offset + bootSector.getRootEntries() * 0x20L;
+                while (offset < end) {
+                    buffer.clear();
+                    buffer.limit((int) Math.min(buffer.capacity(), end - offset));
+                    device.read(offset, buffer);
+                    crc.update(buffer.array(), 0, buffer.limit());
+                    offset += buffer.limit();
+                }
+            } else {
+                if (extentResolver == null) {
+                    extentResolver = fileSystem.getExtentResolver();
+                }
+                FileExtents extents = extentResolver.resolveChain(cluster);
+                for (long offset = 0; offset < extents.getLength(); offset += buffer.limit()) {
+                    buffer.clear();
+                    buffer.limit((int) Math.min(buffer.capacity(), extents.getLength() - offset));
+                    extents.read(offset, buffer);
+                    crc.update(buffer.array(), 0, buffer.limit());
+                }
+            }
+            return crc.getValue();
+        }
+
+        @Override
+        public String toString() {
+            return String.format("volume %08X '%s'", bootSector.getVolumeId(), bootSector.getVolumeLabel());
+        }
+    }
+}
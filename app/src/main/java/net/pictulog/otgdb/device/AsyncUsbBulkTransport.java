@@ -0,0 +1,272 @@
+/**
+ * This file is part of OTGDiskBackup.
+ * <p/>
+ * Copyright 2005-2009 Red Hat, Inc.  All rights reserved.
+ * <p/>
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * <p/>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.pictulog.otgdb.device;
+
+import android.hardware.usb.UsbConstants;
+import android.hardware.usb.UsbDeviceConnection;
+import android.hardware.usb.UsbEndpoint;
+import android.hardware.usb.UsbInterface;
+import android.hardware.usb.UsbRequest;
+import android.util.Log;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This is the asynchronous {@link BulkTransport}. Each transfer is queued with
+ * a {@link UsbRequest} as soon as it is submitted, so that the host controller
+ * always has buffers to fill while the caller prepares the next command.
+ * <p/>
+ * {@link UsbRequest#queue(ByteBuffer, int)} always starts at the beginning of
+ * the buffer, so the transfers that do not start at index 0 of a direct or
+ * array backed buffer go through a pooled direct staging buffer.
+ * {@code requestWait()} has no timeout before Android O, therefore a watchdog
+ * cancels the requests that take too long.
+ *
+ * @author rostskadat
+ */
+public class AsyncUsbBulkTransport implements BulkTransport {
+
+    private final UsbDeviceConnection usbDeviceConnection;
+    private final UsbInterface usbInterface;
+    private final BufferPool stagingPool;
+    private final ArrayDeque<Pending> idleInputs;
+    private final ArrayDeque<Pending> idleOutputs;
+    private final List<Pending> inFlight;
+    private final ScheduledExecutorService watchdog;
+    private UsbEndpoint inputEndpoint;
+    private UsbEndpoint outputEndpoint;
+
+    public AsyncUsbBulkTransport(UsbDeviceConnection usbDeviceConnection, UsbInterface usbInterface) {
+        this.usbDeviceConnection = usbDeviceConnection;
+        this.usbInterface = usbInterface;
+        this.stagingPool = new BufferPool(true, 16);
+        this.idleInputs = new ArrayDeque<Pending>();
+        this.idleOutputs = new ArrayDeque<Pending>();
+        // The watchdog walks that list while await() is blocked
+        this.inFlight = new CopyOnWriteArrayList<Pending>();
+        this.watchdog = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "UsbWatchdog");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        initEnpoints(usbInterface);
+    }
+
+    private void initEnpoints(UsbInterface usbInterface) {
+        UsbEndpoint endpoint = usbInterface.getEndpoint(0);
+        UsbEndpoint endpoint2 = usbInterface.getEndpoint(1);
+        if (endpoint.getDirection() == UsbConstants.USB_DIR_IN) {
+            UsbEndpoint usbEndpoint = endpoint2;
+            endpoint2 = endpoint;
+            endpoint = usbEndpoint;
+        }
+        inputEndpoint = endpoint2;
+        outputEndpoint = endpoint;
+    }
+
+    @Override
+    public synchronized void submit(BulkTransfer transfer) throws IOException {
+        Pending pending = obtain(transfer.isIn());
+        pending.transfer = transfer;
+        ByteBuffer buffer = transfer.getBuffer();
+        int length = transfer.getLength();
+        boolean startsAtZero = buffer.isDirect() ? transfer.getOffset() == 0
+                : buffer.hasArray() && buffer.arrayOffset() + transfer.getOffset() == 0;
+        if (startsAtZero) {
+            pending.staging = null;
+            pending.queued = buffer;
+        } else {
+            pending.staging = stagingPool.acquire(length);
+            if (!transfer.isIn()) {
+                int position = buffer.position();
+                int limit = buffer.limit();
+                buffer.limit(transfer.getOffset() + length);
+                buffer.position(transfer.getOffset());
+                pending.staging.put(buffer);
+                buffer.limit(limit);
+                buffer.position(position);
+                pending.staging.clear();
+            }
+            pending.queued = pending.staging;
+        }
+        // The request reports the number of bytes transferred through the
+        // position of the buffer. A short count is handed to the facade as is
+        pending.position = pending.queued.position();
+        pending.queued.position(0);
+        pending.deadline = System.currentTimeMillis() + transfer.getTimeout();
+        if (!pending.request.queue(pending.queued, length)) {
+            release(pending);
+            throw new UsbCommanException("Failed to queue transfer", -6);
+        }
+        inFlight.add(pending);
+    }
+
+    @Override
+    public synchronized int await(BulkTransfer transfer) throws IOException {
+        while (!transfer.isDone()) {
+            ScheduledFuture<?> cancel = watchdog.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    cancelExpired();
+                }
+            }, timeLeft(), TimeUnit.MILLISECONDS);
+            UsbRequest request;
+            try {
+                request = usbDeviceConnection.requestWait();
+            } finally {
+                cancel.cancel(false);
+            }
+            if (request == null) {
+                throw new UsbCommanException("requestWait failed", -5);
+            }
+            Pending pending = (Pending) request.getClientData();
+            if (pending == null || !inFlight.remove(pending)) {
+                Log.w("USB", "Unexpected request completed");
+                continue;
+            }
+            complete(pending);
+        }
+        return transfer.getTransferred();
+    }
+
+    @Override
+    public int getMaxTransferLength() {
+        return UsbBulkTransport.USB_MAX_BULK_TRANSFER_LENGTH;
+    }
+
+    @Override
+    public boolean isAsynchronous() {
+        return true;
+    }
+
+    @Override
+    public synchronized boolean reset() {
+        return UsbBulkTransport.reset(usbDeviceConnection, usbInterface);
+    }
+
+    @Override
+    public synchronized boolean clearHalt(boolean in) {
+        return UsbBulkTransport.clearHalt(usbDeviceConnection, in ? inputEndpoint : outputEndpoint);
+    }
+
+    @Override
+    public synchronized void close() {
+        for (Pending pending : inFlight) {
+            pending.request.cancel();
+        }
+        inFlight.clear();
+        for (Pending pending : idleInputs) {
+            pending.request.close();
+        }
+        for (Pending pending : idleOutputs) {
+            pending.request.close();
+        }
+        idleInputs.clear();
+        idleOutputs.clear();
+        watchdog.shutdownNow();
+    }
+
+    private void complete(Pending pending) {
+        BulkTransfer transfer = pending.transfer;
+        int transferred = pending.queued.position();
+        pending.queued.position(pending.position);
+        if (pending.cancelled || transferred == 0 && transfer.getLength() > 0) {
+            // The position is only moved when the request reports a byte
+            // count: an unmoved position is a failed transfer, not a full one
+            transferred = -1;
+        }
+        if (pending.staging != null && transfer.isIn() && transferred > 0) {
+            ByteBuffer buffer = transfer.getBuffer();
+            int position = buffer.position();
+            buffer.position(transfer.getOffset());
+            pending.staging.position(0);
+            pending.staging.limit(transferred);
+            buffer.put(pending.staging);
+            buffer.position(position);
+        }
+        release(pending);
+        transfer.complete(transferred);
+    }
+
+    private Pending obtain(boolean in) {
+        Pending pending = in ? idleInputs.pollFirst() : idleOutputs.pollFirst();
+        if (pending == null) {
+            pending = new Pending();
+            pending.request = new UsbRequest();
+            pending.request.initialize(usbDeviceConnection, in ? inputEndpoint : outputEndpoint);
+            pending.request.setClientData(pending);
+            pending.in = in;
+        }
+        pending.cancelled = false;
+        return pending;
+    }
+
+    private void release(Pending pending) {
+        if (pending.staging != null) {
+            stagingPool.release(pending.staging);
+            pending.staging = null;
+        }
+        pending.queued = null;
+        pending.transfer = null;
+        (pending.in ? idleInputs : idleOutputs).offerFirst(pending);
+    }
+
+    private synchronized long timeLeft() {
+        long deadline = Long.MAX_VALUE;
+        for (Pending pending : inFlight) {
+            deadline = Math.min(deadline, pending.deadline);
+        }
+        return Math.max(0, deadline - System.currentTimeMillis());
+    }
+
+    private void cancelExpired() {
+        long now = System.currentTimeMillis();
+        // Not synchronized: await() holds the lock while blocked in requestWait()
+        for (Pending pending : inFlight) {
+            if (pending.deadline <= now) {
+                Log.w("USB", "Cancelling transfer after " + pending.transfer.getTimeout() + " ms");
+                pending.cancelled = true;
+                pending.request.cancel();
+            }
+        }
+    }
+
+    private static class Pending {
+        private UsbRequest request;
+        private boolean in;
+        private BulkTransfer transfer;
+        private ByteBuffer staging;
+        private ByteBuffer queued;
+        private int position;
+        private volatile long deadline;
+        private volatile boolean cancelled;
+    }
+}
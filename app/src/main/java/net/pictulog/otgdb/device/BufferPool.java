@@ -0,0 +1,105 @@
+/**
+ * This file is part of OTGDiskBackup.
+ * <p/>
+ * Copyright 2005-2009 Red Hat, Inc.  All rights reserved.
+ * <p/>
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * <p/>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.pictulog.otgdb.device;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * This is a very simple pool of {@link ByteBuffer}s. The buffers are bucketed
+ * by their capacity (a power of two) so that the transfers that can't land
+ * directly in the caller's buffer do not generate any garbage once the pool is
+ * warm.
+ *
+ * @author rostskadat
+ */
+public class BufferPool {
+
+    private static final int MIN_SIZE_SHIFT = 9; // 512 bytes
+    private static final int MAX_SIZE_SHIFT = 24; // 16 MiB
+    private static final int DEFAULT_MAX_PER_BUCKET = 4;
+
+    private final boolean direct;
+    private final int maxPerBucket;
+    private final ArrayDeque<ByteBuffer>[] buckets;
+
+    public BufferPool(boolean direct) {
+        this(direct, DEFAULT_MAX_PER_BUCKET);
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public BufferPool(boolean direct, int maxPerBucket) {
+        this.direct = direct;
+        this.maxPerBucket = maxPerBucket;
+        this.buckets = new ArrayDeque[MAX_SIZE_SHIFT - MIN_SIZE_SHIFT + 1];
+        for (int i = 0; i < buckets.length; i++) {
+            buckets[i] = new ArrayDeque<ByteBuffer>(maxPerBucket);
+        }
+    }
+
+    /**
+     * Get a buffer able to hold at least {@code size} bytes. The returned
+     * buffer is cleared and its limit is set to {@code size}.
+     *
+     * @param size the number of bytes needed
+     * @return a buffer that should be given back with {@link #release}
+     */
+    public ByteBuffer acquire(int size) {
+        int bucket = bucketOf(size);
+        ByteBuffer buffer = null;
+        if (bucket < buckets.length) {
+            synchronized (this) {
+                buffer = buckets[bucket].pollFirst();
+            }
+        }
+        if (buffer == null) {
+            int capacity = bucket < buckets.length ? 1 << (bucket + MIN_SIZE_SHIFT) : size;
+            buffer = direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+        }
+        buffer.clear();
+        buffer.limit(size);
+        return buffer;
+    }
+
+    /**
+     * Give a buffer back to the pool. Buffers that were not obtained from
+     * {@link #acquire} or that exceed the pool capacity are simply dropped.
+     *
+     * @param buffer the buffer to release
+     */
+    public void release(ByteBuffer buffer) {
+        int capacity = buffer.capacity();
+        if (Integer.bitCount(capacity) != 1 || buffer.isDirect() != direct) {
+            return;
+        }
+        int bucket = bucketOf(capacity);
+        if (bucket < buckets.length) {
+            synchronized (this) {
+                if (buckets[bucket].size() < maxPerBucket) {
+                    buckets[bucket].offerFirst(buffer);
+                }
+            }
+        }
+    }
+
+    private static int bucketOf(int size) {
+        int shift = 32 - Integer.numberOfLeadingZeros(Math.max(size, 1) - 1);
+        return Math.max(shift, MIN_SIZE_SHIFT) - MIN_SIZE_SHIFT;
+    }
+}
@@ -0,0 +1,107 @@
+/**
+ * This file is part of OTGDiskBackup.
+ * <p/>
+ * Copyright 2005-2009 Red Hat, Inc.  All rights reserved.
+ * <p/>
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * <p/>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.pictulog.otgdb.device;
+
+import java.nio.ByteBuffer;
+
+/**
+ * This class describes a single bulk transfer handed to a
+ * {@link BulkTransport}: {@code length} bytes moved between the endpoint and
+ * {@code buffer}, starting at the absolute index {@code offset}. The position
+ * of the buffer is not used. The transfer objects are meant to be reused from
+ * one command to the next.
+ *
+ * @author rostskadat
+ */
+public class BulkTransfer {
+
+    private final boolean in;
+    private ByteBuffer buffer;
+    private int offset;
+    private int length;
+    private int timeout;
+    private int transferred;
+    private long completedNanos;
+    private boolean done;
+
+    /**
+     * @param in {@code true} for a device to host transfer
+     */
+    public BulkTransfer(boolean in) {
+        this.in = in;
+    }
+
+    /**
+     * Prepare the transfer before submitting it.
+     */
+    public void set(ByteBuffer buffer, int offset, int length, int timeout) {
+        this.buffer = buffer;
+        this.offset = offset;
+        this.length = length;
+        this.timeout = timeout;
+        this.transferred = 0;
+        this.done = false;
+    }
+
+    /**
+     * Called by the transport once the transfer is over.
+     *
+     * @param transferred the number of bytes transferred, negative on error
+     */
+    public void complete(int transferred) {
+        this.transferred = transferred;
+        this.completedNanos = System.nanoTime();
+        this.done = true;
+    }
+
+    public boolean isIn() {
+        return in;
+    }
+
+    public ByteBuffer getBuffer() {
+        return buffer;
+    }
+
+    public int getOffset() {
+        return offset;
+    }
+
+    public int getLength() {
+        return length;
+    }
+
+    public int getTimeout() {
+        return timeout;
+    }
+
+    public int getTransferred() {
+        return transferred;
+    }
+
+    public boolean isDone() {
+        return done;
+    }
+
+    /**
+     * @return the {@link System#nanoTime()} at which the transfer completed
+     */
+    public long getCompletedNanos() {
+        return completedNanos;
+    }
+}
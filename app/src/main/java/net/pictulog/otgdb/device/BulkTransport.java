@@ -0,0 +1,82 @@
+/**
+ * This file is part of OTGDiskBackup.
+ * <p/>
+ * Copyright 2005-2009 Red Hat, Inc.  All rights reserved.
+ * <p/>
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * <p/>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.pictulog.otgdb.device;
+
+import java.io.IOException;
+
+/**
+ * This interface abstracts the two bulk endpoints of a USB Mass Storage Bulk
+ * Only device. The {@link OtgDeviceFacade} builds the Command Block Wrappers,
+ * data and Command Status Wrappers and hands them to the transport.
+ * <p/>
+ * A transport may execute the transfers synchronously in
+ * {@link #submit(BulkTransfer)} or queue them and only wait for them in
+ * {@link #await(BulkTransfer)}. In both cases the transfers going in the same
+ * direction are executed in the order they were submitted.
+ *
+ * @author rostskadat
+ */
+public interface BulkTransport {
+
+    /**
+     * Start the given transfer.
+     *
+     * @param transfer the transfer, which must not be in flight
+     * @throws IOException if the transfer can't be started
+     */
+    void submit(BulkTransfer transfer) throws IOException;
+
+    /**
+     * Wait for the given transfer, which must have been submitted, to be
+     * over.
+     *
+     * @param transfer the transfer to wait for
+     * @return the number of bytes transferred, negative on error
+     * @throws IOException if the transport itself failed
+     */
+    int await(BulkTransfer transfer) throws IOException;
+
+    /**
+     * @return the maximum number of bytes a single transfer can move
+     */
+    int getMaxTransferLength();
+
+    /**
+     * @return {@code true} if several transfers can be in flight at once
+     */
+    boolean isAsynchronous();
+
+    /**
+     * Send a Bulk-Only Mass Storage Reset to the interface. No transfer must
+     * be in flight. The halt of the endpoints must be cleared afterwards.
+     *
+     * @return {@code true} if the device accepted the reset
+     */
+    boolean reset();
+
+    /**
+     * Clear the HALT feature of one of the bulk endpoints, after it stalled.
+     *
+     * @param in {@code true} for the device to host endpoint
+     * @return {@code true} if the device accepted the request
+     */
+    boolean clearHalt(boolean in);
+
+    void close();
+}
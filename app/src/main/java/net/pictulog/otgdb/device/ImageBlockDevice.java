@@ -0,0 +1,208 @@
+/**
+ * This file is part of OTGDiskBackup.
+ * <p/>
+ * Copyright 2005-2009 Red Hat, Inc.  All rights reserved.
+ * <p/>
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * <p/>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.pictulog.otgdb.device;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import de.waldheinz.fs.BlockDevice;
+import de.waldheinz.fs.ReadOnlyException;
+
+/**
+ * This is a read-only {@link BlockDevice} on top of a compressed image
+ * written by {@link ImageWriter}, so that it can be mounted again, with
+ * {@code FatFileSystem.read} for instance. Only the index is kept in memory,
+ * the blocks are inflated when read and the last one is kept. The blocks
+ * that were not stored read as zeros.
+ * <p/>
+ * The image of a whole device starts with the partition table: it is mounted
+ * through {@link PartitionBlockDevice#open(BlockDevice)}.
+ *
+ * @author rostskadat
+ */
+public class ImageBlockDevice implements BlockDevice {
+
+    private final RandomAccessFile input;
+    private final int blockSize;
+    private final int sectorSize;
+    private final long size;
+    private final long[] blocks;
+    private final long[] offsets;
+    private final int[] lengths;
+    private final int[] checksums;
+    private final byte[] stored;
+    private final byte[] data;
+    private final Inflater inflater = new Inflater();
+    private long cachedBlock = -1;
+    private boolean closed;
+
+    private ImageBlockDevice(RandomAccessFile input) throws IOException {
+        this.input = input;
+        if (input.readInt() != ImageWriter.MAGIC || input.readInt() != ImageWriter.VERSION) {
+            throw new IOException("Not a compressed image");
+        }
+        blockSize = input.readInt();
+        sectorSize = input.readInt();
+        size = input.readLong();
+        long indexOffset = input.readLong();
+        if (indexOffset < ImageWriter.HEADER_SIZE) {
+            throw new IOException("Incomplete image: no index");
+        }
+        input.seek(indexOffset);
+        int count = input.readInt();
+        byte[] index = new byte[count * ImageWriter.INDEX_ENTRY_SIZE];
+        input.readFully(index);
+        ByteBuffer entries = ByteBuffer.wrap(index);
+        blocks = new long[count];
+        offsets = new long[count];
+        lengths = new int[count];
+        checksums = new int[count];
+        for (int i = 0; i < count; i++) {
+            blocks[i] = entries.getLong();
+            offsets[i] = entries.getLong();
+            lengths[i] = entries.getInt();
+            checksums[i] = entries.getInt();
+        }
+        stored = new byte[blockSize];
+        data = new byte[blockSize];
+    }
+
+    /**
+     * @throws IOException if the file is not a complete compressed image
+     */
+    public static ImageBlockDevice open(File file) throws IOException {
+        RandomAccessFile input = new RandomAccessFile(file, "r");
+        try {
+            ImageBlockDevice device = new ImageBlockDevice(input);
+            Log.i("ImageBlockDevice", file.getName() + ": " + device.blocks.length + " block(s) of "
+                    + device.blockSize + " bytes stored for " + device.size + " bytes");
+            return device;
+        } catch (IOException e) {
+            input.close();
+            throw e;
+        }
+    }
+
+    @Override
+    public long getSize() throws IOException {
+        checkClosed();
+        return size;
+    }
+
+    @Override
+    public synchronized void read(long devOffset, ByteBuffer dest) throws IOException {
+        checkClosed();
+        if (devOffset < 0 || devOffset + dest.remaining() > size) {
+            throw new IllegalArgumentException("Read of " + dest.remaining() + " bytes @" + devOffset
+                    + " beyond the end of the image");
+        }
+        while (dest.hasRemaining()) {
+            long block = devOffset / blockSize;
+            int index = (int) (devOffset % blockSize);
+            int length = Math.min(dest.remaining(), blockSize - index);
+            int entry = Arrays.binarySearch(blocks, block);
+            if (entry < 0) {
+                for (int i = 0; i < length; i++) {
+                    dest.put((byte) 0);
+                }
+            } else {
+                load(entry);
+                dest.put(data, index, length);
+            }
+            devOffset += length;
+        }
+    }
+
+    private void load(int entry) throws IOException {
+        if (cachedBlock == blocks[entry]) {
+            return;
+        }
+        cachedBlock = -1;
+        int length = (int) Math.min(blockSize, size - blocks[entry] * blockSize);
+        input.seek(offsets[entry]);
+        input.readFully(stored, 0, lengths[entry]);
+        if (lengths[entry] == length) {
+            System.arraycopy(stored, 0, data, 0, length);
+        } else {
+            inflater.reset();
+            inflater.setInput(stored, 0, lengths[entry]);
+            try {
+                if (inflater.inflate(data, 0, length) != length) {
+                    throw new IOException("Block #" + blocks[entry] + " is truncated");
+                }
+            } catch (DataFormatException e) {
+                throw new IOException("Block #" + blocks[entry] + " is corrupted", e);
+            }
+        }
+        CRC32 checksum = new CRC32();
+        checksum.update(data, 0, length);
+        if ((int) checksum.getValue() != checksums[entry]) {
+            throw new IOException("Block #" + blocks[entry] + " has a wrong checksum");
+        }
+        cachedBlock = blocks[entry];
+    }
+
+    @Override
+    public void write(long devOffset, ByteBuffer src) throws ReadOnlyException {
+        throw new ReadOnlyException();
+    }
+
+    @Override
+    public void flush() {
+    }
+
+    @Override
+    public int getSectorSize() throws IOException {
+        checkClosed();
+        return sectorSize;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (!closed) {
+            closed = true;
+            inflater.end();
+            input.close();
+        }
+    }
+
+    @Override
+    public boolean isClosed() {
+        return closed;
+    }
+
+    @Override
+    public boolean isReadOnly() {
+        return true;
+    }
+
+    private void checkClosed() throws IOException {
+        if (closed) {
+            throw new IOException("Device is closed");
+        }
+    }
+}
@@ -0,0 +1,394 @@
+/**
+ * This file is part of OTGDiskBackup.
+ * <p/>
+ * Copyright 2005-2009 Red Hat, Inc.  All rights reserved.
+ * <p/>
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * <p/>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.pictulog.otgdb.device;
+
+import android.util.Log;
+
+import org.apache.commons.io.IOUtils;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * This class writes a disk image of which only some parts are known, the
+ * rest reading as zeros. The data is gathered in blocks of
+ * {@code blockSize} bytes, and the blocks that are all zeros are not written
+ * at all. The image is either:
+ * <ul>
+ * <li>a raw image, sparse where the file system of the destination supports
+ * it: it can be mounted with a {@code FileDisk}</li>
+ * <li>a compressed image: each block is deflated on its own, on as many
+ * threads as there are cores, and found through an index at the end of the
+ * file. It is mounted with {@link ImageBlockDevice}</li>
+ * </ul>
+ * The image of a whole device is mounted through a
+ * {@link PartitionBlockDevice}, which skips the partition table.
+ * The compressed image starts with a header of {@code HEADER_SIZE} bytes:
+ * the MAGIC, the VERSION, the block size, the sector size, the size of the
+ * image and the offset of the index. The index lists the blocks stored, in
+ * order, with for each the block number, its offset in the file, its stored
+ * length and the CRC32 of its data. A block whose stored length is the
+ * length of the block is not compressed.
+ * <p/>
+ * The data must be written in the order of the image, but may skip parts.
+ * The blocks are compressed and written in the background, at most
+ * {@code 2 * threads + 2} blocks being in memory at any time. The index is
+ * written to a temporary file next to the image as the blocks are stored,
+ * and appended to the image on close, so that the memory used does not
+ * depend on the size of the image.
+ *
+ * @author rostskadat
+ */
+public class ImageWriter {
+
+    public static final int DEFAULT_BLOCK_SIZE = 0x10000;
+
+    static final int MAGIC = 0x4f544749;
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 0x20;
+    static final int HEADER_OFF_INDEX = 0x18;
+    static final int INDEX_ENTRY_SIZE = 24;
+
+    private static final String INDEX_EXTENSION = ".index";
+    private static final int INDEX_BUFFER_SIZE = 0x10000;
+
+    private final File file;
+    private final RandomAccessFile output;
+    private final boolean compressed;
+    private final long size;
+    private final int blockSize;
+    private final BlockingQueue<byte[]> free;
+    private final ExecutorService compressors;
+    private final ExecutorService writer;
+    private byte[] current;
+    private long currentBlock = -1;
+    private long nextOffset;
+    private volatile IOException failure;
+
+    // The index of the compressed image, only used by the writer thread
+    private final File indexFile;
+    private DataOutputStream indexOutput;
+    private int indexCount;
+    private long end = HEADER_SIZE;
+    private long storedBytes;
+
+    /**
+     * @param file       the image to create
+     * @param size       the size of the image in bytes
+     * @param sectorSize the sector size of the imaged device
+     * @param blockSize  the unit of sparseness and compression
+     * @param compressed {@code true} for a compressed image, {@code false}
+     *                   for a sparse raw image
+     */
+    public ImageWriter(File file, long size, int sectorSize, int blockSize, boolean compressed) throws IOException {
+        this.file = file;
+        this.size = size;
+        this.blockSize = blockSize;
+        this.compressed = compressed;
+        int threads = compressed ? Runtime.getRuntime().availableProcessors() : 1;
+        this.free = new ArrayBlockingQueue<byte[]>(2 * threads + 2);
+        for (int i = 0; i < 2 * threads + 2; i++) {
+            free.add(new byte[blockSize]);
+        }
+        this.compressors = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "ImageCompressor");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        this.writer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "ImageWriter");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        this.indexFile = new File(file.getPath() + INDEX_EXTENSION);
+        this.output = new RandomAccessFile(file, "rw");
+        output.setLength(0);
+        if (compressed) {
+            indexOutput = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(indexFile),
+                    INDEX_BUFFER_SIZE));
+            output.writeInt(MAGIC);
+            output.writeInt(VERSION);
+            output.writeInt(blockSize);
+            output.writeInt(sectorSize);
+            output.writeLong(size);
+            output.writeLong(0);
+        }
+    }
+
+    /**
+     * Write the remaining of {@code src} at {@code offset} in the image. The
+     * parts of the image between the previous write and this one read as
+     * zeros.
+     *
+     * @throws IOException if the offset goes backward or beyond the end of
+     *                     the image, or if a previous block failed to be
+     *                     written
+     */
+    public void write(long offset, ByteBuffer src) throws IOException {
+        if (failure != null) {
+            throw failure;
+        }
+        if (offset < nextOffset || offset + src.remaining() > size) {
+            throw new IOException("Write of " + src.remaining() + " bytes @" + offset + " out of order");
+        }
+        while (src.hasRemaining()) {
+            long block = offset / blockSize;
+            if (current != null && block != currentBlock) {
+                submit();
+            }
+            if (current == null) {
+                try {
+                    current = free.take();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while writing " + file.getName());
+                }
+                Arrays.fill(current, (byte) 0);
+                currentBlock = block;
+            }
+            int index = (int) (offset % blockSize);
+            int length = Math.min(src.remaining(), blockSize - index);
+            src.get(current, index, length);
+            offset += length;
+        }
+        nextOffset = offset;
+    }
+
+    /**
+     * Write the pending blocks and the index, and close the image.
+     *
+     * @throws IOException if a block failed to be written
+     */
+    public void close() throws IOException {
+        try {
+            if (current != null) {
+                submit();
+            }
+            shutdown();
+            if (failure != null) {
+                throw failure;
+            }
+            if (compressed) {
+                writeIndex();
+            } else {
+                // The holes at the end of the image
+                output.setLength(size);
+            }
+            Log.i("ImageWriter", String.format("%s: %d bytes stored for an image of %d bytes", file.getName(),
+                    output.length(), size));
+        } finally {
+            IOUtils.closeQuietly(indexOutput);
+            deleteIndex();
+            output.close();
+        }
+    }
+
+    /**
+     * Give up the image and delete it.
+     */
+    public void abort() {
+        compressors.shutdownNow();
+        writer.shutdownNow();
+        IOUtils.closeQuietly(output);
+        IOUtils.closeQuietly(indexOutput);
+        deleteIndex();
+        if (file.exists() && !file.delete()) {
+            Log.w("ImageWriter", "Failed to delete partial image " + file.getAbsolutePath());
+        }
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * @return the number of bytes of data stored so far, before compression
+     */
+    public synchronized long getStoredBytes() {
+        return storedBytes;
+    }
+
+    private void submit() {
+        final byte[] data = current;
+        final long block = currentBlock;
+        final int length = (int) Math.min(blockSize, size - block * blockSize);
+        current = null;
+        final Future<Block> packed = compressors.submit(new Callable<Block>() {
+            @Override
+            public Block call() throws Exception {
+                return pack(data, length);
+            }
+        });
+        writer.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Block result = packed.get();
+                    if (result != null && failure == null) {
+                        store(block, data, length, result);
+                    }
+                } catch (IOException e) {
+                    Log.e("ImageWriter", "Failed to write block #" + block + ": " + e.getMessage(), e);
+                    failure = e;
+                } catch (ExecutionException e) {
+                    failure = new IOException("Failed to compress block #" + block, e.getCause());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    failure = new InterruptedIOException("Interrupted while writing " + file.getName());
+                } finally {
+                    free.add(data);
+                }
+            }
+        });
+    }
+
+    /**
+     * @return the block as stored, or {@code null} if it is all zeros
+     */
+    private Block pack(byte[] data, int length) {
+        boolean zeros = true;
+        for (int i = 0; i < length && zeros; i++) {
+            zeros = data[i] == 0;
+        }
+        if (zeros) {
+            return null;
+        }
+        Block block = new Block();
+        CRC32 checksum = new CRC32();
+        checksum.update(data, 0, length);
+        block.checksum = (int) checksum.getValue();
+        if (compressed) {
+            Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+            try {
+                deflater.setInput(data, 0, length);
+                deflater.finish();
+                // Less than the length: a block that does not shrink is stored as is
+                byte[] deflated = new byte[length - 1];
+                int deflatedLength = deflater.deflate(deflated);
+                if (deflater.finished()) {
+                    block.data = deflated;
+                    block.length = deflatedLength;
+                }
+            } finally {
+                deflater.end();
+            }
+        }
+        return block;
+    }
+
+    private void store(long block, byte[] data, int length, Block result) throws IOException {
+        if (!compressed) {
+            output.seek(block * blockSize);
+            output.write(data, 0, length);
+        } else {
+            byte[] stored = result.data != null ? result.data : data;
+            int storedLength = result.data != null ? result.length : length;
+            long offset = end;
+            output.seek(offset);
+            output.write(stored, 0, storedLength);
+            end += storedLength;
+            indexOutput.writeLong(block);
+            indexOutput.writeLong(offset);
+            indexOutput.writeInt(storedLength);
+            indexOutput.writeInt(result.checksum);
+            indexCount++;
+        }
+        synchronized (this) {
+            storedBytes += length;
+        }
+    }
+
+    /**
+     * Append the index, its number of entries followed by the entries
+     * gathered in the temporary file, and record its offset in the header.
+     */
+    private void writeIndex() throws IOException {
+        indexOutput.close();
+        if (indexFile.length() != (long) indexCount * INDEX_ENTRY_SIZE) {
+            throw new IOException("Incomplete index: " + indexFile.length() + " bytes for " + indexCount + " blocks");
+        }
+        long indexOffset = end;
+        output.seek(indexOffset);
+        output.writeInt(indexCount);
+        InputStream input = new FileInputStream(indexFile);
+        try {
+            byte[] buffer = new byte[INDEX_BUFFER_SIZE];
+            int read;
+            while ((read = input.read(buffer)) >= 0) {
+                output.write(buffer, 0, read);
+            }
+        } finally {
+            input.close();
+        }
+        output.seek(HEADER_OFF_INDEX);
+        output.writeLong(indexOffset);
+    }
+
+    private void deleteIndex() {
+        if (indexFile.exists() && !indexFile.delete()) {
+            Log.w("ImageWriter", "Failed to delete " + indexFile.getAbsolutePath());
+        }
+    }
+
+    private void shutdown() throws InterruptedIOException {
+        compressors.shutdown();
+        writer.shutdown();
+        try {
+            while (!writer.awaitTermination(1, TimeUnit.SECONDS)) {
+                Log.d("ImageWriter", "Waiting for the writer...");
+            }
+        } catch (InterruptedException e) {
+            abort();
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while closing " + file.getName());
+        }
+    }
+
+    private static class Block {
+        private byte[] data;
+        private int length;
+        private int checksum;
+    }
+}
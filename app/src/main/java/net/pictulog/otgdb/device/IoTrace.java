@@ -0,0 +1,182 @@
+/**
+ * This file is part of OTGDiskBackup.
+ * <p/>
+ * Copyright 2005-2009 Red Hat, Inc.  All rights reserved.
+ * <p/>
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * <p/>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.pictulog.otgdb.device;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * This class keeps the last commands sent to the device in a fixed size ring
+ * of binary records: opcode, LBA, length, tag, status and the nanosecond
+ * timestamps of the command. Recording takes no lock nor allocation, and
+ * nothing at all is done while the trace is disabled.
+ * <p/>
+ * Each slot carries a sequence number, odd while the slot is being written,
+ * so that {@link #dump(File)} skips the records overwritten under its feet.
+ *
+ * @author rostskadat
+ */
+public class IoTrace {
+
+    /**
+     * The pseudo opcodes of the recovery events, beyond the SCSI opcodes.
+     */
+    public static final int OP_RESET = 0x100;
+    public static final int OP_CLEAR_HALT_IN = 0x101;
+    public static final int OP_CLEAR_HALT_OUT = 0x102;
+
+    public static final int DEFAULT_CAPACITY = 4096;
+
+    private static final int FIELD_START = 0;
+    private static final int FIELD_END = 1;
+    private static final int FIELD_LBA = 2;
+    private static final int FIELD_OPCODE_STATUS = 3;
+    private static final int FIELD_TAG_LENGTH = 4;
+    private static final int RECORD_FIELDS = 5;
+
+    private final int mask;
+    private final AtomicLong cursor;
+    private final AtomicLongArray sequences;
+    private final AtomicLongArray records;
+    private volatile boolean enabled;
+
+    public IoTrace() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param capacity the number of records kept, rounded up to a power of 2
+     */
+    public IoTrace(int capacity) {
+        int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+        this.mask = size - 1;
+        this.cursor = new AtomicLong();
+        this.sequences = new AtomicLongArray(size);
+        this.records = new AtomicLongArray(size * RECORD_FIELDS);
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    /**
+     * Record a command, the oldest record is overwritten once the ring is
+     * full. The caller is expected to check {@link #isEnabled()} first, to
+     * avoid even reading the clock.
+     *
+     * @param opcode the SCSI opcode, or one of the {@code OP_} events
+     * @param lba    the first sector, -1 if the command has none
+     * @param length the length of the data phase in bytes
+     * @param tag    the tag of the CBW
+     * @param status the status of the CSW, or the negative error code of the
+     *               {@link UsbCommanException} if the command failed before
+     */
+    public void record(int opcode, long lba, int length, int tag, int status, long startNanos, long endNanos) {
+        long index = cursor.getAndIncrement();
+        int slot = (int) (index & mask);
+        int base = slot * RECORD_FIELDS;
+        sequences.set(slot, 2 * index + 1);
+        records.set(base + FIELD_START, startNanos);
+        records.set(base + FIELD_END, endNanos);
+        records.set(base + FIELD_LBA, lba);
+        records.set(base + FIELD_OPCODE_STATUS, ((long) opcode << 32) | (status & 0xffffffffL));
+        records.set(base + FIELD_TAG_LENGTH, ((long) tag << 32) | (length & 0xffffffffL));
+        sequences.set(slot, 2 * index + 2);
+    }
+
+    /**
+     * @return the number of records since the trace was created
+     */
+    public long getRecorded() {
+        return cursor.get();
+    }
+
+    public int getCapacity() {
+        return mask + 1;
+    }
+
+    /**
+     * Write the records still in the ring to {@code file}, oldest first, one
+     * line each.
+     *
+     * @return the number of records written
+     */
+    public int dump(File file) throws IOException {
+        PrintWriter writer = new PrintWriter(new OutputStreamWriter(new FileOutputStream(file), "US-ASCII"));
+        try {
+            writer.println("# OTGDiskBackup I/O trace");
+            writer.println("#      index        start_ns   duration_us  opcode               lba      length         tag  status");
+            int written = 0;
+            long end = cursor.get();
+            for (long index = Math.max(0, end - getCapacity()); index < end; index++) {
+                int slot = (int) (index & mask);
+                int base = slot * RECORD_FIELDS;
+                long sequence = sequences.get(slot);
+                long start = records.get(base + FIELD_START);
+                long stop = records.get(base + FIELD_END);
+                long lba = records.get(base + FIELD_LBA);
+                long opcodeStatus = records.get(base + FIELD_OPCODE_STATUS);
+                long tagLength = records.get(base + FIELD_TAG_LENGTH);
+                if (sequence != 2 * index + 2 || sequences.get(slot) != sequence) {
+                    // Not written yet, or overwritten while reading it
+                    continue;
+                }
+                writer.println(String.format(Locale.US, "%12d  %14d  %12.1f  %6s  %16d  %10d  %10d  %6d", index, start,
+                        (stop - start) / 1000.0, opcodeName((int) (opcodeStatus >>> 32)), lba,
+                        (int) tagLength, (int) (tagLength >>> 32), (int) opcodeStatus));
+                written++;
+            }
+            if (writer.checkError()) {
+                throw new IOException("Failed to write " + file);
+            }
+            return written;
+        } finally {
+            writer.close();
+        }
+    }
+
+    private static String opcodeName(int opcode) {
+        switch (opcode) {
+            case OP_RESET:
+                return "RESET";
+            case OP_CLEAR_HALT_IN:
+                return "HALT<";
+            case OP_CLEAR_HALT_OUT:
+                return "HALT>";
+            default:
+                return String.format("0x%02X", opcode);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "IoTrace[" + (enabled ? "enabled" : "disabled") + ", " + getRecorded() + " records, capacity="
+                + getCapacity() + "]";
+    }
+}
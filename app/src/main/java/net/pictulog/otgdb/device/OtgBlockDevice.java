@@ -37,25 +37,45 @@ import de.waldheinz.fs.fat.FatType;
  */
 public class OtgBlockDevice implements BlockDevice {
 
-    private static final int DEFAULT_RW_SIZE = 0x4000;
+    public static final int DEFAULT_RW_SIZE = 0x4000;
+    // Reads bigger than this are file content and are not worth caching
+    private static final int DEFAULT_MAX_CACHED_READ_SIZE = 0x8000;
+    // The sectors streamed by a single call to the facade, 8 GiB of 512 bytes sectors
+    private static final int MAX_STREAM_SECTORS = 0x1000000;
     // http://www.easeus.com/resource/fat32-disk-structure.htm
-    private static final int MBR_OFFSET_WATERMARK = 0x03;
-    private static final int MBR_OFFSET_PARTITION_1 = 0x1be;
+    static final int MBR_OFFSET_WATERMARK = 0x03;
+    static final int MBR_OFFSET_PARTITION_1 = 0x1be;
+    // The OEM names that start a partition-less volume
+    static final String FLOPPY_WATERMARK = "(IBM|MS|..DOS|..dos|NTFS)";
 
-    private static final int PE_RECORD_SIZE = 0x10;
-    private static final int PE_OFFSET_TYPE = 0x04;
-    private static final int PE_OFFSET_SECTOR_OFFSET = 0x08;
-    private static final int PE_OFFSET_NUMBER_OF_SECTORS = 0x0c;
+    static final int PE_RECORD_SIZE = 0x10;
+    static final int PE_OFFSET_TYPE = 0x04;
+    static final int PE_OFFSET_SECTOR_OFFSET = 0x08;
+    static final int PE_OFFSET_NUMBER_OF_SECTORS = 0x0c;
 
     private boolean closed;
     private boolean readOnly;
     private int sectorSize;
-    private int numberOfSectors;
-    private int sectorOffset;
+    private long numberOfSectors;
+    private long sectorOffset;
     private FatType fatType;
     private OtgDeviceFacade usbRamDiskFacade;
+    private int cacheSize;
+    private int transferSize;
+    private SectorCache sectorCache;
+    private ReadAhead readAhead;
+    private WriteBackCache writeBack;
+    private final BufferPool bufferPool;
 
     public OtgBlockDevice(OtgDeviceFacade usbRamDiskFacade) {
+        this(usbRamDiskFacade, SectorCache.DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param usbRamDiskFacade the facade used to talk to the USB device
+     * @param cacheSize        the number of sectors kept in the sector cache
+     */
+    public OtgBlockDevice(OtgDeviceFacade usbRamDiskFacade, int cacheSize) {
         this.closed = true;
         this.readOnly = true;
         this.sectorSize = 0;
@@ -63,6 +83,12 @@ public class OtgBlockDevice implements BlockDevice {
         this.sectorOffset = 0;
         this.fatType = null;
         this.usbRamDiskFacade = usbRamDiskFacade;
+        this.cacheSize = cacheSize;
+        this.transferSize = DEFAULT_RW_SIZE;
+        this.sectorCache = null;
+        this.readAhead = null;
+        this.writeBack = null;
+        this.bufferPool = new BufferPool(false);
     }
 
     /**
@@ -75,21 +101,185 @@ public class OtgBlockDevice implements BlockDevice {
     public void init() throws IOException {
         usbRamDiskFacade.readCapacity();
         sectorSize = usbRamDiskFacade.getSectorSize();
+        sectorCache = new SectorCache(sectorSize, cacheSize);
+        writeBack = new WriteBackCache(usbRamDiskFacade, sectorSize, WriteBackCache.DEFAULT_MAX_DIRTY_SIZE / sectorSize);
         initOtgDisk();
+        readAhead = new ReadAhead(usbRamDiskFacade, sectorSize, transferSize / sectorSize,
+                sectorOffset + numberOfSectors);
         closed = false;
     }
 
+    /**
+     * Time sequential reads at the beginning of the partition with several
+     * transfer sizes and return the fastest one that is stable. The device
+     * must have been initialized. The transfer size of the device is not
+     * changed, call {@link #setTransferSize(int)} with the result.
+     *
+     * @return the best profile for this device
+     * @throws IOException if the device is closed
+     */
+    public TransferProfile probeTransferProfile() throws IOException {
+        if (closed) {
+            throw new IOException("Device is closed");
+        }
+        return new TransferTuner(usbRamDiskFacade).probe(sectorOffset, numberOfSectors);
+    }
+
+    /**
+     * @return the first sector of the partition
+     */
+    public long getSectorOffset() {
+        return sectorOffset;
+    }
+
+    /**
+     * @return the number of sectors of the partition
+     */
+    public long getNumberOfSectors() {
+        return numberOfSectors;
+    }
+
+    /**
+     * @return the number of sectors of the whole device, partition table
+     * included
+     */
+    public long getDeviceSectors() {
+        return usbRamDiskFacade.getSectors();
+    }
+
+    /**
+     * Read the given sectors of the device, bypassing the caches, and hand
+     * them to {@code consumer} one transfer at a time. The sectors are
+     * addressed from the beginning of the device, not of the partition. The
+     * pending writes are flushed first so that the device is consistent.
+     *
+     * @param firstSector the first sector to read
+     * @param sectors     the number of sectors to read
+     * @throws IOException if a read failed or the consumer aborted
+     */
+    public void readStream(long firstSector, long sectors, SectorConsumer consumer) throws IOException {
+        if (closed) {
+            throw new IOException("Device is closed");
+        }
+        if (firstSector < 0 || firstSector + sectors > usbRamDiskFacade.getSectors()) {
+            throw new IllegalArgumentException("Read of " + sectors + " sectors @" + firstSector
+                    + " beyond the end of the device");
+        }
+        flushWriteBack();
+        int sectorsPerCommand = transferSize / sectorSize;
+        long sector = firstSector;
+        while (sector < firstSector + sectors) {
+            // Each call is limited to what an int can count
+            int count = (int) Math.min(firstSector + sectors - sector, MAX_STREAM_SECTORS);
+            usbRamDiskFacade.readStream(sector, count, sectorsPerCommand, consumer);
+            sector += count;
+        }
+    }
+
+    /**
+     * @param retries the number of times the bad sectors are read again
+     * @return a reader to rescue the sectors of a failing device, with the
+     * current transfer size. The pending writes are flushed first.
+     * @throws IOException if the flush failed
+     */
+    public RescueReader newRescueReader(int retries) throws IOException {
+        if (closed) {
+            throw new IOException("Device is closed");
+        }
+        flushWriteBack();
+        return new RescueReader(usbRamDiskFacade, sectorSize, transferSize / sectorSize, retries);
+    }
+
+    /**
+     * @return the trace of the commands sent to the device
+     */
+    public IoTrace getTrace() {
+        return usbRamDiskFacade.getTrace();
+    }
+
+    /**
+     * @return the latencies and throughput of the commands sent to the device
+     */
+    public UsbMetrics getMetrics() {
+        return usbRamDiskFacade.getMetrics();
+    }
+
+    private boolean isVerbose() {
+        return usbRamDiskFacade.isVerbose();
+    }
+
+    public int getTransferSize() {
+        return transferSize;
+    }
+
+    /**
+     * Set the maximum number of bytes moved by a single READ(10) or WRITE(10)
+     * command. It is rounded down to a multiple of the sector size.
+     *
+     * @param transferSize the transfer size in bytes
+     */
+    public void setTransferSize(int transferSize) {
+        if (sectorSize > 0) {
+            transferSize = Math.max(sectorSize, transferSize - transferSize % sectorSize);
+        }
+        this.transferSize = Math.min(transferSize, TransferTuner.MAX_TRANSFER_SIZE);
+        if (readAhead != null) {
+            readAhead.close();
+            readAhead = new ReadAhead(usbRamDiskFacade, sectorSize, this.transferSize / sectorSize,
+                    sectorOffset + numberOfSectors);
+        }
+        Log.i("USB", "Transfer size set to " + this.transferSize + " bytes");
+    }
+
+    /**
+     * Write the pending sectors and release the device. The device is closed
+     * even if the last flush failed, in which case the error is rethrown.
+     */
     @Override
     public void close() throws IOException {
-        Log.d("USB", "close() is not implemented");
+        if (closed) {
+            return;
+        }
+        try {
+            flush();
+        } finally {
+            closed = true;
+            Log.i("USB", String.format("Closing device: %d READ(10), %d WRITE(10), %.1f commands/MiB",
+                    usbRamDiskFacade.getReadCommands(), usbRamDiskFacade.getWriteCommands(),
+                    usbRamDiskFacade.getCommandsPerMegabyte()));
+            Log.i("USB", "Closing device: " + writeBack);
+            Log.i("USB", "Closing device: " + sectorCache);
+            sectorCache.clear();
+            Log.i("USB", "Closing device: " + readAhead);
+            Log.i("USB", "Closing device: " + usbRamDiskFacade.getMetrics());
+            readAhead.close();
+            usbRamDiskFacade.close();
+        }
     }
 
+    /**
+     * Write the sectors kept by the write-back cache to the device.
+     *
+     * @throws IOException if a write failed, the sectors not written are
+     *                     kept for the next flush
+     */
     @Override
     public void flush() throws IOException {
         if (closed) {
             throw new IOException("Device is closed");
         }
-        Log.d("USB", "flush() is not implemented");
+        Log.d("USB", "Flushing " + writeBack.getDirtySectors() + " sector(s)");
+        flushWriteBack();
+    }
+
+    /**
+     * Write the dirty sectors to the device. The read-ahead is dropped first:
+     * a prefetch made while some sectors were dirty holds their old content,
+     * which only the write-back overlay was hiding.
+     */
+    private void flushWriteBack() throws IOException {
+        readAhead.invalidate();
+        writeBack.flush(transferSize / sectorSize, bufferPool);
     }
 
     @Override
@@ -122,6 +312,30 @@ public class OtgBlockDevice implements BlockDevice {
         this.readOnly = readOnly;
     }
 
+    /**
+     * @return the sector cache, or {@code null} if the device has not been
+     * initialized yet
+     */
+    public SectorCache getSectorCache() {
+        return sectorCache;
+    }
+
+    /**
+     * @return the read-ahead engine, or {@code null} if the device has not
+     * been initialized yet
+     */
+    public ReadAhead getReadAhead() {
+        return readAhead;
+    }
+
+    /**
+     * @return the write-back cache, or {@code null} if the device has not
+     * been initialized yet
+     */
+    public WriteBackCache getWriteBackCache() {
+        return writeBack;
+    }
+
     public FatType getFatType() {
         return fatType;
     }
@@ -142,12 +356,72 @@ public class OtgBlockDevice implements BlockDevice {
         if (closed) {
             throw new IOException("Device is closed");
         }
-        Log.d("USB", "reading: " + dest.capacity() + " bytes @" + devOffset);
+        if (isVerbose()) {
+            Log.d("USB", "reading: " + dest.capacity() + " bytes @" + devOffset);
+        }
         int srcOffset = (int) (devOffset % ((long) this.sectorSize));
-        dest.put(
-                readSectorFrom((int) (devOffset / ((long) this.sectorSize)),
-                        (((dest.remaining() + srcOffset) + this.sectorSize) - 1) / this.sectorSize),
-                srcOffset, dest.remaining());
+        long firstSector = devOffset / ((long) this.sectorSize);
+        int sectorsToRead = (((dest.remaining() + srcOffset) + this.sectorSize) - 1) / this.sectorSize;
+        long firstSectorOffset = sectorOffset + firstSector;
+        if (srcOffset == 0 && dest.remaining() % sectorSize == 0) {
+            // Aligned read: the sectors land directly in the caller's buffer
+            readSectors(firstSectorOffset, sectorsToRead, dest);
+        } else {
+            ByteBuffer sectors = bufferPool.acquire(sectorsToRead * sectorSize);
+            readSectors(firstSectorOffset, sectorsToRead, sectors);
+            sectors.position(srcOffset);
+            sectors.limit(srcOffset + dest.remaining());
+            dest.put(sectors);
+            bufferPool.release(sectors);
+        }
+    }
+
+    /**
+     * Read the given sectors into {@code dest}, using in turn the read ahead,
+     * the sector cache and the device itself.
+     *
+     * @throws IOException if the device failed to read some of the sectors
+     */
+    private void readSectors(long firstSectorOffset, int sectorsToRead, ByteBuffer dest) throws IOException {
+        int position = dest.position();
+        int served = readAhead.take(firstSectorOffset, sectorsToRead, dest);
+        writeBack.overlay(firstSectorOffset, served, dest, position);
+        int missingSectors = sectorsToRead - served;
+        if (missingSectors == 0) {
+            if (isVerbose()) {
+                Log.d("USB", "Read " + sectorsToRead + " sector(s) from read ahead");
+            }
+        } else if (missingSectors * sectorSize <= DEFAULT_MAX_CACHED_READ_SIZE) {
+            readCachedSectors(firstSectorOffset + served, missingSectors, dest);
+        } else {
+            readDeviceSectors(firstSectorOffset + served, missingSectors, dest);
+        }
+        readAhead.access(firstSectorOffset, sectorsToRead, served);
+    }
+
+    /**
+     * Read the given sectors, going to the device only for the runs of sectors
+     * that are not already in the cache.
+     */
+    private void readCachedSectors(long firstSectorOffset, int sectorsToRead, ByteBuffer dest) throws IOException {
+        int currentSector = 0;
+        while (currentSector < sectorsToRead) {
+            if (sectorCache.get(firstSectorOffset + currentSector, dest)) {
+                currentSector++;
+                continue;
+            }
+            int missingSectors = 1;
+            while (currentSector + missingSectors < sectorsToRead
+                    && !sectorCache.contains(firstSectorOffset + currentSector + missingSectors)) {
+                missingSectors++;
+            }
+            int position = dest.position();
+            readDeviceSectors(firstSectorOffset + currentSector, missingSectors, dest);
+            for (int i = 0; i < missingSectors; i++) {
+                sectorCache.put(firstSectorOffset + currentSector + i, dest, position + i * sectorSize);
+            }
+            currentSector += missingSectors;
+        }
     }
 
     /**
@@ -169,70 +443,110 @@ public class OtgBlockDevice implements BlockDevice {
         if (readOnly) {
             throw new ReadOnlyException();
         }
-        Log.d("USB", "writing: " + src.capacity() + " bytes @" + devOffset);
-        int i = (int) (devOffset / ((long) this.sectorSize));
-        int remaining = src.remaining();
-        int sectorsToWrite = ((this.sectorSize + remaining) - 1) / this.sectorSize;
-        byte[] writeBuffer = new byte[remaining];
-        src.get(writeBuffer);
-        writeSectors(this.sectorOffset + i, sectorsToWrite, writeBuffer);
+        if (devOffset < 0 || devOffset + src.remaining() > getSize()) {
+            throw new IllegalArgumentException("Write of " + src.remaining() + " bytes @" + devOffset
+                    + " beyond the end of the device");
+        }
+        if (isVerbose()) {
+            Log.d("USB", "writing: " + src.remaining() + " bytes @" + devOffset);
+        }
+        long sector = this.sectorOffset + devOffset / ((long) this.sectorSize);
+        int srcOffset = (int) (devOffset % ((long) this.sectorSize));
+        readAhead.invalidate();
+        if (srcOffset != 0 || src.remaining() < sectorSize) {
+            writePartialSector(sector++, srcOffset, src);
+        }
+        int fullSectors = src.remaining() / this.sectorSize;
+        if (fullSectors > 0) {
+            writeFullSectors(sector, fullSectors, src);
+            sector += fullSectors;
+        }
+        if (src.hasRemaining()) {
+            writePartialSector(sector, 0, src);
+        }
     }
 
-    private void writeSectors(int sectorOffset, int sectorsToWrite, byte[] src) {
-        Log.d("USB", "Writing " + sectorsToWrite + " sector(s) @ position #" + sectorOffset);
+    /**
+     * Merge the beginning of {@code src} with the current content of the
+     * sector, starting at {@code offset}.
+     */
+    private void writePartialSector(long sector, int offset, ByteBuffer src) throws IOException {
+        ByteBuffer data = bufferPool.acquire(sectorSize);
+        try {
+            readCachedSectors(sector, 1, data);
+            data.position(offset);
+            int limit = src.limit();
+            src.limit(src.position() + Math.min(sectorSize - offset, src.remaining()));
+            data.put(src);
+            src.limit(limit);
+            data.rewind();
+            writeFullSectors(sector, 1, data);
+        } finally {
+            bufferPool.release(data);
+        }
+    }
 
-        int defaultNumberOfSectors = DEFAULT_RW_SIZE / this.sectorSize;
-        byte[] writeBuffer = new byte[DEFAULT_RW_SIZE];
-        int currentSector = 0;
-        while (currentSector < sectorsToWrite) {
+    /**
+     * Hand the sectors to the write-back cache, or write them straight to the
+     * device if they would not fit in it anyway. The position of {@code src}
+     * is advanced by the number of sectors written.
+     */
+    private void writeFullSectors(long sector, int count, ByteBuffer src) throws IOException {
+        int position = src.position();
+        // Keeping the cache coherent with what has just been written
+        sectorCache.update(sector, src, position, count);
+        if (count >= writeBack.getMaxDirtySectors()) {
+            writeBack.discard(sector, count);
+            int limit = src.limit();
+            src.limit(position + count * sectorSize);
             try {
-                int numberOfSector;
-                byte[] writeChunk;
-                int chunkLength = this.sectorSize * defaultNumberOfSectors;
-                if (defaultNumberOfSectors > sectorsToWrite - currentSector) {
-                    numberOfSector = sectorsToWrite - currentSector;
-                    writeChunk = new byte[(this.sectorSize * numberOfSector)];
-                    chunkLength = src.length - (this.sectorSize * currentSector);
-                } else {
-                    writeChunk = writeBuffer;
-                    numberOfSector = defaultNumberOfSectors;
-                }
-                System.arraycopy(src, this.sectorSize * currentSector, writeChunk, 0, chunkLength);
-                usbRamDiskFacade.write(sectorOffset + currentSector, numberOfSector, writeChunk);
-                currentSector += defaultNumberOfSectors;
-                writeBuffer = writeChunk;
-            } catch (Exception e) {
-                Log.e("USB", "Writing failed: " + e.getMessage(), e);
-                return;
+                writeSectors(sector, count, src);
+            } finally {
+                src.limit(limit);
             }
+        } else if (writeBack.put(sector, src, position, count)) {
+            Log.d("USB", "Too many dirty sectors, flushing");
+            flushWriteBack();
         }
+        src.position(position + count * sectorSize);
     }
 
-    private byte[] readSectors(int firstSectorOffset, int sectorsToRead) {
-        Log.d("USB", "Reading " + sectorsToRead + " sector(s) @ position #" + firstSectorOffset);
-        int defaultNumberOfSectors = DEFAULT_RW_SIZE / this.sectorSize;
-        byte[] readBuffer = new byte[(sectorsToRead * this.sectorSize)];
+    private void writeSectors(long sectorOffset, int sectorsToWrite, ByteBuffer src) throws IOException {
+        if (isVerbose()) {
+            Log.d("USB", "Writing " + sectorsToWrite + " sector(s) @ position #" + sectorOffset);
+        }
+
+        int defaultNumberOfSectors = transferSize / this.sectorSize;
         int currentSector = 0;
-        while (currentSector < sectorsToRead) {
-            int numberOfSector = Math.min(defaultNumberOfSectors, sectorsToRead - currentSector);
-            // defaultNumberOfSectors > sectorsToRead - currentSector ?
-            // sectorsToRead - currentSector : defaultNumberOfSectors;
-            try {
-                Log.d("USB", String.format("Reading chunk #%d: sectors(%d)@ 0x%X", currentSector, numberOfSector,
-                        (firstSectorOffset + currentSector)));
-                System.arraycopy(usbRamDiskFacade.read(firstSectorOffset + currentSector, numberOfSector), 0,
-                        readBuffer, sectorSize * currentSector, numberOfSector * sectorSize);
-                currentSector += defaultNumberOfSectors;
-            } catch (Exception e) {
-                Log.e("USB", "Read failed: " + e.getMessage(), e);
-            }
+        while (currentSector < sectorsToWrite) {
+            int numberOfSector = Math.min(defaultNumberOfSectors, sectorsToWrite - currentSector);
+            usbRamDiskFacade.write(sectorOffset + currentSector, numberOfSector, src);
+            currentSector += numberOfSector;
         }
-        return readBuffer;
     }
 
-    private void initOtgDisk() {
+    /**
+     * Read the given sectors from the device. A failed read is reported
+     * rather than leaving whatever was in {@code dest}: use a
+     * {@link RescueReader} to get the most out of a failing device.
+     */
+    private void readDeviceSectors(long firstSectorOffset, int sectorsToRead, ByteBuffer dest) throws IOException {
+        if (isVerbose()) {
+            Log.d("USB", "Reading " + sectorsToRead + " sector(s) @ position #" + firstSectorOffset);
+        }
+        int position = dest.position();
+        if (!usbRamDiskFacade.read(firstSectorOffset, sectorsToRead, transferSize / this.sectorSize, dest)) {
+            Log.e("USB", "Read failed: sectors(" + sectorsToRead + ")@ 0x" + Long.toHexString(firstSectorOffset));
+            throw new UsbCommanException("Failed to read " + sectorsToRead + " sector(s) @" + firstSectorOffset, 100);
+        }
+        writeBack.overlay(firstSectorOffset, sectorsToRead, dest, position);
+    }
+
+    private void initOtgDisk() throws IOException {
         Log.i("USB", "Initializing OTG disk, reading boot sector...");
-        ByteBuffer bootSector = ByteBuffer.wrap(readSectors(0, 1));
+        ByteBuffer bootSector = ByteBuffer.allocate(sectorSize);
+        readDeviceSectors(0, 1, bootSector);
+        bootSector.rewind();
         bootSector.order(ByteOrder.LITTLE_ENDIAN);
 
         byte[] executable = new byte[5];
@@ -240,7 +554,7 @@ public class OtgBlockDevice implements BlockDevice {
         bootSector.get(executable);
         bootSector.rewind();
         String watermark = new String(executable);
-        if (watermark.matches("(IBM|MS|..DOS|..dos|NTFS)")) {
+        if (watermark.matches(FLOPPY_WATERMARK)) {
             Log.d("USB", "Found FAT Floppy watermark...");
             sectorOffset = 0;
             numberOfSectors = usbRamDiskFacade.getSectors();
@@ -254,7 +568,9 @@ public class OtgBlockDevice implements BlockDevice {
                 byte[] pe = new byte[PE_RECORD_SIZE];
                 System.arraycopy(bootSector.array(), MBR_OFFSET_PARTITION_1 + (partitionNumber * PE_RECORD_SIZE), pe, 0,
                         PE_RECORD_SIZE);
-                Log.d("USB", "Partition Entry #" + partitionNumber + ":\n" + PrettyPrint.prettyPrint(pe));
+                if (isVerbose()) {
+                    Log.d("USB", "Partition Entry #" + partitionNumber + ":\n" + PrettyPrint.prettyPrint(pe));
+                }
                 byte type = bootSector
                         .get(MBR_OFFSET_PARTITION_1 + (partitionNumber * PE_RECORD_SIZE) + PE_OFFSET_TYPE);
                 if (translateFatType(type) != null) {
@@ -272,11 +588,12 @@ public class OtgBlockDevice implements BlockDevice {
                 partitionNumber = 0;
             }
             Log.d("USB", "Reading 1st sector offset and number of sectors...");
-            sectorOffset = bootSector
-                    .getInt((partitionNumber * PE_RECORD_SIZE) + MBR_OFFSET_PARTITION_1 + PE_OFFSET_SECTOR_OFFSET);
-            numberOfSectors = bootSector
-                    .getInt((partitionNumber * PE_RECORD_SIZE) + MBR_OFFSET_PARTITION_1 + PE_OFFSET_NUMBER_OF_SECTORS);
-            if (sectorOffset > usbRamDiskFacade.getSectors() || numberOfSectors > usbRamDiskFacade.getSectors()) {
+            // The partition entries are unsigned 32 bits
+            sectorOffset = bootSector.getInt((partitionNumber * PE_RECORD_SIZE) + MBR_OFFSET_PARTITION_1
+                    + PE_OFFSET_SECTOR_OFFSET) & 0xffffffffL;
+            numberOfSectors = bootSector.getInt((partitionNumber * PE_RECORD_SIZE) + MBR_OFFSET_PARTITION_1
+                    + PE_OFFSET_NUMBER_OF_SECTORS) & 0xffffffffL;
+            if (sectorOffset + numberOfSectors > usbRamDiskFacade.getSectors() || numberOfSectors <= 0) {
                 sectorOffset = 0;
                 numberOfSectors = usbRamDiskFacade.getSectors();
             }
@@ -285,11 +602,7 @@ public class OtgBlockDevice implements BlockDevice {
         Log.d("USB", "numberOfSectors=" + numberOfSectors);
     }
 
-    private byte[] readSectorFrom(int currentSectorOffset, int sectorsToRead) {
-        return readSectors(sectorOffset + currentSectorOffset, sectorsToRead);
-    }
-
-    private FatType translateFatType(byte fatType) {
+    static FatType translateFatType(byte fatType) {
         if (fatType == 0x01) {
             return FatType.FAT12;
         } else if (fatType == 0x04 || fatType == 0x06 || fatType == 0x0e) {
@@ -18,15 +18,15 @@
  */
 package net.pictulog.otgdb.device;
 
-import android.hardware.usb.UsbConstants;
 import android.hardware.usb.UsbDevice;
 import android.hardware.usb.UsbDeviceConnection;
-import android.hardware.usb.UsbEndpoint;
 import android.hardware.usb.UsbInterface;
 import android.util.Log;
 
 import net.pictulog.otgdb.utils.PrettyPrint;
 
+import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.util.Arrays;
@@ -40,8 +40,30 @@ import java.util.Arrays;
  * <li>{@code read(10)}: this method is used to read a specific set of sectors from the device</li>
  * <li>{@code write(10)}: this method is used to write a specific set of sectors to the device</li>
  * </ul>
+ * Sectors beyond 2^32 are reached with the SBC {@code read(16)},
+ * {@code write(16)} and {@code readCapacity(16)} counterparts.
  * <p/>
  * The {@code readCapacity()} should be called first.
+ * <p/>
+ * The transfers themselves are delegated to a {@link BulkTransport}. When
+ * several READ(10) commands are needed, the next Command Block Wrapper is
+ * prepared while the data of the current command drains, and sent as soon as
+ * its Command Status Wrapper is received. With an asynchronous transport
+ * {@link #readStream} also overlaps the transfer of the next command with the
+ * processing of the current one.
+ * <p/>
+ * A command that fails at the transport level (stalled, timed out or short
+ * transfer, missing or mismatched CSW, phase error, residue left by a READ or
+ * WRITE) goes through the Bulk
+ * Only reset recovery and is sent again, a few times, with a growing delay.
+ * A command the device reports as failed is not retried: the caller is
+ * expected to {@link #requestSense()} and decide.
+ * <p/>
+ * Every command and recovery is recorded in the {@link IoTrace} while it is
+ * enabled. The CBW, CSW and sense data are only hex dumped to the log when
+ * the facade is verbose, which is independent of the trace.
+ * The latency of each phase of the commands is always measured in the
+ * {@link UsbMetrics}.
  *
  * @author rostskadat
  */
@@ -49,6 +71,16 @@ public class OtgDeviceFacade {
 
     private static final byte USB_DIRECTION_TO_HOST = Byte.MIN_VALUE; // 0x80;
     private static final byte USB_DIRECTION_TO_DEVICE = 0x00;
+    private static final int USB_CBW_TIMEOUT = 800;
+    private static final int USB_CSW_TIMEOUT = 800;
+    // The timeouts grow with the transfer length, assuming the slowest card
+    // moves at least 128 bytes per ms
+    private static final int USB_READ_TIMEOUT = 3000;
+    private static final int USB_WRITE_TIMEOUT = 5000;
+    private static final int USB_MIN_BYTES_PER_MS = 128;
+    // A failed command is sent again after 10, 20 then 40 ms
+    private static final int USB_MAX_RETRIES = 3;
+    private static final int USB_RETRY_DELAY = 10;
 
     // constants from http://wiki.osdev.org/USB_Mass_Storage_Class_Devices
     // http://www.usb.org/developers/docs/devclass_docs/usbmassbulk_10.pdf (p13)
@@ -68,12 +100,15 @@ public class OtgDeviceFacade {
     private static final int USB_CSW_LENGTH = 0x0d;
     private static final int USB_CSW_OFF_SIGNATURE = 0x00;
     private static final int USB_CSW_OFF_TAG = 0x04;
-    // private static final int USB_CSW_OFF_RESIDUE = 0x08;
+    private static final int USB_CSW_OFF_RESIDUE = 0x08;
     private static final int USB_CSW_OFF_STATUS = 0x0c;
 
     private static final int USB_CSW_STATUS_SUCCESS = 0x00;
-    // private static final int USB_CSW_STATUS_FAILED = 0x01;
-    // private static final int USB_CSW_STATUS_PHASE_ERROR = 0x02;
+    private static final int USB_CSW_STATUS_FAILED = 0x01;
+    private static final int USB_CSW_STATUS_PHASE_ERROR = 0x02;
+
+    // The error code of a command the device reported as failed
+    private static final int USB_ERROR_COMMAND_FAILED = -2;
 
     // http://www.usb.org/developers/docs/devclass_docs/usbmass-ufi10.pdf
     private static final byte UFI_CMD_REQUEST_SENSE_OC = 0x03; // Page 37
@@ -91,6 +126,19 @@ public class OtgDeviceFacade {
     private static final byte UFI_CMD_WRITE_OC = 0x2a; // Page 46
     private static final int UFI_CMD_WRITE_LENGTH = 0x0c;
 
+    // SBC-3: the 16 bytes commands address the sectors beyond 2^32
+    private static final byte SBC_CMD_READ_CAPACITY_16_OC = (byte) 0x9e;
+    private static final byte SBC_CMD_READ_CAPACITY_16_SA = 0x10;
+    private static final int SBC_CMD_READ_CAPACITY_16_OFF_SA = 0x01;
+    private static final int SBC_CMD_READ_CAPACITY_16_OFF_AL = 0x0a;
+    private static final int SBC_CMD_READ_CAPACITY_16_RES_LENGTH = 0x20;
+    private static final byte SBC_CMD_READ_16_OC = (byte) 0x88;
+    private static final byte SBC_CMD_WRITE_16_OC = (byte) 0x8a;
+    private static final int SBC_CMD_16_LENGTH = 0x10;
+    private static final int SBC_CMD_16_LBA = 0x02; // Logical Block Address
+    private static final int SBC_CMD_16_TL = 0x0a; // Transfer Length
+    private static final long MAX_LBA_10 = 0xffffffffL;
+
     // Logical Block Address
     private static final int UFI_CMD_READ_CAPACITY_LAST_LBA = 0x00;
     // Transfer Length
@@ -98,65 +146,55 @@ public class OtgDeviceFacade {
     private static final int UFI_CMD_READ_LBA = 0x02; // Logical Block Address
     private static final int UFI_CMD_READ_TL = 0x07; // Transfer Length
     private static final int UFI_CMD_WRITE_LBA = 0x02; // Logical Block Address
-    private static final int UFI_CMD_WRITE_TL = 0x02; // Transfer Length
+    private static final int UFI_CMD_WRITE_TL = 0x07; // Transfer Length
 
-    private final UsbDeviceConnection usbDeviceConnection;
+    private final BulkTransport transport;
     private final byte lun;
-    private final ByteBuffer cbwBuffer;
-    private final ByteBuffer cswBuffer;
     private final ByteBuffer ufiCmdRequestSenseBuffer;
     private final ByteBuffer ufiCmdReadCapacityBuffer;
     private final ByteBuffer ufiCmdReadBuffer;
     private final ByteBuffer ufiCmdWriteBuffer;
-    private UsbEndpoint inputEndpoint;
-    private UsbEndpoint outputEndpoint;
+    private final ByteBuffer sbcCmdRead16Buffer;
+    private final ByteBuffer sbcCmdWrite16Buffer;
+    private final Command[] commands;
+    private final BufferPool streamBuffers;
+    private final IoTrace trace;
+    private final UsbMetrics metrics;
+    private volatile boolean verbose;
     private int cbwTag;
-    private int sectors;
+    private long readCommands;
+    private long writeCommands;
+    private long bytesRead;
+    private long bytesWritten;
+    private long sectors;
     private int sectorSize;
-    private byte[] receiveBuffer;
 
     public OtgDeviceFacade(UsbInterface usbInterface, byte lun, UsbDeviceConnection usbDeviceConnection,
                            UsbDevice usbDevice) {
+        this(new UsbBulkTransport(usbDeviceConnection, usbInterface), lun);
+    }
 
-        this.cbwBuffer = ByteBuffer.wrap(new byte[USB_CBW_LENGTH]);
-        this.cswBuffer = ByteBuffer.wrap(new byte[USB_CSW_LENGTH]);
-
+    public OtgDeviceFacade(BulkTransport transport, byte lun) {
         this.ufiCmdRequestSenseBuffer = ByteBuffer.wrap(new byte[UFI_CMD_REQUEST_SENSE_LENGTH]);
         this.ufiCmdReadCapacityBuffer = ByteBuffer.wrap(new byte[UFI_CMD_READ_CAPACITY_LENGTH]);
         this.ufiCmdReadBuffer = ByteBuffer.wrap(new byte[UFI_CMD_READ_LENGTH]);
         this.ufiCmdWriteBuffer = ByteBuffer.wrap(new byte[UFI_CMD_WRITE_LENGTH]);
+        this.sbcCmdRead16Buffer = ByteBuffer.wrap(new byte[SBC_CMD_16_LENGTH]);
+        this.sbcCmdWrite16Buffer = ByteBuffer.wrap(new byte[SBC_CMD_16_LENGTH]);
         this.cbwTag = 0;
         this.sectorSize = 512;
-        this.receiveBuffer = new byte[8192];
-        this.usbDeviceConnection = usbDeviceConnection;
+        this.transport = transport;
         this.lun = lun;
-        initEnpoints(usbInterface);
+        this.commands = new Command[]{new Command(), new Command()};
+        this.streamBuffers = new BufferPool(transport.isAsynchronous(), 2);
+        this.trace = new IoTrace();
+        this.metrics = new UsbMetrics();
 
         initCommandBuffers();
     }
 
-    private void initEnpoints(UsbInterface usbInterface) {
-        usbInterface.getInterfaceSubclass();
-        UsbEndpoint endpoint = usbInterface.getEndpoint(0);
-        UsbEndpoint endpoint2 = usbInterface.getEndpoint(1);
-        if (endpoint.getDirection() == UsbConstants.USB_DIR_IN) {
-            UsbEndpoint usbEndpoint = endpoint2;
-            endpoint2 = endpoint;
-            endpoint = usbEndpoint;
-        }
-        inputEndpoint = endpoint2;
-        outputEndpoint = endpoint;
-    }
-
     private void initCommandBuffers() {
         // These fields never change...
-        cbwBuffer.order(ByteOrder.LITTLE_ENDIAN);
-        cbwBuffer.putInt(USB_CBW_OFF_SIGNATURE, USB_CBW_SIGNATURE);
-        cbwBuffer.put(USB_CBW_OFF_DIRECTION, USB_DIRECTION_TO_HOST);
-        cbwBuffer.put(USB_CBW_OFF_LUN, lun);
-
-        cswBuffer.order(ByteOrder.LITTLE_ENDIAN);
-
         ufiCmdRequestSenseBuffer.put(UFI_CMD_REQUEST_SENSE_OC);
         ufiCmdRequestSenseBuffer.put(UFI_CMD_REQUEST_SENSE_OFF_LENGTH, UFI_CMD_REQUEST_SENSE_RES_LENGTH);
 
@@ -168,148 +206,639 @@ public class OtgDeviceFacade {
         ufiCmdWriteBuffer.put(UFI_CMD_WRITE_OC);
         ufiCmdWriteBuffer.order(ByteOrder.BIG_ENDIAN);
 
+        sbcCmdRead16Buffer.put(SBC_CMD_READ_16_OC);
+        sbcCmdRead16Buffer.order(ByteOrder.BIG_ENDIAN);
+
+        sbcCmdWrite16Buffer.put(SBC_CMD_WRITE_16_OC);
+        sbcCmdWrite16Buffer.order(ByteOrder.BIG_ENDIAN);
     }
 
-    private void prepareCBW(int cbwSubsequentLength, byte[] command, byte direction) {
+    private void prepareCBW(Command command, int cbwSubsequentLength, byte[] ufiCommand, byte direction) {
+        ByteBuffer cbwBuffer = command.cbwBuffer;
+        command.tag = cbwTag++;
+        command.opcode = ufiCommand[0] & 0xff;
+        command.lba = -1;
+        command.length = cbwSubsequentLength;
+        cbwBuffer.putInt(USB_CBW_OFF_TAG, command.tag);
         cbwBuffer.putInt(USB_CBW_OFF_LENGTH, cbwSubsequentLength);
         cbwBuffer.put(USB_CBW_OFF_DIRECTION, direction);
-        cbwBuffer.put(USB_CBW_OFF_CMD_LENGTH, (byte) command.length);
+        cbwBuffer.put(USB_CBW_OFF_CMD_LENGTH, (byte) ufiCommand.length);
         cbwBuffer.position(USB_CBW_OFF_CMD_DATA);
-        cbwBuffer.put(command, 0, command.length);
-    }
-
-    private synchronized void sendCBW() throws UsbCommanException {
-        ByteBuffer byteBuffer = cbwBuffer;
-        int tag = cbwTag;
-        cbwTag = tag + 1;
-        byteBuffer.putInt(USB_CBW_OFF_TAG, tag);
-        int length = cbwBuffer.array().length;
-        int transferredLength = usbDeviceConnection.bulkTransfer(outputEndpoint, cbwBuffer.array(), length, 800);
-        if (transferredLength != length) {
-            Log.e("USB", "Failed to send CBW#" + tag + ": " + PrettyPrint.prettyPrint(cbwBuffer.array()) + ", but got "
-                    + transferredLength + " bytes in return");
-            throw new UsbCommanException("Failed to send CBW#" + tag, -1);
+        cbwBuffer.put(ufiCommand, 0, ufiCommand.length);
+        cbwBuffer.rewind();
+    }
+
+    private void prepareRead(Command command, long sectorOffset, int numberOfSector) {
+        byte[] ufiCommand;
+        if (sectorOffset + numberOfSector - 1 > MAX_LBA_10) {
+            sbcCmdRead16Buffer.putLong(SBC_CMD_16_LBA, sectorOffset);
+            sbcCmdRead16Buffer.putInt(SBC_CMD_16_TL, numberOfSector);
+            ufiCommand = sbcCmdRead16Buffer.array();
+        } else {
+            ufiCmdReadBuffer.putInt(UFI_CMD_READ_LBA, (int) sectorOffset);
+            ufiCmdReadBuffer.putShort(UFI_CMD_READ_TL, (short) numberOfSector);
+            ufiCommand = ufiCmdReadBuffer.array();
         }
-        Log.d("USB", "CBW#" + tag + ":\n" + PrettyPrint.prettyPrint(cbwBuffer.array()));
+        readCommands++;
+        bytesRead += sectorSize * numberOfSector;
+        prepareCBW(command, sectorSize * numberOfSector, ufiCommand, USB_DIRECTION_TO_HOST);
+        command.lba = sectorOffset;
     }
 
-    private void receiveCSW() throws UsbCommanException {
-        cswBuffer.rewind();
-        int cswLength = usbDeviceConnection.bulkTransfer(inputEndpoint, cswBuffer.array(), cswBuffer.capacity(), 800);
+    private void prepareWrite(Command command, long sectorOffset, int numberOfSector) {
+        byte[] ufiCommand;
+        if (sectorOffset + numberOfSector - 1 > MAX_LBA_10) {
+            sbcCmdWrite16Buffer.putLong(SBC_CMD_16_LBA, sectorOffset);
+            sbcCmdWrite16Buffer.putInt(SBC_CMD_16_TL, numberOfSector);
+            ufiCommand = sbcCmdWrite16Buffer.array();
+        } else {
+            ufiCmdWriteBuffer.putInt(UFI_CMD_WRITE_LBA, (int) sectorOffset);
+            ufiCmdWriteBuffer.putShort(UFI_CMD_WRITE_TL, (short) numberOfSector);
+            ufiCommand = ufiCmdWriteBuffer.array();
+        }
+        writeCommands++;
+        bytesWritten += sectorSize * numberOfSector;
+        prepareCBW(command, sectorSize * numberOfSector, ufiCommand, USB_DIRECTION_TO_DEVICE);
+        command.lba = sectorOffset;
+    }
+
+    /**
+     * Submit the CBW, the data and the CSW of a prepared command. The data
+     * phase is split to fit in the transport maximum transfer length. A
+     * transfer that can't be submitted is completed as failed, so that
+     * {@link #complete(Command)} sees the error.
+     */
+    private void submit(Command command, ByteBuffer data, int offset, int length, int timeout) {
+        command.in = command.cbwBuffer.get(USB_CBW_OFF_DIRECTION) == USB_DIRECTION_TO_HOST;
+        command.startNanos = System.nanoTime();
+        command.dataTransferCount = 0;
+        command.cswBuffer.rewind();
+        command.cswTransfer.set(command.cswBuffer, 0, USB_CSW_LENGTH, USB_CSW_TIMEOUT);
+        command.cbwTransfer.set(command.cbwBuffer, 0, USB_CBW_LENGTH, USB_CBW_TIMEOUT);
+        if (!submit(command.cbwTransfer)
+                || command.cbwTransfer.isDone() && command.cbwTransfer.getTransferred() != USB_CBW_LENGTH) {
+            command.cswTransfer.complete(-1);
+            return;
+        }
+        int maxTransferLength = transport.getMaxTransferLength();
+        int count = (length + maxTransferLength - 1) / maxTransferLength;
+        command.ensureDataTransfers(count);
+        for (int i = 0; i < count; i++) {
+            BulkTransfer transfer = command.dataTransfers[i];
+            int chunkLength = Math.min(maxTransferLength, length - i * maxTransferLength);
+            transfer.set(data, offset + i * maxTransferLength, chunkLength, timeout);
+            if (!submit(transfer)) {
+                command.cswTransfer.complete(-1);
+                return;
+            }
+            command.dataTransferCount++;
+            if (transfer.isDone() && transfer.getTransferred() != chunkLength) {
+                // No point in asking for more data
+                break;
+            }
+        }
+        submit(command.cswTransfer);
+    }
+
+    private boolean submit(BulkTransfer transfer) {
+        try {
+            transport.submit(transfer);
+            return true;
+        } catch (IOException e) {
+            Log.w("USB", "Failed to submit transfer: " + e.getMessage());
+            transfer.complete(-1);
+            return false;
+        }
+    }
+
+    /**
+     * Wait for a submitted command to complete and check its CSW. When the
+     * CSW can't be read, the halt of the stalled endpoints is cleared and the
+     * CSW read once more, as the Bulk Only specification asks (6.7.2).
+     *
+     * @return the number of bytes moved during the data phase
+     * @throws UsbCommanException if the command failed
+     */
+    private int complete(Command command) throws IOException {
+        int status = USB_CSW_STATUS_SUCCESS;
+        try {
+            return awaitCommand(command);
+        } catch (UsbCommanException e) {
+            status = e.getErrorCode() == USB_ERROR_COMMAND_FAILED ? USB_CSW_STATUS_FAILED : e.getErrorCode();
+            metrics.recordError(command.opcode);
+            throw e;
+        } finally {
+            if (trace.isEnabled()) {
+                trace.record(command.opcode, command.lba, command.length, command.tag, status, command.startNanos,
+                        System.nanoTime());
+            }
+        }
+    }
+
+    private int awaitCommand(Command command) throws IOException {
+        if (transport.await(command.cbwTransfer) != USB_CBW_LENGTH) {
+            for (int i = 0; i < command.dataTransferCount; i++) {
+                transport.await(command.dataTransfers[i]);
+            }
+            transport.await(command.cswTransfer);
+            throw sendCBWFailed(command);
+        }
+        if (verbose) {
+            Log.d("USB", "CBW#" + command.tag + ":\n" + PrettyPrint.prettyPrint(command.cbwBuffer.array()));
+        }
+        int transferred = 0;
+        for (int i = 0; i < command.dataTransferCount; i++) {
+            int chunkTransferred = transport.await(command.dataTransfers[i]);
+            if (chunkTransferred < 0 || transferred < 0) {
+                transferred = -1;
+            } else {
+                transferred += chunkTransferred;
+            }
+        }
+        int cswLength = transport.await(command.cswTransfer);
         if (cswLength < 0) {
-            Log.d("USB", "CSW Error: wrong cswLength= " + cswLength + "\n" + PrettyPrint.prettyPrint(cswBuffer.array()));
-            throw new UsbCommanException("CSW Error: couldn't read sense data", -3);
-        } else if (cswBuffer.getInt(USB_CSW_OFF_SIGNATURE) != USB_CSW_SIGNATURE) {
-            Log.d("USB", "CSW Error: wrong signature");
-            throw new UsbCommanException("CSW Error: wrong signature", -4);
-        } else if (cswBuffer.get(USB_CSW_OFF_STATUS) != USB_CSW_STATUS_SUCCESS) {
-            Log.d("USB", "CSW Error: failed status");
-            throw new UsbCommanException("CSW Error: failed status", -4);
+            if (transferred < 0 && !command.in) {
+                clearHalt(false);
+            }
+            clearHalt(true);
+            command.cswBuffer.rewind();
+            command.cswTransfer.set(command.cswBuffer, 0, USB_CSW_LENGTH, USB_CSW_TIMEOUT);
+            cswLength = submit(command.cswTransfer) ? transport.await(command.cswTransfer) : -1;
+        }
+        receiveCSW(command, cswLength);
+        if (transferred < 0) {
+            throw new UsbCommanException("Data phase of CBW#" + command.tag + " failed", -9);
+        }
+        long cbwNanos = command.cbwTransfer.getCompletedNanos();
+        long dataNanos = command.dataTransferCount == 0 ? cbwNanos
+                : command.dataTransfers[command.dataTransferCount - 1].getCompletedNanos();
+        metrics.record(command.opcode, command.startNanos, cbwNanos, dataNanos,
+                command.cswTransfer.getCompletedNanos(), transferred);
+        return transferred;
+    }
+
+    /**
+     * Wait for a submitted command to complete. If it failed at the transport
+     * level, reset the device and send the command again, up to
+     * {@link #USB_MAX_RETRIES} times.
+     *
+     * @return the number of bytes moved during the data phase
+     * @throws UsbCommanException if the command still failed or the device
+     *                             reported it as failed
+     */
+    private int complete(Command command, ByteBuffer data, int offset, int length, int timeout)
+            throws IOException {
+        for (int attempt = 0; ; attempt++) {
+            try {
+                return complete(command);
+            } catch (UsbCommanException e) {
+                if (e.getErrorCode() == USB_ERROR_COMMAND_FAILED || attempt >= USB_MAX_RETRIES) {
+                    throw e;
+                }
+                Log.w("USB", "CBW#" + command.tag + ": " + e.getMessage() + ", retrying (" + (attempt + 1) + "/"
+                        + USB_MAX_RETRIES + ")");
+                metrics.recordRetry();
+                try {
+                    Thread.sleep(USB_RETRY_DELAY << attempt);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while recovering from: " + e.getMessage());
+                }
+                resetRecovery(e);
+                command.tag = cbwTag++;
+                command.cbwBuffer.putInt(USB_CBW_OFF_TAG, command.tag);
+                submit(command, data, offset, length, timeout);
+            }
+        }
+    }
+
+    /**
+     * The Bulk Only reset recovery (5.3.4): a Bulk-Only Mass Storage Reset,
+     * then a clear HALT on both endpoints.
+     */
+    private void resetRecovery(UsbCommanException cause) throws UsbCommanException {
+        metrics.recordReset();
+        long start = trace.isEnabled() ? System.nanoTime() : 0;
+        boolean reset = transport.reset();
+        if (trace.isEnabled()) {
+            trace.record(IoTrace.OP_RESET, -1, 0, -1, reset ? 0 : -1, start, System.nanoTime());
+        }
+        if (!reset) {
+            Log.e("USB", "Bulk Only reset failed");
+            throw cause;
+        }
+        if (!clearHalt(true) | !clearHalt(false)) {
+            Log.w("USB", "Failed to clear the halt of the endpoints");
+        }
+    }
+
+    private boolean clearHalt(boolean in) {
+        long start = trace.isEnabled() ? System.nanoTime() : 0;
+        boolean cleared = transport.clearHalt(in);
+        if (trace.isEnabled()) {
+            trace.record(in ? IoTrace.OP_CLEAR_HALT_IN : IoTrace.OP_CLEAR_HALT_OUT, -1, 0, -1, cleared ? 0 : -1,
+                    start, System.nanoTime());
+        }
+        return cleared;
+    }
+
+    private UsbCommanException sendCBWFailed(Command command) {
+        Log.e("USB", "Failed to send CBW#" + command.tag + ", but got " + command.cbwTransfer.getTransferred()
+                + " bytes in return");
+        if (verbose) {
+            Log.d("USB", "CBW#" + command.tag + ":\n" + PrettyPrint.prettyPrint(command.cbwBuffer.array()));
+        }
+        return new UsbCommanException("Failed to send CBW#" + command.tag, -1);
+    }
+
+    private void receiveCSW(Command command, int cswLength) throws UsbCommanException {
+        ByteBuffer cswBuffer = command.cswBuffer;
+        try {
+            if (cswLength < 0) {
+                Log.d("USB", "CSW Error: wrong cswLength= " + cswLength);
+                throw new UsbCommanException("CSW Error: couldn't read sense data", -3);
+            } else if (cswLength != USB_CSW_LENGTH || cswBuffer.getInt(USB_CSW_OFF_SIGNATURE) != USB_CSW_SIGNATURE) {
+                Log.d("USB", "CSW Error: wrong signature");
+                throw new UsbCommanException("CSW Error: wrong signature", -4);
+            }
+            int tag = cswBuffer.getInt(USB_CSW_OFF_TAG);
+            if (verbose) {
+                Log.d("USB", "CSW#" + tag + ":\n" + PrettyPrint.prettyPrint(cswBuffer.array()));
+            }
+            if (tag != command.tag) {
+                // A stale CSW: the device and the host are out of step
+                Log.d("USB", "CSW Error: tag " + tag + " instead of " + command.tag);
+                throw new UsbCommanException("CSW Error: wrong tag", -7);
+            }
+            int status = cswBuffer.get(USB_CSW_OFF_STATUS);
+            if (status == USB_CSW_STATUS_FAILED) {
+                Log.d("USB", "CSW Error: failed status");
+                throw new UsbCommanException("CSW Error: failed status", USB_ERROR_COMMAND_FAILED);
+            } else if (status != USB_CSW_STATUS_SUCCESS) {
+                Log.d("USB", "CSW Error: phase error (" + status + ")");
+                throw new UsbCommanException("CSW Error: phase error", -8);
+            }
+            int residue = cswBuffer.getInt(USB_CSW_OFF_RESIDUE);
+            if (residue != 0 && command.lba >= 0) {
+                // Some bytes of the sectors were not transferred, even if the
+                // data phase was padded to the expected length
+                Log.d("USB", "CSW Error: residue of " + residue + " bytes");
+                throw new UsbCommanException("CSW Error: " + residue + " bytes not transferred", -10);
+            }
+        } finally {
+            // Resetting the CSW buffer
+            Arrays.fill(cswBuffer.array(), (byte) 0);
         }
-        int tag = cswBuffer.getInt(USB_CSW_OFF_TAG);
-        Log.d("USB", "CSW#" + tag + ":\n" + PrettyPrint.prettyPrint(cswBuffer.array()));
-        // TODO: Should I check that the tag corresponds to the command tag???
-        // Resetting the CSW buffer
-        Arrays.fill(cswBuffer.array(), (byte) 0);
     }
 
-    void readCapacity() throws UsbCommanException {
+    /**
+     * Execute a command with a small data phase in one go.
+     */
+    private int execute(byte[] ufiCommand, ByteBuffer data, byte direction, int timeout) throws IOException {
+        Command command = commands[0];
+        prepareCBW(command, data.capacity(), ufiCommand, direction);
+        submit(command, data, 0, data.capacity(), timeout);
+        return complete(command, data, 0, data.capacity(), timeout);
+    }
+
+    synchronized void readCapacity() throws IOException {
         Log.d("USB", "readCapacity...");
         ByteBuffer readCapacityResponse = ByteBuffer.wrap(new byte[UFI_CMD_READ_CAPACITY_RES_LENGTH]);
         readCapacityResponse.order(ByteOrder.BIG_ENDIAN);
-        prepareCBW(UFI_CMD_READ_CAPACITY_RES_LENGTH, ufiCmdReadCapacityBuffer.array(), USB_DIRECTION_TO_HOST);
-        // Sending the command
-        sendCBW();
-        // reading the result
-        usbDeviceConnection.bulkTransfer(inputEndpoint, readCapacityResponse.array(), readCapacityResponse.capacity(),
-                750);
-        // checking the command status
-        receiveCSW();
-        sectors = readCapacityResponse.getInt(UFI_CMD_READ_CAPACITY_LAST_LBA);
+        execute(ufiCmdReadCapacityBuffer.array(), readCapacityResponse, USB_DIRECTION_TO_HOST, 750);
+        long lastLba = readCapacityResponse.getInt(UFI_CMD_READ_CAPACITY_LAST_LBA) & 0xffffffffL;
         sectorSize = readCapacityResponse.getInt(UFI_CMD_READ_CAPACITY_BOCK_LENGTH);
+        if (lastLba == MAX_LBA_10) {
+            // The device is too large for READ CAPACITY(10)
+            byte[] readCapacity16 = new byte[SBC_CMD_16_LENGTH];
+            ByteBuffer readCapacity16Buffer = ByteBuffer.wrap(readCapacity16);
+            readCapacity16Buffer.put(SBC_CMD_READ_CAPACITY_16_OC);
+            readCapacity16Buffer.put(SBC_CMD_READ_CAPACITY_16_OFF_SA, SBC_CMD_READ_CAPACITY_16_SA);
+            readCapacity16Buffer.putInt(SBC_CMD_READ_CAPACITY_16_OFF_AL, SBC_CMD_READ_CAPACITY_16_RES_LENGTH);
+            readCapacityResponse = ByteBuffer.wrap(new byte[SBC_CMD_READ_CAPACITY_16_RES_LENGTH]);
+            readCapacityResponse.order(ByteOrder.BIG_ENDIAN);
+            execute(readCapacity16, readCapacityResponse, USB_DIRECTION_TO_HOST, 750);
+            lastLba = readCapacityResponse.getLong(0x00);
+            sectorSize = readCapacityResponse.getInt(0x08);
+        }
+        sectors = lastLba + 1;
         Log.d("USB", "readCapacity: Sectors=" + sectors + ", Sector Size=" + sectorSize);
     }
 
-    void requestSense() throws UsbCommanException {
+    /**
+     * Ask the device why the last command failed.
+     */
+    synchronized SenseData requestSense() throws IOException {
         Log.d("USB", "requestSense...");
         ByteBuffer requestSenseResponse = ByteBuffer.wrap(new byte[UFI_CMD_REQUEST_SENSE_RES_LENGTH]);
         requestSenseResponse.order(ByteOrder.BIG_ENDIAN);
-        prepareCBW(UFI_CMD_REQUEST_SENSE_RES_LENGTH, ufiCmdRequestSenseBuffer.array(), USB_DIRECTION_TO_HOST);
-        // Sending the command
-        sendCBW();
-        // reading the result
-        usbDeviceConnection.bulkTransfer(inputEndpoint, requestSenseResponse.array(), requestSenseResponse.capacity(),
-                750);
-        Log.d("USB", "requestSense: \n" + PrettyPrint.prettyPrint(requestSenseResponse.array()));
-        // checking the command status
-        receiveCSW();
-        byte errorCode = requestSenseResponse.get();
-        boolean valid = (errorCode & 0x80) == 1;
-        errorCode &= ~0b100000000;
-        if (valid) {
-            int information = requestSenseResponse.getInt(0x03);
-            Log.d("USB", "Request Sense: Error=" + errorCode + ", valid=" + valid + ", info=" + information);
-        } else {
-            Log.d("USB", String.format("Request Sense: Error=0x%x", errorCode));
+        execute(ufiCmdRequestSenseBuffer.array(), requestSenseResponse, USB_DIRECTION_TO_HOST, 750);
+        if (verbose) {
+            Log.d("USB", "requestSense: \n" + PrettyPrint.prettyPrint(requestSenseResponse.array()));
         }
+        SenseData sense = new SenseData(requestSenseResponse);
+        Log.d("USB", "Request Sense: " + sense);
+        return sense;
     }
 
-    synchronized void write(int sectorOffset, int numberOfSector, byte[] buffer) {
-        Log.d("USB", "write...");
+    /**
+     * Write the given sectors. The data is taken from {@code src} starting at
+     * its position, which is advanced by the number of bytes requested,
+     * whether the write succeeded or not.
+     *
+     * @throws IOException if the command failed
+     */
+    synchronized void write(long sectorOffset, int numberOfSector, ByteBuffer src) throws IOException {
         int writeResponseLength = sectorSize * numberOfSector;
-        if (writeResponseLength < buffer.length) {
-            Log.d("USB", "write data length to small");
-        } else {
-            try {
-                ufiCmdWriteBuffer.putInt(UFI_CMD_WRITE_LBA, sectorOffset);
-                ufiCmdWriteBuffer.putShort(UFI_CMD_WRITE_TL, (short) numberOfSector);
-                prepareCBW(writeResponseLength, ufiCmdWriteBuffer.array(), USB_DIRECTION_TO_DEVICE);
+        if (src.remaining() < writeResponseLength) {
+            throw new IllegalArgumentException("write data length to small");
+        }
+        int position = src.position();
+        try {
+            Command command = commands[0];
+            prepareWrite(command, sectorOffset, numberOfSector);
+            int timeout = timeout(USB_WRITE_TIMEOUT, writeResponseLength);
+            submit(command, src, position, writeResponseLength, timeout);
+            if (complete(command, src, position, writeResponseLength, timeout) != writeResponseLength) {
+                throw new UsbCommanException("USB Write Error", 101);
+            }
+        } finally {
+            src.position(position + writeResponseLength);
+        }
+    }
+
+    /**
+     * Read the given sectors. The data lands in {@code dest} starting at its
+     * position, which is advanced by the number of bytes requested, whether
+     * the read succeeded or not.
+     *
+     * @return {@code true} if the read succeeded
+     */
+    synchronized boolean read(long sectorOffset, int numberOfSector, ByteBuffer dest) {
+        return read(sectorOffset, numberOfSector, numberOfSector, dest);
+    }
+
+    /**
+     * Read the given sectors with as many READ(10) commands as needed. Each
+     * command is sent as soon as the previous one completes. The data lands in
+     * {@code dest} starting at its position, which is advanced by the number
+     * of bytes requested, whether the read succeeded or not.
+     *
+     * @param sectorsPerCommand the maximum number of sectors read by a single
+     *                          command
+     * @return {@code true} if all the commands succeeded
+     */
+    synchronized boolean read(long sectorOffset, int numberOfSector, int sectorsPerCommand, ByteBuffer dest) {
+        int position = dest.position();
+        boolean success = true;
+        Command current = commands[0];
+        Command next = commands[1];
+        int sector = 0;
+        int count = Math.min(sectorsPerCommand, numberOfSector);
+        try {
+            prepareRead(current, sectorOffset, count);
+            submit(current, dest, position, count * sectorSize, timeout(USB_READ_TIMEOUT, count * sectorSize));
+            while (true) {
+                int nextSector = sector + count;
+                int nextCount = Math.min(sectorsPerCommand, numberOfSector - nextSector);
+                if (nextCount > 0) {
+                    // The next CBW is ready before the current command completes
+                    prepareRead(next, sectorOffset + nextSector, nextCount);
+                }
                 try {
-                    sendCBW();
-                    this.usbDeviceConnection.bulkTransfer(this.outputEndpoint, buffer, writeResponseLength, 5000);
-                } catch (Exception e) {
+                    if (complete(current, dest, position + sector * sectorSize, count * sectorSize,
+                            timeout(USB_READ_TIMEOUT, count * sectorSize)) != count * sectorSize) {
+                        throw new UsbCommanException("USB Read Error", 100);
+                    }
+                } catch (UsbCommanException e) {
                     Log.e("USB", e.getMessage(), e);
+                    success = false;
                 }
-                receiveCSW();
-            } catch (UsbCommanException e2) {
-                Log.e("USB", e2.getMessage(), e2);
+                if (nextCount <= 0) {
+                    break;
+                }
+                submit(next, dest, position + nextSector * sectorSize, nextCount * sectorSize,
+                        timeout(USB_READ_TIMEOUT, nextCount * sectorSize));
+                Command command = current;
+                current = next;
+                next = command;
+                sector = nextSector;
+                count = nextCount;
             }
+        } catch (IOException e) {
+            Log.e("USB", e.getMessage(), e);
+            success = false;
+        } finally {
+            dest.position(position + sectorSize * numberOfSector);
         }
+        return success;
     }
 
-    synchronized byte[] read(int sectorOffset, int numberOfSector) {
-        int readResponseLength = sectorSize * numberOfSector;
-        if (readResponseLength > receiveBuffer.length) {
-            this.receiveBuffer = new byte[readResponseLength];
-        }
+    /**
+     * Read the given sectors with as many READ(10) commands as needed and
+     * hand them to {@code consumer} one command at a time. Two buffers are
+     * used: the next command is already submitted when the consumer is
+     * called, so that with an asynchronous transport its transfer overlaps
+     * the processing of the current one.
+     *
+     * @param sectorsPerCommand the maximum number of sectors read by a single
+     *                          command
+     * @throws IOException if a command failed or the consumer aborted
+     */
+    public synchronized void readStream(long sectorOffset, int numberOfSector, int sectorsPerCommand,
+                                        SectorConsumer consumer) throws IOException {
+        ByteBuffer[] buffers = new ByteBuffer[]{
+                streamBuffers.acquire(sectorsPerCommand * sectorSize),
+                streamBuffers.acquire(sectorsPerCommand * sectorSize)};
+        Command current = commands[0];
+        Command next = commands[1];
+        Command inFlight = null;
+        int currentBuffer = 0;
+        int sector = 0;
+        int count = Math.min(sectorsPerCommand, numberOfSector);
         try {
-            int bulkTransfer;
-            Log.d("USB", "read...");
-            ufiCmdReadBuffer.putInt(UFI_CMD_READ_LBA, sectorOffset);
-            ufiCmdReadBuffer.putShort(UFI_CMD_READ_TL, (short) numberOfSector);
-            prepareCBW(readResponseLength, ufiCmdReadBuffer.array(), USB_DIRECTION_TO_HOST);
-            try {
-                sendCBW();
-                bulkTransfer = usbDeviceConnection.bulkTransfer(inputEndpoint, receiveBuffer, readResponseLength, 3000);
-            } catch (Exception e) {
-                Log.e("USB", e.getMessage(), e);
-                bulkTransfer = -1;
+            prepareRead(current, sectorOffset, count);
+            submit(current, buffers[currentBuffer], 0, count * sectorSize,
+                    timeout(USB_READ_TIMEOUT, count * sectorSize));
+            inFlight = current;
+            while (true) {
+                int nextSector = sector + count;
+                int nextCount = Math.min(sectorsPerCommand, numberOfSector - nextSector);
+                if (nextCount > 0) {
+                    prepareRead(next, sectorOffset + nextSector, nextCount);
+                }
+                inFlight = null;
+                if (complete(current, buffers[currentBuffer], 0, count * sectorSize,
+                        timeout(USB_READ_TIMEOUT, count * sectorSize)) != count * sectorSize) {
+                    throw new UsbCommanException("USB Read Error", 100);
+                }
+                if (nextCount > 0) {
+                    submit(next, buffers[1 - currentBuffer], 0, nextCount * sectorSize,
+                            timeout(USB_READ_TIMEOUT, nextCount * sectorSize));
+                    inFlight = next;
+                }
+                ByteBuffer data = buffers[currentBuffer];
+                data.clear();
+                data.limit(count * sectorSize);
+                consumer.onSectors(sectorOffset + sector, data);
+                if (nextCount <= 0) {
+                    break;
+                }
+                Command command = current;
+                current = next;
+                next = command;
+                currentBuffer = 1 - currentBuffer;
+                sector = nextSector;
+                count = nextCount;
             }
-            receiveCSW();
-            if (bulkTransfer != readResponseLength) {
-                throw new UsbCommanException("USB Read Error", 100);
+        } finally {
+            if (inFlight != null) {
+                // Draining the command to keep the device in sync
+                try {
+                    complete(inFlight);
+                } catch (IOException e) {
+                    Log.w("USB", "Failed to drain CBW#" + inFlight.tag + ": " + e.getMessage());
+                }
             }
-        } catch (UsbCommanException e2) {
-            Log.e("USB", e2.getMessage(), e2);
+            streamBuffers.release(buffers[0]);
+            streamBuffers.release(buffers[1]);
         }
-        return receiveBuffer;
     }
 
-    int getSectorSize() {
+    private static int timeout(int timeout, int length) {
+        return timeout + length / USB_MIN_BYTES_PER_MS;
+    }
+
+    public int getSectorSize() {
         return sectorSize;
     }
 
-    int getSectors() {
+    /**
+     * @return the number of sectors of the whole device
+     */
+    public long getSectors() {
         return sectors;
     }
+
+    public synchronized long getReadCommands() {
+        return readCommands;
+    }
+
+    public synchronized long getWriteCommands() {
+        return writeCommands;
+    }
+
+    public synchronized long getBytesRead() {
+        return bytesRead;
+    }
+
+    public synchronized long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    /**
+     * @return the number of commands sent again after a transport error
+     */
+    public long getRetries() {
+        return metrics.getRetries();
+    }
+
+    /**
+     * @return the number of Bulk Only reset recoveries
+     */
+    public long getResets() {
+        return metrics.getResets();
+    }
+
+    /**
+     * @return the latencies and throughput of the commands sent to the device
+     */
+    public UsbMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * @return the number of READ(10) and WRITE(10) commands sent per MiB
+     * moved, the lower the better
+     */
+    public synchronized double getCommandsPerMegabyte() {
+        long bytes = bytesRead + bytesWritten;
+        return bytes == 0 ? 0.0 : (readCommands + writeCommands) * 1048576.0 / bytes;
+    }
+
+    /**
+     * @return the trace of the commands sent to the device, disabled by
+     * default
+     */
+    public IoTrace getTrace() {
+        return trace;
+    }
+
+    /**
+     * @return {@code true} if the CBW, CSW and sense data are hex dumped to
+     * the log, disabled by default
+     */
+    public boolean isVerbose() {
+        return verbose;
+    }
+
+    public void setVerbose(boolean verbose) {
+        this.verbose = verbose;
+    }
+
+    public BulkTransport getTransport() {
+        return transport;
+    }
+
+    synchronized void close() {
+        transport.close();
+    }
+
+    /**
+     * The buffers and transfers of a single Bulk Only command. Two of them are
+     * used alternately so that the next command can be prepared while the
+     * current one is in flight.
+     */
+    private class Command {
+        private final ByteBuffer cbwBuffer;
+        private final ByteBuffer cswBuffer;
+        private final BulkTransfer cbwTransfer;
+        private final BulkTransfer cswTransfer;
+        private BulkTransfer[] dataTransfers;
+        private int dataTransferCount;
+        private int tag;
+        private boolean in;
+        private int opcode;
+        private long lba;
+        private int length;
+        private long startNanos;
+
+        private Command() {
+            cbwBuffer = ByteBuffer.wrap(new byte[USB_CBW_LENGTH]);
+            cbwBuffer.order(ByteOrder.LITTLE_ENDIAN);
+            cbwBuffer.putInt(USB_CBW_OFF_SIGNATURE, USB_CBW_SIGNATURE);
+            cbwBuffer.put(USB_CBW_OFF_DIRECTION, USB_DIRECTION_TO_HOST);
+            cbwBuffer.put(USB_CBW_OFF_LUN, lun);
+            cswBuffer = ByteBuffer.wrap(new byte[USB_CSW_LENGTH]);
+            cswBuffer.order(ByteOrder.LITTLE_ENDIAN);
+            cbwTransfer = new BulkTransfer(false);
+            cswTransfer = new BulkTransfer(true);
+            dataTransfers = new BulkTransfer[0];
+        }
+
+        private void ensureDataTransfers(int count) {
+            if (dataTransfers.length < count) {
+                BulkTransfer[] transfers = new BulkTransfer[count];
+                for (int i = 0; i < count; i++) {
+                    transfers[i] = new BulkTransfer(in);
+                }
+                dataTransfers = transfers;
+            }
+            for (int i = 0; i < count; i++) {
+                if (dataTransfers[i].isIn() != in) {
+                    dataTransfers[i] = new BulkTransfer(in);
+                }
+            }
+        }
+    }
 }
@@ -0,0 +1,113 @@
+/**
+ * This file is part of OTGDiskBackup.
+ * <p/>
+ * Copyright 2005-2009 Red Hat, Inc.  All rights reserved.
+ * <p/>
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * <p/>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.pictulog.otgdb.device;
+
+import net.pictulog.otgdb.fat.ExtentResolver;
+import net.pictulog.otgdb.fat.FatVolume;
+
+import java.io.IOException;
+
+import de.waldheinz.fs.FileSystem;
+import de.waldheinz.fs.FsDirectory;
+
+/**
+ * This is the {@link FileSystem} handed to the rest of the application when
+ * an OTG disk is mounted. The file system keeps the FAT and the directories
+ * in memory until it is flushed, but never flushes the underlying
+ * {@link OtgBlockDevice}. This class makes sure that a flush of the file
+ * system also writes the sectors kept by its write-back cache.
+ *
+ * @author rostskadat
+ */
+public class OtgFileSystem implements FileSystem {
+
+    private final FileSystem fileSystem;
+    private final OtgBlockDevice blockDevice;
+
+    public OtgFileSystem(FileSystem fileSystem, OtgBlockDevice blockDevice) {
+        this.fileSystem = fileSystem;
+        this.blockDevice = blockDevice;
+    }
+
+    @Override
+    public FsDirectory getRoot() throws IOException {
+        return fileSystem.getRoot();
+    }
+
+    @Override
+    public boolean isReadOnly() {
+        return fileSystem.isReadOnly();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            fileSystem.close();
+        } finally {
+            blockDevice.close();
+        }
+    }
+
+    @Override
+    public boolean isClosed() {
+        return fileSystem.isClosed();
+    }
+
+    @Override
+    public long getTotalSpace() throws IOException {
+        return fileSystem.getTotalSpace();
+    }
+
+    @Override
+    public long getFreeSpace() throws IOException {
+        return fileSystem.getFreeSpace();
+    }
+
+    @Override
+    public long getUsableSpace() throws IOException {
+        return fileSystem.getUsableSpace();
+    }
+
+    @Override
+    public void flush() throws IOException {
+        fileSystem.flush();
+        if (!blockDevice.isReadOnly()) {
+            blockDevice.flush();
+        }
+    }
+
+    /**
+     * @return the resolver of the file system if it is a {@link FatVolume},
+     * so that its FAT pages are shared, or a new one
+     */
+    public ExtentResolver getExtentResolver() throws IOException {
+        if (fileSystem instanceof FatVolume) {
+            return ((FatVolume) fileSystem).getExtentResolver();
+        }
+        return new ExtentResolver(blockDevice);
+    }
+
+    public FileSystem getFileSystem() {
+        return fileSystem;
+    }
+
+    public OtgBlockDevice getBlockDevice() {
+        return blockDevice;
+    }
+}
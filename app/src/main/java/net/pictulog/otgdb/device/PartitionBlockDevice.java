@@ -0,0 +1,137 @@
+/**
+ * This file is part of OTGDiskBackup.
+ * <p/>
+ * Copyright 2005-2009 Red Hat, Inc.  All rights reserved.
+ * <p/>
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * <p/>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.pictulog.otgdb.device;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import de.waldheinz.fs.BlockDevice;
+
+/**
+ * This is a {@link BlockDevice} limited to a partition of another one, whose
+ * offsets are relative to the start of the partition. It lets
+ * {@code FatFileSystem.read} mount the image of a whole device, which starts
+ * with a partition table rather than with the FAT boot sector.
+ *
+ * @author rostskadat
+ */
+public class PartitionBlockDevice implements BlockDevice {
+
+    private final BlockDevice device;
+    private final long offset;
+    private final long size;
+
+    /**
+     * @param offset the offset of the partition in the device, in bytes
+     * @param size   the size of the partition, in bytes
+     */
+    public PartitionBlockDevice(BlockDevice device, long offset, long size) {
+        this.device = device;
+        this.offset = offset;
+        this.size = size;
+    }
+
+    /**
+     * Look for the FAT partition of the device the way
+     * {@link OtgBlockDevice} does: a device that starts with a FAT boot
+     * sector has no partition table and is returned as is, otherwise the
+     * first FAT partition of the table is returned.
+     *
+     * @return the FAT partition of the device, or the device itself
+     */
+    public static BlockDevice open(BlockDevice device) throws IOException {
+        int sectorSize = device.getSectorSize();
+        ByteBuffer bootSector = ByteBuffer.allocate(sectorSize);
+        device.read(0, bootSector);
+        bootSector.order(ByteOrder.LITTLE_ENDIAN);
+        byte[] executable = new byte[5];
+        bootSector.position(OtgBlockDevice.MBR_OFFSET_WATERMARK);
+        bootSector.get(executable);
+        if (new String(executable).matches(OtgBlockDevice.FLOPPY_WATERMARK)) {
+            return device;
+        }
+        for (int partitionNumber = 0; partitionNumber < 4; partitionNumber++) {
+            int entry = OtgBlockDevice.MBR_OFFSET_PARTITION_1 + partitionNumber * OtgBlockDevice.PE_RECORD_SIZE;
+            if (OtgBlockDevice.translateFatType(bootSector.get(entry + OtgBlockDevice.PE_OFFSET_TYPE)) == null) {
+                continue;
+            }
+            // The partition entries are unsigned 32 bits
+            long sectorOffset = bootSector.getInt(entry + OtgBlockDevice.PE_OFFSET_SECTOR_OFFSET) & 0xffffffffL;
+            long numberOfSectors = bootSector.getInt(entry + OtgBlockDevice.PE_OFFSET_NUMBER_OF_SECTORS) & 0xffffffffL;
+            if (numberOfSectors > 0 && (sectorOffset + numberOfSectors) * sectorSize <= device.getSize()) {
+                Log.i("PartitionBlockDevice", "Found partition #" + partitionNumber + ": " + numberOfSectors
+                        + " sector(s) @" + sectorOffset);
+                return new PartitionBlockDevice(device, sectorOffset * sectorSize, numberOfSectors * sectorSize);
+            }
+        }
+        Log.w("PartitionBlockDevice", "No FAT partition found, using the whole device");
+        return device;
+    }
+
+    @Override
+    public long getSize() throws IOException {
+        return size;
+    }
+
+    @Override
+    public void read(long devOffset, ByteBuffer dest) throws IOException {
+        checkBounds(devOffset, dest.remaining());
+        device.read(offset + devOffset, dest);
+    }
+
+    @Override
+    public void write(long devOffset, ByteBuffer src) throws IOException {
+        checkBounds(devOffset, src.remaining());
+        device.write(offset + devOffset, src);
+    }
+
+    @Override
+    public void flush() throws IOException {
+        device.flush();
+    }
+
+    @Override
+    public int getSectorSize() throws IOException {
+        return device.getSectorSize();
+    }
+
+    @Override
+    public void close() throws IOException {
+        device.close();
+    }
+
+    @Override
+    public boolean isClosed() {
+        return device.isClosed();
+    }
+
+    @Override
+    public boolean isReadOnly() {
+        return device.isReadOnly();
+    }
+
+    private void checkBounds(long devOffset, int length) {
+        if (devOffset < 0 || devOffset + length > size) {
+            throw new IllegalArgumentException(length + " bytes @" + devOffset + " beyond the end of the partition");
+        }
+    }
+}
@@ -0,0 +1,262 @@
+/**
+ * This file is part of OTGDiskBackup.
+ * <p/>
+ * Copyright 2005-2009 Red Hat, Inc.  All rights reserved.
+ * <p/>
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * <p/>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.pictulog.otgdb.device;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * This class implements a simple sequential read-ahead for the
+ * {@link OtgBlockDevice}. When the file system reads the sectors of a file one
+ * cluster at a time, it detects the sequential access and reads the next
+ * sectors in the background while the caller is busy with the current ones.
+ * <p/>
+ * The prefetch window grows each time a read is fully served from the
+ * prefetched data and shrinks each time it is not. Two segments are used so
+ * that the next window can be loaded while the current one is consumed.
+ *
+ * @author rostskadat
+ */
+public class ReadAhead {
+
+    private static final int MAX_WINDOW_SIZE = 0x40000;
+    private static final int MIN_CHUNKS_PER_WINDOW = 4;
+
+    private final OtgDeviceFacade facade;
+    private final int sectorSize;
+    private final int chunkSectors;
+    private final int minWindow;
+    private final int maxWindow;
+    private final long endSector;
+    private final Segment[] segments;
+    private final ExecutorService executor;
+    private int window;
+    private long nextSector;
+    private long hits;
+    private long misses;
+    private long prefetchedSectors;
+    private long usedSectors;
+
+    /**
+     * @param facade       the facade used to read the sectors
+     * @param sectorSize   the device sector size
+     * @param chunkSectors the number of sectors read per USB command
+     * @param endSector    the first sector past the end of the readable area
+     */
+    ReadAhead(OtgDeviceFacade facade, int sectorSize, int chunkSectors, long endSector) {
+        this.facade = facade;
+        this.sectorSize = sectorSize;
+        this.chunkSectors = chunkSectors;
+        this.minWindow = chunkSectors;
+        this.maxWindow = Math.max(chunkSectors * MIN_CHUNKS_PER_WINDOW, MAX_WINDOW_SIZE / sectorSize);
+        this.endSector = endSector;
+        this.window = minWindow;
+        this.nextSector = -1;
+        this.segments = new Segment[]{new Segment(), new Segment()};
+        this.executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "ReadAhead");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Copy into {@code dest} the leading sectors of the request that have
+     * already been prefetched, waiting for an in flight prefetch if needed.
+     * The position of {@code dest} is advanced accordingly.
+     *
+     * @return the number of sectors copied
+     */
+    synchronized int take(long firstSector, int sectorsToRead, ByteBuffer dest) {
+        int served = 0;
+        while (served < sectorsToRead) {
+            Segment segment = find(firstSector + served);
+            if (segment == null) {
+                break;
+            }
+            int from = (int) (firstSector + served - segment.start);
+            int count = Math.min(segment.count - from, sectorsToRead - served);
+            dest.put(segment.data.array(), from * sectorSize, count * sectorSize);
+            served += count;
+        }
+        usedSectors += served;
+        return served;
+    }
+
+    /**
+     * Record a completed read and, if the access is sequential, make sure the
+     * following sectors are being prefetched.
+     *
+     * @param served the number of sectors that {@link #take} served
+     */
+    synchronized void access(long firstSector, int sectorsRead, int served) {
+        long end = firstSector + sectorsRead;
+        boolean sequential = firstSector == nextSector || served > 0;
+        nextSector = end;
+        if (!sequential) {
+            window = Math.max(minWindow, window / 2);
+            return;
+        }
+        if (served == sectorsRead) {
+            hits++;
+            window = Math.min(maxWindow, window * 2);
+        } else {
+            misses++;
+            window = Math.max(minWindow, window / 2);
+        }
+        // Walking the segments in ascending order to find how far the
+        // prefetched data goes contiguously from the end of this read
+        Segment first = segments[0].start <= segments[1].start ? segments[0] : segments[1];
+        Segment second = first == segments[0] ? segments[1] : segments[0];
+        long prefetchedUpTo = end;
+        for (Segment segment : new Segment[]{first, second}) {
+            if (segment.count > 0 && segment.start <= prefetchedUpTo && segment.start + segment.count > prefetchedUpTo) {
+                prefetchedUpTo = segment.start + segment.count;
+            }
+        }
+        if (prefetchedUpTo - end >= window / 2) {
+            return;
+        }
+        for (Segment segment : segments) {
+            if (segment.count == 0 || segment.start + segment.count <= end || segment.start > prefetchedUpTo) {
+                prefetch(segment, prefetchedUpTo, window);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Drop every prefetched sector. Must be called before writing to the
+     * device.
+     */
+    synchronized void invalidate() {
+        for (Segment segment : segments) {
+            await(segment);
+            segment.count = 0;
+        }
+        nextSector = -1;
+    }
+
+    synchronized void close() {
+        invalidate();
+        executor.shutdownNow();
+    }
+
+    public int getWindowSize() {
+        return window * sectorSize;
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized double getHitRatio() {
+        long total = hits + misses;
+        return total == 0 ? 0.0 : (double) hits / total;
+    }
+
+    public synchronized long getPrefetchedSectors() {
+        return prefetchedSectors;
+    }
+
+    public synchronized long getUsedSectors() {
+        return usedSectors;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("ReadAhead[window=%d, hits=%d, misses=%d, prefetched=%d, used=%d]", window * sectorSize,
+                hits, misses, prefetchedSectors, usedSectors);
+    }
+
+    private Segment find(long sector) {
+        for (Segment segment : segments) {
+            if (segment.count > 0 && sector >= segment.start && sector < segment.start + segment.count) {
+                return await(segment) ? segment : null;
+            }
+        }
+        return null;
+    }
+
+    private boolean await(Segment segment) {
+        if (segment.loading == null) {
+            return segment.count > 0;
+        }
+        try {
+            segment.loading.get();
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            Log.w("USB", "Read ahead failed: " + e.getCause().getMessage());
+        } finally {
+            segment.loading = null;
+        }
+        segment.count = 0;
+        return false;
+    }
+
+    private void prefetch(final Segment segment, final long start, int window) {
+        await(segment);
+        final int count = (int) Math.min(window, endSector - start);
+        if (count <= 0) {
+            segment.count = 0;
+            return;
+        }
+        if (segment.data == null) {
+            segment.data = ByteBuffer.allocate(maxWindow * sectorSize);
+        }
+        segment.start = start;
+        segment.count = count;
+        prefetchedSectors += count;
+        segment.loading = executor.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                segment.data.clear();
+                if (!facade.read(start, count, chunkSectors, segment.data)) {
+                    // Let the caller read the sectors and get the error
+                    throw new IOException("Failed to prefetch " + count + " sector(s) @" + start);
+                }
+                return null;
+            }
+        });
+    }
+
+    private static class Segment {
+        private long start;
+        private int count;
+        private ByteBuffer data;
+        private Future<Void> loading;
+    }
+}
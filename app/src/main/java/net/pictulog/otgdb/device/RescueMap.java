@@ -0,0 +1,178 @@
+/**
+ * This file is part of OTGDiskBackup.
+ * <p/>
+ * Copyright 2005-2009 Red Hat, Inc.  All rights reserved.
+ * <p/>
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * <p/>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.pictulog.otgdb.device;
+
+import org.apache.commons.io.IOUtils;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * This class records the state of each sector of a region being rescued by
+ * a {@link RescueReader}, as runs of sectors sharing the same status. The
+ * statuses are the ones of GNU ddrescue, and the map can be saved in the
+ * format of its mapfile, positions and sizes being in bytes from the first
+ * sector of the region.
+ *
+ * @author rostskadat
+ */
+public class RescueMap {
+
+    public static final char NON_TRIED = '?';
+    public static final char NON_TRIMMED = '*';
+    public static final char NON_SCRAPED = '/';
+    public static final char BAD_SECTOR = '-';
+    public static final char FINISHED = '+';
+
+    private final long firstSector;
+    private final long sectors;
+    private final int sectorSize;
+    // The runs, by first sector, covering the whole region
+    private final TreeMap<Long, Run> runs = new TreeMap<Long, Run>();
+
+    /**
+     * Create a map where no sector of the region has been tried yet.
+     */
+    RescueMap(long firstSector, long sectors, int sectorSize) {
+        this.firstSector = firstSector;
+        this.sectors = sectors;
+        this.sectorSize = sectorSize;
+        runs.put(firstSector, new Run(sectors, NON_TRIED));
+    }
+
+    /**
+     * Change the status of the given sectors.
+     */
+    synchronized void set(long start, long count, char status) {
+        long end = start + count;
+        split(start);
+        split(end);
+        runs.subMap(start, end).clear();
+        runs.put(start, new Run(count, status));
+        // Merging with the runs around that have the same status
+        Map.Entry<Long, Run> next = runs.higherEntry(start);
+        if (next != null && next.getValue().status == status) {
+            runs.get(start).count += next.getValue().count;
+            runs.remove(next.getKey());
+        }
+        Map.Entry<Long, Run> previous = runs.lowerEntry(start);
+        if (previous != null && previous.getValue().status == status) {
+            previous.getValue().count += runs.remove(start).count;
+        }
+    }
+
+    private void split(long sector) {
+        Map.Entry<Long, Run> entry = runs.floorEntry(sector);
+        if (entry == null || entry.getKey() == sector) {
+            return;
+        }
+        Run run = entry.getValue();
+        long end = entry.getKey() + run.count;
+        if (end > sector) {
+            run.count = sector - entry.getKey();
+            runs.put(sector, new Run(end - sector, run.status));
+        }
+    }
+
+    /**
+     * @return the runs with the given status, as {first sector, count} pairs
+     */
+    synchronized List<long[]> find(char status) {
+        List<long[]> found = new ArrayList<long[]>();
+        for (Map.Entry<Long, Run> entry : runs.entrySet()) {
+            if (entry.getValue().status == status) {
+                found.add(new long[]{entry.getKey(), entry.getValue().count});
+            }
+        }
+        return found;
+    }
+
+    /**
+     * @return the number of sectors with the given status
+     */
+    public synchronized long count(char status) {
+        long count = 0;
+        for (Run run : runs.values()) {
+            if (run.status == status) {
+                count += run.count;
+            }
+        }
+        return count;
+    }
+
+    public long getFinishedSectors() {
+        return count(FINISHED);
+    }
+
+    public long getBadSectors() {
+        return count(BAD_SECTOR);
+    }
+
+    public long getSectors() {
+        return sectors;
+    }
+
+    /**
+     * Save the map in the format of a ddrescue mapfile.
+     */
+    public synchronized void save(File file) throws IOException {
+        PrintWriter writer = new PrintWriter(new OutputStreamWriter(new FileOutputStream(file), "US-ASCII"));
+        try {
+            writer.println("# Mapfile. Created by OTGDiskBackup");
+            writer.println("# current_pos  current_status  current_pass");
+            writer.println("0x00000000     " + FINISHED + "               1");
+            writer.println("#      pos        size  status");
+            for (Map.Entry<Long, Run> entry : runs.entrySet()) {
+                writer.println(String.format(Locale.US, "0x%08X  0x%08X  %c",
+                        (entry.getKey() - firstSector) * sectorSize, entry.getValue().count * sectorSize,
+                        entry.getValue().status));
+            }
+            if (writer.checkError()) {
+                throw new IOException("Failed to write " + file);
+            }
+        } finally {
+            IOUtils.closeQuietly(writer);
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("RescueMap[%d sectors: %d finished, %d non-tried, %d non-trimmed, %d non-scraped, %d bad]",
+                sectors, count(FINISHED), count(NON_TRIED), count(NON_TRIMMED), count(NON_SCRAPED),
+                count(BAD_SECTOR));
+    }
+
+    private static class Run {
+        private long count;
+        private final char status;
+
+        private Run(long count, char status) {
+            this.count = count;
+            this.status = status;
+        }
+    }
+}
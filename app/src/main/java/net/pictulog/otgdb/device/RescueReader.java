@@ -0,0 +1,155 @@
+/**
+ * This file is part of OTGDiskBackup.
+ * <p/>
+ * Copyright 2005-2009 Red Hat, Inc.  All rights reserved.
+ * <p/>
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * <p/>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.pictulog.otgdb.device;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+
+/**
+ * This class reads as much as possible of a failing device, in the manner of
+ * GNU ddrescue. The sectors are handed to the consumer as soon as they are
+ * read, in no particular order, and each one at most once. The passes are:
+ * <ol>
+ * <li>copy: the region is read with the full transfer size. A failed
+ * transfer is left for the trimming pass and the following transfers are
+ * skipped, more and more of them while the errors go on, so that the good
+ * parts of the device are rescued first</li>
+ * <li>copy again, without skipping, what the first pass skipped</li>
+ * <li>trim: the failed transfers are read again with an eighth of the
+ * transfer size</li>
+ * <li>scrape: what still fails is read sector by sector, asking the device
+ * for the sense data of every failure. The sectors that fail are bad</li>
+ * <li>retry: the bad sectors are read again, {@code retries} times</li>
+ * </ol>
+ * The state of every sector is kept in a {@link RescueMap}.
+ *
+ * @author rostskadat
+ */
+public class RescueReader {
+
+    // The most transfers skipped after consecutive errors in the copy pass
+    private static final int MAX_SKIPPED_TRANSFERS = 64;
+    private static final int TRIM_DIVISOR = 8;
+
+    private final OtgDeviceFacade facade;
+    private final int sectorSize;
+    private final int transferSectors;
+    private final int retries;
+    private final ByteBuffer buffer;
+    private long failedReads;
+
+    RescueReader(OtgDeviceFacade facade, int sectorSize, int transferSectors, int retries) {
+        this.facade = facade;
+        this.sectorSize = sectorSize;
+        this.transferSectors = transferSectors;
+        this.retries = retries;
+        this.buffer = ByteBuffer.allocate(transferSectors * sectorSize);
+    }
+
+    /**
+     * Rescue the given sectors of the device.
+     *
+     * @param firstSector the first sector of the region, from the beginning
+     *                    of the device
+     * @param sectors     the number of sectors of the region
+     * @param consumer    receives the sectors read
+     * @return the state of each sector once all the passes are done
+     * @throws IOException if the consumer failed or the thread was
+     *                     interrupted
+     */
+    public RescueMap rescue(long firstSector, long sectors, SectorConsumer consumer) throws IOException {
+        RescueMap map = new RescueMap(firstSector, sectors, sectorSize);
+        pass("copy", map, RescueMap.NON_TRIED, transferSectors, RescueMap.NON_TRIMMED, true, consumer);
+        pass("copy", map, RescueMap.NON_TRIED, transferSectors, RescueMap.NON_TRIMMED, false, consumer);
+        pass("trim", map, RescueMap.NON_TRIMMED, Math.max(1, transferSectors / TRIM_DIVISOR),
+                RescueMap.NON_SCRAPED, false, consumer);
+        pass("scrape", map, RescueMap.NON_SCRAPED, 1, RescueMap.BAD_SECTOR, false, consumer);
+        for (int retry = 0; retry < retries && map.getBadSectors() > 0; retry++) {
+            pass("retry", map, RescueMap.BAD_SECTOR, 1, RescueMap.BAD_SECTOR, false, consumer);
+        }
+        return map;
+    }
+
+    /**
+     * Read the runs of sectors with the given status.
+     *
+     * @param sectorsPerRead the number of sectors read at once
+     * @param failedStatus   the status of the sectors whose read failed
+     * @param skip           whether to skip ahead after a failed read
+     */
+    private void pass(String name, RescueMap map, char status, int sectorsPerRead, char failedStatus, boolean skip,
+                      SectorConsumer consumer) throws IOException {
+        long failed = failedReads;
+        for (long[] run : map.find(status)) {
+            long sector = run[0];
+            long end = run[0] + run[1];
+            int skippedTransfers = 0;
+            while (sector < end) {
+                if (Thread.currentThread().isInterrupted()) {
+                    throw new InterruptedIOException("Rescue interrupted");
+                }
+                int count = (int) Math.min(sectorsPerRead, end - sector);
+                buffer.clear();
+                if (facade.read(sector, count, count, buffer)) {
+                    buffer.flip();
+                    consumer.onSectors(sector, buffer);
+                    map.set(sector, count, RescueMap.FINISHED);
+                    sector += count;
+                    skippedTransfers = 0;
+                    continue;
+                }
+                failedReads++;
+                SenseData sense = requestSense();
+                Log.w("USB", "Failed to read " + count + " sector(s) @" + sector + " in " + name + " pass"
+                        + (sense != null ? ": " + sense : ""));
+                map.set(sector, count, failedStatus);
+                sector += count;
+                if (skip) {
+                    // The run after the error is left for the next copy pass
+                    skippedTransfers = Math.min(MAX_SKIPPED_TRANSFERS, Math.max(1, skippedTransfers * 2));
+                    sector += Math.min((long) skippedTransfers * sectorsPerRead, end - sector);
+                }
+            }
+        }
+        Log.i("USB", "After " + name + " pass (" + (failedReads - failed) + " failed reads): " + map);
+    }
+
+    /**
+     * @return the sense data of the last failure, or {@code null} if the
+     * device did not answer
+     */
+    private SenseData requestSense() {
+        try {
+            return facade.requestSense();
+        } catch (IOException e) {
+            Log.w("USB", "REQUEST SENSE failed: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * @return the number of reads that failed so far
+     */
+    public long getFailedReads() {
+        return failedReads;
+    }
+}
@@ -0,0 +1,203 @@
+/**
+ * This file is part of OTGDiskBackup.
+ * <p/>
+ * Copyright 2005-2009 Red Hat, Inc.  All rights reserved.
+ * <p/>
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * <p/>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.pictulog.otgdb.device;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * This is a bounded, sector indexed, LRU cache. It is used by the
+ * {@link OtgBlockDevice} to avoid going back to the USB device each time the
+ * file system asks for the same FAT or directory sector.
+ * <p/>
+ * The sectors are indexed by their absolute position on the device. The byte
+ * arrays of the evicted sectors are recycled for the next insertion.
+ *
+ * @author rostskadat
+ */
+public class SectorCache {
+
+    public static final int DEFAULT_CAPACITY = 1024;
+
+    private final int sectorSize;
+    private final int capacity;
+    private final LinkedHashMap<Long, byte[]> sectors;
+    private byte[] recycled;
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    public SectorCache(int sectorSize, int capacity) {
+        if (sectorSize <= 0) {
+            throw new IllegalArgumentException("sectorSize must be positive");
+        }
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive");
+        }
+        this.sectorSize = sectorSize;
+        this.capacity = capacity;
+        this.sectors = new LinkedHashMap<Long, byte[]>(capacity, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, byte[]> eldest) {
+                if (size() > SectorCache.this.capacity) {
+                    recycled = eldest.getValue();
+                    evictions++;
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Copy the content of the given sector into {@code dest} if it is cached.
+     * The position of {@code dest} is advanced by one sector on a hit.
+     *
+     * @param sector the absolute sector number
+     * @param dest   the destination buffer
+     * @return {@code true} if the sector was found in the cache
+     */
+    public synchronized boolean get(long sector, ByteBuffer dest) {
+        byte[] data = sectors.get(sector);
+        if (data == null) {
+            misses++;
+            return false;
+        }
+        hits++;
+        dest.put(data);
+        return true;
+    }
+
+    /**
+     * @param sector the absolute sector number
+     * @return {@code true} if the sector is cached. The LRU order and the
+     * counters are left untouched.
+     */
+    public synchronized boolean contains(long sector) {
+        return sectors.containsKey(sector);
+    }
+
+    /**
+     * Store (or replace) the content of the given sector.
+     *
+     * @param sector the absolute sector number
+     * @param src    the source buffer, its position is left untouched
+     * @param index  the index of the sector in {@code src}
+     */
+    public synchronized void put(long sector, ByteBuffer src, int index) {
+        byte[] data = sectors.get(sector);
+        if (data == null) {
+            data = recycled != null ? recycled : new byte[sectorSize];
+            recycled = null;
+            sectors.put(sector, data);
+        }
+        copy(src, index, data);
+    }
+
+    /**
+     * Update the sectors that are already cached with the content being
+     * written to the device. Sectors that are not cached are left alone.
+     *
+     * @param firstSector the absolute number of the first sector written
+     * @param src         the data being written, its position is left untouched
+     * @param index       the index of the first sector in {@code src}
+     * @param count       the number of sectors written
+     */
+    public synchronized void update(long firstSector, ByteBuffer src, int index, int count) {
+        for (int i = 0; i < count; i++) {
+            byte[] data = sectors.get(firstSector + i);
+            if (data != null) {
+                copy(src, index + i * sectorSize, data);
+            }
+        }
+    }
+
+    private static void copy(ByteBuffer src, int index, byte[] data) {
+        if (src.hasArray()) {
+            System.arraycopy(src.array(), src.arrayOffset() + index, data, 0, data.length);
+        } else {
+            int position = src.position();
+            src.position(index);
+            src.get(data);
+            src.position(position);
+        }
+    }
+
+    /**
+     * Remove the given range of sectors from the cache.
+     *
+     * @param firstSector the absolute number of the first sector
+     * @param count       the number of sectors to remove
+     */
+    public synchronized void invalidate(long firstSector, int count) {
+        if (count > sectors.size()) {
+            Iterator<Long> i = sectors.keySet().iterator();
+            while (i.hasNext()) {
+                long sector = i.next();
+                if (sector >= firstSector && sector < firstSector + count) {
+                    i.remove();
+                }
+            }
+        } else {
+            for (int i = 0; i < count; i++) {
+                sectors.remove(firstSector + i);
+            }
+        }
+    }
+
+    public synchronized void clear() {
+        sectors.clear();
+        recycled = null;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public synchronized int size() {
+        return sectors.size();
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    public synchronized double getHitRatio() {
+        long total = hits + misses;
+        return total == 0 ? 0.0 : (double) hits / total;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("SectorCache[size=%d/%d, hits=%d, misses=%d, evictions=%d]", sectors.size(), capacity,
+                hits, misses, evictions);
+    }
+}
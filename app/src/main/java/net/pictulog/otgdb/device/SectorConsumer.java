@@ -0,0 +1,39 @@
+/**
+ * This file is part of OTGDiskBackup.
+ * <p/>
+ * Copyright 2005-2009 Red Hat, Inc.  All rights reserved.
+ * <p/>
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * <p/>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.pictulog.otgdb.device;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * This callback receives the sectors read by
+ * {@link OtgDeviceFacade#readStream(long, int, int, SectorConsumer)}.
+ *
+ * @author rostskadat
+ */
+public interface SectorConsumer {
+
+    /**
+     * @param firstSector the number of the first sector in {@code data}
+     * @param data        the sectors, between position and limit. The buffer
+     *                    is reused once this method returns.
+     * @throws IOException to abort the read
+     */
+    void onSectors(long firstSector, ByteBuffer data) throws IOException;
+}
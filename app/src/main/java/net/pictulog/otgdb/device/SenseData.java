@@ -0,0 +1,91 @@
+/**
+ * This file is part of OTGDiskBackup.
+ * <p/>
+ * Copyright 2005-2009 Red Hat, Inc.  All rights reserved.
+ * <p/>
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * <p/>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.pictulog.otgdb.device;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The fixed format sense data returned by REQUEST SENSE: why the last
+ * command failed.
+ *
+ * @author rostskadat
+ */
+public class SenseData {
+
+    public static final int KEY_NO_SENSE = 0x00;
+    public static final int KEY_NOT_READY = 0x02;
+    public static final int KEY_MEDIUM_ERROR = 0x03;
+    public static final int KEY_HARDWARE_ERROR = 0x04;
+    public static final int KEY_ILLEGAL_REQUEST = 0x05;
+    public static final int KEY_UNIT_ATTENTION = 0x06;
+    public static final int KEY_ABORTED_COMMAND = 0x0b;
+
+    private static final int OFF_RESPONSE_CODE = 0x00;
+    private static final int OFF_SENSE_KEY = 0x02;
+    private static final int OFF_INFORMATION = 0x03;
+    private static final int OFF_ASC = 0x0c;
+    private static final int OFF_ASCQ = 0x0d;
+
+    private final int senseKey;
+    private final int additionalSenseCode;
+    private final int qualifier;
+    private final long information;
+
+    SenseData(ByteBuffer response) {
+        boolean valid = (response.get(OFF_RESPONSE_CODE) & 0x80) != 0;
+        senseKey = response.get(OFF_SENSE_KEY) & 0x0f;
+        additionalSenseCode = response.get(OFF_ASC) & 0xff;
+        qualifier = response.get(OFF_ASCQ) & 0xff;
+        information = valid ? response.getInt(OFF_INFORMATION) & 0xffffffffL : -1;
+    }
+
+    public int getSenseKey() {
+        return senseKey;
+    }
+
+    public int getAdditionalSenseCode() {
+        return additionalSenseCode;
+    }
+
+    public int getQualifier() {
+        return qualifier;
+    }
+
+    /**
+     * @return the first failing sector reported by the device, or -1 if it
+     * did not report one
+     */
+    public long getInformation() {
+        return information;
+    }
+
+    /**
+     * @return {@code true} if the medium itself is at fault, so that reading
+     * the same sectors again is not likely to help
+     */
+    public boolean isMediumError() {
+        return senseKey == KEY_MEDIUM_ERROR || senseKey == KEY_HARDWARE_ERROR;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("SenseData[key=0x%X, asc=0x%02X, ascq=0x%02X, info=%d]", senseKey,
+                additionalSenseCode, qualifier, information);
+    }
+}
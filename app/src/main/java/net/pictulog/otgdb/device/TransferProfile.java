@@ -0,0 +1,62 @@
+/**
+ * This file is part of OTGDiskBackup.
+ * <p/>
+ * Copyright 2005-2009 Red Hat, Inc.  All rights reserved.
+ * <p/>
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * <p/>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.pictulog.otgdb.device;
+
+/**
+ * This class holds the tuning parameters found for a given OTG device.
+ *
+ * @author rostskadat
+ */
+public class TransferProfile {
+
+    private final int transferSize;
+    private final long bytesPerSecond;
+
+    public TransferProfile(int transferSize, long bytesPerSecond) {
+        this.transferSize = transferSize;
+        this.bytesPerSecond = bytesPerSecond;
+    }
+
+    /**
+     * @return the number of bytes to move with each READ(10) / WRITE(10)
+     */
+    public int getTransferSize() {
+        return transferSize;
+    }
+
+    /**
+     * @return the sequential read throughput measured with that transfer size
+     */
+    public long getBytesPerSecond() {
+        return bytesPerSecond;
+    }
+
+    /**
+     * @return false if the probe fell back to the default transfer size
+     * because no transfer size could be measured reliably
+     */
+    public boolean isMeasured() {
+        return bytesPerSecond > 0;
+    }
+
+    @Override
+    public String toString() {
+        return "TransferProfile[transferSize=" + transferSize + ", bytesPerSecond=" + bytesPerSecond + "]";
+    }
+}
@@ -0,0 +1,109 @@
+/**
+ * This file is part of OTGDiskBackup.
+ * <p/>
+ * Copyright 2005-2009 Red Hat, Inc.  All rights reserved.
+ * <p/>
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * <p/>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.pictulog.otgdb.device;
+
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+
+/**
+ * This class finds the best transfer size for an OTG device. It times
+ * sequential reads of the same region with increasingly large READ(10)
+ * commands. A transfer size is only considered if every read succeeded and
+ * returned the same data as the default transfer size. The probing stops at
+ * the first unstable transfer size.
+ *
+ * @author rostskadat
+ */
+class TransferTuner {
+
+    static final int MAX_TRANSFER_SIZE = 0x40000;
+    private static final int PROBE_LENGTH = 0x200000;
+    // A larger transfer size must be at least that much faster to be chosen
+    private static final double MIN_GAIN = 1.05;
+
+    private final OtgDeviceFacade facade;
+
+    TransferTuner(OtgDeviceFacade facade) {
+        this.facade = facade;
+    }
+
+    /**
+     * @param firstSector the first sector of the probed region
+     * @param sectors     the number of sectors available from there
+     * @return the best profile found
+     */
+    TransferProfile probe(long firstSector, long sectors) {
+        int sectorSize = facade.getSectorSize();
+        int probeLength = (int) Math.min(PROBE_LENGTH, sectors * sectorSize);
+        probeLength -= probeLength % MAX_TRANSFER_SIZE;
+        if (probeLength == 0) {
+            Log.w("USB", "Device too small to be probed");
+            return new TransferProfile(OtgBlockDevice.DEFAULT_RW_SIZE, 0);
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(MAX_TRANSFER_SIZE);
+        // The first pass warms the device up and gives the reference checksum
+        CRC32 checksum = new CRC32();
+        if (time(firstSector, probeLength, OtgBlockDevice.DEFAULT_RW_SIZE, buffer, checksum) < 0) {
+            Log.w("USB", "Device unstable with the default transfer size");
+            return new TransferProfile(OtgBlockDevice.DEFAULT_RW_SIZE, 0);
+        }
+        long expected = checksum.getValue();
+        TransferProfile best = null;
+        for (int transferSize = OtgBlockDevice.DEFAULT_RW_SIZE; transferSize <= MAX_TRANSFER_SIZE; transferSize *= 2) {
+            checksum.reset();
+            long nanos = time(firstSector, probeLength, transferSize, buffer, checksum);
+            if (nanos < 0 || checksum.getValue() != expected) {
+                Log.w("USB", "Transfer size " + transferSize + " is not stable");
+                break;
+            }
+            long bytesPerSecond = nanos == 0 ? Long.MAX_VALUE : probeLength * 1000000000L / nanos;
+            Log.i("USB", "Transfer size " + transferSize + ": " + bytesPerSecond + " B/s");
+            if (best == null || bytesPerSecond > best.getBytesPerSecond() * MIN_GAIN) {
+                best = new TransferProfile(transferSize, bytesPerSecond);
+            }
+        }
+        if (best == null) {
+            best = new TransferProfile(OtgBlockDevice.DEFAULT_RW_SIZE, 0);
+        }
+        Log.i("USB", "Best " + best);
+        return best;
+    }
+
+    /**
+     * @return the number of nanoseconds it took to read the region, or -1 if
+     * one of the reads failed
+     */
+    private long time(long firstSector, int length, int transferSize, ByteBuffer buffer, CRC32 checksum) {
+        int sectorSize = facade.getSectorSize();
+        int sectorsPerTransfer = transferSize / sectorSize;
+        long start = System.nanoTime();
+        for (int sector = 0; sector < length / sectorSize; sector += sectorsPerTransfer) {
+            buffer.clear();
+            if (!facade.read(firstSector + sector, sectorsPerTransfer, buffer)) {
+                return -1;
+            }
+            if (checksum != null) {
+                checksum.update(buffer.array(), 0, transferSize);
+            }
+        }
+        return System.nanoTime() - start;
+    }
+}
@@ -0,0 +1,153 @@
+/**
+ * This file is part of OTGDiskBackup.
+ * <p/>
+ * Copyright 2005-2009 Red Hat, Inc.  All rights reserved.
+ * <p/>
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * <p/>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.pictulog.otgdb.device;
+
+import android.hardware.usb.UsbConstants;
+import android.hardware.usb.UsbDeviceConnection;
+import android.hardware.usb.UsbEndpoint;
+import android.hardware.usb.UsbInterface;
+import android.os.Build;
+
+import java.nio.ByteBuffer;
+
+/**
+ * This is the synchronous {@link BulkTransport}: each transfer is executed
+ * with a blocking {@code bulkTransfer()} as soon as it is submitted.
+ *
+ * @author rostskadat
+ */
+public class UsbBulkTransport implements BulkTransport {
+
+    // Before Android P a single bulkTransfer() can't move more than 16 KiB
+    static final int USB_MAX_BULK_TRANSFER_LENGTH = 0x4000;
+
+    // http://www.usb.org/developers/docs/devclass_docs/usbmassbulk_10.pdf (p7)
+    private static final int USB_RECIPIENT_INTERFACE = 0x01;
+    private static final int USB_RECIPIENT_ENDPOINT = 0x02;
+    private static final int USB_REQUEST_MASS_STORAGE_RESET = 0xff;
+    private static final int USB_REQUEST_CLEAR_FEATURE = 0x01;
+    private static final int USB_FEATURE_ENDPOINT_HALT = 0x00;
+    private static final int USB_CONTROL_TIMEOUT = 1000;
+
+    private final UsbDeviceConnection usbDeviceConnection;
+    private final UsbInterface usbInterface;
+    private final byte[] transferBuffer;
+    private UsbEndpoint inputEndpoint;
+    private UsbEndpoint outputEndpoint;
+
+    public UsbBulkTransport(UsbDeviceConnection usbDeviceConnection, UsbInterface usbInterface) {
+        this.usbDeviceConnection = usbDeviceConnection;
+        this.usbInterface = usbInterface;
+        this.transferBuffer = new byte[USB_MAX_BULK_TRANSFER_LENGTH];
+        initEnpoints(usbInterface);
+    }
+
+    private void initEnpoints(UsbInterface usbInterface) {
+        UsbEndpoint endpoint = usbInterface.getEndpoint(0);
+        UsbEndpoint endpoint2 = usbInterface.getEndpoint(1);
+        if (endpoint.getDirection() == UsbConstants.USB_DIR_IN) {
+            UsbEndpoint usbEndpoint = endpoint2;
+            endpoint2 = endpoint;
+            endpoint = usbEndpoint;
+        }
+        inputEndpoint = endpoint2;
+        outputEndpoint = endpoint;
+    }
+
+    @Override
+    public void submit(BulkTransfer transfer) {
+        transfer.complete(bulkTransfer(transfer));
+    }
+
+    @Override
+    public int await(BulkTransfer transfer) {
+        return transfer.getTransferred();
+    }
+
+    @Override
+    public int getMaxTransferLength() {
+        return USB_MAX_BULK_TRANSFER_LENGTH;
+    }
+
+    @Override
+    public boolean isAsynchronous() {
+        return false;
+    }
+
+    @Override
+    public boolean reset() {
+        return reset(usbDeviceConnection, usbInterface);
+    }
+
+    @Override
+    public boolean clearHalt(boolean in) {
+        return clearHalt(usbDeviceConnection, in ? inputEndpoint : outputEndpoint);
+    }
+
+    @Override
+    public void close() {
+        // NA: the connection belongs to the caller
+    }
+
+    static boolean reset(UsbDeviceConnection usbDeviceConnection, UsbInterface usbInterface) {
+        return usbDeviceConnection.controlTransfer(
+                UsbConstants.USB_DIR_OUT | UsbConstants.USB_TYPE_CLASS | USB_RECIPIENT_INTERFACE,
+                USB_REQUEST_MASS_STORAGE_RESET, 0, usbInterface.getId(), null, 0, USB_CONTROL_TIMEOUT) >= 0;
+    }
+
+    static boolean clearHalt(UsbDeviceConnection usbDeviceConnection, UsbEndpoint endpoint) {
+        return usbDeviceConnection.controlTransfer(
+                UsbConstants.USB_DIR_OUT | UsbConstants.USB_TYPE_STANDARD | USB_RECIPIENT_ENDPOINT,
+                USB_REQUEST_CLEAR_FEATURE, USB_FEATURE_ENDPOINT_HALT, endpoint.getAddress(), null, 0,
+                USB_CONTROL_TIMEOUT) >= 0;
+    }
+
+    /**
+     * When the buffer is backed by an array and the platform allows it the
+     * transfer lands directly in that array, otherwise it goes through the
+     * transfer buffer.
+     */
+    private int bulkTransfer(BulkTransfer transfer) {
+        ByteBuffer buffer = transfer.getBuffer();
+        UsbEndpoint endpoint = transfer.isIn() ? inputEndpoint : outputEndpoint;
+        int length = transfer.getLength();
+        if (buffer.hasArray() && (buffer.arrayOffset() + transfer.getOffset() == 0
+                || Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2)) {
+            int offset = buffer.arrayOffset() + transfer.getOffset();
+            if (offset == 0) {
+                return usbDeviceConnection.bulkTransfer(endpoint, buffer.array(), length, transfer.getTimeout());
+            }
+            return usbDeviceConnection.bulkTransfer(endpoint, buffer.array(), offset, length, transfer.getTimeout());
+        }
+        int position = buffer.position();
+        buffer.position(transfer.getOffset());
+        int transferred;
+        if (transfer.isIn()) {
+            transferred = usbDeviceConnection.bulkTransfer(endpoint, transferBuffer, length, transfer.getTimeout());
+            if (transferred > 0) {
+                buffer.put(transferBuffer, 0, transferred);
+            }
+        } else {
+            buffer.get(transferBuffer, 0, length);
+            transferred = usbDeviceConnection.bulkTransfer(endpoint, transferBuffer, length, transfer.getTimeout());
+        }
+        buffer.position(position);
+        return transferred;
+    }
+}
@@ -0,0 +1,222 @@
+/**
+ * This file is part of OTGDiskBackup.
+ * <p/>
+ * Copyright 2005-2009 Red Hat, Inc.  All rights reserved.
+ * <p/>
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * <p/>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.pictulog.otgdb.device;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class collects the performance of the commands sent to a device: the
+ * latency of each phase of the commands in {@link LatencyHistogram}s, by kind
+ * of command, and the bytes moved. It is always on, and can be read from any
+ * thread while the commands go on.
+ * <p/>
+ * The phases are measured from the moment the command is submitted to the
+ * moment each of its transfers completes. With an asynchronous transport the
+ * completion is only noticed when the transfer is awaited, so the data phase
+ * also includes the time spent by the caller between two commands.
+ *
+ * @author rostskadat
+ */
+public class UsbMetrics {
+
+    public enum Kind {
+        READ, WRITE, OTHER
+    }
+
+    public enum Phase {
+        /**
+         * Sending the Command Block Wrapper
+         */
+        CBW,
+        /**
+         * Moving the data
+         */
+        DATA,
+        /**
+         * Receiving the Command Status Wrapper
+         */
+        CSW,
+        /**
+         * The whole command
+         */
+        COMMAND
+    }
+
+    private final LatencyHistogram[][] histograms;
+    private final AtomicLong[] commands;
+    private final AtomicLong[] errors;
+    private final AtomicLong[] bytes;
+    private final AtomicLong retries;
+    private final AtomicLong resets;
+    private volatile long startNanos;
+
+    public UsbMetrics() {
+        Kind[] kinds = Kind.values();
+        Phase[] phases = Phase.values();
+        this.histograms = new LatencyHistogram[kinds.length][phases.length];
+        this.commands = new AtomicLong[kinds.length];
+        this.errors = new AtomicLong[kinds.length];
+        this.bytes = new AtomicLong[kinds.length];
+        for (int i = 0; i < kinds.length; i++) {
+            for (int j = 0; j < phases.length; j++) {
+                histograms[i][j] = new LatencyHistogram();
+            }
+            commands[i] = new AtomicLong();
+            errors[i] = new AtomicLong();
+            bytes[i] = new AtomicLong();
+        }
+        this.retries = new AtomicLong();
+        this.resets = new AtomicLong();
+        this.startNanos = System.nanoTime();
+    }
+
+    static Kind kindOf(int opcode) {
+        switch (opcode) {
+            case 0x28: // READ(10)
+            case 0x88: // READ(16)
+                return Kind.READ;
+            case 0x2a: // WRITE(10)
+            case 0x8a: // WRITE(16)
+                return Kind.WRITE;
+            default:
+                return Kind.OTHER;
+        }
+    }
+
+    /**
+     * Record a successful command from the timestamps of its phases.
+     *
+     * @param transferred the number of bytes moved during the data phase
+     */
+    void record(int opcode, long startNanos, long cbwNanos, long dataNanos, long cswNanos, int transferred) {
+        int kind = kindOf(opcode).ordinal();
+        LatencyHistogram[] phases = histograms[kind];
+        phases[Phase.CBW.ordinal()].record(cbwNanos - startNanos);
+        phases[Phase.DATA.ordinal()].record(dataNanos - cbwNanos);
+        phases[Phase.CSW.ordinal()].record(cswNanos - dataNanos);
+        phases[Phase.COMMAND.ordinal()].record(cswNanos - startNanos);
+        commands[kind].incrementAndGet();
+        bytes[kind].addAndGet(transferred);
+    }
+
+    void recordError(int opcode) {
+        errors[kindOf(opcode).ordinal()].incrementAndGet();
+    }
+
+    void recordRetry() {
+        retries.incrementAndGet();
+    }
+
+    void recordReset() {
+        resets.incrementAndGet();
+    }
+
+    public LatencyHistogram getHistogram(Kind kind, Phase phase) {
+        return histograms[kind.ordinal()][phase.ordinal()];
+    }
+
+    /**
+     * @return the number of commands of that kind that succeeded
+     */
+    public long getCommands(Kind kind) {
+        return commands[kind.ordinal()].get();
+    }
+
+    /**
+     * @return the number of commands of that kind that failed, retries
+     * included
+     */
+    public long getErrors(Kind kind) {
+        return errors[kind.ordinal()].get();
+    }
+
+    public long getBytes(Kind kind) {
+        return bytes[kind.ordinal()].get();
+    }
+
+    public long getRetries() {
+        return retries.get();
+    }
+
+    public long getResets() {
+        return resets.get();
+    }
+
+    /**
+     * @return the time elapsed since the metrics were created or reset
+     */
+    public long getElapsedNanos() {
+        return System.nanoTime() - startNanos;
+    }
+
+    /**
+     * @return the bytes of that kind moved per second since the metrics were
+     * created or reset
+     */
+    public long getBytesPerSecond(Kind kind) {
+        long elapsed = getElapsedNanos();
+        return elapsed <= 0 ? 0 : (long) (getBytes(kind) * 1e9 / elapsed);
+    }
+
+    /**
+     * @return the bytes of that kind moved per second the device spent on
+     * these commands: what the device could sustain if it was kept busy
+     */
+    public long getDeviceBytesPerSecond(Kind kind) {
+        long busy = getHistogram(kind, Phase.COMMAND).getTotal();
+        return busy <= 0 ? 0 : (long) (getBytes(kind) * 1e9 / busy);
+    }
+
+    public void reset() {
+        for (int i = 0; i < histograms.length; i++) {
+            for (LatencyHistogram histogram : histograms[i]) {
+                histogram.reset();
+            }
+            commands[i].set(0);
+            errors[i].set(0);
+            bytes[i].set(0);
+        }
+        retries.set(0);
+        resets.set(0);
+        startNanos = System.nanoTime();
+    }
+
+    /**
+     * @return a multi-line summary of the metrics, for the log or a report
+     */
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format(Locale.US, "UsbMetrics[%.1f s, %d retries, %d resets]%n", getElapsedNanos() / 1e9,
+                getRetries(), getResets()));
+        for (Kind kind : Kind.values()) {
+            if (getCommands(kind) == 0 && getErrors(kind) == 0) {
+                continue;
+            }
+            sb.append(String.format(Locale.US, "%s: %d commands, %d errors, %d bytes, %.2f MiB/s (device %.2f MiB/s)%n",
+                    kind, getCommands(kind), getErrors(kind), getBytes(kind), getBytesPerSecond(kind) / 1048576.0,
+                    getDeviceBytesPerSecond(kind) / 1048576.0));
+            for (Phase phase : Phase.values()) {
+                sb.append("  ").append(phase).append(": ").append(getHistogram(kind, phase)).append('\n');
+            }
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,200 @@
+/**
+ * This file is part of OTGDiskBackup.
+ * <p/>
+ * Copyright 2005-2009 Red Hat, Inc.  All rights reserved.
+ * <p/>
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * <p/>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.pictulog.otgdb.device;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * This is the write-back layer of the {@link OtgBlockDevice}. The sectors
+ * written by the file system are kept here until {@link #flush} is called,
+ * either explicitly or because too many of them are dirty. They are then
+ * written in ascending order, adjacent sectors being merged into a single
+ * WRITE(10) command.
+ * <p/>
+ * The sectors are indexed by their absolute position on the device. Writing a
+ * sector that is already dirty simply replaces its content.
+ *
+ * @author rostskadat
+ */
+public class WriteBackCache {
+
+    public static final int DEFAULT_MAX_DIRTY_SIZE = 0x100000;
+
+    private final OtgDeviceFacade facade;
+    private final int sectorSize;
+    private final int maxDirtySectors;
+    private final TreeMap<Long, byte[]> dirty;
+    private final ArrayDeque<byte[]> spares;
+    private long writtenSectors;
+    private long commands;
+    private long flushes;
+    private long overwrites;
+
+    /**
+     * @param facade          the facade used to write the sectors
+     * @param sectorSize      the sector size of the device
+     * @param maxDirtySectors the number of dirty sectors that triggers a
+     *                        flush
+     */
+    WriteBackCache(OtgDeviceFacade facade, int sectorSize, int maxDirtySectors) {
+        this.facade = facade;
+        this.sectorSize = sectorSize;
+        this.maxDirtySectors = Math.max(1, maxDirtySectors);
+        this.dirty = new TreeMap<Long, byte[]>();
+        this.spares = new ArrayDeque<byte[]>();
+    }
+
+    /**
+     * Keep a copy of the given sectors.
+     *
+     * @param firstSector the absolute number of the first sector
+     * @param src         the buffer holding the sectors
+     * @param index       the absolute index of the first sector in src
+     * @param count       the number of sectors
+     * @return {@code true} if the cache should now be flushed
+     */
+    public synchronized boolean put(long firstSector, ByteBuffer src, int index, int count) {
+        for (int i = 0; i < count; i++) {
+            byte[] data = dirty.get(firstSector + i);
+            if (data == null) {
+                data = spares.isEmpty() ? new byte[sectorSize] : spares.pop();
+                dirty.put(firstSector + i, data);
+            } else {
+                overwrites++;
+            }
+            ByteBuffer sector = src.duplicate();
+            sector.limit(index + (i + 1) * sectorSize);
+            sector.position(index + i * sectorSize);
+            sector.get(data);
+        }
+        return dirty.size() >= maxDirtySectors;
+    }
+
+    /**
+     * Copy the dirty sectors found in the given range over {@code dest}, which
+     * holds what was read from the device. The position of {@code dest} is
+     * not changed.
+     *
+     * @param firstSector the absolute number of the first sector
+     * @param count       the number of sectors
+     * @param dest        the buffer holding the sectors
+     * @param index       the absolute index of the first sector in dest
+     */
+    public synchronized void overlay(long firstSector, int count, ByteBuffer dest, int index) {
+        if (dirty.isEmpty() || count <= 0) {
+            return;
+        }
+        SortedMap<Long, byte[]> range = dirty.subMap(firstSector, firstSector + count);
+        for (Map.Entry<Long, byte[]> entry : range.entrySet()) {
+            ByteBuffer sector = dest.duplicate();
+            sector.limit(sector.capacity());
+            sector.position(index + (int) (entry.getKey() - firstSector) * sectorSize);
+            sector.put(entry.getValue());
+        }
+    }
+
+    /**
+     * Forget the dirty sectors of the given range, because they are about to
+     * be written straight to the device.
+     */
+    public synchronized void discard(long firstSector, int count) {
+        SortedMap<Long, byte[]> range = dirty.subMap(firstSector, firstSector + count);
+        for (byte[] data : range.values()) {
+            recycle(data);
+        }
+        range.clear();
+    }
+
+    /**
+     * Write all the dirty sectors to the device. The sectors that could not
+     * be written stay dirty.
+     *
+     * @param sectorsPerCommand the maximum number of sectors written by a
+     *                          single command
+     * @param bufferPool        the pool providing the command buffers
+     * @throws IOException if a WRITE(10) command failed
+     */
+    public synchronized void flush(int sectorsPerCommand, BufferPool bufferPool) throws IOException {
+        if (dirty.isEmpty()) {
+            return;
+        }
+        flushes++;
+        while (!dirty.isEmpty()) {
+            long firstSector = dirty.firstKey();
+            int count = 1;
+            while (count < sectorsPerCommand && dirty.containsKey(firstSector + count)) {
+                count++;
+            }
+            ByteBuffer buffer = bufferPool.acquire(count * sectorSize);
+            try {
+                for (int i = 0; i < count; i++) {
+                    buffer.put(dirty.get(firstSector + i));
+                }
+                buffer.flip();
+                commands++;
+                facade.write(firstSector, count, buffer);
+            } finally {
+                bufferPool.release(buffer);
+            }
+            discard(firstSector, count);
+            writtenSectors += count;
+        }
+    }
+
+    private void recycle(byte[] data) {
+        if (spares.size() < maxDirtySectors) {
+            spares.push(data);
+        }
+    }
+
+    public int getMaxDirtySectors() {
+        return maxDirtySectors;
+    }
+
+    public synchronized int getDirtySectors() {
+        return dirty.size();
+    }
+
+    public synchronized long getWrittenSectors() {
+        return writtenSectors;
+    }
+
+    public synchronized long getCommands() {
+        return commands;
+    }
+
+    public synchronized long getFlushes() {
+        return flushes;
+    }
+
+    public synchronized long getOverwrites() {
+        return overwrites;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("WriteBackCache[dirty=%d/%d, written=%d sectors in %d commands, flushes=%d, overwrites=%d]",
+                dirty.size(), maxDirtySectors, writtenSectors, commands, flushes, overwrites);
+    }
+}
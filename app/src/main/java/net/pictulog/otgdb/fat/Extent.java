@@ -0,0 +1,56 @@
+/**
+ * This file is part of OTGDiskBackup.
+ * <p/>
+ * Copyright 2005-2009 Red Hat, Inc.  All rights reserved.
+ * <p/>
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * <p/>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.pictulog.otgdb.fat;
+
+/**
+ * This class describes a run of contiguous clusters of a file: {@code length}
+ * bytes of the file, starting at {@code fileOffset}, are stored at
+ * {@code devOffset} on the device.
+ *
+ * @author rostskadat
+ */
+public class Extent {
+
+    private final long fileOffset;
+    private final long devOffset;
+    private final long length;
+
+    public Extent(long fileOffset, long devOffset, long length) {
+        this.fileOffset = fileOffset;
+        this.devOffset = devOffset;
+        this.length = length;
+    }
+
+    public long getFileOffset() {
+        return fileOffset;
+    }
+
+    public long getDevOffset() {
+        return devOffset;
+    }
+
+    public long getLength() {
+        return length;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("Extent[%d bytes @0x%X]", length, devOffset);
+    }
+}
@@ -0,0 +1,145 @@
+/**
+ * This file is part of OTGDiskBackup.
+ * <p/>
+ * Copyright 2005-2009 Red Hat, Inc.  All rights reserved.
+ * <p/>
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * <p/>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.pictulog.otgdb.fat;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import de.waldheinz.fs.BlockDevice;
+import de.waldheinz.fs.FsFile;
+
+/**
+ * This class turns the cluster chain of a file into {@link Extent}s, so that
+ * the file can be read with a few large reads instead of one read per
+ * cluster.
+ * <p/>
+ * fat32-lib does not expose the first cluster of a file, so it is fetched
+ * through {@link FatEntries}. If that ever fails the caller should fall back
+ * to {@link FsFile#read}.
+ *
+ * @author rostskadat
+ */
+public class ExtentResolver {
+
+    private final BlockDevice device;
+    private final FatBootSector bootSector;
+    private final FatTable fatTable;
+
+    public ExtentResolver(BlockDevice device) throws IOException {
+        this(device, new FatTable(device, FatBootSector.read(device)));
+    }
+
+    public ExtentResolver(BlockDevice device, FatTable fatTable) {
+        this.device = device;
+        this.bootSector = fatTable.getBootSector();
+        this.fatTable = fatTable;
+    }
+
+    /**
+     * @return the extents of the given fat32-lib file, or {@code null} if its
+     * first cluster can't be found
+     * @throws IOException if the cluster chain is broken
+     */
+    public FileExtents resolve(FsFile file) throws IOException {
+        long startCluster = FatEntries.getStartCluster(file);
+        if (startCluster < 0) {
+            return null;
+        }
+        return resolve(startCluster, file.getLength());
+    }
+
+    /**
+     * @param startCluster the first cluster of the file
+     * @param length       the length of the file
+     * @return the extents of the file
+     * @throws IOException if the cluster chain is broken or too short
+     */
+    public FileExtents resolve(long startCluster, long length) throws IOException {
+        List<Extent> extents = new ArrayList<Extent>();
+        int clusterSize = bootSector.getBytesPerCluster();
+        long clusters = (length + clusterSize - 1) / clusterSize;
+        long cluster = startCluster;
+        long fileOffset = 0;
+        while (clusters > 0) {
+            if (!bootSector.isDataCluster(cluster)) {
+                throw new IOException("Broken cluster chain: cluster " + cluster + " @" + fileOffset);
+            }
+            long first = cluster;
+            long count = 1;
+            long next = fatTable.getEntry(cluster);
+            while (count < clusters && next == cluster + 1) {
+                cluster = next;
+                count++;
+                next = fatTable.getEntry(cluster);
+            }
+            long extentLength = Math.min(count * clusterSize, length - fileOffset);
+            extents.add(new Extent(fileOffset, bootSector.getClusterOffset(first), extentLength));
+            fileOffset += extentLength;
+            clusters -= count;
+            if (clusters > 0 && fatTable.isEndOfChain(next)) {
+                throw new IOException("Cluster chain too short: " + clusters + " cluster(s) missing");
+            }
+            cluster = next;
+        }
+        return new FileExtents(device, extents, length);
+    }
+
+    /**
+     * Follow the cluster chain up to its end. This is used for the
+     * directories, whose length is not recorded anywhere.
+     *
+     * @param startCluster the first cluster of the chain
+     * @return the extents of the whole chain
+     * @throws IOException if the cluster chain is broken or loops
+     */
+    public FileExtents resolveChain(long startCluster) throws IOException {
+        List<Extent> extents = new ArrayList<Extent>();
+        int clusterSize = bootSector.getBytesPerCluster();
+        long maxClusters = bootSector.getClusterCount();
+        long cluster = startCluster;
+        long fileOffset = 0;
+        long clusters = 0;
+        do {
+            if (!bootSector.isDataCluster(cluster)) {
+                throw new IOException("Broken cluster chain: cluster " + cluster + " @" + fileOffset);
+            }
+            long first = cluster;
+            long count = 1;
+            long next = fatTable.getEntry(cluster);
+            while (next == cluster + 1) {
+                cluster = next;
+                count++;
+                next = fatTable.getEntry(cluster);
+            }
+            extents.add(new Extent(fileOffset, bootSector.getClusterOffset(first), count * clusterSize));
+            fileOffset += count * clusterSize;
+            clusters += count;
+            if (clusters > maxClusters) {
+                throw new IOException("Cluster chain loops from cluster " + startCluster);
+            }
+            cluster = next;
+        } while (!fatTable.isEndOfChain(cluster));
+        return new FileExtents(device, extents, fileOffset);
+    }
+
+    public FatTable getFatTable() {
+        return fatTable;
+    }
+}
@@ -0,0 +1,288 @@
+/**
+ * This file is part of OTGDiskBackup.
+ * <p/>
+ * Copyright 2005-2009 Red Hat, Inc.  All rights reserved.
+ * <p/>
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * <p/>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.pictulog.otgdb.fat;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import de.waldheinz.fs.BlockDevice;
+import de.waldheinz.fs.fat.FatType;
+
+/**
+ * This class reads the BIOS Parameter Block of a FAT12, FAT16 or FAT32 volume
+ * and computes where its FATs, root directory and clusters are.
+ * <p/>
+ * See http://www.easeus.com/resource/fat32-disk-structure.htm
+ *
+ * @author rostskadat
+ */
+public class FatBootSector {
+
+    private static final int BPB_BYTES_PER_SECTOR = 0x0b;
+    private static final int BPB_SECTORS_PER_CLUSTER = 0x0d;
+    private static final int BPB_RESERVED_SECTORS = 0x0e;
+    private static final int BPB_NUMBER_OF_FATS = 0x10;
+    private static final int BPB_ROOT_ENTRIES = 0x11;
+    private static final int BPB_TOTAL_SECTORS_16 = 0x13;
+    private static final int BPB_SECTORS_PER_FAT_16 = 0x16;
+    private static final int BPB_TOTAL_SECTORS_32 = 0x20;
+    private static final int BPB_SECTORS_PER_FAT_32 = 0x24;
+    private static final int BPB_EXT_FLAGS = 0x28;
+    private static final int BPB_ROOT_CLUSTER = 0x2c;
+    private static final int BPB_FS_INFO = 0x30;
+    private static final int BPB_VOLUME_ID_16 = 0x27;
+    private static final int BPB_VOLUME_ID_32 = 0x43;
+    private static final int BPB_VOLUME_LABEL_16 = 0x2b;
+    private static final int BPB_VOLUME_LABEL_32 = 0x47;
+    private static final int VOLUME_LABEL_LENGTH = 11;
+    private static final int BOOT_SIGNATURE = 0x1fe;
+
+    private static final int FS_INFO_LEAD_SIGNATURE = 0x41615252;
+    private static final int FS_INFO_STRUCT_SIGNATURE = 0x61417272;
+    private static final int FS_INFO_STRUCT_OFFSET = 0x1e4;
+    private static final int FS_INFO_FREE_COUNT = 0x1e8;
+
+    private static final int FAT12_MAX_CLUSTERS = 4085;
+    private static final int FAT16_MAX_CLUSTERS = 65525;
+    private static final int DIRECTORY_ENTRY_SIZE = 0x20;
+
+    private final int bytesPerSector;
+    private final int sectorsPerCluster;
+    private final int reservedSectors;
+    private final int numberOfFats;
+    private final int rootEntries;
+    private final long sectorsPerFat;
+    private final long totalSectors;
+    private final long rootCluster;
+    private final long clusterCount;
+    private final long firstDataSector;
+    private final FatType fatType;
+    private final int volumeId;
+    private final String volumeLabel;
+    private final int fsInfoSector;
+    private final int extFlags;
+
+    private FatBootSector(ByteBuffer bpb) throws IOException {
+        bpb.order(ByteOrder.LITTLE_ENDIAN);
+        if ((bpb.getShort(BOOT_SIGNATURE) & 0xffff) != 0xaa55) {
+            throw new IOException("Missing boot sector signature");
+        }
+        bytesPerSector = bpb.getShort(BPB_BYTES_PER_SECTOR) & 0xffff;
+        sectorsPerCluster = bpb.get(BPB_SECTORS_PER_CLUSTER) & 0xff;
+        if (bytesPerSector < 512 || Integer.bitCount(bytesPerSector) != 1
+                || sectorsPerCluster == 0 || Integer.bitCount(sectorsPerCluster) != 1) {
+            throw new IOException("Not a FAT boot sector: " + bytesPerSector + " bytes per sector, "
+                    + sectorsPerCluster + " sectors per cluster");
+        }
+        reservedSectors = bpb.getShort(BPB_RESERVED_SECTORS) & 0xffff;
+        numberOfFats = bpb.get(BPB_NUMBER_OF_FATS) & 0xff;
+        rootEntries = bpb.getShort(BPB_ROOT_ENTRIES) & 0xffff;
+        int totalSectors16 = bpb.getShort(BPB_TOTAL_SECTORS_16) & 0xffff;
+        totalSectors = totalSectors16 != 0 ? totalSectors16 : bpb.getInt(BPB_TOTAL_SECTORS_32) & 0xffffffffL;
+        int sectorsPerFat16 = bpb.getShort(BPB_SECTORS_PER_FAT_16) & 0xffff;
+        sectorsPerFat = sectorsPerFat16 != 0 ? sectorsPerFat16 : bpb.getInt(BPB_SECTORS_PER_FAT_32) & 0xffffffffL;
+        long rootDirSectors = (rootEntries * DIRECTORY_ENTRY_SIZE + bytesPerSector - 1) / bytesPerSector;
+        firstDataSector = reservedSectors + numberOfFats * sectorsPerFat + rootDirSectors;
+        clusterCount = (totalSectors - firstDataSector) / sectorsPerCluster;
+        if (clusterCount < FAT12_MAX_CLUSTERS) {
+            fatType = FatType.FAT12;
+        } else if (clusterCount < FAT16_MAX_CLUSTERS) {
+            fatType = FatType.FAT16;
+        } else {
+            fatType = FatType.FAT32;
+        }
+        rootCluster = fatType == FatType.FAT32 ? bpb.getInt(BPB_ROOT_CLUSTER) & 0x0fffffffL : 0;
+        volumeId = bpb.getInt(fatType == FatType.FAT32 ? BPB_VOLUME_ID_32 : BPB_VOLUME_ID_16);
+        byte[] label = new byte[VOLUME_LABEL_LENGTH];
+        bpb.position(fatType == FatType.FAT32 ? BPB_VOLUME_LABEL_32 : BPB_VOLUME_LABEL_16);
+        bpb.get(label);
+        volumeLabel = new String(label, "ISO-8859-1").trim();
+        fsInfoSector = fatType == FatType.FAT32 ? bpb.getShort(BPB_FS_INFO) & 0xffff : 0;
+        extFlags = fatType == FatType.FAT32 ? bpb.getShort(BPB_EXT_FLAGS) & 0xffff : 0;
+    }
+
+    /**
+     * Read the boot sector found at the beginning of the device.
+     *
+     * @throws IOException if it is not a FAT boot sector
+     */
+    public static FatBootSector read(BlockDevice device) throws IOException {
+        ByteBuffer bpb = ByteBuffer.allocate(512);
+        device.read(0, bpb);
+        return new FatBootSector(bpb);
+    }
+
+    public FatType getFatType() {
+        return fatType;
+    }
+
+    public int getBytesPerSector() {
+        return bytesPerSector;
+    }
+
+    public int getBytesPerCluster() {
+        return bytesPerSector * sectorsPerCluster;
+    }
+
+    public int getNumberOfFats() {
+        return numberOfFats;
+    }
+
+    /**
+     * @return {@code true} if every copy of the FAT is kept up to date, which
+     * is always the case on FAT12 and FAT16
+     */
+    public boolean isFatMirrored() {
+        return (extFlags & 0x80) == 0;
+    }
+
+    /**
+     * @return the copy of the FAT in use
+     */
+    public int getActiveFat() {
+        return isFatMirrored() ? 0 : Math.min(extFlags & 0x0f, numberOfFats - 1);
+    }
+
+    public long getClusterCount() {
+        return clusterCount;
+    }
+
+    /**
+     * @return the number of the first cluster of the root directory, 0 on
+     * FAT12 and FAT16 where the root directory is not made of clusters
+     */
+    public long getRootCluster() {
+        return rootCluster;
+    }
+
+    public int getRootEntries() {
+        return rootEntries;
+    }
+
+    /**
+     * @return the serial number given to the volume when it was formatted
+     */
+    public int getVolumeId() {
+        return volumeId;
+    }
+
+    /**
+     * @return the label given to the volume when it was formatted
+     */
+    public String getVolumeLabel() {
+        return volumeLabel;
+    }
+
+    /**
+     * Read the number of free clusters recorded in the FSInfo sector. It is
+     * updated by whoever last allocated or freed clusters, so it changes
+     * with nearly every modification of the volume.
+     *
+     * @return the number of free clusters, or -1 if the volume has no FSInfo
+     * sector or the count is not known
+     */
+    public long readFreeClusterCount(BlockDevice device) throws IOException {
+        ByteBuffer fsInfo = readFsInfo(device);
+        if (fsInfo == null) {
+            return -1;
+        }
+        long freeCount = fsInfo.getInt(FS_INFO_FREE_COUNT) & 0xffffffffL;
+        return freeCount <= clusterCount ? freeCount : -1;
+    }
+
+    /**
+     * Record the number of free clusters in the FSInfo sector, if there is
+     * one.
+     */
+    public void writeFreeClusterCount(BlockDevice device, long freeCount) throws IOException {
+        ByteBuffer fsInfo = readFsInfo(device);
+        if (fsInfo != null) {
+            fsInfo.putInt(FS_INFO_FREE_COUNT, (int) freeCount);
+            fsInfo.clear();
+            device.write((long) fsInfoSector * bytesPerSector, fsInfo);
+        }
+    }
+
+    private ByteBuffer readFsInfo(BlockDevice device) throws IOException {
+        if (fsInfoSector == 0 || fsInfoSector >= reservedSectors) {
+            return null;
+        }
+        ByteBuffer fsInfo = ByteBuffer.allocate(bytesPerSector);
+        device.read((long) fsInfoSector * bytesPerSector, fsInfo);
+        fsInfo.order(ByteOrder.LITTLE_ENDIAN);
+        if (fsInfo.getInt(0) != FS_INFO_LEAD_SIGNATURE || fsInfo.getInt(FS_INFO_STRUCT_OFFSET) != FS_INFO_STRUCT_SIGNATURE) {
+            return null;
+        }
+        return fsInfo;
+    }
+
+    /**
+     * @return the byte offset of the given copy of the FAT
+     */
+    public long getFatOffset(int fat) {
+        return (reservedSectors + fat * sectorsPerFat) * bytesPerSector;
+    }
+
+    public long getFatSize() {
+        return sectorsPerFat * bytesPerSector;
+    }
+
+    /**
+     * @return the byte offset of the FAT12 or FAT16 root directory
+     */
+    public long getRootDirOffset() {
+        return getFatOffset(numberOfFats);
+    }
+
+    /**
+     * @return the byte offset of the data area, that is the end of the
+     * reserved sectors, the FATs and the FAT12 or FAT16 root directory
+     */
+    public long getDataOffset() {
+        return firstDataSector * bytesPerSector;
+    }
+
+    /**
+     * @return the size of the volume in bytes
+     */
+    public long getVolumeSize() {
+        return totalSectors * bytesPerSector;
+    }
+
+    /**
+     * @return the byte offset of the given cluster
+     */
+    public long getClusterOffset(long cluster) {
+        return (firstDataSector + (cluster - 2) * sectorsPerCluster) * bytesPerSector;
+    }
+
+    /**
+     * @return {@code true} if the cluster is a valid data cluster
+     */
+    public boolean isDataCluster(long cluster) {
+        return cluster >= 2 && cluster < clusterCount + 2;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("FatBootSector[%s, %d bytes per cluster, %d clusters, volume %08X '%s']", fatType,
+                getBytesPerCluster(), clusterCount, volumeId, volumeLabel);
+    }
+}
@@ -0,0 +1,123 @@
+/**
+ * This file is part of OTGDiskBackup.
+ * <p/>
+ * Copyright 2005-2009 Red Hat, Inc.  All rights reserved.
+ * <p/>
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * <p/>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.pictulog.otgdb.fat;
+
+import android.util.Log;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+
+import de.waldheinz.fs.FsDirectoryEntry;
+import de.waldheinz.fs.FsFile;
+
+/**
+ * fat32-lib keeps the raw directory entry of a file, and therefore its first
+ * cluster, package-private. This class fetches them by reflection, or
+ * directly for the entries of a {@link FatVolume}. All the methods return -1
+ * when that fails, in which case the caller should fall back to the public
+ * fat32-lib API.
+ *
+ * @author rostskadat
+ */
+public final class FatEntries {
+
+    private static Method getChain;
+    private static Method getChainStartCluster;
+    private static Field realEntry;
+    private static Method getEntryStartCluster;
+    private static Method getEntryLength;
+
+    private FatEntries() {
+    }
+
+    /**
+     * @return the first cluster of a fat32-lib file, 0 for an empty file, or
+     * -1 if it can't be found
+     */
+    public static synchronized long getStartCluster(FsFile file) {
+        if (file instanceof FatVolumeFile) {
+            return ((FatVolumeFile) file).getStartCluster();
+        }
+        try {
+            if (getChain == null) {
+                getChain = file.getClass().getDeclaredMethod("getChain");
+                getChain.setAccessible(true);
+            }
+            Object chain = getChain.invoke(file);
+            if (getChainStartCluster == null) {
+                getChainStartCluster = chain.getClass().getDeclaredMethod("getStartCluster");
+                getChainStartCluster.setAccessible(true);
+            }
+            return (Long) getChainStartCluster.invoke(chain);
+        } catch (Exception e) {
+            Log.w("FatEntries", "Can't find the first cluster of " + file + ": " + e.getMessage());
+            return -1;
+        }
+    }
+
+    /**
+     * @return the first cluster of a fat32-lib directory entry, 0 for an
+     * empty file, or -1 if it can't be found
+     */
+    public static synchronized long getStartCluster(FsDirectoryEntry entry) {
+        if (entry instanceof FatVolumeEntry) {
+            return ((FatVolumeEntry) entry).getStartCluster();
+        }
+        try {
+            Object fatEntry = getRealEntry(entry);
+            if (getEntryStartCluster == null) {
+                getEntryStartCluster = fatEntry.getClass().getDeclaredMethod("getStartCluster");
+                getEntryStartCluster.setAccessible(true);
+            }
+            return (Long) getEntryStartCluster.invoke(fatEntry);
+        } catch (Exception e) {
+            Log.w("FatEntries", "Can't find the first cluster of " + entry + ": " + e.getMessage());
+            return -1;
+        }
+    }
+
+    /**
+     * @return the length of the file, read from its directory entry, or -1
+     * if it can't be found
+     */
+    public static synchronized long getLength(FsDirectoryEntry entry) {
+        if (entry instanceof FatVolumeEntry) {
+            return ((FatVolumeEntry) entry).getLength();
+        }
+        try {
+            Object fatEntry = getRealEntry(entry);
+            if (getEntryLength == null) {
+                getEntryLength = fatEntry.getClass().getDeclaredMethod("getLength");
+                getEntryLength.setAccessible(true);
+            }
+            return (Long) getEntryLength.invoke(fatEntry);
+        } catch (Exception e) {
+            Log.w("FatEntries", "Can't find the length of " + entry + ": " + e.getMessage());
+            return -1;
+        }
+    }
+
+    private static Object getRealEntry(FsDirectoryEntry entry) throws NoSuchFieldException, IllegalAccessException {
+        if (realEntry == null) {
+            realEntry = entry.getClass().getDeclaredField("realEntry");
+            realEntry.setAccessible(true);
+        }
+        return realEntry.get(entry);
+    }
+}
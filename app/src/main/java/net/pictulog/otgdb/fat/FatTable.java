@@ -0,0 +1,321 @@
+/**
+ * This file is part of OTGDiskBackup.
+ * <p/>
+ * Copyright 2005-2009 Red Hat, Inc.  All rights reserved.
+ * <p/>
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * <p/>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.pictulog.otgdb.fat;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import de.waldheinz.fs.BlockDevice;
+import de.waldheinz.fs.fat.FatType;
+
+/**
+ * This class gives access to the entries of the FAT of a volume without
+ * reading it all. The FAT is read a page at a time, and at most MAX_PAGES
+ * pages are kept, the least recently used being evicted first. Modified
+ * pages are written back to every copy of the FAT when evicted or flushed,
+ * so the memory used does not depend on the size of the volume.
+ * <p/>
+ * The number of free clusters is taken from the FSInfo sector rather than
+ * counted, and updated there on flush.
+ *
+ * @author rostskadat
+ */
+public class FatTable {
+
+    private static final int PAGE_SIZE = 0x1000;
+    private static final int MAX_PAGES = 64;
+    // The FAT is scanned by chunks of this size
+    private static final int SCAN_SIZE = 0x40000;
+
+    private final BlockDevice device;
+    private final FatBootSector bootSector;
+    private final long fatOffset;
+    private final Map<Long, Page> pages = new LinkedHashMap<Long, Page>(MAX_PAGES, 0.75f, true);
+    private long freeClusters = -1;
+    private boolean freeClustersRead;
+    private boolean freeClustersDirty;
+
+    public FatTable(BlockDevice device, FatBootSector bootSector) {
+        this.device = device;
+        this.bootSector = bootSector;
+        this.fatOffset = bootSector.getFatOffset(bootSector.getActiveFat());
+    }
+
+    /**
+     * @return the raw FAT entry of the cluster, that is the next cluster of
+     * the chain, or a free, bad or end of chain marker
+     */
+    public synchronized long getEntry(long cluster) throws IOException {
+        FatType fatType = bootSector.getFatType();
+        if (fatType == FatType.FAT32) {
+            return readBytes(cluster * 4, 4) & 0x0fffffffL;
+        } else if (fatType == FatType.FAT16) {
+            return readBytes(cluster * 2, 2);
+        }
+        long entry = readBytes(cluster + cluster / 2, 2);
+        return (cluster & 1) == 0 ? entry & 0xfff : entry >> 4;
+    }
+
+    /**
+     * Change the FAT entry of the cluster. The change is only written to the
+     * disk on {@link #flush()}.
+     */
+    public synchronized void setEntry(long cluster, long entry) throws IOException {
+        FatType fatType = bootSector.getFatType();
+        if (fatType == FatType.FAT32) {
+            // The 4 high bits are reserved and must be kept
+            long reserved = readBytes(cluster * 4, 4) & 0xf0000000L;
+            writeBytes(cluster * 4, 4, reserved | (entry & 0x0fffffffL));
+        } else if (fatType == FatType.FAT16) {
+            writeBytes(cluster * 2, 2, entry & 0xffff);
+        } else {
+            long offset = cluster + cluster / 2;
+            long value = readBytes(offset, 2);
+            if ((cluster & 1) == 0) {
+                value = (value & 0xf000) | (entry & 0xfff);
+            } else {
+                value = (value & 0x000f) | ((entry & 0xfff) << 4);
+            }
+            writeBytes(offset, 2, value);
+        }
+    }
+
+    /**
+     * Mark all the clusters of the chain as free.
+     *
+     * @return the number of clusters freed
+     * @throws IOException if the chain is broken or loops
+     */
+    public synchronized long freeChain(long startCluster) throws IOException {
+        long freed = 0;
+        long cluster = startCluster;
+        while (bootSector.isDataCluster(cluster)) {
+            long next = getEntry(cluster);
+            if (next == 0) {
+                throw new IOException("Broken cluster chain: cluster " + cluster + " is already free");
+            }
+            setEntry(cluster, 0);
+            if (++freed > bootSector.getClusterCount()) {
+                throw new IOException("Cluster chain loops from cluster " + startCluster);
+            }
+            if (isEndOfChain(next)) {
+                break;
+            }
+            cluster = next;
+        }
+        long free = getFreeClusterCount();
+        if (free >= 0) {
+            freeClusters = free + freed;
+            freeClustersDirty = true;
+        }
+        return freed;
+    }
+
+    /**
+     * Scan the whole FAT and return the parts of the volume that are in use:
+     * the reserved sectors, the FATs and the FAT12 or FAT16 root directory,
+     * followed by the runs of allocated clusters. The extents are in the
+     * order of the volume, and their file offset is their offset in the
+     * volume. The FAT is read by large chunks, bypassing the pages, so the
+     * modified pages are flushed first.
+     *
+     * @return the extents in use
+     */
+    public synchronized List<Extent> getAllocatedExtents() throws IOException {
+        flush();
+        List<Extent> extents = new ArrayList<Extent>();
+        long dataOffset = bootSector.getDataOffset();
+        extents.add(new Extent(0, 0, dataOffset));
+        int clusterSize = bootSector.getBytesPerCluster();
+        long endCluster = bootSector.getClusterCount() + 2;
+        long runStart = -1;
+        long cluster = 2;
+        FatType fatType = bootSector.getFatType();
+        int entrySize = fatType == FatType.FAT32 ? 4 : 2;
+        ByteBuffer chunk = ByteBuffer.allocate(fatType == FatType.FAT12 ? 0 : SCAN_SIZE);
+        chunk.order(ByteOrder.LITTLE_ENDIAN);
+        while (cluster < endCluster) {
+            long entry;
+            if (fatType == FatType.FAT12) {
+                // A FAT12 is a few KiB at most and its entries straddle bytes
+                entry = getEntry(cluster);
+            } else {
+                int index = (int) (cluster * entrySize % SCAN_SIZE);
+                if (index == 0 || cluster == 2) {
+                    long chunkOffset = cluster * entrySize - index;
+                    chunk.clear();
+                    chunk.limit((int) Math.min(SCAN_SIZE, bootSector.getFatSize() - chunkOffset));
+                    device.read(fatOffset + chunkOffset, chunk);
+                }
+                entry = entrySize == 4 ? chunk.getInt(index) & 0x0fffffffL : chunk.getShort(index) & 0xffffL;
+            }
+            if (entry != 0 && runStart < 0) {
+                runStart = cluster;
+            } else if (entry == 0 && runStart >= 0) {
+                addRun(extents, runStart, cluster, clusterSize);
+                runStart = -1;
+            }
+            cluster++;
+        }
+        if (runStart >= 0) {
+            addRun(extents, runStart, endCluster, clusterSize);
+        }
+        return extents;
+    }
+
+    private void addRun(List<Extent> extents, long firstCluster, long endCluster, int clusterSize) {
+        long offset = bootSector.getClusterOffset(firstCluster);
+        extents.add(new Extent(offset, offset, (endCluster - firstCluster) * clusterSize));
+    }
+
+    /**
+     * @return {@code true} if the entry marks the end of a chain
+     */
+    public boolean isEndOfChain(long entry) {
+        FatType fatType = bootSector.getFatType();
+        if (fatType == FatType.FAT32) {
+            return entry >= 0x0ffffff8L;
+        } else if (fatType == FatType.FAT16) {
+            return entry >= 0xfff8L;
+        }
+        return entry >= 0xff8L;
+    }
+
+    /**
+     * @return the number of free clusters recorded in the FSInfo sector, or
+     * -1 if it is not known
+     */
+    public synchronized long getFreeClusterCount() throws IOException {
+        if (!freeClustersRead) {
+            freeClusters = bootSector.readFreeClusterCount(device);
+            freeClustersRead = true;
+        }
+        return freeClusters;
+    }
+
+    /**
+     * Write the modified pages to every copy of the FAT, and the number of
+     * free clusters to the FSInfo sector.
+     */
+    public synchronized void flush() throws IOException {
+        int written = 0;
+        for (Page page : pages.values()) {
+            if (page.dirty) {
+                writePage(page);
+                written++;
+            }
+        }
+        if (freeClustersDirty) {
+            bootSector.writeFreeClusterCount(device, freeClusters);
+            freeClustersDirty = false;
+        }
+        if (written > 0) {
+            Log.d("FatTable", "Wrote " + written + " page(s) of the FAT");
+        }
+    }
+
+    /**
+     * Forget the pages read so far, because the FAT might have been written
+     * by someone else. The modified pages are kept.
+     */
+    public synchronized void invalidate() {
+        Iterator<Page> i = pages.values().iterator();
+        while (i.hasNext()) {
+            if (!i.next().dirty) {
+                i.remove();
+            }
+        }
+    }
+
+    public FatBootSector getBootSector() {
+        return bootSector;
+    }
+
+    private long readBytes(long offset, int length) throws IOException {
+        long value = 0;
+        for (int i = 0; i < length; i++) {
+            Page page = getPage(offset + i);
+            value |= (long) (page.data[(int) (offset + i - page.offset)] & 0xff) << (i * 8);
+        }
+        return value;
+    }
+
+    private void writeBytes(long offset, int length, long value) throws IOException {
+        for (int i = 0; i < length; i++) {
+            Page page = getPage(offset + i);
+            page.data[(int) (offset + i - page.offset)] = (byte) (value >> (i * 8));
+            page.dirty = true;
+        }
+    }
+
+    private Page getPage(long offset) throws IOException {
+        long wanted = offset - offset % PAGE_SIZE;
+        Page page = pages.get(wanted);
+        if (page == null) {
+            if (pages.size() >= MAX_PAGES) {
+                evict();
+            }
+            page = new Page(wanted, (int) Math.min(PAGE_SIZE, bootSector.getFatSize() - wanted));
+            device.read(fatOffset + wanted, ByteBuffer.wrap(page.data, 0, page.length));
+            pages.put(wanted, page);
+        }
+        return page;
+    }
+
+    private void evict() throws IOException {
+        Iterator<Page> i = pages.values().iterator();
+        Page eldest = i.next();
+        if (eldest.dirty) {
+            writePage(eldest);
+        }
+        i.remove();
+    }
+
+    private void writePage(Page page) throws IOException {
+        if (bootSector.isFatMirrored()) {
+            for (int fat = 0; fat < bootSector.getNumberOfFats(); fat++) {
+                device.write(bootSector.getFatOffset(fat) + page.offset, ByteBuffer.wrap(page.data, 0, page.length));
+            }
+        } else {
+            device.write(fatOffset + page.offset, ByteBuffer.wrap(page.data, 0, page.length));
+        }
+        page.dirty = false;
+    }
+
+    private static class Page {
+        private final long offset;
+        private final int length;
+        private final byte[] data;
+        private boolean dirty;
+
+        private Page(long offset, int length) {
+            this.offset = offset;
+            this.length = length;
+            this.data = new byte[length];
+        }
+    }
+}
@@ -0,0 +1,155 @@
+/**
+ * This file is part of OTGDiskBackup.
+ * <p/>
+ * Copyright 2005-2009 Red Hat, Inc.  All rights reserved.
+ * <p/>
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * <p/>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.pictulog.otgdb.fat;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+import de.waldheinz.fs.BlockDevice;
+import de.waldheinz.fs.FileSystem;
+import de.waldheinz.fs.FsDirectory;
+
+/**
+ * This is a FAT {@link FileSystem} that reads only what it is asked for.
+ * fat32-lib reads the whole FAT when the file system is mounted, which takes
+ * long and uses a lot of memory on large cards. Here mounting only reads the
+ * boot sector: the FAT is accessed a page at a time through a
+ * {@link FatTable}, and the directories are read when they are first opened.
+ * <p/>
+ * Files can be read and removed, but not created nor written.
+ *
+ * @author rostskadat
+ */
+public class FatVolume implements FileSystem {
+
+    private final BlockDevice device;
+    private final FatBootSector bootSector;
+    private final FatTable fatTable;
+    private final ExtentResolver extentResolver;
+    private final boolean readOnly;
+    private final Set<FatVolumeDirectory> dirtyDirectories = new LinkedHashSet<FatVolumeDirectory>();
+    private FatVolumeDirectory root;
+    private boolean closed;
+
+    private FatVolume(BlockDevice device, boolean readOnly) throws IOException {
+        this.device = device;
+        this.bootSector = FatBootSector.read(device);
+        this.fatTable = new FatTable(device, bootSector);
+        this.extentResolver = new ExtentResolver(device, fatTable);
+        this.readOnly = readOnly;
+    }
+
+    /**
+     * Mount the FAT volume found on the device.
+     *
+     * @throws IOException if the device does not start with a FAT boot sector
+     */
+    public static FatVolume read(BlockDevice device, boolean readOnly) throws IOException {
+        FatVolume volume = new FatVolume(device, readOnly);
+        Log.i("FatVolume", "Mounted " + volume.bootSector);
+        return volume;
+    }
+
+    @Override
+    public synchronized FsDirectory getRoot() throws IOException {
+        checkClosed();
+        if (root == null) {
+            root = new FatVolumeDirectory(this, bootSector.getRootCluster());
+        }
+        return root;
+    }
+
+    @Override
+    public boolean isReadOnly() {
+        return readOnly;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (!closed) {
+            if (!readOnly) {
+                flush();
+            }
+            closed = true;
+        }
+    }
+
+    @Override
+    public synchronized boolean isClosed() {
+        return closed;
+    }
+
+    @Override
+    public long getTotalSpace() throws IOException {
+        return bootSector.getClusterCount() * bootSector.getBytesPerCluster();
+    }
+
+    @Override
+    public long getFreeSpace() throws IOException {
+        long freeClusters = fatTable.getFreeClusterCount();
+        return freeClusters >= 0 ? freeClusters * bootSector.getBytesPerCluster() : -1;
+    }
+
+    @Override
+    public long getUsableSpace() throws IOException {
+        return -1;
+    }
+
+    /**
+     * Write the modified directories, then the modified pages of the FAT.
+     */
+    @Override
+    public synchronized void flush() throws IOException {
+        checkClosed();
+        for (FatVolumeDirectory directory : dirtyDirectories) {
+            directory.flush();
+        }
+        dirtyDirectories.clear();
+        fatTable.flush();
+    }
+
+    public FatBootSector getBootSector() {
+        return bootSector;
+    }
+
+    public FatTable getFatTable() {
+        return fatTable;
+    }
+
+    public ExtentResolver getExtentResolver() {
+        return extentResolver;
+    }
+
+    BlockDevice getDevice() {
+        return device;
+    }
+
+    synchronized void setDirty(FatVolumeDirectory directory) {
+        dirtyDirectories.add(directory);
+    }
+
+    private void checkClosed() throws IOException {
+        if (closed) {
+            throw new IOException("The file system is closed");
+        }
+    }
+}
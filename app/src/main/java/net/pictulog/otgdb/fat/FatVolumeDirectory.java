@@ -0,0 +1,275 @@
+/**
+ * This file is part of OTGDiskBackup.
+ * <p/>
+ * Copyright 2005-2009 Red Hat, Inc.  All rights reserved.
+ * <p/>
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * <p/>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.pictulog.otgdb.fat;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import de.waldheinz.fs.FsDirectory;
+import de.waldheinz.fs.FsDirectoryEntry;
+import de.waldheinz.fs.ReadOnlyException;
+import de.waldheinz.fs.fat.FatType;
+
+/**
+ * A directory of a {@link FatVolume}. Its raw entries are read in one go when
+ * it is opened, and the modified slots are written back on flush.
+ * <p/>
+ * The "." and ".." entries, the volume label and the deleted entries are not
+ * listed.
+ *
+ * @author rostskadat
+ */
+class FatVolumeDirectory implements FsDirectory {
+
+    private static final int SLOT_SIZE = 0x20;
+    private static final int ATTRIBUTE_VOLUME_LABEL = 0x08;
+    private static final int ATTRIBUTE_LFN = 0x0f;
+    private static final int LFN_LAST = 0x40;
+    private static final int LFN_CHARS = 13;
+    // The offsets of the 13 UTF-16 characters of a long name slot
+    private static final int[] LFN_OFFSETS = {1, 3, 5, 7, 9, 14, 16, 18, 20, 22, 24, 28, 30};
+    private static final byte DELETED = (byte) 0xe5;
+
+    private final FatVolume volume;
+    private final long cluster;
+    private final FileExtents extents;
+    private final ByteBuffer data;
+    private final Map<String, FatVolumeEntry> entries = new LinkedHashMap<String, FatVolumeEntry>();
+    private final Map<String, FatVolumeEntry> shortNames = new HashMap<String, FatVolumeEntry>();
+    private int dirtyStart = Integer.MAX_VALUE;
+    private int dirtyEnd;
+
+    /**
+     * @param cluster the first cluster of the directory, 0 for the root
+     *                directory of a FAT12 or FAT16 volume
+     */
+    FatVolumeDirectory(FatVolume volume, long cluster) throws IOException {
+        this.volume = volume;
+        this.cluster = cluster;
+        FatBootSector bootSector = volume.getBootSector();
+        if (cluster == 0 && bootSector.getFatType() != FatType.FAT32) {
+            extents = null;
+            data = ByteBuffer.allocate(bootSector.getRootEntries() * SLOT_SIZE);
+            volume.getDevice().read(bootSector.getRootDirOffset(), data);
+        } else {
+            extents = volume.getExtentResolver().resolveChain(cluster);
+            data = ByteBuffer.allocate((int) extents.getLength());
+            extents.read(0, data);
+        }
+        data.order(ByteOrder.LITTLE_ENDIAN);
+        parse();
+    }
+
+    private void parse() {
+        boolean fat32 = volume.getBootSector().getFatType() == FatType.FAT32;
+        char[] longName = null;
+        int longNameSlot = -1;
+        int longNameChecksum = 0;
+        int slots = data.capacity() / SLOT_SIZE;
+        for (int slot = 0; slot < slots; slot++) {
+            int offset = slot * SLOT_SIZE;
+            int first = data.get(offset) & 0xff;
+            if (first == 0) {
+                break;
+            }
+            int attributes = data.get(offset + 11) & 0xff;
+            if (first == (DELETED & 0xff)) {
+                longName = null;
+                continue;
+            }
+            if ((attributes & 0x3f) == ATTRIBUTE_LFN) {
+                int order = first & 0x1f;
+                if ((first & LFN_LAST) != 0) {
+                    longName = new char[order * LFN_CHARS];
+                    longNameSlot = slot;
+                    longNameChecksum = data.get(offset + 13) & 0xff;
+                }
+                if (longName == null || order < 1 || order * LFN_CHARS > longName.length
+                        || (data.get(offset + 13) & 0xff) != longNameChecksum) {
+                    longName = null;
+                    continue;
+                }
+                for (int i = 0; i < LFN_CHARS; i++) {
+                    longName[(order - 1) * LFN_CHARS + i] = data.getChar(offset + LFN_OFFSETS[i]);
+                }
+                continue;
+            }
+            if ((attributes & ATTRIBUTE_VOLUME_LABEL) != 0) {
+                longName = null;
+                continue;
+            }
+            String shortName = decodeShortName(offset);
+            if (".".equals(shortName) || "..".equals(shortName)) {
+                longName = null;
+                continue;
+            }
+            String name = shortName;
+            int firstSlot = slot;
+            if (longName != null && checksum(offset) == longNameChecksum) {
+                name = decodeLongName(longName);
+                firstSlot = longNameSlot;
+            }
+            longName = null;
+            long startCluster = data.getShort(offset + 26) & 0xffff;
+            if (fat32) {
+                startCluster |= (long) (data.getShort(offset + 20) & 0xffff) << 16;
+            }
+            FatVolumeEntry entry = new FatVolumeEntry(this, name, shortName, attributes, startCluster,
+                    data.getInt(offset + 28) & 0xffffffffL, data.getShort(offset + 24) & 0xffff,
+                    data.getShort(offset + 22) & 0xffff, data.getShort(offset + 16) & 0xffff,
+                    data.getShort(offset + 14) & 0xffff, data.getShort(offset + 18) & 0xffff, firstSlot, slot);
+            entries.put(name.toLowerCase(Locale.ROOT), entry);
+            shortNames.put(shortName.toLowerCase(Locale.ROOT), entry);
+        }
+    }
+
+    private String decodeShortName(int offset) {
+        char[] chars = new char[11];
+        for (int i = 0; i < chars.length; i++) {
+            chars[i] = (char) (data.get(offset + i) & 0xff);
+        }
+        if (chars[0] == 0x05) {
+            // A real 0xe5 as first character
+            chars[0] = (char) 0xe5;
+        }
+        String base = new String(chars, 0, 8).trim();
+        String extension = new String(chars, 8, 3).trim();
+        return extension.isEmpty() ? base : base + "." + extension;
+    }
+
+    private static String decodeLongName(char[] longName) {
+        int length = 0;
+        while (length < longName.length && longName[length] != 0 && longName[length] != 0xffff) {
+            length++;
+        }
+        return new String(longName, 0, length);
+    }
+
+    private int checksum(int offset) {
+        int sum = 0;
+        for (int i = 0; i < 11; i++) {
+            sum = (((sum & 1) << 7) + (sum >> 1) + (data.get(offset + i) & 0xff)) & 0xff;
+        }
+        return sum;
+    }
+
+    @Override
+    public Iterator<FsDirectoryEntry> iterator() {
+        return Collections.<FsDirectoryEntry>unmodifiableCollection(entries.values()).iterator();
+    }
+
+    @Override
+    public FsDirectoryEntry getEntry(String name) throws IOException {
+        String key = name.toLowerCase(Locale.ROOT);
+        FatVolumeEntry entry = entries.get(key);
+        return entry != null ? entry : shortNames.get(key);
+    }
+
+    @Override
+    public FsDirectoryEntry addFile(String name) throws IOException {
+        checkWritable();
+        throw new IOException("Files can't be created: " + name);
+    }
+
+    @Override
+    public FsDirectoryEntry addDirectory(String name) throws IOException {
+        checkWritable();
+        throw new IOException("Directories can't be created: " + name);
+    }
+
+    /**
+     * Mark the slots of the file as deleted and free its clusters. Nothing
+     * is written to the disk until the volume is flushed.
+     */
+    @Override
+    public void remove(String name) throws IOException {
+        checkWritable();
+        FatVolumeEntry entry = (FatVolumeEntry) getEntry(name);
+        if (entry == null) {
+            return;
+        }
+        if (entry.isDirectory()) {
+            throw new IOException("Directories can't be removed: " + name);
+        }
+        if (entry.getStartCluster() != 0) {
+            volume.getFatTable().freeChain(entry.getStartCluster());
+        }
+        for (int slot = entry.getFirstSlot(); slot <= entry.getSlot(); slot++) {
+            data.put(slot * SLOT_SIZE, DELETED);
+        }
+        dirtyStart = Math.min(dirtyStart, entry.getFirstSlot() * SLOT_SIZE);
+        dirtyEnd = Math.max(dirtyEnd, (entry.getSlot() + 1) * SLOT_SIZE);
+        entries.remove(entry.getName().toLowerCase(Locale.ROOT));
+        shortNames.remove(entry.getShortName().toLowerCase(Locale.ROOT));
+        entry.invalidate();
+        volume.setDirty(this);
+    }
+
+    /**
+     * Write the modified slots back to the disk.
+     */
+    @Override
+    public void flush() throws IOException {
+        if (dirtyStart >= dirtyEnd) {
+            return;
+        }
+        ByteBuffer slots = data.duplicate();
+        slots.limit(dirtyEnd);
+        slots.position(dirtyStart);
+        if (extents == null) {
+            volume.getDevice().write(volume.getBootSector().getRootDirOffset() + dirtyStart, slots);
+        } else {
+            extents.write(dirtyStart, slots);
+        }
+        dirtyStart = Integer.MAX_VALUE;
+        dirtyEnd = 0;
+    }
+
+    @Override
+    public boolean isValid() {
+        return true;
+    }
+
+    @Override
+    public boolean isReadOnly() {
+        return volume.isReadOnly();
+    }
+
+    private void checkWritable() {
+        if (volume.isReadOnly()) {
+            throw new ReadOnlyException();
+        }
+    }
+
+    FatVolume getVolume() {
+        return volume;
+    }
+
+    @Override
+    public String toString() {
+        return "FatVolumeDirectory[cluster " + cluster + ", " + entries.size() + " entries]";
+    }
+}
@@ -0,0 +1,219 @@
+/**
+ * This file is part of OTGDiskBackup.
+ * <p/>
+ * Copyright 2005-2009 Red Hat, Inc.  All rights reserved.
+ * <p/>
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * <p/>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.pictulog.otgdb.fat;
+
+import java.io.IOException;
+import java.util.Calendar;
+
+import de.waldheinz.fs.FsDirectory;
+import de.waldheinz.fs.FsDirectoryEntry;
+import de.waldheinz.fs.FsFile;
+import de.waldheinz.fs.ReadOnlyException;
+
+/**
+ * An entry of a {@link FatVolumeDirectory}: the short name entry, with the
+ * long name read from the entries preceding it.
+ *
+ * @author rostskadat
+ */
+public class FatVolumeEntry implements FsDirectoryEntry {
+
+    public static final int ATTRIBUTE_DIRECTORY = 0x10;
+
+    private final FatVolumeDirectory parent;
+    private final String name;
+    private final String shortName;
+    private final int attributes;
+    private final long startCluster;
+    private final long length;
+    private final int modifiedDate;
+    private final int modifiedTime;
+    private final int createdDate;
+    private final int createdTime;
+    private final int accessedDate;
+    // The first slot of the entry, including its long name, and its short name slot
+    private final int firstSlot;
+    private final int slot;
+    private boolean valid = true;
+    private FatVolumeFile file;
+    private FatVolumeDirectory directory;
+
+    FatVolumeEntry(FatVolumeDirectory parent, String name, String shortName, int attributes, long startCluster,
+                   long length, int modifiedDate, int modifiedTime, int createdDate, int createdTime,
+                   int accessedDate, int firstSlot, int slot) {
+        this.parent = parent;
+        this.name = name;
+        this.shortName = shortName;
+        this.attributes = attributes;
+        this.startCluster = startCluster;
+        this.length = length;
+        this.modifiedDate = modifiedDate;
+        this.modifiedTime = modifiedTime;
+        this.createdDate = createdDate;
+        this.createdTime = createdTime;
+        this.accessedDate = accessedDate;
+        this.firstSlot = firstSlot;
+        this.slot = slot;
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    public String getShortName() {
+        return shortName;
+    }
+
+    @Override
+    @Deprecated
+    public FsDirectory getParent() {
+        return parent;
+    }
+
+    @Override
+    public long getLastModified() throws IOException {
+        return decodeDateTime(modifiedDate, modifiedTime);
+    }
+
+    @Override
+    public long getCreated() throws IOException {
+        return decodeDateTime(createdDate, createdTime);
+    }
+
+    @Override
+    public long getLastAccessed() throws IOException {
+        return decodeDateTime(accessedDate, 0);
+    }
+
+    @Override
+    public boolean isFile() {
+        return (attributes & ATTRIBUTE_DIRECTORY) == 0;
+    }
+
+    @Override
+    public boolean isDirectory() {
+        return (attributes & ATTRIBUTE_DIRECTORY) != 0;
+    }
+
+    /**
+     * @throws ReadOnlyException always, the entries can't be renamed
+     */
+    @Override
+    public void setName(String newName) throws IOException {
+        throw new ReadOnlyException();
+    }
+
+    /**
+     * @throws ReadOnlyException always, the entries can't be modified
+     */
+    @Override
+    public void setLastModified(long lastModified) throws IOException {
+        throw new ReadOnlyException();
+    }
+
+    @Override
+    public FsFile getFile() throws IOException {
+        if (!isFile()) {
+            throw new IOException(name + " is not a file");
+        }
+        if (file == null) {
+            file = new FatVolumeFile(this);
+        }
+        return file;
+    }
+
+    @Override
+    public FsDirectory getDirectory() throws IOException {
+        if (!isDirectory()) {
+            throw new IOException(name + " is not a directory");
+        }
+        if (directory == null) {
+            directory = new FatVolumeDirectory(parent.getVolume(), startCluster);
+        }
+        return directory;
+    }
+
+    @Override
+    public boolean isDirty() {
+        return false;
+    }
+
+    @Override
+    public boolean isValid() {
+        return valid;
+    }
+
+    @Override
+    public boolean isReadOnly() {
+        return true;
+    }
+
+    /**
+     * @return the raw FAT attributes of the entry
+     */
+    public int getAttributes() {
+        return attributes;
+    }
+
+    public long getStartCluster() {
+        return startCluster;
+    }
+
+    public long getLength() {
+        return length;
+    }
+
+    FatVolume getVolume() {
+        return parent.getVolume();
+    }
+
+    int getFirstSlot() {
+        return firstSlot;
+    }
+
+    int getSlot() {
+        return slot;
+    }
+
+    void invalidate() {
+        valid = false;
+    }
+
+    /**
+     * Decode a FAT date and time the way fat32-lib does, in the local time
+     * zone, so that the times do not depend on the library used.
+     */
+    private static long decodeDateTime(int date, int time) {
+        Calendar calendar = Calendar.getInstance();
+        calendar.set(Calendar.YEAR, 1980 + (date >> 9));
+        calendar.set(Calendar.MONTH, ((date >> 5) & 0x0f) - 1);
+        calendar.set(Calendar.DATE, date & 0x1f);
+        calendar.set(Calendar.HOUR_OF_DAY, time >> 11);
+        calendar.set(Calendar.MINUTE, (time >> 5) & 0x3f);
+        calendar.set(Calendar.SECOND, (time & 0x1f) * 2);
+        calendar.set(Calendar.MILLISECOND, 0);
+        return calendar.getTimeInMillis();
+    }
+
+    @Override
+    public String toString() {
+        return name + (isDirectory() ? "/" : " (" + length + " bytes)");
+    }
+}
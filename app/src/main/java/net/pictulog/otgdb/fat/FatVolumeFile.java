@@ -0,0 +1,90 @@
+/**
+ * This file is part of OTGDiskBackup.
+ * <p/>
+ * Copyright 2005-2009 Red Hat, Inc.  All rights reserved.
+ * <p/>
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * <p/>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.pictulog.otgdb.fat;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import de.waldheinz.fs.FsFile;
+import de.waldheinz.fs.ReadOnlyException;
+
+/**
+ * The content of a file of a {@link FatVolume}, read through its extents.
+ *
+ * @author rostskadat
+ */
+class FatVolumeFile implements FsFile {
+
+    private final FatVolumeEntry entry;
+    private FileExtents extents;
+
+    FatVolumeFile(FatVolumeEntry entry) {
+        this.entry = entry;
+    }
+
+    @Override
+    public long getLength() {
+        return entry.getLength();
+    }
+
+    /**
+     * @throws ReadOnlyException always, the files can't be resized
+     */
+    @Override
+    public void setLength(long length) throws IOException {
+        throw new ReadOnlyException();
+    }
+
+    @Override
+    public synchronized void read(long offset, ByteBuffer dest) throws IOException {
+        if (!entry.isValid()) {
+            throw new IOException(entry.getName() + " has been removed");
+        }
+        if (extents == null) {
+            extents = entry.getVolume().getExtentResolver().resolve(entry.getStartCluster(), entry.getLength());
+        }
+        extents.read(offset, dest);
+    }
+
+    /**
+     * @throws ReadOnlyException always, the files can't be written
+     */
+    @Override
+    public void write(long offset, ByteBuffer src) throws IOException {
+        throw new ReadOnlyException();
+    }
+
+    @Override
+    public void flush() throws IOException {
+    }
+
+    @Override
+    public boolean isValid() {
+        return entry.isValid();
+    }
+
+    @Override
+    public boolean isReadOnly() {
+        return true;
+    }
+
+    long getStartCluster() {
+        return entry.getStartCluster();
+    }
+}
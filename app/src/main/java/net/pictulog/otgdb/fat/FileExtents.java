@@ -0,0 +1,128 @@
+/**
+ * This file is part of OTGDiskBackup.
+ * <p/>
+ * Copyright 2005-2009 Red Hat, Inc.  All rights reserved.
+ * <p/>
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * <p/>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.pictulog.otgdb.fat;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import de.waldheinz.fs.BlockDevice;
+
+/**
+ * This class reads a file through the extents of its cluster chain. A read
+ * that falls in a single extent is a single read of the block device,
+ * whatever the number of clusters involved.
+ *
+ * @author rostskadat
+ */
+public class FileExtents {
+
+    private final BlockDevice device;
+    private final List<Extent> extents;
+    private final long length;
+
+    FileExtents(BlockDevice device, List<Extent> extents, long length) {
+        this.device = device;
+        this.extents = extents;
+        this.length = length;
+    }
+
+    /**
+     * Read the file, from {@code offset}, into the remaining of {@code dest}.
+     *
+     * @throws IOException if the read goes beyond the end of the file or
+     *                     failed
+     */
+    public void read(long offset, ByteBuffer dest) throws IOException {
+        if (offset + dest.remaining() > length) {
+            throw new IOException("Read of " + dest.remaining() + " bytes @" + offset + " beyond the end of file");
+        }
+        int limit = dest.limit();
+        try {
+            int index = find(offset);
+            while (dest.position() < limit) {
+                Extent extent = extents.get(index++);
+                long skip = offset - extent.getFileOffset();
+                int toRead = (int) Math.min(limit - dest.position(), extent.getLength() - skip);
+                dest.limit(dest.position() + toRead);
+                device.read(extent.getDevOffset() + skip, dest);
+                offset += toRead;
+            }
+        } finally {
+            dest.limit(limit);
+        }
+    }
+
+    /**
+     * Write the remaining of {@code src} to the file, from {@code offset}.
+     * The file can't grow: the clusters must already be allocated.
+     *
+     * @throws IOException if the write goes beyond the end of the file or
+     *                     failed
+     */
+    public void write(long offset, ByteBuffer src) throws IOException {
+        if (offset + src.remaining() > length) {
+            throw new IOException("Write of " + src.remaining() + " bytes @" + offset + " beyond the end of file");
+        }
+        int limit = src.limit();
+        try {
+            int index = find(offset);
+            while (src.position() < limit) {
+                Extent extent = extents.get(index++);
+                long skip = offset - extent.getFileOffset();
+                int toWrite = (int) Math.min(limit - src.position(), extent.getLength() - skip);
+                src.limit(src.position() + toWrite);
+                device.write(extent.getDevOffset() + skip, src);
+                offset += toWrite;
+            }
+        } finally {
+            src.limit(limit);
+        }
+    }
+
+    private int find(long offset) {
+        int low = 0;
+        int high = extents.size() - 1;
+        while (low < high) {
+            int middle = (low + high + 1) >>> 1;
+            if (extents.get(middle).getFileOffset() <= offset) {
+                low = middle;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return low;
+    }
+
+    public List<Extent> getExtents() {
+        return extents;
+    }
+
+    public long getLength() {
+        return length;
+    }
+
+    /**
+     * @return {@code true} if the whole file is stored in a single run of
+     * clusters
+     */
+    public boolean isContiguous() {
+        return extents.size() <= 1;
+    }
+}
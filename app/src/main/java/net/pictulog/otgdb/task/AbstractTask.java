@@ -5,6 +5,7 @@ import android.os.AsyncTask;
 import java.io.File;
 import java.io.IOException;
 import java.util.Iterator;
+import java.util.Stack;
 
 import de.waldheinz.fs.FsDirectory;
 import de.waldheinz.fs.FsDirectoryEntry;
@@ -12,31 +13,94 @@ import de.waldheinz.fs.FsDirectoryEntry;
 public abstract class AbstractTask<Params, Progress, Result> extends AsyncTask<Params, Progress, Result> {
 
 
-    protected void walkFileTree(FsDirectory srcDir, File destDir) throws IOException {
+    /**
+     * Walk the tree below srcDir depth first. The traversal is iterative, so
+     * its depth is not limited by the stack, and each visit tells whether to
+     * go on, skip the directory or stop.
+     *
+     * @return {@code false} if the traversal was terminated by a visit
+     */
+    protected boolean walkFileTree(FsDirectory srcDir, File destDir) throws IOException {
         if (srcDir == null) {
             throw new IllegalArgumentException("srcDir can't be null");
         }
         if (destDir == null) {
             throw new IllegalArgumentException("destDir can't be null");
         }
-        Iterator<FsDirectoryEntry> i = srcDir.iterator();
-        while (i.hasNext()) {
-            FsDirectoryEntry entry = i.next();
+        Stack<Frame> frames = new Stack<Frame>();
+        frames.push(new Frame(null, srcDir.iterator(), destDir));
+        while (!frames.isEmpty()) {
+            Frame frame = frames.peek();
+            if (!frame.entries.hasNext()) {
+                frames.pop();
+                if (frame.directory != null
+                        && postVisitDirectory(frame.directory, frame.targetDirectory) == VisitResult.TERMINATE) {
+                    return false;
+                }
+                continue;
+            }
+            FsDirectoryEntry entry = frame.entries.next();
             if (entry.isFile()) {
-                visitFile(entry, destDir);
+                if (visitFile(entry, frame.targetDirectory) == VisitResult.TERMINATE) {
+                    return false;
+                }
             } else if (entry.isDirectory() && !".".equals(entry.getName()) && !"..".equals(entry.getName())) {
                 // I create the destination directory...
-                File newSubDir = new File(destDir, entry.getName());
-                preVisitDirectory(entry, newSubDir);
-                walkFileTree(entry.getDirectory(), newSubDir);
-                postVisitDirectory(entry, newSubDir);
+                File newSubDir = new File(frame.targetDirectory, entry.getName());
+                VisitResult result = preVisitDirectory(entry, newSubDir);
+                if (result == VisitResult.TERMINATE) {
+                    return false;
+                }
+                if (result == VisitResult.CONTINUE) {
+                    frames.push(new Frame(entry, entry.getDirectory().iterator(), newSubDir));
+                }
             }
         }
+        return true;
     }
 
-    protected abstract void visitFile(FsDirectoryEntry file, File targetDirectory) throws IOException;
+    /**
+     * Resolve the path one component at a time, without walking the tree.
+     *
+     * @param root the directory the path is relative to
+     * @param path the '/' separated path of the entry
+     * @return the entry, or {@code null} if there is none or the path is
+     * the root itself
+     */
+    protected static FsDirectoryEntry lookup(FsDirectory root, String path) throws IOException {
+        FsDirectory directory = root;
+        FsDirectoryEntry entry = null;
+        for (String name : path.split("/")) {
+            if (name.isEmpty()) {
+                continue;
+            }
+            if (directory == null) {
+                return null;
+            }
+            entry = directory.getEntry(name);
+            if (entry == null) {
+                return null;
+            }
+            directory = entry.isDirectory() ? entry.getDirectory() : null;
+        }
+        return entry;
+    }
 
-    protected abstract void preVisitDirectory(FsDirectoryEntry directory, File targetDirectory) throws IOException;
+    protected abstract VisitResult visitFile(FsDirectoryEntry file, File targetDirectory) throws IOException;
 
-    protected abstract void postVisitDirectory(FsDirectoryEntry directory, File targetDirectory) throws IOException;
+    protected abstract VisitResult preVisitDirectory(FsDirectoryEntry directory, File targetDirectory) throws IOException;
+
+    protected abstract VisitResult postVisitDirectory(FsDirectoryEntry directory, File targetDirectory) throws IOException;
+
+    private static class Frame {
+        private final FsDirectoryEntry directory;
+        private final Iterator<FsDirectoryEntry> entries;
+        private final File targetDirectory;
+
+        private Frame(FsDirectoryEntry directory, Iterator<FsDirectoryEntry> entries, File targetDirectory) {
+            this.directory = directory;
+            this.entries = entries;
+            this.targetDirectory = targetDirectory;
+        }
+    }
 }
@@ -0,0 +1,627 @@
+/**
+ * This file is part of OTGDiskBackup.
+ * <p/>
+ * Copyright 2005-2009 Red Hat, Inc.  All rights reserved.
+ * <p/>
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * <p/>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.pictulog.otgdb.task;
+
+import android.util.Log;
+
+import net.pictulog.otgdb.catalog.BackupManifest;
+import net.pictulog.otgdb.fat.FileExtents;
+
+import org.apache.commons.io.IOUtils;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+import de.waldheinz.fs.FsFile;
+
+/**
+ * This class overlaps the reads from the OTG device with the writes to the
+ * destination. The files are read by the calling thread into a bounded ring
+ * of chunks, which are drained by one or more writer threads. When all the
+ * chunks are waiting to be written the reader blocks, so the memory used is
+ * always {@code chunks * chunkSize}.
+ * <p/>
+ * Each file is handed to a single writer, so that its chunks are written in
+ * order. The files are read either through fat32-lib or, when their
+ * {@link FileExtents} are known, straight from the block device. The data can
+ * also be pushed by the caller with {@link #open} and {@link #write}.
+ * <p/>
+ * The files read from the device are written under a temporary name, and
+ * synced and renamed once complete. Every {@link #CHECKPOINT_INTERVAL} bytes
+ * the copy is synced and reported to its {@link Journal}, so that an
+ * interrupted copy can be resumed from its last checkpoint.
+ * <p/>
+ * The number of bytes written by all the writers ({@link #getWritten()}) can
+ * be sampled from any thread without blocking them.
+ *
+ * @author rostskadat
+ */
+public class BackupPipeline {
+
+    public static final String PART_EXTENSION = ".part";
+    public static final long CHECKPOINT_INTERVAL = 0x4000000;
+
+    private static final Chunk END_OF_STREAM = new Chunk(null);
+
+    private final int chunkSize;
+    private final BlockingQueue<Chunk> free;
+    private final List<BlockingQueue<Chunk>> queues;
+    private final ExecutorService writers;
+    private final AtomicLong written = new AtomicLong();
+    private int nextWriter;
+
+    /**
+     * @param chunkSize the size of the buffers read from the device
+     * @param chunks    the number of buffers in the ring
+     * @param writers   the number of writer threads
+     */
+    public BackupPipeline(int chunkSize, int chunks, int writers) {
+        this.chunkSize = chunkSize;
+        this.free = new ArrayBlockingQueue<Chunk>(chunks);
+        for (int i = 0; i < chunks; i++) {
+            free.add(new Chunk(ByteBuffer.allocate(chunkSize)));
+        }
+        this.queues = new ArrayList<BlockingQueue<Chunk>>();
+        this.writers = Executors.newFixedThreadPool(writers, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "BackupWriter");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        for (int i = 0; i < writers; i++) {
+            BlockingQueue<Chunk> queue = new LinkedBlockingQueue<Chunk>();
+            queues.add(queue);
+            this.writers.execute(new Writer(queue));
+        }
+    }
+
+    /**
+     * @return the temporary name of the copy, until it is complete
+     */
+    public static File getPartFile(File destFile) {
+        return new File(destFile.getPath() + PART_EXTENSION);
+    }
+
+    /**
+     * Read the whole source file and queue it for writing. This method
+     * returns as soon as the last chunk is queued.
+     *
+     * @param srcFile  the file to read from the OTG device
+     * @param destFile the file to create
+     * @param resume   where to resume an interrupted copy from, or
+     *                 {@code null}
+     * @param journal  notified of the checkpoints and of the completion of the
+     *                 copy, or {@code null}
+     * @return the copy, to wait for its outcome
+     * @throws InterruptedIOException if interrupted while waiting for a free
+     *                                chunk
+     */
+    public Copy copy(FsFile srcFile, File destFile, BackupManifest.Checkpoint resume, Journal journal)
+            throws InterruptedIOException {
+        return copy(srcFile, null, srcFile.getLength(), destFile, resume, journal);
+    }
+
+    /**
+     * Read the whole source file through its extents and queue it for
+     * writing. This method returns as soon as the last chunk is queued.
+     *
+     * @param extents  the extents of the file to read from the OTG device
+     * @param destFile the file to create
+     * @param resume   where to resume an interrupted copy from, or
+     *                 {@code null}
+     * @param journal  notified of the checkpoints and of the completion of the
+     *                 copy, or {@code null}
+     * @return the copy, to wait for its outcome
+     * @throws InterruptedIOException if interrupted while waiting for a free
+     *                                chunk
+     */
+    public Copy copy(FileExtents extents, File destFile, BackupManifest.Checkpoint resume, Journal journal)
+            throws InterruptedIOException {
+        return copy(null, extents, extents.getLength(), destFile, resume, journal);
+    }
+
+    private Copy copy(FsFile srcFile, FileExtents extents, long length, File destFile,
+                      BackupManifest.Checkpoint resume, Journal journal) throws InterruptedIOException {
+        Copy copy = new Copy(destFile, null);
+        copy.partFile = getPartFile(destFile);
+        copy.journal = journal;
+        if (resume != null && resume.getOffset() < length) {
+            copy.offset = resume(copy, resume);
+            copy.checkpoint = copy.offset;
+            written.addAndGet(copy.offset);
+        }
+        BlockingQueue<Chunk> queue = queues.get(nextWriter++ % queues.size());
+        copy.queue = queue;
+        try {
+            long offset = copy.offset;
+            do {
+                long start = System.nanoTime();
+                Chunk chunk = free.take();
+                long taken = System.nanoTime();
+                copy.waitNanos += taken - start;
+                chunk.copy = copy;
+                ByteBuffer data = chunk.data;
+                data.clear();
+                data.limit((int) Math.min(chunkSize, length - offset));
+                try {
+                    if (extents != null) {
+                        extents.read(offset, data);
+                    } else {
+                        srcFile.read(offset, data);
+                    }
+                    data.flip();
+                    offset += data.remaining();
+                    chunk.last = offset >= length;
+                } catch (IOException e) {
+                    Log.e("BackupPipeline", "Failed to read " + destFile.getName() + ": " + e.getMessage(), e);
+                    copy.error = "Failed to read: " + e.getMessage();
+                    chunk.failed = true;
+                    chunk.last = true;
+                }
+                copy.readNanos += System.nanoTime() - taken;
+                queue.put(chunk);
+                if (chunk.last) {
+                    break;
+                }
+            } while (!copy.isFailed());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while copying " + destFile.getName());
+        }
+        return copy;
+    }
+
+    /**
+     * Check the part file of an interrupted copy against its checkpoint: its
+     * first bytes must still have the checksum recorded. They are read back
+     * into the checksum of the copy, and anything after them is dropped.
+     *
+     * @return the offset to resume the copy from, 0 to start it over
+     */
+    private long resume(Copy copy, BackupManifest.Checkpoint resume) {
+        long offset = resume.getOffset();
+        if (copy.partFile.length() < offset) {
+            Log.w("BackupPipeline", "Restarting " + copy.destFile.getName() + ": only " + copy.partFile.length()
+                    + " of " + offset + " bytes left");
+            return 0;
+        }
+        InputStream input = null;
+        RandomAccessFile output = null;
+        try {
+            input = new FileInputStream(copy.partFile);
+            byte[] buffer = new byte[Math.min(chunkSize, 0x10000)];
+            long left = offset;
+            while (left > 0) {
+                int read = input.read(buffer, 0, (int) Math.min(buffer.length, left));
+                if (read < 0) {
+                    throw new IOException("Unexpected end of file");
+                }
+                copy.checksum.update(buffer, 0, read);
+                left -= read;
+            }
+            if (copy.checksum.getValue() != resume.getChecksum()) {
+                throw new IOException("Checksum mismatch");
+            }
+            output = new RandomAccessFile(copy.partFile, "rw");
+            output.setLength(offset);
+            Log.i("BackupPipeline", "Resuming " + copy.destFile.getName() + " @" + offset);
+            return offset;
+        } catch (IOException e) {
+            Log.w("BackupPipeline", "Restarting " + copy.destFile.getName() + ": " + e.getMessage());
+            copy.checksum.reset();
+            return 0;
+        } finally {
+            IOUtils.closeQuietly(input);
+            IOUtils.closeQuietly(output);
+        }
+    }
+
+    /**
+     * Start a copy whose data is pushed with {@link #write}.
+     *
+     * @param destFile the file to create
+     * @param digest   if not {@code null}, updated by the writer with the data
+     *                 written
+     * @return the copy, to write to and wait for its outcome
+     */
+    public Copy open(File destFile, MessageDigest digest) {
+        Copy copy = new Copy(destFile, digest);
+        copy.queue = queues.get(nextWriter++ % queues.size());
+        return copy;
+    }
+
+    /**
+     * Queue the remaining of {@code src} for writing. The data is gathered in
+     * full chunks, so {@code src} can be reused as soon as this method
+     * returns. Blocks while all the chunks are waiting to be written.
+     *
+     * @param copy the copy returned by {@link #open}
+     * @param last {@code true} if this is the end of the data
+     * @throws InterruptedIOException if interrupted while waiting for a free
+     *                                chunk
+     */
+    public void write(Copy copy, ByteBuffer src, boolean last) throws InterruptedIOException {
+        try {
+            while (src.hasRemaining() || last) {
+                if (copy.pending == null) {
+                    copy.pending = free.take();
+                    copy.pending.copy = copy;
+                    copy.pending.data.clear();
+                }
+                ByteBuffer data = copy.pending.data;
+                int limit = src.limit();
+                src.limit(src.position() + Math.min(src.remaining(), data.remaining()));
+                data.put(src);
+                src.limit(limit);
+                if (!data.hasRemaining() || (last && !src.hasRemaining())) {
+                    Chunk chunk = copy.pending;
+                    copy.pending = null;
+                    chunk.last = last && !src.hasRemaining();
+                    data.flip();
+                    copy.queue.put(chunk);
+                    if (chunk.last) {
+                        break;
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while copying " + copy.destFile.getName());
+        }
+    }
+
+    /**
+     * Give up a copy started with {@link #open}. The partial file is deleted.
+     */
+    public void abort(Copy copy) throws InterruptedIOException {
+        try {
+            Chunk chunk = copy.pending != null ? copy.pending : free.take();
+            copy.pending = null;
+            chunk.copy = copy;
+            chunk.failed = true;
+            chunk.last = true;
+            copy.queue.put(chunk);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while aborting " + copy.destFile.getName());
+        }
+    }
+
+    /**
+     * @return a successful copy for a file that does not need to be copied
+     */
+    public Copy skip(File destFile) {
+        Copy copy = new Copy(destFile, null);
+        copy.skipped = true;
+        copy.complete(true);
+        return copy;
+    }
+
+    /**
+     * @return the number of bytes written so far, by all the copies,
+     * including the ones kept from interrupted copies
+     */
+    public long getWritten() {
+        return written.get();
+    }
+
+    /**
+     * Wait for the writers to drain the queued chunks and stop them.
+     */
+    public void close() throws InterruptedIOException {
+        try {
+            for (BlockingQueue<Chunk> queue : queues) {
+                queue.put(END_OF_STREAM);
+            }
+            writers.shutdown();
+            while (!writers.awaitTermination(1, TimeUnit.SECONDS)) {
+                Log.d("BackupPipeline", "Waiting for the writers...");
+            }
+        } catch (InterruptedException e) {
+            writers.shutdownNow();
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while closing the pipeline");
+        }
+    }
+
+    /**
+     * This is notified by the writer of the progress of a copy, to record it
+     * before the data is lost.
+     */
+    public interface Journal {
+
+        /**
+         * The first {@code offset} bytes of the copy are synced to the disk.
+         *
+         * @param checksum the CRC32 of these bytes
+         */
+        void onCheckpoint(Copy copy, long offset, long checksum);
+
+        /**
+         * The copy is complete and renamed to its final name.
+         */
+        void onComplete(Copy copy);
+
+        /**
+         * The copy failed. Only the part up to the last checkpoint is kept.
+         */
+        void onFailed(Copy copy);
+    }
+
+    /**
+     * The outcome of the copy of a single file.
+     */
+    public static class Copy {
+
+        private final File destFile;
+        private final CountDownLatch latch;
+        private final CRC32 checksum = new CRC32();
+        private final MessageDigest digest;
+        private File partFile;
+        private Journal journal;
+        private long offset;
+        private long checkpoint;
+        private BlockingQueue<Chunk> queue;
+        private Chunk pending;
+        private FileOutputStream output;
+        private boolean skipped;
+        private volatile boolean done;
+        private volatile boolean success;
+        private volatile long written;
+        private volatile String error;
+        private long readNanos;
+        private long waitNanos;
+        private volatile long writeNanos;
+
+        private Copy(File destFile, MessageDigest digest) {
+            this.destFile = destFile;
+            this.digest = digest;
+            this.latch = new CountDownLatch(1);
+        }
+
+        private void complete(boolean success) {
+            this.success = success;
+            this.done = true;
+            latch.countDown();
+        }
+
+        /**
+         * Wait for the last chunk of the file to be written.
+         *
+         * @return {@code true} if the file was copied
+         */
+        public boolean await() throws InterruptedIOException {
+            try {
+                latch.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for " + destFile.getName());
+            }
+            return success;
+        }
+
+        public boolean isDone() {
+            return done;
+        }
+
+        public boolean isFailed() {
+            return done && !success;
+        }
+
+        public File getDestFile() {
+            return destFile;
+        }
+
+        public long getWritten() {
+            return written;
+        }
+
+        /**
+         * @return the number of bytes kept from an interrupted copy
+         */
+        public long getOffset() {
+            return offset;
+        }
+
+        /**
+         * @return {@code true} if the file did not need to be copied
+         */
+        public boolean isSkipped() {
+            return skipped;
+        }
+
+        /**
+         * @return why the copy failed, or {@code null}
+         */
+        public String getError() {
+            return error;
+        }
+
+        /**
+         * @return the time spent reading the file from the device
+         */
+        public long getReadNanos() {
+            return readNanos;
+        }
+
+        /**
+         * @return the time spent waiting for a free chunk, that is for the
+         * writers to catch up
+         */
+        public long getWaitNanos() {
+            return waitNanos;
+        }
+
+        /**
+         * @return the time spent writing the file to the destination, once
+         * the copy is done
+         */
+        public long getWriteNanos() {
+            return writeNanos;
+        }
+
+        /**
+         * @return the CRC32 of the data written, once the copy is done
+         */
+        public long getChecksum() {
+            return checksum.getValue();
+        }
+    }
+
+    private static class Chunk {
+        private final ByteBuffer data;
+        private Copy copy;
+        private boolean last;
+        private boolean failed;
+
+        private Chunk(ByteBuffer data) {
+            this.data = data;
+        }
+    }
+
+    private class Writer implements Runnable {
+
+        private final BlockingQueue<Chunk> queue;
+
+        private Writer(BlockingQueue<Chunk> queue) {
+            this.queue = queue;
+        }
+
+        @Override
+        public void run() {
+            try {
+                Chunk chunk;
+                while ((chunk = queue.take()) != END_OF_STREAM) {
+                    try {
+                        write(chunk);
+                    } finally {
+                        chunk.copy = null;
+                        chunk.last = false;
+                        chunk.failed = false;
+                        free.add(chunk);
+                    }
+                }
+            } catch (InterruptedException e) {
+                Log.w("BackupPipeline", "Writer interrupted");
+            }
+        }
+
+        private void write(Chunk chunk) {
+            Copy copy = chunk.copy;
+            if (copy.isDone()) {
+                // The copy already failed
+                return;
+            }
+            long start = System.nanoTime();
+            try {
+                if (chunk.failed) {
+                    throw new IOException("Failed to read " + copy.destFile.getName());
+                }
+                File file = copy.partFile != null ? copy.partFile : copy.destFile;
+                if (copy.output == null) {
+                    copy.output = new FileOutputStream(file, copy.offset > 0);
+                }
+                ByteBuffer data = chunk.data;
+                copy.output.write(data.array(), data.position(), data.remaining());
+                copy.checksum.update(data.array(), data.position(), data.remaining());
+                if (copy.digest != null) {
+                    copy.digest.update(data.array(), data.position(), data.remaining());
+                }
+                copy.written += data.remaining();
+                written.addAndGet(data.remaining());
+                if (chunk.last) {
+                    if (copy.partFile != null) {
+                        // Once renamed, the copy is taken as complete: it must be on the disk first
+                        copy.output.getFD().sync();
+                    }
+                    copy.output.close();
+                    copy.output = null;
+                    if (copy.partFile != null) {
+                        rename(copy.partFile, copy.destFile);
+                    }
+                    copy.writeNanos += System.nanoTime() - start;
+                    if (copy.journal != null) {
+                        copy.journal.onComplete(copy);
+                    }
+                    copy.complete(true);
+                    return;
+                }
+                long offset = copy.offset + copy.written;
+                if (copy.journal != null && offset - copy.checkpoint >= CHECKPOINT_INTERVAL) {
+                    copy.output.getFD().sync();
+                    copy.checkpoint = offset;
+                    copy.journal.onCheckpoint(copy, offset, copy.checksum.getValue());
+                }
+                copy.writeNanos += System.nanoTime() - start;
+            } catch (IOException e) {
+                Log.e("BackupPipeline", e.getMessage(), e);
+                if (copy.error == null) {
+                    copy.error = e.getMessage();
+                }
+                copy.writeNanos += System.nanoTime() - start;
+                IOUtils.closeQuietly(copy.output);
+                copy.output = null;
+                File file = copy.partFile != null ? copy.partFile : copy.destFile;
+                if (copy.checkpoint > 0) {
+                    Log.i("BackupPipeline", "Keeping " + file.getName() + " to resume @" + copy.checkpoint);
+                } else if (file.exists() && !file.delete()) {
+                    Log.w("BackupPipeline", "Failed to delete partial copy " + file.getAbsolutePath());
+                }
+                if (copy.journal != null) {
+                    copy.journal.onFailed(copy);
+                }
+                copy.complete(false);
+            }
+        }
+
+        /**
+         * rename() replaces the destination atomically, but some storages
+         * refuse to: then the old copy is deleted first.
+         */
+        private void rename(File partFile, File destFile) throws IOException {
+            if (partFile.renameTo(destFile)) {
+                return;
+            }
+            if (!destFile.delete() || !partFile.renameTo(destFile)) {
+                throw new IOException("Failed to rename " + partFile.getName() + " to " + destFile.getName());
+            }
+        }
+    }
+}
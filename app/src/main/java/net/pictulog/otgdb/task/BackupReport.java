@@ -0,0 +1,269 @@
+/**
+ * This file is part of OTGDiskBackup.
+ * <p/>
+ * Copyright 2005-2009 Red Hat, Inc.  All rights reserved.
+ * <p/>
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * <p/>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.pictulog.otgdb.task;
+
+import android.os.Build;
+import android.util.Log;
+
+import net.pictulog.otgdb.device.LatencyHistogram;
+import net.pictulog.otgdb.device.OtgBlockDevice;
+import net.pictulog.otgdb.device.UsbMetrics;
+import net.pictulog.otgdb.fat.FatBootSector;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+
+/**
+ * This class writes the report of a backup session to the destination, as
+ * JSON lines: one line per file, written and flushed as soon as its copy is
+ * over, so that a session killed halfway still leaves the files it got to,
+ * and a last {@code "session"} line with the totals. The times are in
+ * microseconds.
+ * <p/>
+ * The time of the session is split between the USB I/O (the time the device
+ * spent on the commands), the file system metadata (catalog, manifest,
+ * cluster chains, and the part of the reads not spent on the device) and the
+ * destination (the time the reader waited for the writers). The largest of
+ * the three is reported as the bottleneck.
+ * <p/>
+ * A report that can't be written is only logged: it never fails the backup.
+ *
+ * @author rostskadat
+ */
+public class BackupReport {
+
+    public static final String PREFIX = "otgdb-session-";
+    public static final String EXTENSION = ".jsonl";
+
+    public static final String STATUS_COPIED = "copied";
+    public static final String STATUS_SKIPPED = "skipped";
+    public static final String STATUS_FAILED = "failed";
+
+    private final File file;
+    private final OtgBlockDevice blockDevice;
+    private final long startMillis;
+    private final long startNanos;
+    private final long startUsbNanos;
+    private final long startUsbBytes;
+    private final long startRetries;
+    private final long startResets;
+    private final LatencyHistogram startReads;
+    private PrintWriter writer;
+    private int copiedFiles;
+    private int skippedFiles;
+    private int failedFiles;
+    private long copiedBytes;
+    private long metadataNanos;
+    private long readNanos;
+    private long waitNanos;
+    private long writeNanos;
+    private String error;
+
+    /**
+     * @param destDir     the destination of the backup, where the report goes
+     * @param blockDevice the device backed up, {@code null} if not an OTG
+     *                    device
+     */
+    public BackupReport(File destDir, OtgBlockDevice blockDevice) {
+        this.startMillis = System.currentTimeMillis();
+        this.startNanos = System.nanoTime();
+        this.blockDevice = blockDevice;
+        UsbMetrics metrics = blockDevice != null ? blockDevice.getMetrics() : null;
+        this.startUsbNanos = metrics != null ? getUsbNanos(metrics) : 0;
+        this.startUsbBytes = metrics != null ? metrics.getBytes(UsbMetrics.Kind.READ) : 0;
+        this.startRetries = metrics != null ? metrics.getRetries() : 0;
+        this.startResets = metrics != null ? metrics.getResets() : 0;
+        this.startReads = metrics != null ? getReads(metrics).snapshot() : null;
+        this.file = new File(destDir, PREFIX + new SimpleDateFormat("yyyyMMdd-HHmmss", Locale.US).format(
+                new Date(startMillis)) + EXTENSION);
+        try {
+            this.writer = new PrintWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"));
+        } catch (IOException e) {
+            Log.w("BackupTask", "Failed to create the session report " + file + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Record the outcome of a file.
+     *
+     * @param status        one of the {@code STATUS_} constants
+     * @param skipReason    why the file was not copied, or {@code null}
+     * @param error         why the copy failed, or {@code null}
+     * @param metadataNanos the time spent deciding whether and how to copy it
+     * @param copy          the copy of the file, {@code null} if none was
+     *                      started
+     */
+    synchronized void file(String path, long length, String status, String skipReason, String error,
+                           long metadataNanos, BackupPipeline.Copy copy) {
+        long read = copy != null ? copy.getReadNanos() : 0;
+        long wait = copy != null ? copy.getWaitNanos() : 0;
+        long write = copy != null ? copy.getWriteNanos() : 0;
+        if (STATUS_COPIED.equals(status)) {
+            copiedFiles++;
+            copiedBytes += length;
+        } else if (STATUS_SKIPPED.equals(status)) {
+            skippedFiles++;
+        } else {
+            failedFiles++;
+        }
+        this.metadataNanos += metadataNanos;
+        this.readNanos += read;
+        this.waitNanos += wait;
+        this.writeNanos += write;
+        if (writer == null) {
+            return;
+        }
+        StringBuilder sb = new StringBuilder("{\"type\":\"file\"");
+        string(sb, "path", path);
+        number(sb, "bytes", length);
+        string(sb, "status", status);
+        if (skipReason != null) {
+            string(sb, "skip", skipReason);
+        }
+        if (error != null) {
+            string(sb, "error", error);
+        }
+        number(sb, "metadata_us", metadataNanos / 1000);
+        number(sb, "read_us", read / 1000);
+        number(sb, "wait_us", wait / 1000);
+        number(sb, "write_us", write / 1000);
+        writer.println(sb.append('}'));
+        writer.flush();
+    }
+
+    /**
+     * Account for some file system work not tied to a single file, like
+     * writing the deletions.
+     */
+    synchronized void addMetadataNanos(long nanos) {
+        metadataNanos += nanos;
+    }
+
+    /**
+     * Record an error that fails the session without being tied to a single
+     * file.
+     */
+    synchronized void error(String error) {
+        this.error = error;
+    }
+
+    /**
+     * Write the session line and close the report.
+     *
+     * @return the report file, or {@code null} if it could not be written
+     */
+    synchronized File close() {
+        if (writer == null) {
+            return null;
+        }
+        long duration = System.nanoTime() - startNanos;
+        UsbMetrics metrics = blockDevice != null ? blockDevice.getMetrics() : null;
+        long usbNanos = metrics != null ? getUsbNanos(metrics) - startUsbNanos : 0;
+        // What the reads did not spend on the device went to the file system
+        long fsNanos = metadataNanos + Math.max(0, readNanos - usbNanos);
+        StringBuilder sb = new StringBuilder("{\"type\":\"session\"");
+        string(sb, "start", new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ssZ", Locale.US).format(new Date(startMillis)));
+        number(sb, "duration_us", duration / 1000);
+        number(sb, "files_copied", copiedFiles);
+        number(sb, "files_skipped", skippedFiles);
+        number(sb, "files_failed", failedFiles);
+        if (error != null) {
+            string(sb, "error", error);
+        }
+        number(sb, "bytes_copied", copiedBytes);
+        number(sb, "bytes_per_second", duration <= 0 ? 0 : (long) (copiedBytes * 1e9 / duration));
+        number(sb, "usb_us", usbNanos / 1000);
+        number(sb, "metadata_us", fsNanos / 1000);
+        number(sb, "destination_us", waitNanos / 1000);
+        number(sb, "read_us", readNanos / 1000);
+        number(sb, "write_us", writeNanos / 1000);
+        string(sb, "bottleneck", usbNanos >= fsNanos && usbNanos >= waitNanos ? "usb"
+                : fsNanos >= waitNanos ? "metadata" : "destination");
+        if (metrics != null) {
+            // Only the reads of this session, not those since the device was mounted
+            LatencyHistogram reads = getReads(metrics).since(startReads);
+            number(sb, "usb_read_bytes", metrics.getBytes(UsbMetrics.Kind.READ) - startUsbBytes);
+            number(sb, "usb_read_p50_us", reads.getPercentile(50) / 1000);
+            number(sb, "usb_read_p99_us", reads.getPercentile(99) / 1000);
+            number(sb, "usb_retries", metrics.getRetries() - startRetries);
+            number(sb, "usb_resets", metrics.getResets() - startResets);
+        }
+        if (blockDevice != null) {
+            number(sb, "transfer_size", blockDevice.getTransferSize());
+            try {
+                number(sb, "device_bytes", blockDevice.getDeviceSectors() * blockDevice.getSectorSize());
+                FatBootSector bootSector = FatBootSector.read(blockDevice);
+                string(sb, "volume", String.format("%08X", bootSector.getVolumeId()));
+                string(sb, "label", bootSector.getVolumeLabel());
+            } catch (IOException e) {
+                Log.w("BackupTask", "Failed to read the volume id: " + e.getMessage());
+            }
+        }
+        string(sb, "phone", Build.MANUFACTURER + " " + Build.MODEL);
+        number(sb, "sdk", Build.VERSION.SDK_INT);
+        writer.println(sb.append('}'));
+        writer.close();
+        if (writer.checkError()) {
+            Log.w("BackupTask", "Failed to write the session report " + file);
+            return null;
+        }
+        return file;
+    }
+
+    private static LatencyHistogram getReads(UsbMetrics metrics) {
+        return metrics.getHistogram(UsbMetrics.Kind.READ, UsbMetrics.Phase.COMMAND);
+    }
+
+    private static long getUsbNanos(UsbMetrics metrics) {
+        long nanos = 0;
+        for (UsbMetrics.Kind kind : UsbMetrics.Kind.values()) {
+            nanos += metrics.getHistogram(kind, UsbMetrics.Phase.COMMAND).getTotal();
+        }
+        return nanos;
+    }
+
+    private static void number(StringBuilder sb, String name, long value) {
+        sb.append(",\"").append(name).append("\":").append(value);
+    }
+
+    private static void string(StringBuilder sb, String name, String value) {
+        sb.append(",\"").append(name).append("\":\"");
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                sb.append('\\').append(c);
+            } else if (c < 0x20) {
+                sb.append(String.format("\\u%04x", (int) c));
+            } else {
+                sb.append(c);
+            }
+        }
+        sb.append('"');
+    }
+
+    public File getFile() {
+        return file;
+    }
+}
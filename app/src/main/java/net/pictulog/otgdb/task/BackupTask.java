@@ -18,45 +18,95 @@
  */
 package net.pictulog.otgdb.task;
 
+import android.os.AsyncTask;
 import android.util.Log;
 
+import net.pictulog.otgdb.catalog.BackupManifest;
+import net.pictulog.otgdb.catalog.Catalog;
+import net.pictulog.otgdb.catalog.CatalogStore;
+import net.pictulog.otgdb.device.OtgFileSystem;
+import net.pictulog.otgdb.fat.ExtentResolver;
+import net.pictulog.otgdb.fat.FileExtents;
+
 import org.apache.commons.io.FilenameUtils;
-import org.apache.commons.io.IOUtils;
 
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.OutputStream;
-import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Stack;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
-import de.waldheinz.fs.FsDirectory;
+import de.waldheinz.fs.FileSystem;
 import de.waldheinz.fs.FsDirectoryEntry;
 import de.waldheinz.fs.FsFile;
 
 /**
- * This class will simply walk the whole tree and copy the file from the source
- * to the destination folder.
+ * This class will simply go through the files of the {@link Catalog} under
+ * the source directory and copy them to the destination folder. The files are
+ * read from the OTG device by the task thread while a {@link BackupPipeline}
+ * writes them to the destination. The outcome and timings of each file are
+ * written to a {@link BackupReport} in the destination folder.
+ * <p/>
+ * Each file is recorded in the {@link BackupManifest} as soon as it is
+ * copied, and the large ones are checkpointed on the way: an interrupted
+ * backup resumes where it stopped.
+ * <p/>
+ * The progress is counted in bytes, and sampled at a fixed rate by a separate
+ * thread, whatever the number and the size of the files.
  *
  * @author rostskadat
  */
-public class BackupTask extends AbstractTask<Void, Integer, List<String>> {
+public class BackupTask extends AsyncTask<Void, Long, List<String>> {
+
+    // The files are copied through a ring of PIPELINE_CHUNKS buffers of this size
+    private static final int COPY_BUFFER_SIZE = 0x100000;
+    private static final int PIPELINE_CHUNKS = 4;
+    private static final int PIPELINE_WRITERS = 2;
+
+    // The progress is published every PROGRESS_INTERVAL ms, the throughput is
+    // an exponential moving average of the samples
+    private static final long PROGRESS_INTERVAL = 500;
+    private static final double PROGRESS_SMOOTHING = 0.2;
+
+    // Why a file was not copied
+    private static final String SKIP_MANIFEST = "manifest";
+    private static final String SKIP_EXISTS = "exists";
+    private static final String SKIP_CONFLICT = "conflict";
+    // The FAT modification times are only precise to 2 s
+    private static final long MODIFICATION_TIME_PRECISION = 2000;
 
-    private final FsDirectory srcDir;
+    private final FileSystem fileSystem;
+    private final Catalog catalog;
+    private final CatalogStore catalogStore;
+    private final int srcDir;
     private final File destDir;
     private final List<String> extensions;
     private final boolean overwrite;
     private final boolean delete;
     private final BackupTaskListener listener;
 
-    private Stack<List<String>> fileToDelete = new Stack<List<String>>();
+    private List<PendingFile> pendingFiles = new ArrayList<PendingFile>();
     private List<String> failedToBackup = new ArrayList<String>();
-    private int currentFile = 0;
+    // The files removed from their directory, until the deletions are flushed
+    private List<String> deletedFiles = new ArrayList<String>();
+    // The bytes of the files skipped or given up, the copied ones are counted by the pipeline
+    private final AtomicLong skippedBytes = new AtomicLong();
+    private long totalBytes;
+    private ScheduledExecutorService progressSampler;
+    private BackupPipeline pipeline;
+    private ExtentResolver extentResolver;
+    private BackupManifest manifest;
+    private BackupReport report;
 
-    public BackupTask(BackupTaskListener listener, FsDirectory srcDir, File destDir, List<String> extensions, boolean delete, boolean overwrite) {
+    public BackupTask(BackupTaskListener listener, FileSystem fileSystem, Catalog catalog, CatalogStore catalogStore, int srcDir, File destDir, List<String> extensions, boolean delete, boolean overwrite) {
         this.listener = listener;
+        this.fileSystem = fileSystem;
+        this.catalog = catalog;
+        this.catalogStore = catalogStore;
         this.srcDir = srcDir;
         this.destDir = destDir;
         this.extensions = extensions;
@@ -71,7 +121,7 @@ public class BackupTask extends AbstractTask<Void, Integer, List<String>> {
             if (!destDir.exists()) {
                 Log.e("BackupTask", "Dest dir '" + destDir.getPath() + "' does not exists or is not writtable");
             } else {
-                Log.i("BackupTask", "Backup from " + srcDir.toString() + " -> " + destDir.toString());
+                Log.i("BackupTask", "Backup from " + catalog.getDirectoryPath(srcDir) + " -> " + destDir.toString());
                 failedToBackup = backupFiles();
                 Log.i("BackupTask", "Backup complete");
             }
@@ -89,9 +139,9 @@ public class BackupTask extends AbstractTask<Void, Integer, List<String>> {
     }
 
     @Override
-    protected void onProgressUpdate(Integer... values) {
+    protected void onProgressUpdate(Long... values) {
         super.onProgressUpdate(values);
-        listener.onBackupProgressUpdate(values);
+        listener.onBackupProgressUpdate(values[0], values[1], values[2], values[3]);
     }
 
     @Override
@@ -105,84 +155,355 @@ public class BackupTask extends AbstractTask<Void, Integer, List<String>> {
     }
 
     private List<String> backupFiles() {
+        pipeline = new BackupPipeline(COPY_BUFFER_SIZE, PIPELINE_CHUNKS, PIPELINE_WRITERS);
+        manifest = catalogStore.loadManifest(fileSystem);
+        report = new BackupReport(destDir,
+                fileSystem instanceof OtgFileSystem ? ((OtgFileSystem) fileSystem).getBlockDevice() : null);
+        ProgressSampler progress = startProgress();
         try {
-            walkFileTree(srcDir, destDir);
+            if (fileSystem instanceof OtgFileSystem) {
+                initExtentResolver(((OtgFileSystem) fileSystem));
+            }
+            int endFile = catalog.getEndFile(srcDir);
+            for (int file = catalog.getFirstFile(srcDir); file < endFile; file++) {
+                if (!catalog.isDeleted(file)) {
+                    visitFile(file);
+                }
+            }
+            completeCopies();
+            if (delete && flushDeletions()) {
+                catalogStore.save(fileSystem, catalog);
+            }
             return failedToBackup;
         } catch (Exception e) {
             // Souldn't be raised...
             Log.e("BackupTask", e.getMessage(), e);
+        } finally {
+            closePipeline();
+            stopProgress(progress);
+            manifest.save();
+            File reportFile = report.close();
+            if (reportFile != null) {
+                Log.i("BackupTask", "Session report written to " + reportFile);
+            }
         }
         return null;
     }
 
-    @Override
-    protected void visitFile(FsDirectoryEntry file, File targetDirectory) throws IOException {
-        if (file == null || !file.isFile()) {
-            throw new IllegalArgumentException("entry must be an existing file");
-        }
-        if (targetDirectory == null || !targetDirectory.exists() || !targetDirectory.isDirectory()
-                || !targetDirectory.canWrite()) {
-            throw new IllegalArgumentException(
-                    "targetDirectory '" + targetDirectory + "' must be an existing writable directory");
-        }
-        String entryName = file.getName();
-        String extensionUpper = FilenameUtils.getExtension(entryName).toUpperCase();
-        String extensionLower = FilenameUtils.getExtension(entryName).toLowerCase();
-        if (!extensions.isEmpty() && !extensions.contains(extensionUpper) && !extensions.contains(extensionLower)) {
-            return;
+    private void initExtentResolver(OtgFileSystem otgFileSystem) {
+        try {
+            extentResolver = otgFileSystem.getExtentResolver();
+        } catch (IOException e) {
+            Log.w("BackupTask", "Reading the files cluster by cluster: " + e.getMessage());
         }
-        if (copyFile(file.getFile(), new File(targetDirectory, entryName))) {
-            if (delete) {
-                fileToDelete.peek().add(entryName);
+    }
+
+    private ProgressSampler startProgress() {
+        int endFile = catalog.getEndFile(srcDir);
+        for (int file = catalog.getFirstFile(srcDir); file < endFile; file++) {
+            if (!catalog.isDeleted(file) && isSelected(file)) {
+                totalBytes += catalog.getLength(file);
             }
-        } else {
-            failedToBackup.add(entryName);
         }
+        ProgressSampler progress = new ProgressSampler(pipeline);
+        progressSampler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "BackupProgress");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        progressSampler.scheduleAtFixedRate(progress, 0, PROGRESS_INTERVAL, TimeUnit.MILLISECONDS);
+        return progress;
     }
 
-    @Override
-    protected void preVisitDirectory(FsDirectoryEntry directory, File targetDirectory) throws IOException {
+    private void stopProgress(ProgressSampler progress) {
+        progressSampler.shutdown();
+        try {
+            if (progressSampler.awaitTermination(PROGRESS_INTERVAL, TimeUnit.MILLISECONDS)) {
+                // The last sample, once everything is written
+                progress.run();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private boolean isSelected(int file) {
+        if (extensions.isEmpty()) {
+            return true;
+        }
+        String extension = FilenameUtils.getExtension(catalog.getFileName(file));
+        return extensions.contains(extension.toUpperCase()) || extensions.contains(extension.toLowerCase());
+    }
+
+    private void closePipeline() {
+        if (pipeline != null) {
+            try {
+                pipeline.close();
+            } catch (IOException e) {
+                Log.e("BackupTask", e.getMessage(), e);
+            }
+            pipeline = null;
+        }
+    }
+
+    private void visitFile(int file) throws IOException {
+        if (!isSelected(file)) {
+            return;
+        }
+        String entryName = catalog.getFileName(file);
+        File destFile = new File(destDir, catalog.getFilePath(file, srcDir));
+        File targetDirectory = destFile.getParentFile();
         if (!targetDirectory.exists()) {
             if (!targetDirectory.mkdirs()) {
-                Log.w("BackupTask", "Failed to create directory "+targetDirectory.getAbsolutePath());
+                Log.w("BackupTask", "Failed to create directory " + targetDirectory.getAbsolutePath());
             }
         }
-        if (delete) {
-            fileToDelete.push(new ArrayList<String>());
+        PendingFile pending = copyFile(file, destFile);
+        if (pending.copy == null) {
+            failedToBackup.add(entryName);
+            skippedBytes.addAndGet(catalog.getLength(file));
+            report.file(catalog.getFilePath(file), catalog.getLength(file), BackupReport.STATUS_FAILED, null,
+                    "Invalid source file", pending.metadataNanos, null);
+        } else {
+            if (pending.skipReason != null) {
+                report.file(catalog.getFilePath(file), catalog.getLength(file), BackupReport.STATUS_SKIPPED,
+                        pending.skipReason, null, pending.metadataNanos, pending.copy);
+            }
+            pendingFiles.add(pending);
         }
     }
 
-    @Override
-    protected void postVisitDirectory(FsDirectoryEntry directory, File targetDirectory) throws IOException {
-        if (delete) {
-            List<String> toDeletes = fileToDelete.pop();
-            for (String toDelete : toDeletes) {
-                directory.getDirectory().remove(toDelete);
+    /**
+     * Wait for the copies of the files. The files that made it to the
+     * destination, or failed to, were already recorded in the manifest and
+     * the report by their {@link FileJournal}. In delete mode they are also removed, both from
+     * their directory and from the catalog, as are the files the manifest
+     * says are backed up. A file skipped only because its destination exists
+     * is kept: nothing proves that the destination is its copy.
+     */
+    private void completeCopies() throws IOException {
+        for (PendingFile pending : pendingFiles) {
+            BackupPipeline.Copy copy = pending.copy;
+            int file = pending.file;
+            String name = catalog.getFileName(file);
+            if (!copy.await()) {
+                failedToBackup.add(name);
+                skippedBytes.addAndGet(catalog.getLength(file) - copy.getOffset() - copy.getWritten());
+                continue;
+            }
+            if (delete && (!copy.isSkipped() || SKIP_MANIFEST.equals(pending.skipReason))) {
+                catalog.getDirectory(catalog.getFileDirectory(file)).remove(name);
+                catalog.markDeleted(file);
+                deletedFiles.add(name);
+            }
+        }
+        pendingFiles.clear();
+    }
+
+    /**
+     * The deletions only live in memory until the file system is flushed:
+     * write the directories and the FAT back to the disk in one go. If that
+     * fails the files deleted are still on the disk: they are reported as
+     * failed, which fails the session.
+     *
+     * @return {@code true} if the deletions reached the disk
+     */
+    private boolean flushDeletions() {
+        long start = System.nanoTime();
+        try {
+            Log.i("BackupTask", "Writing deletions to disk...");
+            fileSystem.flush();
+            return true;
+        } catch (IOException e) {
+            Log.e("BackupTask", "Failed to write deletions: " + e.getMessage(), e);
+            failedToBackup.addAll(deletedFiles);
+            report.error("Failed to write the deletions of " + deletedFiles.size() + " file(s): " + e.getMessage());
+            return false;
+        } finally {
+            report.addMetadataNanos(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Queue the file in the pipeline. It is read chunk by chunk, so that the
+     * memory used does not depend on the size of the file. When its first
+     * cluster is known, the file is read through its extents without going
+     * back to its directory. The copy resumes from the last checkpoint of an
+     * interrupted backup of the same file, if any.
+     *
+     * @return the file with its copy, which is {@code null} if the source
+     * file is not valid
+     */
+    private PendingFile copyFile(int file, File destFile) throws IOException {
+        long start = System.nanoTime();
+        PendingFile pending = new PendingFile(file);
+        pending.skipReason = getSkipReason(file, destFile);
+        if (pending.skipReason != null) {
+            pending.metadataNanos = System.nanoTime() - start;
+            skippedBytes.addAndGet(catalog.getLength(file));
+            pending.copy = pipeline.skip(destFile);
+            return pending;
+        }
+        BackupManifest.Checkpoint checkpoint = manifest.getCheckpoint(catalog.getFilePath(file),
+                BackupPipeline.getPartFile(destFile), catalog.getLength(file), catalog.getLastModified(file));
+        FileJournal journal = new FileJournal(pending);
+        FileExtents extents = resolveExtents(file);
+        if (extents != null) {
+            pending.metadataNanos = System.nanoTime() - start;
+            pending.copy = pipeline.copy(extents, destFile, checkpoint, journal);
+            return pending;
+        }
+        FsDirectoryEntry entry = catalog.getDirectory(catalog.getFileDirectory(file)).getEntry(catalog.getFileName(file));
+        if (entry != null) {
+            FsFile srcFile = entry.getFile();
+            if (srcFile.isValid()) {
+                pending.metadataNanos = System.nanoTime() - start;
+                pending.copy = pipeline.copy(srcFile, destFile, checkpoint, journal);
+                return pending;
             }
         }
+        pending.metadataNanos = System.nanoTime() - start;
+        return pending;
     }
 
-    private boolean copyFile(FsFile srcFile, File destFile) {
-        publishProgress(currentFile++);
-        if (srcFile.isValid()) {
-            ByteBuffer buffer = ByteBuffer.allocate((int) srcFile.getLength());
-            if (destFile.exists() && !overwrite) {
-                return true;
+    /**
+     * Decide from the catalog and the manifest alone whether the file must be
+     * copied. A file already copied with the same size and modification time
+     * is skipped, even in overwrite mode. Without overwrite, an existing file
+     * is only replaced when it is shorter than the source, as left by an
+     * interrupted backup. An existing file with the size and modification
+     * time of the source is skipped, and recorded in the manifest as it was
+     * most likely copied before the manifest existed. Any other existing
+     * file is a conflict, like a camera reusing a file name: it is left
+     * alone, and so is the source.
+     *
+     * @return why the file does not need to be copied, or {@code null} if it
+     * must be copied
+     */
+    private String getSkipReason(int file, File destFile) {
+        String path = catalog.getFilePath(file);
+        long length = catalog.getLength(file);
+        long lastModified = catalog.getLastModified(file);
+        if (manifest.isBackedUp(path, destFile, length, lastModified)) {
+            return SKIP_MANIFEST;
+        }
+        if (!destFile.exists()) {
+            return null;
+        }
+        if (overwrite || destFile.length() < length) {
+            return null;
+        }
+        if (destFile.length() != length
+                || Math.abs(destFile.lastModified() - lastModified) >= MODIFICATION_TIME_PRECISION) {
+            Log.w("BackupTask", "Not replacing " + destFile + ": it is not a copy of " + path);
+            return SKIP_CONFLICT;
+        }
+        manifest.put(path, destFile, length, lastModified, BackupManifest.NO_CHECKSUM);
+        return SKIP_EXISTS;
+    }
+
+    private FileExtents resolveExtents(int file) {
+        long firstCluster = catalog.getFirstCluster(file);
+        if (extentResolver == null || firstCluster < 0) {
+            return null;
+        }
+        try {
+            FileExtents extents = extentResolver.resolve(firstCluster, catalog.getLength(file));
+            Log.d("BackupTask", catalog.getFileName(file) + ": " + extents.getExtents().size() + " extent(s)");
+            return extents;
+        } catch (IOException e) {
+            Log.w("BackupTask", "Reading " + catalog.getFileName(file) + " cluster by cluster: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * This samples the lock-free counters of the copy and publishes the
+     * progress. It only ever runs on one thread at a time.
+     */
+    private class ProgressSampler implements Runnable {
+
+        private final BackupPipeline pipeline;
+        private long lastNanos;
+        private long lastCopied;
+        private double bytesPerSecond = -1;
+
+        private ProgressSampler(BackupPipeline pipeline) {
+            this.pipeline = pipeline;
+        }
+
+        @Override
+        public void run() {
+            long now = System.nanoTime();
+            long copied = Math.min(pipeline.getWritten() + skippedBytes.get(), totalBytes);
+            if (lastNanos != 0 && now > lastNanos) {
+                double rate = (copied - lastCopied) * 1e9 / (now - lastNanos);
+                bytesPerSecond = bytesPerSecond < 0 ? rate : bytesPerSecond + PROGRESS_SMOOTHING * (rate - bytesPerSecond);
             }
-            OutputStream fos = null;
-            try {
-                fos = new FileOutputStream(destFile);
-                srcFile.read(0, buffer);
-                fos.write(buffer.array());
-                fos.flush();
-                return true;
-            } catch (IOException e) {
-                Log.e("BackupTask", e.getMessage(), e);
-            } finally {
-                IOUtils.closeQuietly(fos);
+            lastNanos = now;
+            lastCopied = copied;
+            long rate = (long) Math.max(0, bytesPerSecond);
+            long eta = rate == 0 ? -1 : (totalBytes - copied) / rate;
+            publishProgress(copied, totalBytes, rate, eta);
+        }
+    }
+
+    /**
+     * This records the progress of the copy of a file in the manifest, and
+     * its outcome in the report, from the writer thread, so that it is not
+     * lost if the task does not get to the end of the backup.
+     */
+    private class FileJournal implements BackupPipeline.Journal {
+
+        private final PendingFile pending;
+        private final String path;
+        private final long length;
+        private final long lastModified;
+
+        private FileJournal(PendingFile pending) {
+            this.pending = pending;
+            this.path = catalog.getFilePath(pending.file);
+            this.length = catalog.getLength(pending.file);
+            this.lastModified = catalog.getLastModified(pending.file);
+        }
+
+        @Override
+        public void onCheckpoint(BackupPipeline.Copy copy, long offset, long checksum) {
+            manifest.checkpoint(path, BackupPipeline.getPartFile(copy.getDestFile()), length, lastModified, offset, checksum);
+        }
+
+        @Override
+        public void onComplete(BackupPipeline.Copy copy) {
+            File destFile = copy.getDestFile();
+            if (!destFile.setLastModified(lastModified)) {
+                Log.w("BackupTask", "Failed to set the modification time of " + destFile.getAbsolutePath());
             }
+            manifest.put(path, destFile, length, lastModified, copy.getChecksum());
+            report.file(path, length, BackupReport.STATUS_COPIED, null, null, pending.metadataNanos, copy);
+        }
+
+        @Override
+        public void onFailed(BackupPipeline.Copy copy) {
+            report.file(path, length, BackupReport.STATUS_FAILED, null,
+                    copy.getError() != null ? copy.getError() : "Copy failed", pending.metadataNanos, copy);
+        }
+    }
+
+    /**
+     * A file queued in the pipeline, waiting for its copy to complete.
+     */
+    private static class PendingFile {
+        private final int file;
+        private BackupPipeline.Copy copy;
+        private String skipReason;
+        private long metadataNanos;
+
+        private PendingFile(int file) {
+            this.file = file;
         }
-        return false;
     }
 
 }
@@ -27,7 +27,14 @@ public interface BackupTaskListener {
 
     void onBackupStart();
 
-    void onBackupProgressUpdate(Integer... values);
+    /**
+     * @param copied         the number of bytes copied or skipped so far
+     * @param total          the number of bytes to back up
+     * @param bytesPerSecond the recent throughput
+     * @param eta            the estimated number of seconds left, or -1 if
+     *                       unknown
+     */
+    void onBackupProgressUpdate(long copied, long total, long bytesPerSecond, long eta);
 
     void onBackupReady();
 
@@ -18,36 +18,35 @@
  */
 package net.pictulog.otgdb.task;
 
+import android.os.AsyncTask;
 import android.util.Log;
 
+import net.pictulog.otgdb.catalog.Catalog;
+
 import org.apache.commons.io.FilenameUtils;
 
-import java.io.File;
-import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Stack;
-
-import de.waldheinz.fs.FsDirectory;
-import de.waldheinz.fs.FsDirectoryEntry;
 
 /**
  * This class is simply in charge of counting the number of files on the OTG
  * disk from the baseRoot. It is used to create the progress bar with the
- * correct information.
+ * correct information. The files are listed from the {@link Catalog}, without
+ * going back to the disk.
  *
  * @author rostskadat
  */
-public class CountTask extends AbstractTask<Void, Void, Void> {
+public class CountTask extends AsyncTask<Void, Void, Void> {
 
     private final CountTaskListener listener;
-    private final FsDirectory srcDir;
+    private final Catalog catalog;
+    private final int srcDir;
     private final List<String> extensions;
     private List<String> files = new ArrayList<String>();
-    private Stack<String> pathFragments = new Stack<String>();
 
-    public CountTask(CountTaskListener listener, FsDirectory srcDir, List<String> extensions) {
+    public CountTask(CountTaskListener listener, Catalog catalog, int srcDir, List<String> extensions) {
         this.listener = listener;
+        this.catalog = catalog;
         this.srcDir = srcDir;
         this.extensions = extensions;
     }
@@ -71,40 +70,18 @@ public class CountTask extends AbstractTask<Void, Void, Void> {
     }
 
     private void countFiles() {
-        try {
-            walkFileTree(srcDir, new File(""));
-        } catch (Exception e) {
-            // Shouldn't be raised...
-            Log.e("CountTask", e.getMessage(), e);
-        }
-    }
-
-    @Override
-    protected void visitFile(FsDirectoryEntry file, File targetDirectory) throws IOException {
-        String entryName = file.getName();
-        String extensionUpper = FilenameUtils.getExtension(entryName).toUpperCase();
-        String extensionLower = FilenameUtils.getExtension(entryName).toLowerCase();
-        if (!extensions.isEmpty() && !extensions.contains(extensionUpper) && !extensions.contains(extensionLower)) {
-            return;
-        }
-        StringBuilder path = new StringBuilder("/");
-        for (String pathFragment : pathFragments) {
-            path.append(pathFragment).append("/");
+        int endFile = catalog.getEndFile(srcDir);
+        for (int file = catalog.getFirstFile(srcDir); file < endFile; file++) {
+            if (catalog.isDeleted(file)) {
+                continue;
+            }
+            String entryName = catalog.getFileName(file);
+            String extensionUpper = FilenameUtils.getExtension(entryName).toUpperCase();
+            String extensionLower = FilenameUtils.getExtension(entryName).toLowerCase();
+            if (!extensions.isEmpty() && !extensions.contains(extensionUpper) && !extensions.contains(extensionLower)) {
+                continue;
+            }
+            files.add(catalog.getFilePath(file, srcDir));
         }
-        path.append(file.getName());
-        files.add(path.toString());
-    }
-
-    @Override
-    protected void preVisitDirectory(FsDirectoryEntry directory, File targetDirectory) throws IOException {
-        // NA
-        pathFragments.push(directory.getName());
     }
-
-    @Override
-    protected void postVisitDirectory(FsDirectoryEntry directory, File targetDirectory) throws IOException {
-        // NA
-        pathFragments.pop();
-    }
-
 }
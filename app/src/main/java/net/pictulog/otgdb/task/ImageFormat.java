@@ -0,0 +1,44 @@
+/**
+ * This file is part of OTGDiskBackup.
+ * <p/>
+ * Copyright 2005-2009 Red Hat, Inc.  All rights reserved.
+ * <p/>
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * <p/>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.pictulog.otgdb.task;
+
+/**
+ * How {@link ImageTask} stores the image of the OTG device.
+ *
+ * @author rostskadat
+ */
+public enum ImageFormat {
+    /**
+     * Every sector, in a plain file, with its SHA-256.
+     */
+    RAW,
+    /**
+     * Only the sectors in use, in a plain file whose other parts are holes.
+     */
+    SPARSE,
+    /**
+     * Only the sectors in use, compressed block by block.
+     */
+    COMPRESSED,
+    /**
+     * Every sector that can be read from a failing device, with its SHA-256
+     * and the map of the bad sectors.
+     */
+    RESCUE
+}
@@ -0,0 +1,419 @@
+/**
+ * This file is part of OTGDiskBackup.
+ * <p/>
+ * Copyright 2005-2009 Red Hat, Inc.  All rights reserved.
+ * <p/>
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * <p/>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.pictulog.otgdb.task;
+
+import android.os.AsyncTask;
+import android.util.Log;
+
+import net.pictulog.otgdb.device.ImageWriter;
+import net.pictulog.otgdb.device.OtgBlockDevice;
+import net.pictulog.otgdb.device.OtgFileSystem;
+import net.pictulog.otgdb.device.RescueMap;
+import net.pictulog.otgdb.device.RescueReader;
+import net.pictulog.otgdb.device.SectorConsumer;
+import net.pictulog.otgdb.fat.Extent;
+import net.pictulog.otgdb.fat.FatBootSector;
+import net.pictulog.otgdb.fat.FatTable;
+import net.pictulog.otgdb.fat.FatVolume;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+
+import de.waldheinz.fs.FileSystem;
+
+/**
+ * This class dumps the sectors of the OTG device to an image file. Either the
+ * partition found when the device was initialized or the whole device is
+ * read, one transfer at a time and bypassing the caches.
+ * <p/>
+ * A {@link ImageFormat#RAW} image holds every sector: a {@link BackupPipeline}
+ * writes it and computes its hash, which is saved next to the image in the
+ * format of {@code sha256sum}. The other formats only read what the FAT says
+ * is in use, so that their time and size depend on the used space rather
+ * than on the capacity, and write it with an {@link ImageWriter}. A
+ * {@link ImageFormat#RESCUE} image is read with a {@link RescueReader}, which
+ * gets the readable sectors of a failing device first and then narrows down
+ * the bad ones, whose map is saved next to the image.
+ *
+ * @author rostskadat
+ */
+public class ImageTask extends AsyncTask<Void, Long, File> {
+
+    public static final String HASH_ALGORITHM = "SHA-256";
+    public static final String HASH_EXTENSION = ".sha256";
+    public static final String MAP_EXTENSION = ".map";
+
+    private static final int IMAGE_BUFFER_SIZE = 0x100000;
+    private static final int PIPELINE_CHUNKS = 4;
+    // The progress is published at most every PROGRESS_INTERVAL ns
+    private static final long PROGRESS_INTERVAL = 500000000L;
+    // The number of times the bad sectors are read again when rescuing
+    private static final int RESCUE_RETRIES = 2;
+
+    private final ImageTaskListener listener;
+    private final FileSystem fileSystem;
+    private final File destDir;
+    private final boolean wholeDevice;
+    private final ImageFormat format;
+    private String hash;
+    private long badSectors;
+
+    public ImageTask(ImageTaskListener listener, FileSystem fileSystem, File destDir, boolean wholeDevice,
+                     ImageFormat format) {
+        this.listener = listener;
+        this.fileSystem = fileSystem;
+        this.destDir = destDir;
+        this.wholeDevice = wholeDevice;
+        this.format = format;
+    }
+
+    @Override
+    protected File doInBackground(Void... params) {
+        try {
+            if (!(fileSystem instanceof OtgFileSystem)) {
+                Log.e("ImageTask", "Only an OTG device can be imaged");
+            } else if (!destDir.exists()) {
+                Log.e("ImageTask", "Dest dir '" + destDir.getPath() + "' does not exists or is not writtable");
+            } else {
+                return imageDevice(((OtgFileSystem) fileSystem));
+            }
+        } catch (Exception e) {
+            // Souldn't be raised...
+            Log.e("ImageTask", e.getMessage(), e);
+        }
+        return null;
+    }
+
+    @Override
+    protected void onPreExecute() {
+        super.onPreExecute();
+        listener.onImageStart();
+    }
+
+    @Override
+    protected void onProgressUpdate(Long... values) {
+        super.onProgressUpdate(values);
+        listener.onImageProgressUpdate(values[0], values[1], values[2], values[3]);
+    }
+
+    @Override
+    protected void onPostExecute(File image) {
+        super.onPostExecute(image);
+        if (image != null) {
+            listener.onImageReady(image, hash, badSectors);
+        } else {
+            listener.onImageFailed();
+        }
+    }
+
+    @Override
+    protected void onCancelled(File image) {
+        super.onCancelled(image);
+        listener.onImageFailed();
+    }
+
+    private File imageDevice(OtgFileSystem otgFileSystem) throws IOException {
+        OtgBlockDevice blockDevice = otgFileSystem.getBlockDevice();
+        if (!otgFileSystem.isReadOnly()) {
+            // The image must contain the pending directory and FAT updates
+            otgFileSystem.flush();
+        }
+        long firstSector = wholeDevice ? 0 : blockDevice.getSectorOffset();
+        long sectors = wholeDevice ? blockDevice.getDeviceSectors() : blockDevice.getNumberOfSectors();
+        int sectorSize = blockDevice.getSectorSize();
+        long size = sectors * sectorSize;
+        if (size <= 0) {
+            throw new IOException("Nothing to image");
+        }
+        String name = "otgdisk-" + new SimpleDateFormat("yyyyMMdd-HHmmss", Locale.US).format(new Date())
+                + (wholeDevice ? "" : "-p") + (format == ImageFormat.COMPRESSED ? ".otgi" : ".img");
+        File image = new File(destDir, name);
+        Log.i("ImageTask", "Imaging " + sectors + " sector(s) @" + firstSector + " -> " + image + " (" + format
+                + ") with transfers of " + blockDevice.getTransferSize() + " bytes");
+        long start = System.nanoTime();
+        long imaged;
+        if (format == ImageFormat.RAW) {
+            if (!imageAll(blockDevice, firstSector, sectors, image)) {
+                return null;
+            }
+            imaged = size;
+            FileUtils.writeStringToFile(new File(destDir, name + HASH_EXTENSION), hash + "  " + name + "\n",
+                    "US-ASCII");
+        } else if (format == ImageFormat.RESCUE) {
+            RescueMap map = rescue(blockDevice, firstSector, sectors, image);
+            map.save(new File(destDir, name + MAP_EXTENSION));
+            badSectors = map.getBadSectors();
+            imaged = map.getFinishedSectors() * sectorSize;
+            hash = hashFile(image);
+            FileUtils.writeStringToFile(new File(destDir, name + HASH_EXTENSION), hash + "  " + name + "\n",
+                    "US-ASCII");
+            Log.i("ImageTask", "Rescued " + image + ": " + map);
+        } else {
+            List<Extent> extents = getUsedExtents(otgFileSystem, firstSector, sectors);
+            imaged = imageUsed(blockDevice, firstSector, size, extents, image);
+        }
+        long nanos = System.nanoTime() - start;
+        Log.i("ImageTask", String.format(Locale.US, "Imaged %d of %d bytes in %.1f s (%.1f MiB/s)%s", imaged, size,
+                nanos / 1e9, nanos == 0 ? 0.0 : imaged * 1e9 / nanos / 1048576,
+                hash != null ? ", " + HASH_ALGORITHM + " " + hash : ""));
+        return image;
+    }
+
+    /**
+     * Copy every sector of the region to the image through a
+     * {@link BackupPipeline}, whose writer computes the hash.
+     *
+     * @return {@code true} if the image was written
+     */
+    private boolean imageAll(OtgBlockDevice blockDevice, final long firstSector, long sectors, File image)
+            throws IOException {
+        final int sectorSize = blockDevice.getSectorSize();
+        final long total = sectors * sectorSize;
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance(HASH_ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(HASH_ALGORITHM + " not available", e);
+        }
+        final BackupPipeline pipeline = new BackupPipeline(IMAGE_BUFFER_SIZE, PIPELINE_CHUNKS, 1);
+        final BackupPipeline.Copy copy = pipeline.open(image, digest);
+        final long start = System.nanoTime();
+        boolean complete = false;
+        try {
+            blockDevice.readStream(firstSector, sectors, new SectorConsumer() {
+                private long lastProgress = start;
+
+                @Override
+                public void onSectors(long sector, ByteBuffer data) throws IOException {
+                    if (isCancelled()) {
+                        throw new InterruptedIOException("Imaging cancelled");
+                    }
+                    if (copy.isFailed()) {
+                        throw new IOException("Failed to write " + copy.getDestFile().getName());
+                    }
+                    long read = (sector - firstSector) * sectorSize + data.remaining();
+                    pipeline.write(copy, data, read >= total);
+                    long now = System.nanoTime();
+                    if (now - lastProgress >= PROGRESS_INTERVAL || read >= total) {
+                        lastProgress = now;
+                        reportProgress(read, total, now - start);
+                    }
+                }
+            });
+            complete = true;
+        } finally {
+            if (!complete) {
+                pipeline.abort(copy);
+            }
+            pipeline.close();
+        }
+        if (!copy.await()) {
+            return false;
+        }
+        hash = toHex(digest.digest());
+        return true;
+    }
+
+    /**
+     * Copy the given extents of the region to a sparse or compressed image.
+     *
+     * @return the number of bytes read from the device
+     */
+    private long imageUsed(OtgBlockDevice blockDevice, final long firstSector, long size, List<Extent> extents,
+                           File image) throws IOException {
+        final int sectorSize = blockDevice.getSectorSize();
+        long used = 0;
+        for (Extent extent : extents) {
+            used += extent.getLength();
+        }
+        final long total = used;
+        final ImageWriter writer = new ImageWriter(image, size, sectorSize, ImageWriter.DEFAULT_BLOCK_SIZE,
+                format == ImageFormat.COMPRESSED);
+        final long start = System.nanoTime();
+        // The bytes read and the time of the last progress, across extents
+        final long[] progress = new long[]{0, start};
+        boolean complete = false;
+        try {
+            for (Extent extent : extents) {
+                blockDevice.readStream(extent.getDevOffset() / sectorSize, extent.getLength() / sectorSize,
+                        new SectorConsumer() {
+                            @Override
+                            public void onSectors(long sector, ByteBuffer data) throws IOException {
+                                if (isCancelled()) {
+                                    throw new InterruptedIOException("Imaging cancelled");
+                                }
+                                progress[0] += data.remaining();
+                                writer.write((sector - firstSector) * sectorSize, data);
+                                long now = System.nanoTime();
+                                if (now - progress[1] >= PROGRESS_INTERVAL || progress[0] >= total) {
+                                    progress[1] = now;
+                                    reportProgress(progress[0], total, now - start);
+                                }
+                            }
+                        });
+            }
+            writer.close();
+            complete = true;
+        } finally {
+            if (!complete) {
+                writer.abort();
+            }
+        }
+        return total;
+    }
+
+    /**
+     * Read the region with a {@link RescueReader}. The sectors land at their
+     * place in the image as they are read, the ones never read are left as
+     * zeros.
+     *
+     * @return the state of each sector of the region
+     */
+    private RescueMap rescue(OtgBlockDevice blockDevice, final long firstSector, long sectors, File image)
+            throws IOException {
+        final int sectorSize = blockDevice.getSectorSize();
+        final long total = sectors * sectorSize;
+        final RandomAccessFile output = new RandomAccessFile(image, "rw");
+        final long start = System.nanoTime();
+        final long[] progress = new long[]{0, start};
+        boolean complete = false;
+        try {
+            output.setLength(total);
+            RescueReader reader = blockDevice.newRescueReader(RESCUE_RETRIES);
+            RescueMap map = reader.rescue(firstSector, sectors, new SectorConsumer() {
+                @Override
+                public void onSectors(long sector, ByteBuffer data) throws IOException {
+                    if (isCancelled()) {
+                        throw new InterruptedIOException("Imaging cancelled");
+                    }
+                    progress[0] += data.remaining();
+                    output.seek((sector - firstSector) * sectorSize);
+                    output.write(data.array(), data.arrayOffset() + data.position(), data.remaining());
+                    long now = System.nanoTime();
+                    if (now - progress[1] >= PROGRESS_INTERVAL) {
+                        progress[1] = now;
+                        reportProgress(progress[0], total, now - start);
+                    }
+                }
+            });
+            output.close();
+            complete = true;
+            return map;
+        } finally {
+            if (!complete) {
+                IOUtils.closeQuietly(output);
+                if (!image.delete()) {
+                    Log.w("ImageTask", "Failed to delete partial image " + image.getAbsolutePath());
+                }
+            }
+        }
+    }
+
+    private String hashFile(File file) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance(HASH_ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(HASH_ALGORITHM + " not available", e);
+        }
+        InputStream input = new FileInputStream(file);
+        try {
+            byte[] buffer = new byte[IMAGE_BUFFER_SIZE];
+            int read;
+            while ((read = input.read(buffer)) >= 0) {
+                digest.update(buffer, 0, read);
+            }
+        } finally {
+            input.close();
+        }
+        return toHex(digest.digest());
+    }
+
+    /**
+     * The parts of the region worth imaging: the reserved sectors, the FATs
+     * and the allocated clusters of the partition. When imaging the whole
+     * device, whatever lies before and after the partition is added as is.
+     *
+     * @return the extents, whose file offsets are in the image and device
+     * offsets in the device
+     */
+    private List<Extent> getUsedExtents(OtgFileSystem otgFileSystem, long firstSector, long sectors)
+            throws IOException {
+        OtgBlockDevice blockDevice = otgFileSystem.getBlockDevice();
+        int sectorSize = blockDevice.getSectorSize();
+        FatTable fatTable;
+        if (otgFileSystem.getFileSystem() instanceof FatVolume) {
+            fatTable = ((FatVolume) otgFileSystem.getFileSystem()).getFatTable();
+        } else {
+            fatTable = new FatTable(blockDevice, FatBootSector.read(blockDevice));
+        }
+        long partitionStart = blockDevice.getSectorOffset() * sectorSize;
+        long partitionEnd = partitionStart + blockDevice.getSize();
+        long start = firstSector * sectorSize;
+        long end = (firstSector + sectors) * sectorSize;
+        List<Extent> extents = new ArrayList<Extent>();
+        if (partitionStart > start) {
+            extents.add(new Extent(0, start, partitionStart - start));
+        }
+        for (Extent extent : fatTable.getAllocatedExtents()) {
+            long length = Math.min(extent.getLength(), blockDevice.getSize() - extent.getDevOffset());
+            if (length > 0) {
+                long devOffset = partitionStart + extent.getDevOffset();
+                extents.add(new Extent(devOffset - start, devOffset, length));
+            }
+        }
+        if (end > partitionEnd) {
+            extents.add(new Extent(partitionEnd - start, partitionEnd, end - partitionEnd));
+        }
+        return extents;
+    }
+
+    /**
+     * Publish the bytes read so far along with the throughput, in bytes per
+     * second, and the estimated time left, in seconds.
+     */
+    private void reportProgress(long read, long total, long nanos) {
+        long bytesPerSecond = nanos == 0 ? 0 : (long) (read * 1e9 / nanos);
+        long eta = bytesPerSecond == 0 ? -1 : (total - read) / bytesPerSecond;
+        publishProgress(read, total, bytesPerSecond, eta);
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(String.format("%02x", b & 0xff));
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,49 @@
+/**
+ * This file is part of OTGDiskBackup.
+ * <p/>
+ * Copyright 2005-2009 Red Hat, Inc.  All rights reserved.
+ * <p/>
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * <p/>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.pictulog.otgdb.task;
+
+import java.io.File;
+
+/**
+ * @author rostskadat
+ */
+public interface ImageTaskListener {
+
+    void onImageStart();
+
+    /**
+     * @param read           the number of bytes imaged so far
+     * @param total          the size of the image
+     * @param bytesPerSecond the average throughput
+     * @param eta            the estimated number of seconds left, or -1 if
+     *                       unknown
+     */
+    void onImageProgressUpdate(long read, long total, long bytesPerSecond, long eta);
+
+    /**
+     * @param hash       the SHA-256 of the image, or {@code null} if only the
+     *                   used sectors were imaged
+     * @param badSectors the number of sectors that could not be read, left
+     *                   as zeros in the image
+     */
+    void onImageReady(File image, String hash, long badSectors);
+
+    void onImageFailed();
+
+}
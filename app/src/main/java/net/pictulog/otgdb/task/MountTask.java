@@ -21,6 +21,7 @@ package net.pictulog.otgdb.task;
 import android.app.PendingIntent;
 import android.content.Context;
 import android.content.Intent;
+import android.content.SharedPreferences;
 import android.hardware.usb.UsbConstants;
 import android.hardware.usb.UsbDevice;
 import android.hardware.usb.UsbDeviceConnection;
@@ -33,8 +34,12 @@ import android.util.Log;
 import net.pictulog.otgdb.MainActivity;
 import net.pictulog.otgdb.PreferencesActivity;
 import net.pictulog.otgdb.R;
+import net.pictulog.otgdb.device.AsyncUsbBulkTransport;
 import net.pictulog.otgdb.device.OtgBlockDevice;
 import net.pictulog.otgdb.device.OtgDeviceFacade;
+import net.pictulog.otgdb.device.OtgFileSystem;
+import net.pictulog.otgdb.device.TransferProfile;
+import net.pictulog.otgdb.fat.FatVolume;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
@@ -48,7 +53,6 @@ import de.waldheinz.fs.FileSystem;
 import de.waldheinz.fs.FsDirectory;
 import de.waldheinz.fs.FsDirectoryEntry;
 import de.waldheinz.fs.FsFile;
-import de.waldheinz.fs.fat.FatFileSystem;
 import de.waldheinz.fs.fat.FatType;
 import de.waldheinz.fs.fat.SuperFloppyFormatter;
 import de.waldheinz.fs.util.RamDisk;
@@ -203,14 +207,25 @@ public class MountTask extends AsyncTask<Void, Void, FileSystem> {
     private FileSystem readFileSystem() {
         try {
             Log.i("MountTask", "Mounting OTG disk on interface #" + usbInterface.getId() + ", device #" + device.getDeviceId());
-            OtgDeviceFacade facade = new OtgDeviceFacade(usbInterface, DEFAULT_LUN, usbDeviceConnection, device);
+            OtgDeviceFacade facade;
+            if (PreferenceManager.getDefaultSharedPreferences(context).getBoolean(PreferencesActivity.PREFS_ASYNC_TRANSPORT, false)) {
+                Log.d("MountTask", "Using asynchronous USB transfers");
+                facade = new OtgDeviceFacade(new AsyncUsbBulkTransport(usbDeviceConnection, usbInterface), DEFAULT_LUN);
+            } else {
+                facade = new OtgDeviceFacade(usbInterface, DEFAULT_LUN, usbDeviceConnection, device);
+            }
+            facade.getTrace().setEnabled(
+                    PreferenceManager.getDefaultSharedPreferences(context).getBoolean(PreferencesActivity.PREFS_TRACE, false));
+            facade.setVerbose(
+                    PreferenceManager.getDefaultSharedPreferences(context).getBoolean(PreferencesActivity.PREFS_VERBOSE, false));
             OtgBlockDevice blockDevice = new OtgBlockDevice(facade);
             blockDevice.init();
+            tuneTransferSize(blockDevice);
             if (blockDevice.getFatType() == FatType.FAT32) {
                 boolean readOnly = !PreferenceManager.getDefaultSharedPreferences(context).getBoolean(PreferencesActivity.PREFS_DELETE, false);
                 Log.d("MountTask", "Reading FAT filesystem " + (readOnly ? "ro" : "rw"));
                 blockDevice.setReadOnly(readOnly);
-                return FatFileSystem.read(blockDevice, readOnly);
+                return new OtgFileSystem(FatVolume.read(blockDevice, readOnly), blockDevice);
             } else {
                 errorMessageId = R.string.mountingFailed;
                 Log.e("MountTask", "File system not supported");
@@ -221,4 +236,28 @@ public class MountTask extends AsyncTask<Void, Void, FileSystem> {
         }
         return null;
     }
+
+    /**
+     * Set the transfer size of the block device from the profile saved for
+     * this VID:PID, probing the device the first time it is seen. A probe
+     * that fell back to the default transfer size is not saved, so that the
+     * next mount probes the device again.
+     */
+    private void tuneTransferSize(OtgBlockDevice blockDevice) throws IOException {
+        SharedPreferences settings = PreferenceManager.getDefaultSharedPreferences(context);
+        String key = String.format("%s%04X:%04X", PreferencesActivity.PREFS_TRANSFER_SIZE, device.getVendorId(),
+                device.getProductId());
+        int transferSize = settings.getInt(key, 0);
+        if (transferSize == 0) {
+            Log.i("MountTask", "Unknown device, probing transfer sizes...");
+            TransferProfile profile = blockDevice.probeTransferProfile();
+            transferSize = profile.getTransferSize();
+            if (profile.isMeasured()) {
+                settings.edit().putInt(key, transferSize).apply();
+            } else {
+                Log.w("MountTask", "Probe inconclusive, not saving the transfer size");
+            }
+        }
+        blockDevice.setTransferSize(transferSize);
+    }
 }
@@ -20,34 +20,47 @@ package net.pictulog.otgdb.task;
 
 import android.util.Log;
 
+import net.pictulog.otgdb.catalog.Catalog;
+import net.pictulog.otgdb.catalog.CatalogStore;
+import net.pictulog.otgdb.fat.FatEntries;
+
 import java.io.File;
 import java.io.IOException;
+import java.util.Stack;
 
+import de.waldheinz.fs.FileSystem;
 import de.waldheinz.fs.FsDirectory;
 import de.waldheinz.fs.FsDirectoryEntry;
 
 /**
- * This class is in charge of navigating the OTG disk in order to lookup the
- * baseRoot
+ * This class is in charge of looking up the baseRoot on the OTG disk, and of
+ * walking the tree below it once in order to build its {@link Catalog}. The
+ * baseRoot is resolved directly from its path, so the rest of the disk is
+ * never read. When the disk is already known, its catalog is loaded from the
+ * {@link CatalogStore} instead.
  *
  * @author rostskadat
  */
-public class NavigateTask extends AbstractTask<Void, Void, FsDirectory> {
+public class NavigateTask extends AbstractTask<Void, Void, Catalog> {
 
     private final NavigateTaskListener listener;
-    private final FsDirectory rootDir;
+    private final FileSystem fileSystem;
+    private final CatalogStore catalogStore;
     private final String targetPath;
 
-    private FsDirectory navigateTo = null;
+    private Catalog catalog;
+    private Stack<Integer> directories = new Stack<Integer>();
+    private int navigateTo = -1;
 
-    public NavigateTask(NavigateTaskListener listener, FsDirectory rootDir, String targetPath) {
+    public NavigateTask(NavigateTaskListener listener, FileSystem fileSystem, CatalogStore catalogStore, String targetPath) {
         this.listener = listener;
-        this.rootDir = rootDir;
+        this.fileSystem = fileSystem;
+        this.catalogStore = catalogStore;
         this.targetPath = targetPath;
     }
 
     @Override
-    protected FsDirectory doInBackground(Void... params) {
+    protected Catalog doInBackground(Void... params) {
         try {
             return navigate();
         } catch (Exception e) {
@@ -58,33 +71,63 @@ public class NavigateTask extends AbstractTask<Void, Void, FsDirectory> {
     }
 
     @Override
-    protected void onPostExecute(FsDirectory result) {
+    protected void onPostExecute(Catalog result) {
         super.onPostExecute(result);
-        listener.onNavigateReady(result);
+        listener.onNavigateReady(result, navigateTo);
     }
 
-    private FsDirectory navigate() {
+    private Catalog navigate() {
         try {
-            walkFileTree(rootDir, new File("/"));
+            String basePath = Catalog.normalize(targetPath);
+            FsDirectory baseDir = fileSystem.getRoot();
+            long baseCluster = Catalog.UNKNOWN;
+            if (!"/".equals(basePath)) {
+                FsDirectoryEntry entry = lookup(baseDir, basePath);
+                if (entry == null || !entry.isDirectory()) {
+                    Log.w("TASKS", "Directory not found: " + basePath);
+                    return null;
+                }
+                baseDir = entry.getDirectory();
+                baseCluster = FatEntries.getStartCluster(entry);
+            }
+            catalog = catalogStore.load(fileSystem, basePath, baseDir, baseCluster);
+            if (catalog == null) {
+                catalog = new Catalog(basePath, baseDir);
+                catalog.setDirectorySignature(Catalog.ROOT, baseCluster, Catalog.UNKNOWN);
+                directories.push(Catalog.ROOT);
+                if (!walkFileTree(baseDir, new File(basePath))) {
+                    Log.i("TASKS", "Navigation cancelled");
+                    return null;
+                }
+                catalog.endDirectory(Catalog.ROOT);
+            }
+            Log.i("TASKS", "Disk catalog: " + catalog);
+            catalogStore.save(fileSystem, catalog);
+            navigateTo = Catalog.ROOT;
         } catch (Exception e) {
             // Souldn't be raised...
             Log.e("TASKS", e.getMessage(), e);
         }
-        return navigateTo;
+        return catalog;
     }
 
-    protected void visitFile(FsDirectoryEntry file, File targetDirectory) throws IOException {
-        // NA
+    @Override
+    protected VisitResult visitFile(FsDirectoryEntry file, File targetDirectory) throws IOException {
+        catalog.addFile(directories.peek(), file);
+        return isCancelled() ? VisitResult.TERMINATE : VisitResult.CONTINUE;
     }
 
     @Override
-    protected void preVisitDirectory(FsDirectoryEntry directory, File targetDirectory) throws IOException {
-        if (targetDirectory.getPath().equals(targetPath)) {
-            navigateTo = directory.getDirectory();
-        }
+    protected VisitResult preVisitDirectory(FsDirectoryEntry directory, File targetDirectory) throws IOException {
+        int index = catalog.startDirectory(directories.peek(), directory.getName(), directory.getDirectory());
+        catalog.setDirectorySignature(index, FatEntries.getStartCluster(directory), Catalog.UNKNOWN);
+        directories.push(index);
+        return isCancelled() ? VisitResult.TERMINATE : VisitResult.CONTINUE;
     }
 
     @Override
-    protected void postVisitDirectory(FsDirectoryEntry directory, File targetDirectory) throws IOException {
+    protected VisitResult postVisitDirectory(FsDirectoryEntry directory, File targetDirectory) throws IOException {
+        catalog.endDirectory(directories.pop());
+        return VisitResult.CONTINUE;
     }
 }
@@ -18,10 +18,16 @@
  */
 package net.pictulog.otgdb.task;
 
-import de.waldheinz.fs.FsDirectory;
+import net.pictulog.otgdb.catalog.Catalog;
 
 public interface NavigateTaskListener {
 
-    void onNavigateReady(FsDirectory fromDir);
+    /**
+     * @param catalog the catalog of the target directory, {@code null} if it
+     *                was not found
+     * @param fromDir the index of the target directory in the catalog, -1 if
+     *                it was not found
+     */
+    void onNavigateReady(Catalog catalog, int fromDir);
 
 }
@@ -0,0 +1,39 @@
+/**
+ * This file is part of OTGDiskBackup.
+ * <p/>
+ * Copyright 2005-2009 Red Hat, Inc.  All rights reserved.
+ * <p/>
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * <p/>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.pictulog.otgdb.task;
+
+/**
+ * What {@link AbstractTask#walkFileTree} should do after visiting an entry.
+ *
+ * @author rostskadat
+ */
+public enum VisitResult {
+    /**
+     * Go on with the traversal.
+     */
+    CONTINUE,
+    /**
+     * Do not enter this directory. Only meaningful for preVisitDirectory.
+     */
+    SKIP_SUBTREE,
+    /**
+     * Stop the traversal.
+     */
+    TERMINATE
+}
@@ -43,8 +43,6 @@ public class PrettyPrint {
     private static final char PRINTABLE_LOW = ' ';  // 0x20
     private static final char PRINTABLE_HIGH = '~'; // 0x7e
 
-    private static final char[] buffer = new char[ASCII_START + BYTES_IN_ROW];
-
     /* Hexadecimal digits. */
     private static final char[] hc = {
             '0', '1', '2', '3', '4', '5', '6', '7',
@@ -110,11 +108,13 @@ public class PrettyPrint {
      */
     public static StringBuffer prettyPrint(StringBuffer buf, byte[] b, int off, int len) {
         int rows = len / BYTES_IN_ROW;
+        // One line buffer per call, so that several threads can print at once
+        char[] buffer = new char[ASCII_START + BYTES_IN_ROW];
 
         // Deal with each complete group of BYTES_IN_ROW bytes
         boolean lastLineIsZero = false;
         for (int i = 0; i < rows; i++) {
-            char[] line = prettyPrintToCharArray(b, off + i * BYTES_IN_ROW, BYTES_IN_ROW, true);
+            char[] line = prettyPrintToCharArray(buffer, b, off + i * BYTES_IN_ROW, BYTES_IN_ROW, true);
             if (line == null && lastLineIsZero) {
                 continue;
             } else if (line != null) {
@@ -129,7 +129,7 @@ public class PrettyPrint {
         // Deal with the last incomplete group, if any
         lastLineIsZero = false;
         if ((len % BYTES_IN_ROW) != 0) {
-            char[] line = prettyPrintToCharArray(b, off + rows * BYTES_IN_ROW, (len % BYTES_IN_ROW), false);
+            char[] line = prettyPrintToCharArray(buffer, b, off + rows * BYTES_IN_ROW, (len % BYTES_IN_ROW), false);
             buf.append(line);
             buf.append('\n');
         }
@@ -140,8 +140,7 @@ public class PrettyPrint {
      * Prints at most BYTES_IN_ROW bytes at a time, i.e. 0 < len <= BYTES_IN_ROW
      * and offset must be a multiple of BYTES_IN_ROW
      */
-    private static char[] prettyPrintToCharArray(byte[] b, int off, int len, boolean reduce) {
-        char[] r = buffer;          // = new char[ASCII_START + BYTES_IN_ROW];
+    private static char[] prettyPrintToCharArray(char[] r, byte[] b, int off, int len, boolean reduce) {
         int byteVal = 0;
         int j = 0;
 
@@ -0,0 +1,186 @@
+/**
+ * This file is part of OTGDiskBackup.
+ * <p/>
+ * Copyright 2005-2009 Red Hat, Inc.  All rights reserved.
+ * <p/>
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * <p/>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.pictulog.otgdb.catalog;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Reloads a {@link BackupManifest} as after a crash, from the journal left
+ * behind, torn or corrupted.
+ *
+ * @author rostskadat
+ */
+public class BackupManifestTest {
+
+    private static final long LAST_MODIFIED = 1433161496000L;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File file;
+    private File journalFile;
+    private File photo1;
+    private File photo2;
+    private File movie;
+
+    @Before
+    public void setUp() throws IOException {
+        file = new File(folder.getRoot(), "manifest");
+        journalFile = new File(file.getPath() + ".journal");
+        photo1 = destFile("IMG_0001.JPG", 1000);
+        photo2 = destFile("IMG_0002.JPG", 2000);
+        movie = new File(folder.getRoot(), "MVI_0003.MOV.part");
+    }
+
+    @Test
+    public void testReplayAfterCrash() {
+        BackupManifest manifest = BackupManifest.load(file);
+        manifest.put("/IMG_0001.JPG", photo1, 1000, LAST_MODIFIED, 42);
+        manifest.checkpoint("/MVI_0003.MOV", movie, 100000, LAST_MODIFIED, 65536, 1234);
+        // Killed before save()
+        assertFalse(file.exists());
+
+        BackupManifest reloaded = BackupManifest.load(file);
+        assertEquals(1, reloaded.size());
+        assertTrue(reloaded.isBackedUp("/IMG_0001.JPG", photo1, 1000, LAST_MODIFIED));
+        assertFalse(reloaded.isBackedUp("/IMG_0001.JPG", photo1, 1000, LAST_MODIFIED + 2000));
+        BackupManifest.Checkpoint checkpoint = reloaded.getCheckpoint("/MVI_0003.MOV", movie, 100000, LAST_MODIFIED);
+        assertNotNull(checkpoint);
+        assertEquals(65536, checkpoint.getOffset());
+        assertEquals(1234, checkpoint.getChecksum());
+        // The file changed on the card since
+        assertNull(reloaded.getCheckpoint("/MVI_0003.MOV", movie, 100001, LAST_MODIFIED));
+    }
+
+    @Test
+    public void testTornRecordIsCut() throws IOException {
+        BackupManifest manifest = BackupManifest.load(file);
+        manifest.put("/IMG_0001.JPG", photo1, 1000, LAST_MODIFIED, 42);
+        long valid = journalFile.length();
+        manifest.put("/IMG_0002.JPG", photo2, 2000, LAST_MODIFIED, 43);
+        // Only the beginning of the last record made it to the disk
+        truncate(journalFile, valid + (journalFile.length() - valid) / 2);
+
+        BackupManifest reloaded = BackupManifest.load(file);
+        assertEquals(1, reloaded.size());
+        assertTrue(reloaded.isBackedUp("/IMG_0001.JPG", photo1, 1000, LAST_MODIFIED));
+        assertFalse(reloaded.isBackedUp("/IMG_0002.JPG", photo2, 2000, LAST_MODIFIED));
+        assertEquals(valid, journalFile.length());
+
+        // The next records follow the last valid one
+        reloaded.put("/IMG_0002.JPG", photo2, 2000, LAST_MODIFIED, 43);
+        BackupManifest again = BackupManifest.load(file);
+        assertEquals(2, again.size());
+        assertTrue(again.isBackedUp("/IMG_0002.JPG", photo2, 2000, LAST_MODIFIED));
+    }
+
+    @Test
+    public void testCorruptedRecordStopsReplay() throws IOException {
+        BackupManifest manifest = BackupManifest.load(file);
+        manifest.put("/IMG_0001.JPG", photo1, 1000, LAST_MODIFIED, 42);
+        long valid = journalFile.length();
+        manifest.put("/IMG_0002.JPG", photo2, 2000, LAST_MODIFIED, 43);
+        manifest.checkpoint("/MVI_0003.MOV", movie, 100000, LAST_MODIFIED, 65536, 1234);
+        byte[] journal = FileUtils.readFileToByteArray(journalFile);
+        journal[(int) valid + 10] ^= 0x40;
+        FileUtils.writeByteArrayToFile(journalFile, journal);
+
+        BackupManifest reloaded = BackupManifest.load(file);
+        assertEquals(1, reloaded.size());
+        assertFalse(reloaded.isBackedUp("/IMG_0002.JPG", photo2, 2000, LAST_MODIFIED));
+        // Nothing after the corrupted record is trusted
+        assertNull(reloaded.getCheckpoint("/MVI_0003.MOV", movie, 100000, LAST_MODIFIED));
+        assertEquals(valid, journalFile.length());
+    }
+
+    @Test
+    public void testGarbageJournalIsIgnored() throws IOException {
+        byte[] garbage = new byte[100];
+        Arrays.fill(garbage, (byte) 0xff);
+        FileUtils.writeByteArrayToFile(journalFile, garbage);
+        BackupManifest manifest = BackupManifest.load(file);
+        assertEquals(0, manifest.size());
+        assertEquals(0, journalFile.length());
+    }
+
+    @Test
+    public void testSaveCompactsJournal() {
+        BackupManifest manifest = BackupManifest.load(file);
+        manifest.put("/IMG_0001.JPG", photo1, 1000, LAST_MODIFIED, 42);
+        manifest.put("/IMG_0002.JPG", photo2, 2000, LAST_MODIFIED, 43);
+        manifest.checkpoint("/MVI_0003.MOV", movie, 100000, LAST_MODIFIED, 65536, 1234);
+        long journalLength = journalFile.length();
+        manifest.save();
+        assertTrue(file.exists());
+        // Only the checkpoint of the copy still to be resumed is kept
+        assertTrue(journalFile.length() > 0 && journalFile.length() < journalLength);
+
+        BackupManifest reloaded = BackupManifest.load(file);
+        assertEquals(2, reloaded.size());
+        assertTrue(reloaded.isBackedUp("/IMG_0002.JPG", photo2, 2000, LAST_MODIFIED));
+        assertNotNull(reloaded.getCheckpoint("/MVI_0003.MOV", movie, 100000, LAST_MODIFIED));
+
+        // Once the copy completes, nothing is left to resume
+        File movieFile = new File(folder.getRoot(), "MVI_0003.MOV");
+        reloaded.put("/MVI_0003.MOV", movieFile, 100000, LAST_MODIFIED, 44);
+        reloaded.save();
+        assertFalse(journalFile.exists());
+        BackupManifest last = BackupManifest.load(file);
+        assertEquals(3, last.size());
+        assertNull(last.getCheckpoint("/MVI_0003.MOV", movie, 100000, LAST_MODIFIED));
+    }
+
+    @Test
+    public void testMissingCopyIsNotBackedUp() {
+        BackupManifest manifest = BackupManifest.load(file);
+        manifest.put("/IMG_0001.JPG", photo1, 1000, LAST_MODIFIED, 42);
+        assertTrue(photo1.delete());
+        assertFalse(manifest.isBackedUp("/IMG_0001.JPG", photo1, 1000, LAST_MODIFIED));
+    }
+
+    private File destFile(String name, int length) throws IOException {
+        File destFile = new File(folder.getRoot(), name);
+        FileUtils.writeByteArrayToFile(destFile, new byte[length]);
+        return destFile;
+    }
+
+    private static void truncate(File file, long length) throws IOException {
+        RandomAccessFile output = new RandomAccessFile(file, "rw");
+        try {
+            output.setLength(length);
+        } finally {
+            output.close();
+        }
+    }
+}
@@ -0,0 +1,179 @@
+/**
+ * This file is part of OTGDiskBackup.
+ * <p/>
+ * Copyright 2005-2009 Red Hat, Inc.  All rights reserved.
+ * <p/>
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * <p/>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.pictulog.otgdb.device;
+
+import net.pictulog.otgdb.fat.Extent;
+import net.pictulog.otgdb.fat.FatBootSector;
+import net.pictulog.otgdb.fat.FatTable;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+
+import de.waldheinz.fs.BlockDevice;
+import de.waldheinz.fs.FsDirectoryEntry;
+import de.waldheinz.fs.fat.FatFileSystem;
+import de.waldheinz.fs.fat.FatType;
+import de.waldheinz.fs.util.FileDisk;
+import de.waldheinz.fs.util.RamDisk;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Writes the used parts of a volume formatted by fat32-lib with an
+ * {@link ImageWriter}, the way the {@code ImageTask} does, and mounts the
+ * image again with fat32-lib.
+ *
+ * @author rostskadat
+ */
+public class ImageWriterTest {
+
+    private static final int SECTOR_SIZE = OtgDeviceFacadeTest.SECTOR_SIZE;
+    private static final int DISK_SIZE = 0x1000000; // 16 MiB
+    private static final int PHOTO_SIZE = 300000;
+    // Where the partition starts on a whole device
+    private static final long PARTITION_SECTOR = 2048;
+
+    private File image;
+
+    @Before
+    public void setUp() throws IOException {
+        image = File.createTempFile("otgdisk", ".img");
+    }
+
+    @After
+    public void tearDown() {
+        image.delete();
+    }
+
+    @Test
+    public void testCompressedImage() throws IOException {
+        RamDisk disk = OtgBlockDeviceTest.format(DISK_SIZE, FatType.FAT16);
+        writeImage(disk, getUsedExtents(disk, 0), true);
+        assertTrue(image.length() < DISK_SIZE / 4);
+        ImageBlockDevice device = ImageBlockDevice.open(image);
+        try {
+            assertEquals(DISK_SIZE, device.getSize());
+            assertEquals(SECTOR_SIZE, device.getSectorSize());
+            assertMountable(device);
+        } finally {
+            device.close();
+        }
+    }
+
+    @Test
+    public void testSparseImage() throws IOException {
+        RamDisk disk = OtgBlockDeviceTest.format(DISK_SIZE, FatType.FAT16);
+        writeImage(disk, getUsedExtents(disk, 0), false);
+        assertEquals(DISK_SIZE, image.length());
+        FileDisk device = new FileDisk(image, true);
+        try {
+            assertMountable(device);
+        } finally {
+            device.close();
+        }
+    }
+
+    @Test
+    public void testWholeDeviceImage() throws IOException {
+        RamDisk partition = OtgBlockDeviceTest.format(DISK_SIZE, FatType.FAT16);
+        long offset = PARTITION_SECTOR * SECTOR_SIZE;
+        RamDisk disk = new RamDisk((int) (offset + DISK_SIZE), SECTOR_SIZE);
+        ByteBuffer content = ByteBuffer.allocate(DISK_SIZE);
+        partition.read(0, content);
+        content.flip();
+        disk.write(offset, content);
+        ByteBuffer mbr = ByteBuffer.allocate(SECTOR_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        int entry = OtgBlockDevice.MBR_OFFSET_PARTITION_1;
+        mbr.put(entry + OtgBlockDevice.PE_OFFSET_TYPE, (byte) 0x06);
+        mbr.putInt(entry + OtgBlockDevice.PE_OFFSET_SECTOR_OFFSET, (int) PARTITION_SECTOR);
+        mbr.putInt(entry + OtgBlockDevice.PE_OFFSET_NUMBER_OF_SECTORS, DISK_SIZE / SECTOR_SIZE);
+        mbr.putShort(0x1fe, (short) 0xaa55);
+        disk.write(0, mbr);
+
+        List<Extent> extents = new ArrayList<Extent>();
+        extents.add(new Extent(0, 0, offset));
+        extents.addAll(getUsedExtents(partition, offset));
+        writeImage(disk, extents, true);
+        ImageBlockDevice device = ImageBlockDevice.open(image);
+        try {
+            BlockDevice mounted = PartitionBlockDevice.open(device);
+            assertEquals(DISK_SIZE, mounted.getSize());
+            assertMountable(mounted);
+        } finally {
+            device.close();
+        }
+        // A partition image has no partition table
+        writeImage(partition, getUsedExtents(partition, 0), true);
+        device = ImageBlockDevice.open(image);
+        try {
+            assertTrue(device == PartitionBlockDevice.open(device));
+        } finally {
+            device.close();
+        }
+    }
+
+    /**
+     * @return the used extents of the FAT volume of the disk, placed at the
+     * given offset in the image
+     */
+    private static List<Extent> getUsedExtents(RamDisk disk, long offset) throws IOException {
+        List<Extent> extents = new ArrayList<Extent>();
+        for (Extent extent : new FatTable(disk, FatBootSector.read(disk)).getAllocatedExtents()) {
+            long length = Math.min(extent.getLength(), disk.getSize() - extent.getDevOffset());
+            extents.add(new Extent(offset + extent.getDevOffset(), offset + extent.getDevOffset(), length));
+        }
+        return extents;
+    }
+
+    private void writeImage(RamDisk disk, List<Extent> extents, boolean compressed) throws IOException {
+        ImageWriter writer = new ImageWriter(image, disk.getSize(), SECTOR_SIZE, ImageWriter.DEFAULT_BLOCK_SIZE,
+                compressed);
+        for (Extent extent : extents) {
+            ByteBuffer data = ByteBuffer.allocate((int) extent.getLength());
+            disk.read(extent.getDevOffset(), data);
+            data.flip();
+            writer.write(extent.getFileOffset(), data);
+        }
+        writer.close();
+        assertFalse(new File(image.getPath() + ".index").exists());
+    }
+
+    private static void assertMountable(BlockDevice device) throws IOException {
+        FatFileSystem fs = FatFileSystem.read(device, true);
+        assertEquals("TEST", fs.getVolumeLabel());
+        FsDirectoryEntry photo = fs.getRoot().getEntry("DCIM").getDirectory().getEntry("photo.jpg");
+        ByteBuffer content = ByteBuffer.allocate(PHOTO_SIZE);
+        photo.getFile().read(0, content);
+        assertArrayEquals(OtgBlockDeviceTest.content(PHOTO_SIZE), content.array());
+        ByteBuffer readme = ByteBuffer.allocate(5);
+        fs.getRoot().getEntry("readme.txt").getFile().read(0, readme);
+        assertEquals("Hello", new String(readme.array()));
+    }
+}
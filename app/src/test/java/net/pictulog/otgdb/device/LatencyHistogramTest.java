@@ -0,0 +1,69 @@
+/**
+ * This file is part of OTGDiskBackup.
+ * <p/>
+ * Copyright 2005-2009 Red Hat, Inc.  All rights reserved.
+ * <p/>
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * <p/>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.pictulog.otgdb.device;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the percentiles of a {@link LatencyHistogram} taken over a part of
+ * its values only, as the backup report does for a session.
+ *
+ * @author rostskadat
+ */
+public class LatencyHistogramTest {
+
+    @Test
+    public void testSinceSnapshot() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        // A slow mount: the first reads of the device take 10 ms
+        for (int i = 0; i < 1000; i++) {
+            histogram.record(10000000);
+        }
+        LatencyHistogram snapshot = histogram.snapshot();
+        for (int i = 0; i < 100; i++) {
+            histogram.record(100000);
+        }
+        assertEquals(1000, snapshot.getCount());
+        assertTrue(histogram.getPercentile(50) >= 9700000);
+
+        LatencyHistogram session = histogram.since(snapshot);
+        assertEquals(100, session.getCount());
+        assertEquals(100 * 100000L, session.getTotal());
+        assertEquals(100000, session.getPercentile(50), 100000 * 0.04);
+        assertEquals(100000, session.getPercentile(99), 100000 * 0.04);
+        assertTrue(session.getMax() < 10000000);
+    }
+
+    @Test
+    public void testSinceReset() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 0; i < 10; i++) {
+            histogram.record(10000000);
+        }
+        LatencyHistogram snapshot = histogram.snapshot();
+        histogram.reset();
+        histogram.record(1000);
+        LatencyHistogram session = histogram.since(snapshot);
+        assertEquals(1, session.getCount());
+        assertEquals(1000, session.getMax());
+    }
+}
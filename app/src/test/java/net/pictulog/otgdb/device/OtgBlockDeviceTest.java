@@ -0,0 +1,244 @@
+/**
+ * This file is part of OTGDiskBackup.
+ * <p/>
+ * Copyright 2005-2009 Red Hat, Inc.  All rights reserved.
+ * <p/>
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * <p/>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.pictulog.otgdb.device;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import de.waldheinz.fs.FsDirectory;
+import de.waldheinz.fs.FsFile;
+import de.waldheinz.fs.fat.FatFileSystem;
+import de.waldheinz.fs.fat.FatType;
+import de.waldheinz.fs.fat.SuperFloppyFormatter;
+import de.waldheinz.fs.util.RamDisk;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Drives the {@link OtgBlockDevice} and its caches through a
+ * {@link SimulatedBulkTransport}, on a volume formatted by fat32-lib.
+ *
+ * @author rostskadat
+ */
+public class OtgBlockDeviceTest {
+
+    private static final int SECTOR_SIZE = OtgDeviceFacadeTest.SECTOR_SIZE;
+    private static final int DISK_SIZE = 0x1000000; // 16 MiB
+    private static final int PHOTO_SIZE = 300000;
+
+    private RamDisk disk;
+    private SimulatedBulkTransport transport;
+    private OtgBlockDevice device;
+
+    @Before
+    public void setUp() throws Exception {
+        disk = format(DISK_SIZE, FatType.FAT16);
+        transport = new SimulatedBulkTransport(disk);
+        device = new OtgBlockDevice(new OtgDeviceFacade(transport, (byte) 0));
+        device.init();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        device.close();
+    }
+
+    /**
+     * @return a RAM disk holding a {@code DCIM/photo.jpg} file and a
+     * {@code readme.txt} file
+     */
+    static RamDisk format(int size, FatType fatType) throws IOException {
+        RamDisk disk = new RamDisk(size, SECTOR_SIZE);
+        // The OTG device recognizes a partition-less volume by its OEM name
+        FatFileSystem fs = SuperFloppyFormatter.get(disk).setOemName("MSDOS5.0").setFatType(fatType)
+                .setVolumeLabel("TEST").format();
+        FsDirectory dcim = fs.getRoot().addDirectory("DCIM").getDirectory();
+        dcim.addFile("photo.jpg").getFile().write(0, ByteBuffer.wrap(content(PHOTO_SIZE)));
+        fs.getRoot().addFile("readme.txt").getFile().write(0, ByteBuffer.wrap("Hello".getBytes()));
+        fs.close();
+        return disk;
+    }
+
+    static byte[] content(int size) {
+        byte[] content = new byte[size];
+        for (int i = 0; i < size; i++) {
+            content[i] = (byte) (i * 13 + i / 511);
+        }
+        return content;
+    }
+
+    @Test
+    public void testInit() throws IOException {
+        assertEquals(FatType.FAT32, device.getFatType());
+        assertEquals(0, device.getSectorOffset());
+        assertEquals(DISK_SIZE / SECTOR_SIZE, device.getNumberOfSectors());
+        assertEquals(DISK_SIZE, device.getSize());
+    }
+
+    @Test
+    public void testMountWithFat32Lib() throws IOException {
+        FatFileSystem fs = FatFileSystem.read(device, true);
+        FsFile photo = fs.getRoot().getEntry("DCIM").getDirectory().getEntry("photo.jpg").getFile();
+        assertEquals(PHOTO_SIZE, photo.getLength());
+        ByteBuffer read = ByteBuffer.allocate(PHOTO_SIZE);
+        photo.read(0, read);
+        assertArrayEquals(content(PHOTO_SIZE), read.array());
+    }
+
+    @Test
+    public void testSectorCacheServesRepeatedReads() throws IOException {
+        ByteBuffer dest = ByteBuffer.allocate(100);
+        device.read(SECTOR_SIZE + 10, dest);
+        long commands = transport.getCommands();
+        for (int i = 0; i < 10; i++) {
+            dest.clear();
+            device.read(SECTOR_SIZE + 10, dest);
+        }
+        assertEquals(commands, transport.getCommands());
+        assertEquals(10, device.getSectorCache().getHits());
+    }
+
+    @Test
+    public void testLargerTransferSizeSendsFewerCommands() throws IOException {
+        assertEquals(16, readWholeDisk(0x2000));
+        assertEquals(4, readWholeDisk(0x8000));
+    }
+
+    private long readWholeDisk(int transferSize) throws IOException {
+        device.setTransferSize(transferSize);
+        long commands = transport.getCommands();
+        // Past the cached size, straight from the device
+        ByteBuffer dest = ByteBuffer.allocate(0x20000);
+        device.read(0x100000, dest);
+        ByteBuffer expected = ByteBuffer.allocate(0x20000);
+        disk.read(0x100000, expected);
+        assertArrayEquals(expected.array(), dest.array());
+        return transport.getCommands() - commands;
+    }
+
+    @Test
+    public void testSequentialReadsArePrefetched() throws IOException {
+        ByteBuffer dest = ByteBuffer.allocate(0x1000);
+        for (int i = 0; i < 64; i++) {
+            dest.clear();
+            device.read(0x200000 + i * 0x1000, dest);
+        }
+        assertTrue(device.getReadAhead().getHits() > 0);
+        assertTrue(device.getReadAhead().getUsedSectors() > 0);
+    }
+
+    @Test
+    public void testWritesAreMergedUntilFlush() throws IOException {
+        device.setReadOnly(false);
+        byte[] data = OtgDeviceFacadeTest.expected(3, 8);
+        for (int i = 0; i < 8; i++) {
+            device.write(0x300000 + i * SECTOR_SIZE, ByteBuffer.wrap(data, i * SECTOR_SIZE, SECTOR_SIZE));
+        }
+        assertEquals(0, transport.getBytesWritten());
+        assertEquals(8, device.getWriteBackCache().getDirtySectors());
+        // The pending writes are visible before the flush
+        ByteBuffer dest = ByteBuffer.allocate(8 * SECTOR_SIZE);
+        device.read(0x300000, dest);
+        assertArrayEquals(data, dest.array());
+
+        device.flush();
+        assertEquals(1, device.getWriteBackCache().getCommands());
+        assertEquals(data.length, transport.getBytesWritten());
+        ByteBuffer written = ByteBuffer.allocate(data.length);
+        disk.read(0x300000, written);
+        assertArrayEquals(data, written.array());
+    }
+
+    @Test
+    public void testReadAheadIsDroppedOnFlush() throws IOException {
+        device.setReadOnly(false);
+        byte[] data = OtgDeviceFacadeTest.expected(5, 8);
+        device.write(0x203000, ByteBuffer.wrap(data));
+        // Sequential reads prefetch the dirty sectors from the device
+        ByteBuffer dest = ByteBuffer.allocate(0x1000);
+        device.read(0x200000, dest);
+        dest.clear();
+        device.read(0x201000, dest);
+        device.flush();
+        dest.clear();
+        device.read(0x202000, dest);
+        assertTrue(device.getReadAhead().getPrefetchedSectors() > 0);
+        dest.clear();
+        device.read(0x203000, dest);
+        assertArrayEquals(data, dest.array());
+    }
+
+    @Test
+    public void testPartialWriteKeepsTheRestOfTheSector() throws IOException {
+        device.setReadOnly(false);
+        ByteBuffer before = ByteBuffer.allocate(SECTOR_SIZE);
+        disk.read(0x300000, before);
+        device.write(0x300000 + 10, ByteBuffer.wrap(new byte[]{1, 2, 3}));
+        device.flush();
+        ByteBuffer after = ByteBuffer.allocate(SECTOR_SIZE);
+        disk.read(0x300000, after);
+        before.put(10, (byte) 1).put(11, (byte) 2).put(12, (byte) 3);
+        assertArrayEquals(before.array(), after.array());
+    }
+
+    @Test
+    public void testBadSectorFailsTheRead() throws IOException {
+        transport.addBadSector(0x2000 + 3);
+        try {
+            device.read(0x2000 * SECTOR_SIZE, ByteBuffer.allocate(8 * SECTOR_SIZE));
+            fail("The read should have failed");
+        } catch (IOException e) {
+            // Expected
+        }
+        transport.clearBadSectors();
+        ByteBuffer dest = ByteBuffer.allocate(8 * SECTOR_SIZE);
+        device.read(0x2000 * SECTOR_SIZE, dest);
+        ByteBuffer expected = ByteBuffer.allocate(8 * SECTOR_SIZE);
+        disk.read(0x2000 * SECTOR_SIZE, expected);
+        assertArrayEquals(expected.array(), dest.array());
+    }
+
+    @Test
+    public void testReadStreamFlushesPendingWrites() throws IOException {
+        device.setReadOnly(false);
+        byte[] data = OtgDeviceFacadeTest.expected(99, 2);
+        device.write(0x10000, ByteBuffer.wrap(data));
+        final ByteBuffer read = ByteBuffer.allocate(DISK_SIZE);
+        device.readStream(0, DISK_SIZE / SECTOR_SIZE, new SectorConsumer() {
+            @Override
+            public void onSectors(long firstSector, ByteBuffer sectors) {
+                read.put(sectors);
+            }
+        });
+        assertEquals(0, device.getWriteBackCache().getDirtySectors());
+        ByteBuffer expected = ByteBuffer.allocate(DISK_SIZE);
+        disk.read(0, expected);
+        assertArrayEquals(expected.array(), read.array());
+        byte[] written = new byte[data.length];
+        System.arraycopy(read.array(), 0x10000, written, 0, written.length);
+        assertArrayEquals(data, written);
+    }
+}
@@ -0,0 +1,327 @@
+/**
+ * This file is part of OTGDiskBackup.
+ * <p/>
+ * Copyright 2005-2009 Red Hat, Inc.  All rights reserved.
+ * <p/>
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * <p/>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.pictulog.otgdb.device;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import de.waldheinz.fs.util.RamDisk;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Drives the {@link OtgDeviceFacade} through a {@link SimulatedBulkTransport}.
+ *
+ * @author rostskadat
+ */
+public class OtgDeviceFacadeTest {
+
+    static final int SECTOR_SIZE = 512;
+    private static final int SECTORS = 0x2000; // 4 MiB
+
+    private RamDisk disk;
+    private SimulatedBulkTransport transport;
+    private OtgDeviceFacade facade;
+
+    @Before
+    public void setUp() throws Exception {
+        disk = new RamDisk(SECTORS * SECTOR_SIZE, SECTOR_SIZE);
+        fill(disk);
+        open(false);
+    }
+
+    @After
+    public void tearDown() {
+        facade.close();
+    }
+
+    private void open(boolean asynchronous) throws IOException {
+        if (facade != null) {
+            facade.close();
+        }
+        transport = new SimulatedBulkTransport(disk, asynchronous);
+        facade = new OtgDeviceFacade(transport, (byte) 0);
+        facade.readCapacity();
+    }
+
+    /**
+     * Give every byte of the disk a value that depends on its sector.
+     */
+    static void fill(RamDisk disk) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate((int) disk.getSize());
+        for (int i = 0; i < buffer.capacity(); i++) {
+            buffer.put(i, pattern(i / SECTOR_SIZE, i % SECTOR_SIZE));
+        }
+        disk.write(0, buffer);
+    }
+
+    static byte pattern(long sector, int index) {
+        return (byte) (sector * 7 + index);
+    }
+
+    static byte[] expected(long firstSector, int sectors) {
+        byte[] expected = new byte[sectors * SECTOR_SIZE];
+        for (int i = 0; i < expected.length; i++) {
+            expected[i] = pattern(firstSector + i / SECTOR_SIZE, i % SECTOR_SIZE);
+        }
+        return expected;
+    }
+
+    @Test
+    public void testReadCapacity() {
+        assertEquals(SECTOR_SIZE, facade.getSectorSize());
+        assertEquals(SECTORS, facade.getSectors());
+    }
+
+    @Test
+    public void testReadIsSplitInCommands() {
+        ByteBuffer dest = ByteBuffer.allocate(64 * SECTOR_SIZE);
+        long commands = transport.getCommands();
+        assertTrue(facade.read(100, 64, 16, dest));
+        assertEquals(4, transport.getCommands() - commands);
+        assertEquals(dest.capacity(), dest.position());
+        assertArrayEquals(expected(100, 64), dest.array());
+        // 4 commands for 32 KiB
+        assertEquals(128.0, facade.getCommandsPerMegabyte(), 0.01);
+    }
+
+    @Test
+    public void testReadIsSplitInTransfers() {
+        transport.setMaxTransferLength(4096);
+        ByteBuffer dest = ByteBuffer.allocate(64 * SECTOR_SIZE);
+        long commands = transport.getCommands();
+        assertTrue(facade.read(3, 64, dest));
+        assertEquals(1, transport.getCommands() - commands);
+        assertArrayEquals(expected(3, 64), dest.array());
+    }
+
+    @Test
+    public void testReadAtBufferOffset() {
+        ByteBuffer dest = ByteBuffer.allocate(3 * SECTOR_SIZE);
+        dest.position(SECTOR_SIZE);
+        assertTrue(facade.read(42, 2, dest));
+        assertEquals(3 * SECTOR_SIZE, dest.position());
+        byte[] read = new byte[2 * SECTOR_SIZE];
+        System.arraycopy(dest.array(), SECTOR_SIZE, read, 0, read.length);
+        assertArrayEquals(expected(42, 2), read);
+    }
+
+    @Test
+    public void testTraceIsIndependentOfVerbose() {
+        facade.getTrace().setEnabled(true);
+        assertFalse(facade.isVerbose());
+        assertTrue(facade.read(0, 8, ByteBuffer.allocate(8 * SECTOR_SIZE)));
+        long recorded = facade.getTrace().getRecorded();
+        assertTrue(recorded > 0);
+
+        facade.getTrace().setEnabled(false);
+        facade.setVerbose(true);
+        assertTrue(facade.read(0, 8, ByteBuffer.allocate(8 * SECTOR_SIZE)));
+        assertEquals(recorded, facade.getTrace().getRecorded());
+    }
+
+    @Test
+    public void testWrite() throws IOException {
+        ByteBuffer src = ByteBuffer.allocate(8 * SECTOR_SIZE);
+        for (int i = 0; i < src.capacity(); i++) {
+            src.put(i, (byte) ~i);
+        }
+        facade.write(10, 8, src);
+        assertEquals(src.capacity(), src.position());
+        ByteBuffer written = ByteBuffer.allocate(8 * SECTOR_SIZE);
+        disk.read(10 * SECTOR_SIZE, written);
+        assertArrayEquals(src.array(), written.array());
+        assertEquals(8 * SECTOR_SIZE, transport.getBytesWritten());
+    }
+
+    @Test
+    public void testReadStream() throws IOException {
+        checkReadStream();
+    }
+
+    @Test
+    public void testReadStreamAsynchronous() throws IOException {
+        open(true);
+        checkReadStream();
+        checkWriteThenRead();
+    }
+
+    private void checkReadStream() throws IOException {
+        final ByteBuffer read = ByteBuffer.allocate(200 * SECTOR_SIZE);
+        final long[] nextSector = {50};
+        facade.readStream(50, 200, 32, new SectorConsumer() {
+            @Override
+            public void onSectors(long firstSector, ByteBuffer data) {
+                assertEquals(nextSector[0], firstSector);
+                nextSector[0] += data.remaining() / SECTOR_SIZE;
+                read.put(data);
+            }
+        });
+        assertEquals(250, nextSector[0]);
+        assertArrayEquals(expected(50, 200), read.array());
+    }
+
+    private void checkWriteThenRead() throws IOException {
+        ByteBuffer src = ByteBuffer.wrap(expected(1000, 4));
+        facade.write(2000, 4, src);
+        ByteBuffer dest = ByteBuffer.allocate(4 * SECTOR_SIZE);
+        assertTrue(facade.read(2000, 4, dest));
+        assertArrayEquals(src.array(), dest.array());
+    }
+
+    @Test
+    public void testBadSectorIsReportedNotRetried() throws IOException {
+        transport.addBadSector(130);
+        ByteBuffer dest = ByteBuffer.allocate(16 * SECTOR_SIZE);
+        assertFalse(facade.read(128, 16, dest));
+        assertEquals(16 * SECTOR_SIZE, dest.position());
+        assertEquals(0, facade.getRetries());
+        assertEquals(0, transport.getResets());
+        SenseData sense = facade.requestSense();
+        assertEquals(SenseData.KEY_MEDIUM_ERROR, sense.getSenseKey());
+        assertTrue(sense.isMediumError());
+        // The other commands still work
+        dest.clear();
+        assertTrue(facade.read(140, 16, dest));
+        assertArrayEquals(expected(140, 16), dest.array());
+    }
+
+    @Test
+    public void testBadSectorFailsTheWrite() {
+        transport.addBadSector(12);
+        try {
+            facade.write(10, 4, ByteBuffer.wrap(new byte[4 * SECTOR_SIZE]));
+            fail("The write should have failed");
+        } catch (IOException e) {
+            // Expected
+        }
+        assertEquals(0, transport.getBytesWritten());
+    }
+
+    @Test
+    public void testFailedCommandsAreNotRetried() {
+        transport.setFailEvery(3);
+        int failures = 0;
+        for (int i = 0; i < 30; i++) {
+            ByteBuffer dest = ByteBuffer.allocate(8 * SECTOR_SIZE);
+            if (!facade.read(i * 8, 8, dest)) {
+                failures++;
+            }
+        }
+        assertEquals(10, failures);
+        assertEquals(0, facade.getRetries());
+    }
+
+    @Test
+    public void testTransferErrorsAreRecovered() {
+        checkTransferErrorsAreRecovered();
+    }
+
+    @Test
+    public void testTransferErrorsAreRecoveredAsynchronous() throws IOException {
+        open(true);
+        checkTransferErrorsAreRecovered();
+    }
+
+    private void checkTransferErrorsAreRecovered() {
+        transport.setMaxTransferLength(4096);
+        transport.setTransferErrorRate(0.02, 42);
+        for (int i = 0; i < 50; i++) {
+            ByteBuffer dest = ByteBuffer.allocate(64 * SECTOR_SIZE);
+            assertTrue(facade.read(i * 64, 64, 16, dest));
+            assertArrayEquals(expected(i * 64, 64), dest.array());
+        }
+        assertTrue(transport.getFailedTransfers() > 0);
+        assertEquals(transport.getResets(), facade.getResets());
+        assertTrue(facade.getRetries() >= transport.getResets());
+    }
+
+    @Test
+    public void testResidueIsRetried() {
+        transport.setResidueEvery(2);
+        for (int i = 0; i < 10; i++) {
+            ByteBuffer dest = ByteBuffer.allocate(16 * SECTOR_SIZE);
+            assertTrue(facade.read(i * 16, 16, dest));
+            assertArrayEquals(expected(i * 16, 16), dest.array());
+        }
+        // Every read but the first one is sent twice
+        assertEquals(9, facade.getRetries());
+    }
+
+    @Test
+    public void testResidueFailsTheRead() {
+        // The data phase has the expected length, but half of it is padding
+        transport.setResidueEvery(1);
+        ByteBuffer dest = ByteBuffer.allocate(16 * SECTOR_SIZE);
+        assertFalse(facade.read(0, 16, dest));
+    }
+
+    @Test
+    public void testTimeoutIsRecovered() {
+        // 1 KiB per second: the 16 KiB transfer takes 16 s, beyond its timeout
+        transport.setBandwidth(1024);
+        ByteBuffer dest = ByteBuffer.allocate(32 * SECTOR_SIZE);
+        assertFalse(facade.read(0, 32, dest));
+        assertTrue(facade.getResets() > 0);
+        transport.setBandwidth(0);
+        dest.clear();
+        assertTrue(facade.read(0, 32, dest));
+        assertArrayEquals(expected(0, 32), dest.array());
+    }
+
+    @Test
+    public void testWrongDirectionIsAPhaseError() throws IOException {
+        ByteBuffer cbw = ByteBuffer.allocate(0x1f);
+        cbw.order(ByteOrder.LITTLE_ENDIAN);
+        cbw.putInt(0, 0x43425355);
+        cbw.putInt(4, 1234);
+        cbw.putInt(8, SECTOR_SIZE);
+        // READ(10) of one sector with a host to device data phase
+        cbw.put(0x0c, (byte) 0x00);
+        cbw.put(0x0e, (byte) 10);
+        cbw.put(0x0f, (byte) 0x28);
+        cbw.put(0x0f + 8, (byte) 1);
+        BulkTransfer cbwTransfer = new BulkTransfer(false);
+        cbwTransfer.set(cbw, 0, 0x1f, 100);
+        transport.submit(cbwTransfer);
+        assertEquals(0x1f, transport.await(cbwTransfer));
+        BulkTransfer data = new BulkTransfer(false);
+        data.set(ByteBuffer.allocate(SECTOR_SIZE), 0, SECTOR_SIZE, 100);
+        transport.submit(data);
+        assertEquals(SECTOR_SIZE, transport.await(data));
+        ByteBuffer csw = ByteBuffer.allocate(0x0d);
+        csw.order(ByteOrder.LITTLE_ENDIAN);
+        BulkTransfer cswTransfer = new BulkTransfer(true);
+        cswTransfer.set(csw, 0, 0x0d, 100);
+        transport.submit(cswTransfer);
+        assertEquals(0x0d, transport.await(cswTransfer));
+        assertEquals(1234, csw.getInt(4));
+        assertEquals(0x02, csw.get(12));
+        assertEquals(0, transport.getBytesWritten());
+    }
+}
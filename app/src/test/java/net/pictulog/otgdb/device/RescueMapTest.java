@@ -0,0 +1,116 @@
+/**
+ * This file is part of OTGDiskBackup.
+ * <p/>
+ * Copyright 2005-2009 Red Hat, Inc.  All rights reserved.
+ * <p/>
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * <p/>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.pictulog.otgdb.device;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that a {@link RescueMap} splits and merges its runs of sectors as
+ * their status changes, and saves them as a ddrescue mapfile.
+ *
+ * @author rostskadat
+ */
+public class RescueMapTest {
+
+    private static final long FIRST_SECTOR = 100;
+    private static final long SECTORS = 50;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testSplit() {
+        RescueMap map = new RescueMap(FIRST_SECTOR, SECTORS, 512);
+        map.set(110, 5, RescueMap.BAD_SECTOR);
+        assertRuns(map, RescueMap.NON_TRIED, 100, 10, 115, 35);
+        assertRuns(map, RescueMap.BAD_SECTOR, 110, 5);
+        // At the edges of the region
+        map.set(100, 1, RescueMap.FINISHED);
+        map.set(149, 1, RescueMap.FINISHED);
+        assertRuns(map, RescueMap.FINISHED, 100, 1, 149, 1);
+        assertRuns(map, RescueMap.NON_TRIED, 101, 9, 115, 34);
+        assertEquals(SECTORS, map.count(RescueMap.NON_TRIED) + map.count(RescueMap.BAD_SECTOR)
+                + map.getFinishedSectors());
+    }
+
+    @Test
+    public void testMerge() {
+        RescueMap map = new RescueMap(FIRST_SECTOR, SECTORS, 512);
+        map.set(110, 5, RescueMap.NON_TRIMMED);
+        map.set(120, 5, RescueMap.NON_TRIMMED);
+        // Joins the two runs around
+        map.set(115, 5, RescueMap.NON_TRIMMED);
+        assertRuns(map, RescueMap.NON_TRIMMED, 110, 15);
+        // Inside a run of the same status: nothing changes
+        map.set(112, 3, RescueMap.NON_TRIMMED);
+        assertRuns(map, RescueMap.NON_TRIMMED, 110, 15);
+        // Across the end of a run
+        map.set(120, 10, RescueMap.FINISHED);
+        assertRuns(map, RescueMap.NON_TRIMMED, 110, 10);
+        assertRuns(map, RescueMap.NON_TRIED, 100, 10, 130, 20);
+
+        map.set(100, 10, RescueMap.FINISHED);
+        map.set(110, 10, RescueMap.FINISHED);
+        map.set(130, 20, RescueMap.FINISHED);
+        assertRuns(map, RescueMap.FINISHED, 100, 50);
+        assertEquals(0, map.getBadSectors());
+    }
+
+    @Test
+    public void testSave() throws IOException {
+        RescueMap map = new RescueMap(FIRST_SECTOR, SECTORS, 512);
+        map.set(100, 10, RescueMap.FINISHED);
+        map.set(110, 2, RescueMap.BAD_SECTOR);
+        map.set(112, 38, RescueMap.FINISHED);
+        File file = new File(folder.getRoot(), "rescue.map");
+        map.save(file);
+        List<String> lines = FileUtils.readLines(file, "US-ASCII");
+        assertEquals(7, lines.size());
+        assertTrue(lines.get(0).startsWith("#"));
+        // The positions are in bytes from the first sector of the region
+        assertEquals("0x00000000  0x00001400  +", lines.get(4));
+        assertEquals("0x00001400  0x00000400  -", lines.get(5));
+        assertEquals("0x00001800  0x00004C00  +", lines.get(6));
+    }
+
+    /**
+     * @param expected the first sector and the count of each run expected
+     *                 with that status
+     */
+    static void assertRuns(RescueMap map, char status, long... expected) {
+        List<long[]> runs = map.find(status);
+        long[] actual = new long[runs.size() * 2];
+        for (int i = 0; i < runs.size(); i++) {
+            actual[2 * i] = runs.get(i)[0];
+            actual[2 * i + 1] = runs.get(i)[1];
+        }
+        assertArrayEquals("Runs with status " + status, expected, actual);
+    }
+}
@@ -0,0 +1,185 @@
+/**
+ * This file is part of OTGDiskBackup.
+ * <p/>
+ * Copyright 2005-2009 Red Hat, Inc.  All rights reserved.
+ * <p/>
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * <p/>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.pictulog.otgdb.device;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+import de.waldheinz.fs.util.RamDisk;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Rescues a simulated device with bad sectors through a
+ * {@link RescueReader}, and checks the image and the map it produces.
+ *
+ * @author rostskadat
+ */
+public class RescueReaderTest {
+
+    private static final int SECTOR_SIZE = OtgDeviceFacadeTest.SECTOR_SIZE;
+    private static final int SECTORS = 0x1000; // 2 MiB
+    private static final int TRANSFER_SECTORS = 32;
+    // The region rescued, like a partition
+    private static final long FIRST_SECTOR = 256;
+    private static final int REGION_SECTORS = 2048;
+
+    private SimulatedBulkTransport transport;
+    private OtgDeviceFacade facade;
+
+    @Before
+    public void setUp() throws Exception {
+        RamDisk disk = new RamDisk(SECTORS * SECTOR_SIZE, SECTOR_SIZE);
+        OtgDeviceFacadeTest.fill(disk);
+        transport = new SimulatedBulkTransport(disk);
+        facade = new OtgDeviceFacade(transport, (byte) 0);
+        facade.readCapacity();
+    }
+
+    @After
+    public void tearDown() {
+        facade.close();
+    }
+
+    @Test
+    public void testBadSectors() throws IOException {
+        long[] badSectors = {300, 301, 1000, 2200};
+        for (long sector : badSectors) {
+            transport.addBadSector(sector);
+        }
+        // Outside of the region
+        transport.addBadSector(FIRST_SECTOR - 1);
+        ImageConsumer image = new ImageConsumer();
+        RescueReader reader = new RescueReader(facade, SECTOR_SIZE, TRANSFER_SECTORS, 2);
+        RescueMap map = reader.rescue(FIRST_SECTOR, REGION_SECTORS, image);
+
+        assertEquals(REGION_SECTORS, map.getSectors());
+        RescueMapTest.assertRuns(map, RescueMap.BAD_SECTOR, 300, 2, 1000, 1, 2200, 1);
+        assertEquals(REGION_SECTORS - badSectors.length, map.getFinishedSectors());
+        assertEquals(REGION_SECTORS - badSectors.length, image.sectors.cardinality());
+        byte[] expected = OtgDeviceFacadeTest.expected(FIRST_SECTOR, REGION_SECTORS);
+        for (long sector : badSectors) {
+            assertFalse(image.sectors.get((int) (sector - FIRST_SECTOR)));
+            int offset = (int) (sector - FIRST_SECTOR) * SECTOR_SIZE;
+            Arrays.fill(expected, offset, offset + SECTOR_SIZE, (byte) 0);
+        }
+        assertArrayEquals(expected, image.content);
+        assertTrue(reader.getFailedReads() > 0);
+    }
+
+    @Test
+    public void testCopySkipsAfterErrors() throws IOException {
+        transport.addBadSector(FIRST_SECTOR + 10);
+        transport.addBadSector(FIRST_SECTOR + 70);
+        ImageConsumer image = new ImageConsumer();
+        RescueMap map = new RescueReader(facade, SECTOR_SIZE, TRANSFER_SECTORS, 0).rescue(FIRST_SECTOR,
+                REGION_SECTORS, image);
+
+        // The first transfer fails and the next one is skipped, the third
+        // fails too and the next two are skipped
+        assertEquals(Long.valueOf(FIRST_SECTOR + 5 * TRANSFER_SECTORS), image.reads.get(0));
+        // The skipped transfers are read again by the second copy pass
+        int skipped = image.reads.indexOf(FIRST_SECTOR + TRANSFER_SECTORS);
+        assertTrue(skipped > 0);
+        assertEquals(Long.valueOf(FIRST_SECTOR + 3 * TRANSFER_SECTORS), image.reads.get(skipped + 1));
+        RescueMapTest.assertRuns(map, RescueMap.BAD_SECTOR, FIRST_SECTOR + 10, 1, FIRST_SECTOR + 70, 1);
+        assertEquals(REGION_SECTORS - 2, image.sectors.cardinality());
+    }
+
+    @Test
+    public void testTrimAndScrape() throws IOException {
+        transport.addBadSector(FIRST_SECTOR + 37);
+        ImageConsumer image = new ImageConsumer();
+        RescueMap map = new RescueReader(facade, SECTOR_SIZE, TRANSFER_SECTORS, 0).rescue(FIRST_SECTOR,
+                REGION_SECTORS, image);
+
+        // The failed transfer is trimmed by eighths, then the failed eighth
+        // is scraped sector by sector
+        List<Long> trimmed = new ArrayList<Long>();
+        for (long sector = FIRST_SECTOR + TRANSFER_SECTORS; sector < FIRST_SECTOR + 2 * TRANSFER_SECTORS;
+             sector += TRANSFER_SECTORS / 8) {
+            if (sector != FIRST_SECTOR + 36) {
+                trimmed.add(sector);
+            }
+        }
+        for (long sector = FIRST_SECTOR + 36; sector < FIRST_SECTOR + 40; sector++) {
+            if (sector != FIRST_SECTOR + 37) {
+                trimmed.add(sector);
+            }
+        }
+        assertEquals(trimmed, image.reads.subList(image.reads.size() - trimmed.size(), image.reads.size()));
+        RescueMapTest.assertRuns(map, RescueMap.BAD_SECTOR, FIRST_SECTOR + 37, 1);
+        assertEquals(0, map.count(RescueMap.NON_TRIED) + map.count(RescueMap.NON_TRIMMED)
+                + map.count(RescueMap.NON_SCRAPED));
+    }
+
+    @Test
+    public void testRetry() throws IOException {
+        // Fails in the copy, trim and scrape passes
+        transport.addWeakSector(FIRST_SECTOR + 500, 3);
+        ImageConsumer image = new ImageConsumer();
+        RescueMap map = new RescueReader(facade, SECTOR_SIZE, TRANSFER_SECTORS, 1).rescue(FIRST_SECTOR,
+                REGION_SECTORS, image);
+        assertEquals(0, map.getBadSectors());
+        assertEquals(REGION_SECTORS, map.getFinishedSectors());
+        assertEquals(Long.valueOf(FIRST_SECTOR + 500), image.reads.get(image.reads.size() - 1));
+        assertArrayEquals(OtgDeviceFacadeTest.expected(FIRST_SECTOR, REGION_SECTORS), image.content);
+
+        // Without retries, the sector stays bad
+        transport.addWeakSector(FIRST_SECTOR + 500, 3);
+        map = new RescueReader(facade, SECTOR_SIZE, TRANSFER_SECTORS, 0).rescue(FIRST_SECTOR, REGION_SECTORS,
+                new ImageConsumer());
+        RescueMapTest.assertRuns(map, RescueMap.BAD_SECTOR, FIRST_SECTOR + 500, 1);
+    }
+
+    /**
+     * Keeps the sectors of the region in memory, and checks that each one is
+     * handed over once.
+     */
+    private static class ImageConsumer implements SectorConsumer {
+        private final byte[] content = new byte[REGION_SECTORS * SECTOR_SIZE];
+        private final BitSet sectors = new BitSet(REGION_SECTORS);
+        // The first sector of each call, in order
+        private final List<Long> reads = new ArrayList<Long>();
+
+        @Override
+        public void onSectors(long firstSector, ByteBuffer data) throws IOException {
+            int first = (int) (firstSector - FIRST_SECTOR);
+            int count = data.remaining() / SECTOR_SIZE;
+            assertTrue(first >= 0 && first + count <= REGION_SECTORS);
+            for (int i = first; i < first + count; i++) {
+                assertFalse("Sector " + firstSector + " read twice", sectors.get(i));
+                sectors.set(i);
+            }
+            data.get(content, first * SECTOR_SIZE, count * SECTOR_SIZE);
+            reads.add(firstSector);
+        }
+    }
+}
@@ -0,0 +1,657 @@
+/**
+ * This file is part of OTGDiskBackup.
+ * <p/>
+ * Copyright 2005-2009 Red Hat, Inc.  All rights reserved.
+ * <p/>
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * <p/>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.pictulog.otgdb.device;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import de.waldheinz.fs.BlockDevice;
+
+/**
+ * This is an in-memory Bulk Only Transport target. It plays the role of the
+ * USB stick on the other end of the {@link BulkTransport}, so that the
+ * {@link OtgDeviceFacade} and everything above it can run on a plain JVM,
+ * against any {@link BlockDevice} (a {@code RamDisk} or a {@code FileDisk}
+ * opened on a disk image).
+ * <p/>
+ * It answers READ CAPACITY, READ(10), WRITE(10), their 16 bytes
+ * counterparts and REQUEST SENSE. Every other command fails with ILLEGAL
+ * REQUEST.
+ * <p/>
+ * The time a real device would take is accounted on a simulated clock
+ * ({@link #getElapsedNanos()}): a fixed latency per command plus the data
+ * length over the bandwidth. The numbers are therefore reproducible, whatever
+ * the load of the machine. {@link #setRealTime(boolean)} makes the transport
+ * actually sleep that long.
+ * <p/>
+ * Faults can be injected: bad sectors, commands failing periodically, reads
+ * periodically reporting a residue and data transfers failing at random with
+ * a fixed seed. A failed data transfer
+ * stalls its endpoint, which then fails every transfer until its halt is
+ * cleared, and leaves the device in the middle of the data phase until it is
+ * reset, like a real device would. A command whose CBW announces a data
+ * phase in the wrong direction ends with a phase error.
+ * <p/>
+ * An asynchronous simulator executes the transfers in order on a worker
+ * thread, so that the host can prepare and submit the next command while the
+ * current one is in flight, like with the {@link AsyncUsbBulkTransport}.
+ *
+ * @author rostskadat
+ */
+public class SimulatedBulkTransport implements BulkTransport {
+
+    private static final int USB_CBW_SIGNATURE = 0x43425355;
+    private static final int USB_CBW_LENGTH = 0x1f;
+    private static final int USB_CBW_OFF_TAG = 0x04;
+    private static final int USB_CBW_OFF_LENGTH = 0x08;
+    private static final int USB_CBW_OFF_DIRECTION = 0x0c;
+    private static final int USB_CBW_OFF_CMD_DATA = 0x0f;
+
+    private static final int USB_CSW_SIGNATURE = 0x53425355;
+    private static final int USB_CSW_LENGTH = 0x0d;
+    private static final byte USB_CSW_STATUS_SUCCESS = 0x00;
+    private static final byte USB_CSW_STATUS_FAILED = 0x01;
+    private static final byte USB_CSW_STATUS_PHASE_ERROR = 0x02;
+
+    private static final byte UFI_CMD_REQUEST_SENSE_OC = 0x03;
+    private static final byte UFI_CMD_READ_CAPACITY_OC = 0x25;
+    private static final byte UFI_CMD_READ_OC = 0x28;
+    private static final byte UFI_CMD_WRITE_OC = 0x2a;
+    private static final int UFI_CMD_LBA = 0x02;
+    private static final int UFI_CMD_TL = 0x07;
+    private static final byte SBC_CMD_READ_CAPACITY_16_OC = (byte) 0x9e;
+    private static final byte SBC_CMD_READ_16_OC = (byte) 0x88;
+    private static final byte SBC_CMD_WRITE_16_OC = (byte) 0x8a;
+    private static final int SBC_CMD_16_LBA = 0x02;
+    private static final int SBC_CMD_16_TL = 0x0a;
+
+    private static final int SENSE_LENGTH = 0x12;
+    private static final byte SENSE_KEY_NONE = 0x00;
+    private static final byte SENSE_KEY_MEDIUM_ERROR = 0x03;
+    private static final byte SENSE_KEY_ILLEGAL_REQUEST = 0x05;
+    private static final byte SENSE_KEY_ABORTED_COMMAND = 0x0b;
+    private static final byte ASC_UNRECOVERED_READ_ERROR = 0x11;
+    private static final byte ASC_WRITE_ERROR = 0x0c;
+    private static final byte ASC_INVALID_COMMAND = 0x20;
+    private static final byte ASC_LBA_OUT_OF_RANGE = 0x21;
+
+    private enum Phase {
+        COMMAND, DATA_IN, DATA_OUT, STATUS
+    }
+
+    private final BlockDevice disk;
+    private final int sectorSize;
+    private final long sectors;
+    private final Set<Long> badSectors;
+    // The failures left for each weak sector
+    private final Map<Long, Integer> weakSectors;
+    private final boolean asynchronous;
+    private final LinkedBlockingQueue<BulkTransfer> queue;
+    private final Object completions;
+    private Thread worker;
+    private int maxTransferLength;
+    private long commandLatencyNanos;
+    private long bytesPerSecond;
+    private boolean realTime;
+    private int failEvery;
+    private int residueEvery;
+    private double transferErrorRate;
+    private Random random;
+
+    private Phase phase;
+    private boolean inHalted;
+    private boolean outHalted;
+    private int tag;
+    private byte status;
+    private ByteBuffer data;
+    private int dataLength;
+    private long writeSector;
+    private int writeLength;
+    private int residue;
+    private long reads;
+    private byte senseKey;
+    private byte additionalSenseCode;
+
+    private long commands;
+    private long failedCommands;
+    private long transfers;
+    private long failedTransfers;
+    private long resets;
+    private long bytesRead;
+    private long bytesWritten;
+    private long elapsedNanos;
+
+    /**
+     * @param disk the content of the simulated device
+     */
+    public SimulatedBulkTransport(BlockDevice disk) throws IOException {
+        this(disk, false);
+    }
+
+    /**
+     * @param disk         the content of the simulated device
+     * @param asynchronous {@code true} to execute the transfers on a worker
+     *                     thread rather than in {@link #submit}
+     */
+    public SimulatedBulkTransport(BlockDevice disk, boolean asynchronous) throws IOException {
+        this.disk = disk;
+        this.asynchronous = asynchronous;
+        this.queue = new LinkedBlockingQueue<BulkTransfer>();
+        this.completions = new Object();
+        this.sectorSize = disk.getSectorSize();
+        this.sectors = disk.getSize() / sectorSize;
+        this.badSectors = new HashSet<Long>();
+        this.weakSectors = new HashMap<Long, Integer>();
+        this.maxTransferLength = UsbBulkTransport.USB_MAX_BULK_TRANSFER_LENGTH;
+        this.phase = Phase.COMMAND;
+        this.data = ByteBuffer.allocate(0);
+    }
+
+    /**
+     * @param maxTransferLength the maximum length of a single transfer, 16 KiB
+     *                          by default like on Android before P
+     */
+    public void setMaxTransferLength(int maxTransferLength) {
+        this.maxTransferLength = maxTransferLength;
+    }
+
+    /**
+     * @param latencyMicros the time spent by the device on each command,
+     *                      before the data phase
+     */
+    public void setCommandLatency(long latencyMicros) {
+        this.commandLatencyNanos = latencyMicros * 1000L;
+    }
+
+    /**
+     * @param bytesPerSecond the bandwidth of the data phases, 0 for unlimited
+     */
+    public void setBandwidth(long bytesPerSecond) {
+        this.bytesPerSecond = bytesPerSecond;
+    }
+
+    /**
+     * @param realTime {@code true} to actually sleep for the simulated time
+     */
+    public void setRealTime(boolean realTime) {
+        this.realTime = realTime;
+    }
+
+    /**
+     * Make the READ(10) and WRITE(10) commands covering that sector fail
+     * with a MEDIUM ERROR.
+     */
+    public synchronized void addBadSector(long sector) {
+        badSectors.add(sector);
+    }
+
+    /**
+     * Make the READ(10) and WRITE(10) commands covering that sector fail with
+     * a MEDIUM ERROR the given number of times, and succeed afterwards.
+     */
+    public synchronized void addWeakSector(long sector, int failures) {
+        weakSectors.put(sector, failures);
+    }
+
+    public synchronized void clearBadSectors() {
+        badSectors.clear();
+        weakSectors.clear();
+    }
+
+    /**
+     * @param failEvery make every n-th command fail with ABORTED COMMAND, 0
+     *                  to disable
+     */
+    public synchronized void setFailEvery(int failEvery) {
+        this.failEvery = failEvery;
+    }
+
+    /**
+     * @param residueEvery make every n-th READ(10) command report half of its
+     *                     data as not transferred in the CSW, while padding
+     *                     the data phase to the expected length and returning
+     *                     a good status, 0 to disable
+     */
+    public synchronized void setResidueEvery(int residueEvery) {
+        this.residueEvery = residueEvery;
+    }
+
+    /**
+     * @param rate the probability for a data transfer to fail, as if the
+     *             endpoint stalled
+     * @param seed the seed of the random generator, for reproducible runs
+     */
+    public synchronized void setTransferErrorRate(double rate, long seed) {
+        this.transferErrorRate = rate;
+        this.random = new Random(seed);
+    }
+
+    @Override
+    public void submit(BulkTransfer transfer) throws IOException {
+        if (!asynchronous) {
+            execute(transfer);
+            return;
+        }
+        synchronized (completions) {
+            if (worker == null) {
+                worker = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        work();
+                    }
+                }, "SimulatedDevice");
+                worker.setDaemon(true);
+                worker.start();
+            }
+        }
+        queue.add(transfer);
+    }
+
+    private void work() {
+        try {
+            while (true) {
+                BulkTransfer transfer = queue.take();
+                try {
+                    execute(transfer);
+                } catch (IOException e) {
+                    // The disk image failed, not the simulated device
+                    complete(transfer, -1);
+                }
+            }
+        } catch (InterruptedException e) {
+            // Closed
+        }
+    }
+
+    private void execute(BulkTransfer transfer) throws IOException {
+        complete(transfer, transfer(transfer));
+    }
+
+    private void complete(BulkTransfer transfer, int transferred) {
+        synchronized (completions) {
+            transfer.complete(transferred);
+            completions.notifyAll();
+        }
+    }
+
+    private synchronized int transfer(BulkTransfer transfer) throws IOException {
+        transfers++;
+        ByteBuffer buffer = transfer.getBuffer().duplicate();
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        buffer.limit(transfer.getOffset() + transfer.getLength());
+        buffer.position(transfer.getOffset());
+        int transferred;
+        if (transfer.isIn() ? inHalted : outHalted) {
+            transferred = -1;
+        } else if (transfer.isIn()) {
+            transferred = phase == Phase.STATUS || phase == Phase.DATA_OUT || phase == Phase.DATA_IN && !data.hasRemaining()
+                    ? sendStatus(buffer) : sendData(buffer, transfer.getTimeout());
+        } else {
+            transferred = phase == Phase.COMMAND ? receiveCommand(buffer)
+                    : phase == Phase.DATA_OUT ? receiveData(buffer, transfer.getTimeout()) : -1;
+        }
+        if (transferred < 0) {
+            failedTransfers++;
+        }
+        return transferred;
+    }
+
+    @Override
+    public int await(BulkTransfer transfer) throws IOException {
+        synchronized (completions) {
+            while (!transfer.isDone()) {
+                try {
+                    completions.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for a transfer");
+                }
+            }
+            return transfer.getTransferred();
+        }
+    }
+
+    @Override
+    public int getMaxTransferLength() {
+        return maxTransferLength;
+    }
+
+    @Override
+    public boolean isAsynchronous() {
+        return asynchronous;
+    }
+
+    @Override
+    public synchronized boolean reset() {
+        resets++;
+        phase = Phase.COMMAND;
+        data.clear();
+        data.limit(0);
+        return true;
+    }
+
+    @Override
+    public synchronized boolean clearHalt(boolean in) {
+        if (in) {
+            inHalted = false;
+        } else {
+            outHalted = false;
+        }
+        return true;
+    }
+
+    @Override
+    public void close() {
+        synchronized (completions) {
+            if (worker != null) {
+                worker.interrupt();
+                worker = null;
+            }
+        }
+    }
+
+    private int receiveCommand(ByteBuffer cbw) throws IOException {
+        if (cbw.remaining() != USB_CBW_LENGTH || cbw.getInt(cbw.position()) != USB_CBW_SIGNATURE) {
+            return -1;
+        }
+        int base = cbw.position();
+        commands++;
+        elapse(commandLatencyNanos);
+        tag = cbw.getInt(base + USB_CBW_OFF_TAG);
+        dataLength = cbw.getInt(base + USB_CBW_OFF_LENGTH);
+        boolean in = (cbw.get(base + USB_CBW_OFF_DIRECTION) & 0x80) != 0;
+        ByteBuffer cdb = cbw.duplicate();
+        cdb.order(ByteOrder.BIG_ENDIAN);
+        cdb.position(base + USB_CBW_OFF_CMD_DATA);
+        cdb = cdb.slice();
+        cdb.order(ByteOrder.BIG_ENDIAN);
+
+        status = USB_CSW_STATUS_SUCCESS;
+        residue = 0;
+        if (failEvery > 0 && commands % failEvery == 0) {
+            fail(SENSE_KEY_ABORTED_COMMAND, (byte) 0);
+            prepareData(in, 0);
+            return USB_CBW_LENGTH;
+        }
+        byte opCode = cdb.get(0);
+        switch (opCode) {
+            case UFI_CMD_READ_CAPACITY_OC:
+                prepareData(in, 8);
+                checkDirection(in, true);
+                data.putInt(0, (int) Math.min(sectors - 1, 0xffffffffL));
+                data.putInt(4, sectorSize);
+                break;
+            case SBC_CMD_READ_CAPACITY_16_OC:
+                prepareData(in, 32);
+                checkDirection(in, true);
+                data.putLong(0, sectors - 1);
+                data.putInt(8, sectorSize);
+                break;
+            case UFI_CMD_REQUEST_SENSE_OC:
+                prepareData(in, SENSE_LENGTH);
+                checkDirection(in, true);
+                data.put(0, (byte) 0x70);
+                data.put(2, senseKey);
+                data.put(7, (byte) (SENSE_LENGTH - 8));
+                data.put(12, additionalSenseCode);
+                senseKey = SENSE_KEY_NONE;
+                additionalSenseCode = 0;
+                break;
+            case UFI_CMD_READ_OC:
+            case SBC_CMD_READ_16_OC:
+                long readSector;
+                int readCount;
+                if (opCode == SBC_CMD_READ_16_OC) {
+                    readSector = cdb.getLong(SBC_CMD_16_LBA);
+                    readCount = cdb.getInt(SBC_CMD_16_TL);
+                } else {
+                    readSector = cdb.getInt(UFI_CMD_LBA) & 0xffffffffL;
+                    readCount = cdb.getShort(UFI_CMD_TL) & 0xffff;
+                }
+                prepareData(in, readCount * sectorSize);
+                if (checkDirection(in, true) && checkRange(readSector, readCount, ASC_UNRECOVERED_READ_ERROR)) {
+                    ByteBuffer sectorData = data.duplicate();
+                    sectorData.limit(Math.min(readCount * sectorSize, dataLength));
+                    disk.read(readSector * sectorSize, sectorData);
+                    bytesRead += sectorData.limit();
+                    if (residueEvery > 0 && ++reads % residueEvery == 0) {
+                        residue = dataLength / 2;
+                        for (int i = dataLength - residue; i < dataLength; i++) {
+                            data.put(i, (byte) 0);
+                        }
+                    }
+                }
+                break;
+            case UFI_CMD_WRITE_OC:
+            case SBC_CMD_WRITE_16_OC:
+                int writeCount;
+                if (opCode == SBC_CMD_WRITE_16_OC) {
+                    writeSector = cdb.getLong(SBC_CMD_16_LBA);
+                    writeCount = cdb.getInt(SBC_CMD_16_TL);
+                } else {
+                    writeSector = cdb.getInt(UFI_CMD_LBA) & 0xffffffffL;
+                    writeCount = cdb.getShort(UFI_CMD_TL) & 0xffff;
+                }
+                writeLength = Math.min(writeCount * sectorSize, dataLength);
+                prepareData(in, writeCount * sectorSize);
+                if (checkDirection(in, false)) {
+                    checkRange(writeSector, writeCount, ASC_WRITE_ERROR);
+                }
+                break;
+            default:
+                fail(SENSE_KEY_ILLEGAL_REQUEST, ASC_INVALID_COMMAND);
+                prepareData(in, 0);
+                break;
+        }
+        return USB_CBW_LENGTH;
+    }
+
+    /**
+     * The host and the device must agree on the direction of the data phase,
+     * otherwise the command ends with a phase error (Bulk Only 6.7).
+     *
+     * @return {@code true} if the direction is the one of the command
+     */
+    private boolean checkDirection(boolean in, boolean expectedIn) {
+        if (dataLength > 0 && in != expectedIn) {
+            failedCommands++;
+            status = USB_CSW_STATUS_PHASE_ERROR;
+            return false;
+        }
+        return true;
+    }
+
+    private boolean checkRange(long firstSector, int count, byte errorCode) {
+        if (firstSector + count > sectors) {
+            fail(SENSE_KEY_ILLEGAL_REQUEST, ASC_LBA_OUT_OF_RANGE);
+            return false;
+        }
+        for (long sector = firstSector; sector < firstSector + count; sector++) {
+            if (badSectors.contains(sector)) {
+                fail(SENSE_KEY_MEDIUM_ERROR, errorCode);
+                return false;
+            }
+            Integer failures = weakSectors.get(sector);
+            if (failures != null && failures > 0) {
+                weakSectors.put(sector, failures - 1);
+                fail(SENSE_KEY_MEDIUM_ERROR, errorCode);
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void fail(byte key, byte code) {
+        failedCommands++;
+        status = USB_CSW_STATUS_FAILED;
+        senseKey = key;
+        additionalSenseCode = code;
+    }
+
+    /**
+     * The host always gets the number of bytes announced in the CBW, the
+     * bytes the command did not produce are zeros.
+     */
+    private void prepareData(boolean in, int length) {
+        int capacity = Math.max(length, dataLength);
+        if (data.capacity() < capacity) {
+            data = ByteBuffer.allocate(capacity);
+        }
+        data.clear();
+        data.order(ByteOrder.BIG_ENDIAN);
+        for (int i = 0; i < dataLength; i++) {
+            data.put(i, (byte) 0);
+        }
+        data.limit(dataLength);
+        phase = dataLength == 0 ? Phase.STATUS : in ? Phase.DATA_IN : Phase.DATA_OUT;
+    }
+
+    private int sendData(ByteBuffer dest, int timeout) {
+        int length = Math.min(dest.remaining(), data.remaining());
+        if (injectTransferError(length, timeout)) {
+            inHalted = true;
+            return -1;
+        }
+        ByteBuffer chunk = data.duplicate();
+        chunk.limit(chunk.position() + length);
+        dest.put(chunk);
+        data.position(data.position() + length);
+        return length;
+    }
+
+    private int receiveData(ByteBuffer src, int timeout) throws IOException {
+        int length = Math.min(src.remaining(), data.remaining());
+        if (injectTransferError(length, timeout)) {
+            outHalted = true;
+            return -1;
+        }
+        ByteBuffer chunk = src.duplicate();
+        chunk.limit(chunk.position() + length);
+        data.put(chunk);
+        if (!data.hasRemaining()) {
+            phase = Phase.STATUS;
+            if (status == USB_CSW_STATUS_SUCCESS) {
+                ByteBuffer sectorData = data.duplicate();
+                sectorData.position(0);
+                sectorData.limit(writeLength);
+                disk.write(writeSector * sectorSize, sectorData);
+                bytesWritten += writeLength;
+            }
+        }
+        return length;
+    }
+
+    private boolean injectTransferError(int length, int timeout) {
+        long nanos = bytesPerSecond > 0 ? length * 1000000000L / bytesPerSecond : 0;
+        if (timeout > 0 && nanos > timeout * 1000000L) {
+            elapse(timeout * 1000000L);
+            return true;
+        }
+        elapse(nanos);
+        return random != null && random.nextDouble() < transferErrorRate;
+    }
+
+    private int sendStatus(ByteBuffer csw) {
+        if (csw.remaining() < USB_CSW_LENGTH) {
+            return -1;
+        }
+        int base = csw.position();
+        csw.putInt(base, USB_CSW_SIGNATURE);
+        csw.putInt(base + 4, tag);
+        csw.putInt(base + 8, data.remaining() + residue);
+        csw.put(base + 12, status);
+        phase = Phase.COMMAND;
+        return USB_CSW_LENGTH;
+    }
+
+    private void elapse(long nanos) {
+        elapsedNanos += nanos;
+        if (realTime && nanos > 0) {
+            try {
+                Thread.sleep(nanos / 1000000L, (int) (nanos % 1000000L));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    public synchronized long getCommands() {
+        return commands;
+    }
+
+    public synchronized long getFailedCommands() {
+        return failedCommands;
+    }
+
+    public synchronized long getTransfers() {
+        return transfers;
+    }
+
+    public synchronized long getFailedTransfers() {
+        return failedTransfers;
+    }
+
+    /**
+     * @return the number of Bulk-Only Mass Storage Resets received
+     */
+    public synchronized long getResets() {
+        return resets;
+    }
+
+    public synchronized long getBytesRead() {
+        return bytesRead;
+    }
+
+    public synchronized long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    /**
+     * @return the time the simulated device spent on the commands so far
+     */
+    public synchronized long getElapsedNanos() {
+        return elapsedNanos;
+    }
+
+    public synchronized void resetStatistics() {
+        commands = 0;
+        failedCommands = 0;
+        transfers = 0;
+        failedTransfers = 0;
+        resets = 0;
+        bytesRead = 0;
+        bytesWritten = 0;
+        elapsedNanos = 0;
+    }
+
+    @Override
+    public synchronized String toString() {
+        double seconds = elapsedNanos / 1e9;
+        return String.format("SimulatedBulkTransport[commands=%d (%d failed), transfers=%d (%d failed), resets=%d, read=%d, written=%d, elapsed=%.3fs]",
+                commands, failedCommands, transfers, failedTransfers, resets, bytesRead, bytesWritten, seconds);
+    }
+}
@@ -0,0 +1,198 @@
+/**
+ * This file is part of OTGDiskBackup.
+ * <p/>
+ * Copyright 2005-2009 Red Hat, Inc.  All rights reserved.
+ * <p/>
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * <p/>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.pictulog.otgdb.device;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import de.waldheinz.fs.FsDirectory;
+import de.waldheinz.fs.FsDirectoryEntry;
+import de.waldheinz.fs.FsFile;
+import de.waldheinz.fs.fat.FatFileSystem;
+import de.waldheinz.fs.fat.FatType;
+import de.waldheinz.fs.util.RamDisk;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Measures the effect of the transfer size, the caches and the pipelining on
+ * a {@link SimulatedBulkTransport} with the latency and bandwidth of a typical
+ * SD card reader. Except for the pipelining, the times are taken from the
+ * simulated clock and are therefore the same on every run. The results are
+ * printed on the standard output.
+ *
+ * @author rostskadat
+ */
+public class TransferBenchmarkTest {
+
+    private static final int SECTOR_SIZE = OtgDeviceFacadeTest.SECTOR_SIZE;
+    private static final int DISK_SIZE = 0x1000000; // 16 MiB
+    private static final long COMMAND_LATENCY_MICROS = 1000;
+    private static final long BANDWIDTH = 20000000;
+
+    private static SimulatedBulkTransport newTransport(RamDisk disk, boolean asynchronous) throws IOException {
+        SimulatedBulkTransport transport = new SimulatedBulkTransport(disk, asynchronous);
+        transport.setCommandLatency(COMMAND_LATENCY_MICROS);
+        transport.setBandwidth(BANDWIDTH);
+        return transport;
+    }
+
+    private static OtgBlockDevice newDevice(SimulatedBulkTransport transport, int cacheSize) throws IOException {
+        OtgBlockDevice device = new OtgBlockDevice(new OtgDeviceFacade(transport, (byte) 0), cacheSize);
+        device.init();
+        transport.resetStatistics();
+        return device;
+    }
+
+    private static double megabytesPerSecond(long bytes, long nanos) {
+        return nanos == 0 ? 0.0 : bytes * 1000.0 / nanos;
+    }
+
+    @Test
+    public void testTransferSize() throws IOException {
+        RamDisk disk = OtgBlockDeviceTest.format(DISK_SIZE, FatType.FAT16);
+        System.out.println("Transfer size | commands/MiB | MB/s");
+        double previous = 0;
+        for (int transferSize = 0x1000; transferSize <= TransferTuner.MAX_TRANSFER_SIZE; transferSize *= 2) {
+            SimulatedBulkTransport transport = newTransport(disk, false);
+            OtgBlockDevice device = newDevice(transport, SectorCache.DEFAULT_CAPACITY);
+            device.setTransferSize(transferSize);
+            device.readStream(0, DISK_SIZE / SECTOR_SIZE, new SectorConsumer() {
+                @Override
+                public void onSectors(long firstSector, ByteBuffer data) {
+                }
+            });
+            double throughput = megabytesPerSecond(DISK_SIZE, transport.getElapsedNanos());
+            System.out.println(String.format("%13d | %12.1f | %.2f", transferSize,
+                    transport.getCommands() * 1048576.0 / DISK_SIZE, throughput));
+            assertEquals(DISK_SIZE / transferSize, transport.getCommands());
+            assertTrue(throughput > previous);
+            previous = throughput;
+            device.close();
+        }
+    }
+
+    @Test
+    public void testCaching() throws IOException {
+        RamDisk disk = OtgBlockDeviceTest.format(DISK_SIZE, FatType.FAT16);
+        long uncached = walk(disk, 1, "without cache");
+        long cached = walk(disk, SectorCache.DEFAULT_CAPACITY, "with cache");
+        assertTrue(cached < uncached);
+    }
+
+    /**
+     * Walk the volume with fat32-lib three times, reading every file.
+     *
+     * @return the number of commands sent
+     */
+    private long walk(RamDisk disk, int cacheSize, String label) throws IOException {
+        SimulatedBulkTransport transport = newTransport(disk, false);
+        OtgBlockDevice device = newDevice(transport, cacheSize);
+        for (int i = 0; i < 3; i++) {
+            FatFileSystem fs = FatFileSystem.read(device, true);
+            walk(fs.getRoot());
+        }
+        System.out.println(String.format("Walk %s: %d commands, %.3f s, %s, %s", label, transport.getCommands(),
+                transport.getElapsedNanos() / 1e9, device.getSectorCache(), device.getReadAhead()));
+        device.close();
+        return transport.getCommands();
+    }
+
+    private void walk(FsDirectory directory) throws IOException {
+        for (FsDirectoryEntry entry : directory) {
+            if (entry.getName().startsWith(".")) {
+                continue;
+            }
+            if (entry.isDirectory()) {
+                walk(entry.getDirectory());
+            } else {
+                FsFile file = entry.getFile();
+                // The way fat32-lib callers read: one small buffer at a time
+                ByteBuffer buffer = ByteBuffer.allocate(0x1000);
+                for (long offset = 0; offset < file.getLength(); offset += buffer.capacity()) {
+                    buffer.clear();
+                    buffer.limit((int) Math.min(buffer.capacity(), file.getLength() - offset));
+                    file.read(offset, buffer);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testReadAhead() throws IOException {
+        RamDisk disk = OtgBlockDeviceTest.format(DISK_SIZE, FatType.FAT16);
+        SimulatedBulkTransport transport = newTransport(disk, false);
+        OtgBlockDevice device = newDevice(transport, SectorCache.DEFAULT_CAPACITY);
+        ByteBuffer dest = ByteBuffer.allocate(0x1000);
+        int length = 0x400000;
+        for (int offset = 0; offset < length; offset += dest.capacity()) {
+            dest.clear();
+            device.read(0x400000 + offset, dest);
+        }
+        System.out.println(String.format("Sequential 4 KiB reads: %d commands, %.2f MB/s, %s", transport.getCommands(),
+                megabytesPerSecond(length, transport.getElapsedNanos()), device.getReadAhead()));
+        assertTrue(device.getReadAhead().getHitRatio() > 0.9);
+        assertTrue(transport.getCommands() < length / dest.capacity() / 2);
+        device.close();
+    }
+
+    @Test
+    public void testPipelining() throws IOException {
+        RamDisk disk = new RamDisk(0x400000, SECTOR_SIZE);
+        OtgDeviceFacadeTest.fill(disk);
+        long synchronous = stream(disk, false);
+        long asynchronous = stream(disk, true);
+        System.out.println(String.format("Stream with a busy consumer: %d ms synchronous, %d ms asynchronous",
+                synchronous / 1000000, asynchronous / 1000000));
+    }
+
+    /**
+     * Stream the whole disk in real time to a consumer that takes about as
+     * long as the device to process each command.
+     *
+     * @return the wall clock time, in ns
+     */
+    private long stream(RamDisk disk, boolean asynchronous) throws IOException {
+        SimulatedBulkTransport transport = newTransport(disk, asynchronous);
+        transport.setRealTime(true);
+        OtgDeviceFacade facade = new OtgDeviceFacade(transport, (byte) 0);
+        facade.readCapacity();
+        final ByteBuffer read = ByteBuffer.allocate((int) disk.getSize());
+        long start = System.nanoTime();
+        facade.readStream(0, (int) facade.getSectors(), 0x10000 / SECTOR_SIZE, new SectorConsumer() {
+            @Override
+            public void onSectors(long firstSector, ByteBuffer data) throws IOException {
+                read.put(data);
+                try {
+                    Thread.sleep(4);
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+            }
+        });
+        long nanos = System.nanoTime() - start;
+        facade.close();
+        assertArrayEquals(OtgDeviceFacadeTest.expected(0, (int) (disk.getSize() / SECTOR_SIZE)), read.array());
+        return nanos;
+    }
+}
@@ -0,0 +1,452 @@
+/**
+ * This file is part of OTGDiskBackup.
+ * <p/>
+ * Copyright 2005-2009 Red Hat, Inc.  All rights reserved.
+ * <p/>
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * <p/>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.pictulog.otgdb.fat;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Calendar;
+import java.util.Map;
+import java.util.TreeMap;
+
+import de.waldheinz.fs.FsDirectory;
+import de.waldheinz.fs.FsDirectoryEntry;
+import de.waldheinz.fs.ReadOnlyException;
+import de.waldheinz.fs.fat.FatFileSystem;
+import de.waldheinz.fs.fat.FatType;
+import de.waldheinz.fs.fat.SuperFloppyFormatter;
+import de.waldheinz.fs.util.RamDisk;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Compares the {@link FatVolume} with fat32-lib on RAM disks formatted by
+ * fat32-lib, for the 3 types of FAT.
+ *
+ * @author rostskadat
+ */
+public class FatVolumeTest {
+
+    private static final int SECTOR_SIZE = 512;
+    // Sizes that give a cluster count of the matching FAT type
+    private static final int FAT12_DISK_SIZE = 3800 * SECTOR_SIZE;
+    private static final int FAT16_DISK_SIZE = 0x1000000; // 16 MiB
+    private static final int FAT32_DISK_SIZE = 0x2800000; // 40 MiB
+    private static final FatType[] FAT_TYPES = {FatType.FAT12, FatType.FAT16, FatType.FAT32};
+    private static final int PHOTO_SIZE = 150000;
+    // The offset of the extended flags of a FAT32 boot sector
+    private static final int BPB_EXT_FLAGS = 0x28;
+
+    @Test
+    public void testListingMatchesFatFileSystem() throws IOException {
+        for (FatType fatType : FAT_TYPES) {
+            RamDisk disk = format(fatType);
+            FatVolume volume = FatVolume.read(disk, true);
+            assertEquals(fatType, volume.getBootSector().getFatType());
+            FatFileSystem fs = FatFileSystem.read(disk, true);
+            assertSameDirectory(fatType + ":/", fs.getRoot(), volume.getRoot());
+        }
+    }
+
+    @Test
+    public void testEscapedNameAndOrphanLongName() throws IOException {
+        RamDisk disk = format(FatType.FAT16);
+        FatBootSector bootSector = FatBootSector.read(disk);
+        long rootDir = bootSector.getRootDirOffset();
+        // A short name starting with 0xe5 is stored with 0x05, and the
+        // checksum of its long name is computed on the stored bytes
+        int escaped = findSlot(disk, rootDir, "ECOLE~1 TXT");
+        ByteBuffer slot = readSlot(disk, rootDir, escaped);
+        slot.put(0, (byte) 0x05);
+        disk.write(rootDir + escaped * 32, slot);
+        setLongNameChecksum(disk, rootDir, escaped, checksum(slot));
+        // A long name whose checksum does not match is ignored
+        int orphan = findSlot(disk, rootDir, "MIXEDC~1TXT");
+        setLongNameChecksum(disk, rootDir, orphan, checksum(readSlot(disk, rootDir, orphan)) ^ 0xff);
+
+        FsDirectory root = FatVolume.read(disk, true).getRoot();
+        FatVolumeEntry ecole = (FatVolumeEntry) root.getEntry("Ecole.txt");
+        assertNotNull(ecole);
+        assertEquals("\u00e5COLE~1.TXT", ecole.getShortName());
+        assertNull(root.getEntry("mixedCase.txt"));
+        FsDirectoryEntry mixed = root.getEntry("MIXEDC~1.TXT");
+        assertNotNull(mixed);
+        assertEquals("Mixed", new String(read(mixed)));
+    }
+
+    @Test
+    public void testFreeChainUpdatesFsInfo() throws IOException {
+        RamDisk disk = format(FatType.FAT32);
+        FatVolume volume = FatVolume.read(disk, false);
+        FatTable fatTable = volume.getFatTable();
+        long freeBefore = fatTable.getFreeClusterCount();
+        assertEquals(countFreeClusters(disk), freeBefore);
+        assertEquals(freeBefore * volume.getBootSector().getBytesPerCluster(), volume.getFreeSpace());
+        FatVolumeEntry photo = (FatVolumeEntry) getDirectory(volume.getRoot(), "DCIM/100CANON").getEntry("IMG_0001.JPG");
+        long clusterSize = volume.getBootSector().getBytesPerCluster();
+        long expected = (photo.getLength() + clusterSize - 1) / clusterSize;
+        assertEquals(expected, fatTable.freeChain(photo.getStartCluster()));
+        assertEquals(freeBefore + expected, fatTable.getFreeClusterCount());
+        assertEquals(0, fatTable.getEntry(photo.getStartCluster()));
+        try {
+            fatTable.freeChain(photo.getStartCluster());
+            fail("A free cluster can't be freed again");
+        } catch (IOException e) {
+            // expected
+        }
+        fatTable.flush();
+        assertEquals(freeBefore + expected, volume.getBootSector().readFreeClusterCount(disk));
+        assertEquals(freeBefore + expected, FatVolume.read(disk, true).getFatTable().getFreeClusterCount());
+        assertEquals(freeBefore + expected, countFreeClusters(disk));
+        // The FAT12 and FAT16 volumes have no FSInfo sector
+        assertEquals(-1, FatVolume.read(format(FatType.FAT16), true).getFatTable().getFreeClusterCount());
+        assertEquals(-1, FatVolume.read(format(FatType.FAT12), true).getFreeSpace());
+    }
+
+    @Test
+    public void testMirroredFatWrites() throws IOException {
+        for (FatType fatType : FAT_TYPES) {
+            RamDisk disk = format(fatType);
+            FatVolume volume = FatVolume.read(disk, false);
+            FatBootSector bootSector = volume.getBootSector();
+            assertTrue(bootSector.isFatMirrored());
+            assertEquals(2, bootSector.getNumberOfFats());
+            getDirectory(volume.getRoot(), "DCIM/100CANON").remove("IMG_0001.JPG");
+            volume.flush();
+            assertArrayEquals(fatType.toString(), readFat(disk, bootSector, 0), readFat(disk, bootSector, 1));
+        }
+    }
+
+    @Test
+    public void testActiveFatWrites() throws IOException {
+        RamDisk disk = format(FatType.FAT32);
+        // Disable the mirroring and make the second FAT the active one
+        ByteBuffer bpb = ByteBuffer.allocate(SECTOR_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        disk.read(0, bpb);
+        bpb.putShort(BPB_EXT_FLAGS, (short) 0x81);
+        bpb.clear();
+        disk.write(0, bpb);
+        FatVolume volume = FatVolume.read(disk, false);
+        FatBootSector bootSector = volume.getBootSector();
+        assertFalse(bootSector.isFatMirrored());
+        assertEquals(1, bootSector.getActiveFat());
+        byte[] fat0 = readFat(disk, bootSector, 0);
+
+        FatVolumeEntry photo = (FatVolumeEntry) getDirectory(volume.getRoot(), "DCIM/100CANON").getEntry("IMG_0001.JPG");
+        long startCluster = photo.getStartCluster();
+        getDirectory(volume.getRoot(), "DCIM/100CANON").remove("IMG_0001.JPG");
+        volume.flush();
+        assertArrayEquals(fat0, readFat(disk, bootSector, 0));
+        ByteBuffer fat1 = ByteBuffer.wrap(readFat(disk, bootSector, 1)).order(ByteOrder.LITTLE_ENDIAN);
+        assertEquals(0, fat1.getInt((int) startCluster * 4));
+        assertTrue(ByteBuffer.wrap(fat0).order(ByteOrder.LITTLE_ENDIAN).getInt((int) startCluster * 4) != 0);
+        assertEquals(0, FatVolume.read(disk, true).getFatTable().getEntry(startCluster));
+    }
+
+    @Test
+    public void testFat12EntriesStraddlingPages() throws IOException {
+        RamDisk disk = new RamDisk(FAT12_DISK_SIZE, SECTOR_SIZE);
+        FatFileSystem fs = SuperFloppyFormatter.get(disk).setFatType(FatType.FAT12).format();
+        // A file big enough to go across the end of the first 4 KiB page of
+        // the FAT, that is the entry of the cluster 2730 at byte 4095
+        int clusterSize = FatBootSector.read(disk).getBytesPerCluster();
+        byte[] content = content(2800 * clusterSize);
+        fs.getRoot().addFile("big.bin").getFile().write(0, ByteBuffer.wrap(content));
+        fs.close();
+
+        FatVolume volume = FatVolume.read(disk, false);
+        FatBootSector bootSector = volume.getBootSector();
+        assertEquals(FatType.FAT12, bootSector.getFatType());
+        assertTrue(bootSector.getClusterCount() > 2800);
+        FatTable fatTable = volume.getFatTable();
+        byte[] fat = readFat(disk, bootSector, 0);
+        for (long cluster = 2725; cluster < 2735; cluster++) {
+            assertEquals("cluster " + cluster, fat12Entry(fat, cluster), fatTable.getEntry(cluster));
+        }
+        FsDirectoryEntry big = volume.getRoot().getEntry("big.bin");
+        assertArrayEquals(content, read(big));
+
+        // Modify both halves of the straddling entry, and its neighbours
+        long[] entries = {0xabc, 0x123, 0xfed, 0x456};
+        for (int i = 0; i < entries.length; i++) {
+            fatTable.setEntry(2729 + i, entries[i]);
+        }
+        fatTable.flush();
+        FatTable reread = FatVolume.read(disk, true).getFatTable();
+        fat = readFat(disk, bootSector, 0);
+        for (int i = 0; i < entries.length; i++) {
+            assertEquals(entries[i], reread.getEntry(2729 + i));
+            assertEquals(entries[i], fat12Entry(fat, 2729 + i));
+        }
+        assertEquals(2728 + 1, reread.getEntry(2728));
+        assertEquals(2733 + 1, reread.getEntry(2733));
+        for (int i = 0; i < entries.length; i++) {
+            fatTable.setEntry(2729 + i, 2730 + i);
+        }
+        fatTable.flush();
+
+        long freeBefore = countFreeClusters(disk);
+        volume.getRoot().remove("big.bin");
+        volume.close();
+        assertNull(FatFileSystem.read(disk, true).getRoot().getEntry("big.bin"));
+        assertEquals(freeBefore + 2800, countFreeClusters(disk));
+    }
+
+    @Test
+    public void testRemoveThenRemount() throws IOException {
+        for (FatType fatType : FAT_TYPES) {
+            RamDisk disk = format(fatType);
+            long freeBefore = countFreeClusters(disk);
+            FatVolume volume = FatVolume.read(disk, false);
+            FsDirectory canon = getDirectory(volume.getRoot(), "DCIM/100CANON");
+            long photoLength = canon.getEntry("IMG_0001.JPG").getFile().getLength();
+            long clusterSize = volume.getBootSector().getBytesPerCluster();
+            canon.remove("IMG_0001.JPG");
+            canon.remove("A long file name.jpeg");
+            volume.getRoot().remove("readme.txt");
+            assertNull(canon.getEntry("IMG_0001.JPG"));
+            volume.close();
+
+            FatFileSystem fs = FatFileSystem.read(disk, true);
+            FsDirectory remounted = getDirectory(fs.getRoot(), "DCIM/100CANON");
+            assertNull(remounted.getEntry("IMG_0001.JPG"));
+            assertNull(remounted.getEntry("A long file name.jpeg"));
+            assertNull(fs.getRoot().getEntry("readme.txt"));
+            assertArrayEquals(content(PHOTO_SIZE), read(remounted.getEntry("IMG_0002.JPG")));
+            assertEquals("Mixed", new String(read(fs.getRoot().getEntry("mixedCase.txt"))));
+            long freed = (photoLength + clusterSize - 1) / clusterSize + 2;
+            assertEquals(fatType.toString(), freeBefore + freed, countFreeClusters(disk));
+            assertSameDirectory(fatType + ":/", fs.getRoot(), FatVolume.read(disk, true).getRoot());
+        }
+    }
+
+    @Test
+    public void testWritesAreRefused() throws IOException {
+        RamDisk disk = format(FatType.FAT16);
+        FatVolume readOnly = FatVolume.read(disk, true);
+        FsDirectory root = readOnly.getRoot();
+        try {
+            root.addFile("new.txt");
+            fail("The volume is read only");
+        } catch (ReadOnlyException e) {
+            // expected
+        }
+        try {
+            root.remove("readme.txt");
+            fail("The volume is read only");
+        } catch (ReadOnlyException e) {
+            // expected
+        }
+        FsDirectoryEntry readme = root.getEntry("readme.txt");
+        try {
+            readme.getFile().write(0, ByteBuffer.allocate(1));
+            fail("The files are read only");
+        } catch (ReadOnlyException e) {
+            // expected
+        }
+        try {
+            readme.setName("renamed.txt");
+            fail("The entries are read only");
+        } catch (ReadOnlyException e) {
+            // expected
+        }
+        try {
+            readme.getDirectory();
+            fail("readme.txt is not a directory");
+        } catch (IOException e) {
+            // expected
+        }
+        try {
+            FatVolume.read(disk, false).getRoot().addDirectory("new");
+            fail("Directories can't be created");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    /**
+     * @return a RAM disk holding a few files and directories, with short and
+     * long names, and fixed times
+     */
+    private static RamDisk format(FatType fatType) throws IOException {
+        int size = fatType == FatType.FAT12 ? FAT12_DISK_SIZE
+                : fatType == FatType.FAT16 ? FAT16_DISK_SIZE : FAT32_DISK_SIZE;
+        RamDisk disk = new RamDisk(size, SECTOR_SIZE);
+        FatFileSystem fs = SuperFloppyFormatter.get(disk).setFatType(fatType).setVolumeLabel("TEST").format();
+        Calendar calendar = Calendar.getInstance();
+        calendar.clear();
+        calendar.set(2015, Calendar.JUNE, 1, 12, 34, 56);
+        long time = calendar.getTimeInMillis();
+        FsDirectory root = fs.getRoot();
+        FsDirectoryEntry dcim = root.addDirectory("DCIM");
+        FsDirectory canon = dcim.getDirectory().addDirectory("100CANON").getDirectory();
+        write(canon.addFile("IMG_0001.JPG"), content(PHOTO_SIZE), time);
+        write(canon.addFile("IMG_0002.JPG"), content(PHOTO_SIZE), time + 2000);
+        write(canon.addFile("A long file name.jpeg"), "Long".getBytes(), time + 3600000);
+        write(root.addFile("readme.txt"), "Hello".getBytes(), time - 86400000L);
+        write(root.addFile("mixedCase.txt"), "Mixed".getBytes(), time);
+        write(root.addFile("Ecole.txt"), new byte[0], time);
+        dcim.setLastModified(time);
+        fs.close();
+        return disk;
+    }
+
+    private static void write(FsDirectoryEntry entry, byte[] content, long lastModified) throws IOException {
+        entry.getFile().write(0, ByteBuffer.wrap(content));
+        entry.setLastModified(lastModified);
+    }
+
+    private static byte[] content(int size) {
+        byte[] content = new byte[size];
+        for (int i = 0; i < size; i++) {
+            content[i] = (byte) (i * 31 + i / 511);
+        }
+        return content;
+    }
+
+    private static byte[] read(FsDirectoryEntry entry) throws IOException {
+        ByteBuffer content = ByteBuffer.allocate((int) entry.getFile().getLength());
+        entry.getFile().read(0, content);
+        return content.array();
+    }
+
+    private static FsDirectory getDirectory(FsDirectory root, String path) throws IOException {
+        FsDirectory directory = root;
+        for (String name : path.split("/")) {
+            directory = directory.getEntry(name).getDirectory();
+        }
+        return directory;
+    }
+
+    private static void assertSameDirectory(String path, FsDirectory expected, FsDirectory actual) throws IOException {
+        Map<String, FsDirectoryEntry> expectedEntries = list(expected);
+        Map<String, FsDirectoryEntry> actualEntries = list(actual);
+        assertEquals(path, expectedEntries.keySet(), actualEntries.keySet());
+        for (FsDirectoryEntry entry : expectedEntries.values()) {
+            String name = path + entry.getName();
+            FsDirectoryEntry other = actualEntries.get(entry.getName());
+            assertEquals(name, entry.isDirectory(), other.isDirectory());
+            assertEquals(name, entry.getLastModified(), other.getLastModified());
+            assertEquals(name, entry.getCreated(), other.getCreated());
+            assertEquals(name, entry.getLastAccessed(), other.getLastAccessed());
+            if (entry.isDirectory()) {
+                assertSameDirectory(name + "/", entry.getDirectory(), other.getDirectory());
+            } else {
+                assertEquals(name, entry.getFile().getLength(), other.getFile().getLength());
+                assertArrayEquals(name, read(entry), read(other));
+            }
+        }
+    }
+
+    private static Map<String, FsDirectoryEntry> list(FsDirectory directory) {
+        Map<String, FsDirectoryEntry> entries = new TreeMap<String, FsDirectoryEntry>();
+        for (FsDirectoryEntry entry : directory) {
+            if (!".".equals(entry.getName()) && !"..".equals(entry.getName())) {
+                entries.put(entry.getName(), entry);
+            }
+        }
+        return entries;
+    }
+
+    private static byte[] readFat(RamDisk disk, FatBootSector bootSector, int fat) throws IOException {
+        ByteBuffer content = ByteBuffer.allocate((int) bootSector.getFatSize());
+        disk.read(bootSector.getFatOffset(fat), content);
+        return content.array();
+    }
+
+    /**
+     * @return the number of free clusters, counted in the first FAT without
+     * the help of the {@link FatTable}
+     */
+    private static long countFreeClusters(RamDisk disk) throws IOException {
+        FatBootSector bootSector = FatBootSector.read(disk);
+        ByteBuffer fat = ByteBuffer.wrap(readFat(disk, bootSector, 0)).order(ByteOrder.LITTLE_ENDIAN);
+        long free = 0;
+        for (long cluster = 2; cluster < bootSector.getClusterCount() + 2; cluster++) {
+            long entry;
+            if (bootSector.getFatType() == FatType.FAT32) {
+                entry = fat.getInt((int) cluster * 4) & 0x0fffffff;
+            } else if (bootSector.getFatType() == FatType.FAT16) {
+                entry = fat.getShort((int) cluster * 2) & 0xffff;
+            } else {
+                entry = fat12Entry(fat.array(), cluster);
+            }
+            if (entry == 0) {
+                free++;
+            }
+        }
+        return free;
+    }
+
+    private static long fat12Entry(byte[] fat, long cluster) {
+        int offset = (int) (cluster + cluster / 2);
+        int value = (fat[offset] & 0xff) | (fat[offset + 1] & 0xff) << 8;
+        return (cluster & 1) == 0 ? value & 0xfff : value >> 4;
+    }
+
+    private static int findSlot(RamDisk disk, long directory, String shortName) throws IOException {
+        for (int slot = 0; ; slot++) {
+            ByteBuffer entry = readSlot(disk, directory, slot);
+            if (entry.get(0) == 0) {
+                throw new IOException(shortName + " not found");
+            }
+            if (entry.get(11) != 0x0f && shortName.equals(new String(entry.array(), 0, 11, "ISO-8859-1"))) {
+                return slot;
+            }
+        }
+    }
+
+    private static ByteBuffer readSlot(RamDisk disk, long directory, int slot) throws IOException {
+        ByteBuffer entry = ByteBuffer.allocate(32);
+        disk.read(directory + slot * 32, entry);
+        entry.clear();
+        return entry;
+    }
+
+    /**
+     * Set the checksum of the long name slots that precede the short name
+     * slot.
+     */
+    private static void setLongNameChecksum(RamDisk disk, long directory, int slot, int checksum) throws IOException {
+        for (int lfn = slot - 1; lfn >= 0; lfn--) {
+            ByteBuffer entry = readSlot(disk, directory, lfn);
+            if (entry.get(11) != 0x0f) {
+                break;
+            }
+            entry.put(13, (byte) checksum);
+            disk.write(directory + lfn * 32, entry);
+        }
+    }
+
+    private static int checksum(ByteBuffer entry) {
+        int sum = 0;
+        for (int i = 0; i < 11; i++) {
+            sum = (((sum & 1) << 7) + (sum >> 1) + (entry.get(i) & 0xff)) & 0xff;
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,243 @@
+/**
+ * This file is part of OTGDiskBackup.
+ * <p/>
+ * Copyright 2005-2009 Red Hat, Inc.  All rights reserved.
+ * <p/>
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * <p/>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.pictulog.otgdb.task;
+
+import net.pictulog.otgdb.catalog.BackupManifest;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+import de.waldheinz.fs.FsFile;
+import de.waldheinz.fs.ReadOnlyException;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Copies in-memory files through a {@link BackupPipeline}, resuming them
+ * from the checkpoints of a {@link BackupManifest} as after a crash.
+ *
+ * @author rostskadat
+ */
+public class BackupPipelineTest {
+
+    private static final int CHUNK_SIZE = 0x1000;
+    private static final int FILE_SIZE = 10 * CHUNK_SIZE + 123;
+    // Where the interrupted copies stopped
+    private static final int CHECKPOINT = 4 * CHUNK_SIZE;
+    private static final String PATH = "/DCIM/100CANON/MVI_0001.MOV";
+    private static final long LAST_MODIFIED = 1433161496000L;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private BackupPipeline pipeline;
+    private MemoryFile srcFile;
+    private File destFile;
+    private File partFile;
+    private BackupManifest manifest;
+
+    @Before
+    public void setUp() throws IOException {
+        pipeline = new BackupPipeline(CHUNK_SIZE, 4, 2);
+        srcFile = new MemoryFile(content(FILE_SIZE));
+        destFile = new File(folder.getRoot(), "MVI_0001.MOV");
+        partFile = BackupPipeline.getPartFile(destFile);
+        manifest = BackupManifest.load(new File(folder.getRoot(), "manifest"));
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        pipeline.close();
+    }
+
+    @Test
+    public void testCopy() throws IOException {
+        RecordingJournal journal = new RecordingJournal();
+        BackupPipeline.Copy copy = pipeline.copy(srcFile, destFile, null, journal);
+        assertTrue(copy.await());
+        assertArrayEquals(srcFile.content, FileUtils.readFileToByteArray(destFile));
+        assertFalse(partFile.exists());
+        assertEquals(0, copy.getOffset());
+        assertEquals(FILE_SIZE, copy.getWritten());
+        assertEquals(crc(srcFile.content, FILE_SIZE), copy.getChecksum());
+        assertTrue(journal.completed);
+        assertFalse(journal.failed);
+        assertEquals(0, srcFile.lowestOffset);
+    }
+
+    @Test
+    public void testResumeFromCheckpoint() throws IOException {
+        // The part file may hold more than the checkpoint: what follows was not synced
+        byte[] part = Arrays.copyOf(srcFile.content, CHECKPOINT + 100);
+        Arrays.fill(part, CHECKPOINT, part.length, (byte) 0x55);
+        FileUtils.writeByteArrayToFile(partFile, part);
+        BackupManifest.Checkpoint checkpoint = checkpoint(crc(srcFile.content, CHECKPOINT));
+
+        BackupPipeline.Copy copy = pipeline.copy(srcFile, destFile, checkpoint, new RecordingJournal());
+        assertTrue(copy.await());
+        assertEquals(CHECKPOINT, copy.getOffset());
+        assertEquals(FILE_SIZE - CHECKPOINT, copy.getWritten());
+        assertEquals(CHECKPOINT, srcFile.lowestOffset);
+        assertArrayEquals(srcFile.content, FileUtils.readFileToByteArray(destFile));
+        assertEquals(crc(srcFile.content, FILE_SIZE), copy.getChecksum());
+        assertFalse(partFile.exists());
+    }
+
+    @Test
+    public void testWrongChecksumStartsOver() throws IOException {
+        byte[] part = Arrays.copyOf(srcFile.content, CHECKPOINT);
+        part[CHECKPOINT / 2] ^= 1;
+        FileUtils.writeByteArrayToFile(partFile, part);
+        BackupManifest.Checkpoint checkpoint = checkpoint(crc(srcFile.content, CHECKPOINT));
+
+        BackupPipeline.Copy copy = pipeline.copy(srcFile, destFile, checkpoint, new RecordingJournal());
+        assertTrue(copy.await());
+        assertEquals(0, copy.getOffset());
+        assertEquals(0, srcFile.lowestOffset);
+        assertArrayEquals(srcFile.content, FileUtils.readFileToByteArray(destFile));
+        assertEquals(crc(srcFile.content, FILE_SIZE), copy.getChecksum());
+    }
+
+    @Test
+    public void testTruncatedPartStartsOver() throws IOException {
+        FileUtils.writeByteArrayToFile(partFile, Arrays.copyOf(srcFile.content, CHECKPOINT - 1));
+        BackupManifest.Checkpoint checkpoint = checkpoint(crc(srcFile.content, CHECKPOINT));
+
+        BackupPipeline.Copy copy = pipeline.copy(srcFile, destFile, checkpoint, new RecordingJournal());
+        assertTrue(copy.await());
+        assertEquals(0, copy.getOffset());
+        assertArrayEquals(srcFile.content, FileUtils.readFileToByteArray(destFile));
+    }
+
+    @Test
+    public void testFailedReadKeepsNothing() throws IOException {
+        srcFile.failAt = 3 * CHUNK_SIZE;
+        RecordingJournal journal = new RecordingJournal();
+        BackupPipeline.Copy copy = pipeline.copy(srcFile, destFile, null, journal);
+        assertFalse(copy.await());
+        assertNotNull(copy.getError());
+        assertFalse(journal.completed);
+        assertTrue(journal.failed);
+        assertFalse(destFile.exists());
+        assertFalse(partFile.exists());
+    }
+
+    private BackupManifest.Checkpoint checkpoint(long checksum) {
+        manifest.checkpoint(PATH, partFile, FILE_SIZE, LAST_MODIFIED, CHECKPOINT, checksum);
+        return manifest.getCheckpoint(PATH, partFile, FILE_SIZE, LAST_MODIFIED);
+    }
+
+    private static byte[] content(int size) {
+        byte[] content = new byte[size];
+        for (int i = 0; i < size; i++) {
+            content[i] = (byte) (i * 31 + i / 509);
+        }
+        return content;
+    }
+
+    private static long crc(byte[] content, int length) {
+        CRC32 crc = new CRC32();
+        crc.update(content, 0, length);
+        return crc.getValue();
+    }
+
+    private static class RecordingJournal implements BackupPipeline.Journal {
+        private volatile boolean completed;
+        private volatile boolean failed;
+
+        @Override
+        public void onCheckpoint(BackupPipeline.Copy copy, long offset, long checksum) {
+        }
+
+        @Override
+        public void onComplete(BackupPipeline.Copy copy) {
+            completed = true;
+        }
+
+        @Override
+        public void onFailed(BackupPipeline.Copy copy) {
+            failed = true;
+        }
+    }
+
+    /**
+     * A source file in memory, that remembers the lowest offset read.
+     */
+    private static class MemoryFile implements FsFile {
+        private final byte[] content;
+        private long lowestOffset = Long.MAX_VALUE;
+        private long failAt = -1;
+
+        private MemoryFile(byte[] content) {
+            this.content = content;
+        }
+
+        @Override
+        public long getLength() {
+            return content.length;
+        }
+
+        @Override
+        public void setLength(long length) throws IOException {
+            throw new ReadOnlyException();
+        }
+
+        @Override
+        public void read(long offset, ByteBuffer dest) throws IOException {
+            if (failAt >= 0 && offset >= failAt) {
+                throw new IOException("Bad sector @" + offset);
+            }
+            lowestOffset = Math.min(lowestOffset, offset);
+            dest.put(content, (int) offset, dest.remaining());
+        }
+
+        @Override
+        public void write(long offset, ByteBuffer src) throws IOException {
+            throw new ReadOnlyException();
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public boolean isValid() {
+            return true;
+        }
+
+        @Override
+        public boolean isReadOnly() {
+            return true;
+        }
+    }
+}